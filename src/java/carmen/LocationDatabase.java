@@ -0,0 +1,611 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import carmen.types.AliasIndex;
+import carmen.types.FstAliasIndex;
+import carmen.types.GeocodeLocationResolver;
+import carmen.types.GeocodeRaster;
+import carmen.types.HashAliasIndex;
+import carmen.types.Location;
+import carmen.types.NameDictionary;
+import carmen.types.NameFilter;
+import carmen.types.OverlayAliasIndex;
+import carmen.utils.CarmenProperties;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The database of known locations used by a LocationResolver: the locations, their aliases,
+ * the location hierarchy, the place name mappings, the state and country names and the
+ * spatial index used to resolve coordinates.
+ *
+ * A LocationDatabase does not change after it is loaded, so a single instance can be shared by
+ * any number of LocationResolvers (with different options) on any number of threads.
+ * Locations that are not in the database are kept by each LocationResolver.
+ * To keep the database small, the names of its locations are shared through a NameDictionary of its
+ * own and the aliases are packed into an AliasIndex.
+ *
+ * getDefaultDatabase() loads the database from the files given in carmen.properties
+ * (locations, place_name_mapping, state_names_file and country_names_file). alias_index selects how the
+ * aliases are stored (hash or fst, see AliasIndex), and with fst, alias_index_file can name an index to
+ * memory map instead of building one (see carmen.tools.BuildAliasIndex). geocode_raster_file names a GeocodeRaster
+ * to memory map for resolving coordinates (see carmen.tools.BuildGeocodeRaster). location_deltas lists delta files
+ * (see LocationDelta) that are applied, in order, after the files are loaded.
+ *
+ * applyDelta() returns a new database with a few changes, which shares everything that does not change
+ * with the database it was made from, so it takes milliseconds.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class LocationDatabase {
+	protected static Logger logger = Logger.getLogger(LocationDatabase.class);
+
+	protected static LocationDatabase defaultDatabase = null;
+
+	public static final String ALIAS_INDEX_HASH = "hash";
+	public static final String ALIAS_INDEX_FST = "fst";
+	// About 1 in 100 strings that are not names pass a name filter.
+	private static final int NAME_FILTER_BITS_PER_NAME = 10;
+
+	private final Set<String> stateFullNames;
+	private final Set<String> countryFullNames;
+	private final Map<String, String> stateAbbreviationToFullName;
+	private final Map<String, String> countryAbbreviationToFullName;
+	private final Map<String, String> placeNameToNormalizedPlaceName;
+	private final AliasIndex locationNameToLocation;
+	private final NameFilter nameFilter;
+	private final NameFilter stateOrCountryNameFilter;
+	private final Map<Location, Location> locationToParent;
+	private final Map<Location, List<Location>> locationToChildren;
+	private final Map<Integer, Location> idToLocation;
+	private final Map<Location, Integer> locationToId;
+	private final GeocodeLocationResolver geocodeLocationResolver;
+	// Shared with the versions made from this one by applyDelta().
+	private final NameDictionary names;
+
+	/**
+	 * Returns the database loaded from the files in carmen.properties. It is loaded once and shared.
+	 * @return
+	 * @throws IOException
+	 */
+	public static synchronized LocationDatabase getDefaultDatabase() throws IOException {
+		if (defaultDatabase == null)
+			defaultDatabase = load();
+		return defaultDatabase;
+	}
+
+	/**
+	 * Loads a new database from the files given in carmen.properties.
+	 * @return
+	 * @throws IOException
+	 */
+	public static LocationDatabase load() throws IOException {
+		String aliasIndexFile = CarmenProperties.getString("alias_index_file", null);
+		if (aliasIndexFile != null && aliasIndexFile.trim().length() == 0)
+			aliasIndexFile = null;
+		LocationDatabase database = load(CarmenProperties.getString("locations"),
+				CarmenProperties.getString("place_name_mapping"),
+				CarmenProperties.getString("state_names_file"),
+				CarmenProperties.getString("country_names_file"),
+				CarmenProperties.getString("alias_index", ALIAS_INDEX_HASH),
+				aliasIndexFile);
+
+		String deltaFiles = CarmenProperties.getString("location_deltas", null);
+		if (deltaFiles != null) {
+			for (String deltaFile : deltaFiles.split(",")) {
+				deltaFile = deltaFile.trim();
+				if (deltaFile.length() == 0)
+					continue;
+				logger.info("Applying location delta: " + deltaFile);
+				try {
+					database = database.applyDelta(LocationDelta.read(deltaFile));
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Unable to apply " + deltaFile + ": " + e.getMessage(), e);
+				}
+			}
+		}
+		return database;
+	}
+
+	public static LocationDatabase load(String locationsFile, String placeNameMappingFile,
+			String stateNamesFile, String countryNamesFile) throws IOException {
+		return load(locationsFile, placeNameMappingFile, stateNamesFile, countryNamesFile, ALIAS_INDEX_HASH, null);
+	}
+
+	/**
+	 * @param aliasIndexType hash or fst (see AliasIndex).
+	 * @param aliasIndexFile For fst, an index written by FstAliasIndex.write() to memory map instead of building
+	 * the index from the aliases in the locations file, or null.
+	 */
+	public static LocationDatabase load(String locationsFile, String placeNameMappingFile,
+			String stateNamesFile, String countryNamesFile, String aliasIndexType, String aliasIndexFile) throws IOException {
+		return new LocationDatabase(locationsFile, placeNameMappingFile, stateNamesFile, countryNamesFile, aliasIndexType, aliasIndexFile);
+	}
+
+	protected LocationDatabase(String locationsFile, String placeNameMappingFile,
+			String stateNamesFile, String countryNamesFile, String aliasIndexType, String aliasIndexFile) throws IOException {
+		logger.info("Loading location resources.");
+
+		HashMap<String, Location> locationNameToLocation = new HashMap<String, Location>();
+		HashMap<Integer, Location> idToLocation = new HashMap<Integer, Location>();
+		HashMap<Location, Integer> locationToId = new HashMap<Location, Integer>();
+
+		// Load the location objects.
+		loadLocationFile(locationsFile, locationNameToLocation, idToLocation, locationToId);
+		idToLocation.put(-1, Location.getNoneLocation());
+
+		HashSet<Location> knownLocations = new HashSet<Location>();
+		for (Location location : idToLocation.values()) {
+			knownLocations.add(location);
+		}
+
+		// The parents are all in the json file, so there is no need to create missing parents.
+		HashMap<Location, Location> locationToParent = new HashMap<Location, Location>();
+		HashMap<Location, List<Location>> locationToChildren = new HashMap<Location, List<Location>>();
+		for (Location location : knownLocations) {
+			Location parent = idToLocation.get(location.getParentId());
+			if (parent != null) {
+				locationToParent.put(location, parent);
+				if (!locationToChildren.containsKey(parent))
+					locationToChildren.put(parent, new ArrayList<Location>());
+				locationToChildren.get(parent).add(location);
+			}
+		}
+		for (Map.Entry<Location, List<Location>> entry : locationToChildren.entrySet())
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+
+		HashMap<String, String> placeNameToNormalizedPlaceName = new HashMap<String, String>();
+		HashSet<String> stateFullNames = new HashSet<String>();
+		HashSet<String> countryFullNames = new HashSet<String>();
+		HashMap<String, String> stateAbbreviationToFullName = new HashMap<String, String>();
+		HashMap<String, String> countryAbbreviationToFullName = new HashMap<String, String>();
+		loadNameAndAbbreviation(placeNameMappingFile, null, placeNameToNormalizedPlaceName, false);
+		loadNameAndAbbreviation(stateNamesFile, stateFullNames, stateAbbreviationToFullName, true);
+		loadNameAndAbbreviation(countryNamesFile, countryFullNames, countryAbbreviationToFullName, true);
+
+		// Register the locations as known places for geocode resolution, and serialize them once for output.
+		GeocodeLocationResolver geocodeLocationResolver = new GeocodeLocationResolver(idToLocation.values());
+		String geocodeRasterFile = CarmenProperties.getString("geocode_raster_file", null);
+		if (geocodeRasterFile != null && geocodeRasterFile.trim().length() > 0) {
+			logger.info("Mapping the geocode raster: " + geocodeRasterFile);
+			GeocodeRaster raster = GeocodeRaster.read(geocodeRasterFile, idToLocation);
+			if (raster.matches(geocodeLocationResolver.withOptions(raster.getMaxDistance(), raster.isUseLocationRadius())))
+				geocodeLocationResolver = geocodeLocationResolver.withRaster(raster);
+			else
+				logger.warn("The geocode raster " + geocodeRasterFile + " was built from other locations and is not used. Build it again.");
+		}
+		this.geocodeLocationResolver = geocodeLocationResolver;
+		this.names = new NameDictionary();
+		for (Location location : idToLocation.values()) {
+			location.shareNames(this.names);
+			location.precomputeJson();
+		}
+
+		// The aliases are only looked up from here on, so pack them (see AliasIndex).
+		if (ALIAS_INDEX_FST.equals(aliasIndexType)) {
+			if (aliasIndexFile != null) {
+				logger.info("Mapping the alias index: " + aliasIndexFile);
+				this.locationNameToLocation = FstAliasIndex.read(aliasIndexFile, idToLocation);
+			} else {
+				this.locationNameToLocation = FstAliasIndex.build(locationNameToLocation);
+			}
+		} else if (ALIAS_INDEX_HASH.equals(aliasIndexType)) {
+			this.locationNameToLocation = new HashAliasIndex(locationNameToLocation);
+		} else {
+			throw new IllegalArgumentException("Unknown alias_index: " + aliasIndexType);
+		}
+		this.nameFilter = new NameFilter(locationNameToLocation.keySet(), NAME_FILTER_BITS_PER_NAME);
+		HashSet<String> stateOrCountryNames = new HashSet<String>();
+		stateOrCountryNames.addAll(stateFullNames);
+		stateOrCountryNames.addAll(countryFullNames);
+		stateOrCountryNames.addAll(stateAbbreviationToFullName.keySet());
+		stateOrCountryNames.addAll(countryAbbreviationToFullName.keySet());
+		this.stateOrCountryNameFilter = new NameFilter(stateOrCountryNames, NAME_FILTER_BITS_PER_NAME);
+		this.idToLocation = Collections.unmodifiableMap(idToLocation);
+		this.locationToId = Collections.unmodifiableMap(locationToId);
+		this.locationToParent = Collections.unmodifiableMap(locationToParent);
+		this.locationToChildren = Collections.unmodifiableMap(locationToChildren);
+		this.placeNameToNormalizedPlaceName = Collections.unmodifiableMap(placeNameToNormalizedPlaceName);
+		this.stateFullNames = Collections.unmodifiableSet(stateFullNames);
+		this.countryFullNames = Collections.unmodifiableSet(countryFullNames);
+		this.stateAbbreviationToFullName = Collections.unmodifiableMap(stateAbbreviationToFullName);
+		this.countryAbbreviationToFullName = Collections.unmodifiableMap(countryAbbreviationToFullName);
+		logger.info("Loaded " + this.idToLocation.size() + " locations with " + this.locationNameToLocation.size() + " names.");
+		logger.debug(String.format("Name filter: %d bits, expected false positive rate %.4f", this.nameFilter.getNumBits(), this.nameFilter.getFalsePositiveRate()));
+	}
+
+	/**
+	 * Returns a new database with the changes of a delta applied, in order. This database does not change.
+	 * The new database shares the data that the delta does not change, such as the packed aliases (the changed
+	 * aliases are kept in an OverlayAliasIndex) and the cells of the geocode index without changed locations.
+	 * @param delta
+	 * @return
+	 * @throws IllegalArgumentException If a change refers to a location that is not in the database, adds a
+	 * location that is, or moves a location below itself. No change is applied.
+	 */
+	public LocationDatabase applyDelta(LocationDelta delta) {
+		return new LocationDatabase(this, delta);
+	}
+
+	protected LocationDatabase(LocationDatabase base, LocationDelta delta) {
+		HashMap<Integer, Location> idToLocation = new HashMap<Integer, Location>(base.idToLocation);
+		HashMap<Location, Integer> locationToId = new HashMap<Location, Integer>(base.locationToId);
+		HashMap<Location, Location> locationToParent = new HashMap<Location, Location>(base.locationToParent);
+		HashMap<Location, List<Location>> locationToChildren = new HashMap<Location, List<Location>>(base.locationToChildren);
+		// The location of each name that changes, or null if the name is removed.
+		HashMap<String, Location> changedNames = new HashMap<String, Location>();
+		// The ids of locations that are replaced by copies with another parent.
+		HashSet<Integer> movedIds = new HashSet<Integer>();
+		List<Location> removedLocations = new ArrayList<Location>();
+		List<Location> addedLocations = new ArrayList<Location>();
+
+		for (LocationDelta.Change change : delta.getChanges()) {
+			String op = change.getOp();
+			if (LocationDelta.ADD_ALIAS.equals(op)) {
+				Location location = requireLocation(idToLocation, change.getLocationId());
+				for (String name : getAliasNames(change.getAlias()))
+					changedNames.put(name, location);
+			} else if (LocationDelta.REMOVE_ALIAS.equals(op)) {
+				Location location = getChangedLocationForName(base, changedNames, change.getAlias());
+				if (location == null) {
+					logger.warn("Unable to remove unknown alias: " + change.getAlias());
+					continue;
+				}
+				// The alias without punctuation is removed if it is an alias of the same location.
+				for (String name : getAliasNames(change.getAlias())) {
+					Location nameLocation = getChangedLocationForName(base, changedNames, name);
+					if (nameLocation != null && nameLocation.getId() == location.getId())
+						changedNames.put(name, null);
+				}
+			} else if (LocationDelta.ADD_LOCATION.equals(op)) {
+				Location location = change.getLocation();
+				if (idToLocation.containsKey(location.getId()))
+					throw new IllegalArgumentException("The id of " + location + " is taken by " + idToLocation.get(location.getId()));
+				if (locationToId.containsKey(location))
+					throw new IllegalArgumentException("The location is already known: " + location);
+				Location parent = requireLocation(idToLocation, change.getParentId());
+				location.shareNames(base.names);
+				location.precomputeJson();
+				idToLocation.put(location.getId(), location);
+				locationToId.put(location, location.getId());
+				addChild(locationToParent, locationToChildren, parent, location);
+				addedLocations.add(location);
+				// As in the locations file, names of other locations are kept.
+				for (String alias : change.getAliases()) {
+					for (String name : getAliasNames(alias)) {
+						if (getChangedLocationForName(base, changedNames, name) != null)
+							logger.warn("Duplicate location name: " + name);
+						else
+							changedNames.put(name, location);
+					}
+				}
+			} else if (LocationDelta.MOVE_PARENT.equals(op)) {
+				Location location = requireLocation(idToLocation, change.getLocationId());
+				Location parent = requireLocation(idToLocation, change.getParentId());
+				if (location.isNone())
+					throw new IllegalArgumentException("The root location can not be moved.");
+				// The root is its own parent.
+				for (Location ancestor = parent; ancestor != null && !ancestor.isNone(); ancestor = locationToParent.get(ancestor)) {
+					if (ancestor.equals(location))
+						throw new IllegalArgumentException("Unable to move " + location + " below itself, to " + parent);
+				}
+
+				// Known locations are shared, so the location is replaced by a copy with the new parent id.
+				Location movedLocation = location.copyWithParentId(parent.getId());
+				movedLocation.precomputeJson();
+				idToLocation.put(movedLocation.getId(), movedLocation);
+				Location oldParent = locationToParent.remove(location);
+				if (oldParent != null) {
+					List<Location> siblings = new ArrayList<Location>(locationToChildren.get(oldParent));
+					siblings.remove(location);
+					if (siblings.isEmpty())
+						locationToChildren.remove(oldParent);
+					else
+						locationToChildren.put(oldParent, Collections.unmodifiableList(siblings));
+				}
+				addChild(locationToParent, locationToChildren, parent, movedLocation);
+				List<Location> children = locationToChildren.get(location);
+				if (children != null) {
+					for (Location child : children)
+						locationToParent.put(child, movedLocation);
+				}
+				movedIds.add(movedLocation.getId());
+				int index = indexOf(addedLocations, location);
+				if (index >= 0) {
+					addedLocations.set(index, movedLocation);
+				} else {
+					removedLocations.add(location);
+					addedLocations.add(movedLocation);
+				}
+			}
+		}
+
+		// Names point at the latest copy of each location.
+		List<String> addedNames = new ArrayList<String>();
+		for (Map.Entry<String, Location> entry : changedNames.entrySet()) {
+			if (entry.getValue() != null) {
+				entry.setValue(idToLocation.get(entry.getValue().getId()));
+				addedNames.add(entry.getKey());
+			}
+		}
+		HashMap<Integer, Location> replacedLocations = new HashMap<Integer, Location>();
+		for (Integer id : movedIds)
+			replacedLocations.put(id, idToLocation.get(id));
+
+		this.locationNameToLocation = OverlayAliasIndex.create(base.locationNameToLocation, changedNames, replacedLocations);
+		this.nameFilter = addedNames.isEmpty() ? base.nameFilter : base.nameFilter.withNames(addedNames);
+		this.stateOrCountryNameFilter = base.stateOrCountryNameFilter;
+		if (removedLocations.isEmpty() && addedLocations.isEmpty())
+			this.geocodeLocationResolver = base.geocodeLocationResolver;
+		else
+			this.geocodeLocationResolver = base.geocodeLocationResolver.withChanges(removedLocations, addedLocations);
+		this.idToLocation = Collections.unmodifiableMap(idToLocation);
+		this.locationToId = Collections.unmodifiableMap(locationToId);
+		this.locationToParent = Collections.unmodifiableMap(locationToParent);
+		this.locationToChildren = Collections.unmodifiableMap(locationToChildren);
+		this.placeNameToNormalizedPlaceName = base.placeNameToNormalizedPlaceName;
+		this.stateFullNames = base.stateFullNames;
+		this.countryFullNames = base.countryFullNames;
+		this.stateAbbreviationToFullName = base.stateAbbreviationToFullName;
+		this.countryAbbreviationToFullName = base.countryAbbreviationToFullName;
+		this.names = base.names;
+	}
+
+	private static Location requireLocation(Map<Integer, Location> idToLocation, int id) {
+		Location location = idToLocation.get(id);
+		if (location == null)
+			throw new IllegalArgumentException("Unknown location id: " + id);
+		return location;
+	}
+
+	/**
+	 * Returns the location of a name in the base database with the changes made so far.
+	 */
+	private static Location getChangedLocationForName(LocationDatabase base, Map<String, Location> changedNames, String name) {
+		if (changedNames.containsKey(name))
+			return changedNames.get(name);
+		return base.locationNameToLocation.get(name);
+	}
+
+	/**
+	 * Returns the names added for an alias: the alias and the alias without punctuation (see loadLocationFile()).
+	 */
+	private static List<String> getAliasNames(String alias) {
+		List<String> names = new ArrayList<String>(2);
+		names.add(alias);
+		String newEntry = alias.replaceAll("\\p{Punct}", " ").replaceAll("\\s+", " ");
+		if (!newEntry.equals(alias))
+			names.add(newEntry);
+		return names;
+	}
+
+	private static void addChild(Map<Location, Location> locationToParent, Map<Location, List<Location>> locationToChildren, Location parent, Location child) {
+		locationToParent.put(child, parent);
+		List<Location> children = locationToChildren.get(parent);
+		children = children == null ? new ArrayList<Location>() : new ArrayList<Location>(children);
+		children.add(child);
+		locationToChildren.put(parent, Collections.unmodifiableList(children));
+	}
+
+	private static int indexOf(List<Location> locations, Location location) {
+		for (int ii = 0; ii < locations.size(); ii++) {
+			if (locations.get(ii) == location)
+				return ii;
+		}
+		return -1;
+	}
+
+	// Load files
+	protected static void loadNameAndAbbreviation(String filename,
+			HashSet<String> fullName,
+			HashMap<String, String> abbreviations, boolean secondColumnKey) throws FileNotFoundException {
+		Scanner inputScanner = new Scanner(new FileInputStream(filename),"UTF-8");
+		while (inputScanner.hasNextLine()) {
+			String line = inputScanner.nextLine().toLowerCase();
+			String[] splitString = line.split("\t");
+			splitString[0] = splitString[0].trim();
+			if (fullName != null)
+				fullName.add(splitString[0]);
+			if (abbreviations != null) {
+				if (!secondColumnKey) {
+					abbreviations.put(splitString[0], splitString[1]);
+				} else {
+					abbreviations.put(splitString[1], splitString[0]);
+				}
+			}
+		}
+		inputScanner.close();
+	}
+
+	@SuppressWarnings("unchecked")
+	protected static void loadLocationFile(String filename, HashMap<String, Location> locationNameToLocation,
+			HashMap<Integer, Location> idToLocation, HashMap<Location, Integer> locationToId) throws JsonParseException, JsonMappingException, IOException {
+		ObjectMapper mapper = new ObjectMapper();
+
+		Scanner inputScanner = new Scanner(new FileInputStream(filename));
+		while (inputScanner.hasNextLine()) {
+			String line = inputScanner.nextLine();
+			Map<String,Object> locationObj = mapper.readValue(line, Map.class);
+			Location location = Location.parseLocationFromJsonObj(locationObj);
+
+			List<String> aliases = (List<String>)locationObj.get("aliases");
+			idToLocation.put(location.getId(), location);
+			locationToId.put(location, location.getId());
+			HashSet<String> justAddedAliases = new HashSet<String>();
+			if (aliases != null) {
+				for (String alias : aliases) {
+					if (justAddedAliases.contains(alias))
+						continue;
+
+					if (locationNameToLocation.containsKey(alias))
+						logger.warn("Duplicate location name: " + alias);
+					else
+						locationNameToLocation.put(alias, location);
+					justAddedAliases.add(alias);
+
+					// Add entries without punctuation.
+					String newEntry = alias.replaceAll("\\p{Punct}", " ").replaceAll("\\s+", " ");
+					if (justAddedAliases.contains(newEntry))
+						continue;
+
+					if (!newEntry.equals(alias)) {
+						if (locationNameToLocation.containsKey(newEntry))
+							logger.warn("Duplicate location name: " + newEntry);
+						else
+							locationNameToLocation.put(newEntry, location);
+					}
+
+					justAddedAliases.add(newEntry);
+
+				}
+			}
+		}
+		inputScanner.close();
+	}
+
+	/**
+	 * Returns the known location with this id, or null if there is none.
+	 * @param id
+	 * @return
+	 */
+	public Location getLocationForId(int id) {
+		return this.idToLocation.get(id);
+	}
+
+	/**
+	 * Returns the known location that is equal to this location (e.g. the same country, state, county and city),
+	 * or null if the location is not in the database.
+	 * @param location
+	 * @return
+	 */
+	public Location getKnownLocation(Location location) {
+		Integer id = this.locationToId.get(location);
+		if (id == null)
+			return null;
+		return this.idToLocation.get(id);
+	}
+
+	/**
+	 * Returns the location with this name or alias, or null if there is none.
+	 * @param name
+	 * @return
+	 */
+	public Location getLocationForName(String name) {
+		return this.locationNameToLocation.get(name);
+	}
+
+	/**
+	 * Returns the index of location names and aliases used by getLocationForName().
+	 * @return
+	 */
+	public AliasIndex getAliasIndex() {
+		return this.locationNameToLocation;
+	}
+
+	/**
+	 * Returns a filter of the names and aliases of the locations, to skip looking up strings that are
+	 * not names (see LocationResolver).
+	 * @return
+	 */
+	public NameFilter getNameFilter() {
+		return this.nameFilter;
+	}
+
+	/**
+	 * Returns a filter of the full names and abbreviations of states and countries.
+	 * @return
+	 */
+	public NameFilter getStateOrCountryNameFilter() {
+		return this.stateOrCountryNameFilter;
+	}
+
+	/**
+	 * Returns the known parent of a known location, or null if there is none.
+	 * @param location
+	 * @return
+	 */
+	public Location getParent(Location location) {
+		return this.locationToParent.get(location);
+	}
+
+	/**
+	 * Returns the known children of a known location, or null if there are none.
+	 * @param location
+	 * @return
+	 */
+	public List<Location> getChildren(Location location) {
+		return this.locationToChildren.get(location);
+	}
+
+	public Collection<Location> getLocations() {
+		return this.idToLocation.values();
+	}
+
+	public int getNumLocations() {
+		return this.idToLocation.size();
+	}
+
+	/**
+	 * Maps a Twitter place name (lower case) to its normalized form. Returns null if there is no mapping.
+	 * @param placeName
+	 * @return
+	 */
+	public String getNormalizedPlaceName(String placeName) {
+		return this.placeNameToNormalizedPlaceName.get(placeName);
+	}
+
+	public boolean isStateFullName(String name) {
+		return this.stateFullNames.contains(name);
+	}
+
+	public boolean isCountryFullName(String name) {
+		return this.countryFullNames.contains(name);
+	}
+
+	/**
+	 * Returns the full name of a state given its (lower case) abbreviation, or null if it is not a state abbreviation.
+	 * @param abbreviation
+	 * @return
+	 */
+	public String getStateFullName(String abbreviation) {
+		return this.stateAbbreviationToFullName.get(abbreviation);
+	}
+
+	/**
+	 * Returns the full name of a country given its (lower case) abbreviation, or null if it is not a country abbreviation.
+	 * @param abbreviation
+	 * @return
+	 */
+	public String getCountryFullName(String abbreviation) {
+		return this.countryAbbreviationToFullName.get(abbreviation);
+	}
+
+	/**
+	 * Returns the geocode resolver over the known locations. LocationResolvers create views of it with their own options.
+	 * @return
+	 */
+	public GeocodeLocationResolver getGeocodeLocationResolver() {
+		return this.geocodeLocationResolver;
+	}
+}
@@ -0,0 +1,307 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds the current version of the LocationDatabase used by LocationResolvers, and replaces it with a
+ * new version without stopping them. A new version is loaded in the background (reloadAsync()) or on the
+ * calling thread (reload()) while the old one stays in use, and is then swapped in with a single volatile
+ * write. A resolver reads the current version once per call, so calls that started before a swap finish
+ * with the old version, and the old version is garbage collected once they are done.
+ *
+ * Each version is numbered, starting at 1. If loading fails, the current version is kept and the error
+ * is recorded (see getLastError()).
+ *
+ * applyDelta() swaps in a version with a few changes to the locations and aliases (see LocationDelta), which
+ * takes milliseconds. A reload loads the files again, so the changes of deltas that are not in the files
+ * or in location_deltas (see LocationDatabase) are lost. Deltas applied while a reload is running are applied
+ * again to the reloaded version before it is swapped in.
+ *
+ * getDefaultProvider() reloads the files given in carmen.properties, so updated files (e.g. locations.json or
+ * place_name_mappings.txt) can be loaded without a restart.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class LocationDatabaseProvider {
+	protected static Logger logger = Logger.getLogger(LocationDatabaseProvider.class);
+
+	protected static LocationDatabaseProvider defaultProvider = null;
+
+	private final Callable<LocationDatabase> loader;
+	private volatile Version current;
+
+	// Guarded by this.
+	private Future<Version> pendingReload = null;
+	// The deltas applied since the pending reload started, to apply again to the reloaded version.
+	private final List<LocationDelta> deltasDuringReload = new ArrayList<LocationDelta>();
+	private long numReloads = 0;
+	private long numFailedReloads = 0;
+	private long numDeltas = 0;
+	private String lastError = null;
+
+	/**
+	 * A provider of the database given in carmen.properties, which is reloaded from the same files.
+	 * Its first version is LocationDatabase.getDefaultDatabase().
+	 * @return
+	 * @throws IOException
+	 */
+	public static synchronized LocationDatabaseProvider getDefaultProvider() throws IOException {
+		if (defaultProvider == null) {
+			defaultProvider = new LocationDatabaseProvider(LocationDatabase.getDefaultDatabase(), new Callable<LocationDatabase>() {
+				public LocationDatabase call() throws IOException {
+					return LocationDatabase.load();
+				}
+			});
+		}
+		return defaultProvider;
+	}
+
+	/**
+	 * A provider of a database that can not be reloaded.
+	 * @param database
+	 */
+	public LocationDatabaseProvider(LocationDatabase database) {
+		this(database, null);
+	}
+
+	/**
+	 * @param database The first version.
+	 * @param loader Loads a new version, or null if the database can not be reloaded.
+	 */
+	public LocationDatabaseProvider(LocationDatabase database, Callable<LocationDatabase> loader) {
+		if (database == null)
+			throw new IllegalArgumentException("The database must not be null.");
+		this.loader = loader;
+		this.current = new Version(database, 1, System.currentTimeMillis(), 0);
+	}
+
+	/**
+	 * Returns the current database.
+	 * @return
+	 */
+	public LocationDatabase getDatabase() {
+		return this.current.database;
+	}
+
+	/**
+	 * Returns the current database with its version number.
+	 * @return
+	 */
+	public Version getVersion() {
+		return this.current;
+	}
+
+	public boolean isReloadable() {
+		return this.loader != null;
+	}
+
+	/**
+	 * Loads a new version of the database on this thread and swaps it in. If a reload is already running,
+	 * waits for it instead of loading another.
+	 * @return The new version.
+	 * @throws IOException If the database could not be loaded. The current version is kept.
+	 */
+	public Version reload() throws IOException {
+		try {
+			return reloadAsync().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reloading the location database.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException("Unable to reload the location database: " + e.getCause(), e.getCause());
+		}
+	}
+
+	/**
+	 * Applies a delta to the current version and swaps the result in.
+	 * @param delta
+	 * @return The new version.
+	 * @throws IllegalArgumentException If the delta can not be applied (see LocationDatabase.applyDelta()). The
+	 * current version is kept.
+	 */
+	public synchronized Version applyDelta(LocationDelta delta) {
+		long start = System.currentTimeMillis();
+		Version current = this.current;
+		LocationDatabase database = current.database.applyDelta(delta);
+		long loadMillis = System.currentTimeMillis() - start;
+		Version version = new Version(database, current.version + 1, System.currentTimeMillis(), loadMillis);
+		this.current = version;
+		this.numDeltas++;
+		if (this.pendingReload != null)
+			this.deltasDuringReload.add(delta);
+		logger.info("Swapped in version " + version.version + " of the location database with " + delta.size()
+				+ " changes after " + loadMillis + " ms.");
+		return version;
+	}
+
+	/**
+	 * Starts loading a new version of the database on a background thread, which swaps it in when it is loaded.
+	 * If a reload is already running, returns that reload instead of starting another.
+	 * @return The new version when it is loaded.
+	 */
+	public synchronized Future<Version> reloadAsync() {
+		if (this.loader == null)
+			throw new UnsupportedOperationException("This location database can not be reloaded.");
+		if (this.pendingReload != null)
+			return this.pendingReload;
+
+		FutureTask<Version> task = new FutureTask<Version>(new Callable<Version>() {
+			public Version call() throws Exception {
+				return load();
+			}
+		});
+		this.pendingReload = task;
+		Thread thread = new Thread(task, "carmen-database-reload");
+		thread.setDaemon(true);
+		try {
+			thread.start();
+		} catch (Error e) {
+			failReload(e);
+			throw e;
+		}
+		return task;
+	}
+
+	private Version load() throws Exception {
+		long start = System.currentTimeMillis();
+		logger.info("Reloading the location database.");
+		try {
+			LocationDatabase database = this.loader.call();
+			long loadMillis = System.currentTimeMillis() - start;
+			synchronized (this) {
+				// The changes of deltas applied during the reload are not in the files.
+				for (LocationDelta delta : this.deltasDuringReload) {
+					try {
+						database = database.applyDelta(delta);
+					} catch (IllegalArgumentException e) {
+						logger.warn("Unable to apply a delta of " + delta.size() + " changes to the reloaded location database: " + e.getMessage());
+					}
+				}
+				this.deltasDuringReload.clear();
+				loadMillis = System.currentTimeMillis() - start;
+				Version version = new Version(database, this.current.version + 1, System.currentTimeMillis(), loadMillis);
+				this.current = version;
+				this.numReloads++;
+				this.lastError = null;
+				this.pendingReload = null;
+				logger.info("Swapped in version " + version.version + " of the location database (" + database.getNumLocations()
+						+ " locations) after " + loadMillis + " ms.");
+				return version;
+			}
+		} catch (Exception e) {
+			failReload(e);
+			throw e;
+		} catch (Error e) {
+			failReload(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Ends a reload that failed, so that another can be started.
+	 */
+	private synchronized void failReload(Throwable e) {
+		this.numFailedReloads++;
+		this.lastError = e.toString();
+		this.pendingReload = null;
+		// The deltas are already in the current version.
+		this.deltasDuringReload.clear();
+		logger.error("Unable to reload the location database, keeping version " + this.current.version + ": " + e);
+	}
+
+	/**
+	 * True while a new version is being loaded.
+	 * @return
+	 */
+	public synchronized boolean isReloading() {
+		return this.pendingReload != null;
+	}
+
+	/**
+	 * The number of versions that have been swapped in after the first.
+	 * @return
+	 */
+	public synchronized long getNumReloads() {
+		return this.numReloads;
+	}
+
+	public synchronized long getNumFailedReloads() {
+		return this.numFailedReloads;
+	}
+
+	/**
+	 * The number of deltas that have been applied.
+	 * @return
+	 */
+	public synchronized long getNumDeltas() {
+		return this.numDeltas;
+	}
+
+	/**
+	 * The error of the last reload if it failed, or null.
+	 * @return
+	 */
+	public synchronized String getLastError() {
+		return this.lastError;
+	}
+
+	/**
+	 * A version of the database. Versions do not change.
+	 */
+	public static final class Version {
+		private final LocationDatabase database;
+		private final long version;
+		private final long loadedTime;
+		private final long loadMillis;
+
+		private Version(LocationDatabase database, long version, long loadedTime, long loadMillis) {
+			this.database = database;
+			this.version = version;
+			this.loadedTime = loadedTime;
+			this.loadMillis = loadMillis;
+		}
+
+		public LocationDatabase getDatabase() {
+			return this.database;
+		}
+
+		/**
+		 * The number of this version: 1 for the first, then one more for each reload or delta.
+		 * @return
+		 */
+		public long getVersion() {
+			return this.version;
+		}
+
+		/**
+		 * When this version was swapped in (milliseconds since the epoch).
+		 * @return
+		 */
+		public long getLoadedTime() {
+			return this.loadedTime;
+		}
+
+		/**
+		 * How long this version took to load or to apply a delta to, 0 for the first version.
+		 * @return
+		 */
+		public long getLoadMillis() {
+			return this.loadMillis;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+import carmen.types.Location;
+import carmen.utils.Utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A list of changes to the known locations and their aliases, applied to a LocationDatabase with
+ * LocationDatabase.applyDelta() (or LocationDatabaseProvider.applyDelta() to swap the changed database in).
+ * Applying a delta takes milliseconds, where changing the locations file means loading everything again.
+ *
+ * A delta file has one JSON object per line, with an op field. Ids may be numbers or strings.
+ * {"op": "add_alias", "alias": "the big apple", "id": "123"}: adds an alias of location 123, or points an
+ * existing alias at it.
+ * {"op": "remove_alias", "alias": "springfield"}: removes an alias.
+ * {"op": "add_location", ...}: adds a location. The other fields are those of a line of the locations file,
+ * including its aliases.
+ * {"op": "move_parent", "id": "123", "parent_id": "45"}: makes location 45 the parent of location 123.
+ * Empty lines and lines starting with # are skipped.
+ *
+ * As in the locations file, each alias is also added without its punctuation. Aliases are lower cased.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class LocationDelta {
+	public static final String ADD_ALIAS = "add_alias";
+	public static final String REMOVE_ALIAS = "remove_alias";
+	public static final String ADD_LOCATION = "add_location";
+	public static final String MOVE_PARENT = "move_parent";
+
+	private final List<Change> changes = new ArrayList<Change>();
+
+	public LocationDelta() {
+	}
+
+	/**
+	 * Reads a delta file, which is treated as a gzip file if it ends with .gz.
+	 * @param filename
+	 * @return
+	 * @throws IOException If a line is not a valid change.
+	 */
+	public static LocationDelta read(String filename) throws IOException {
+		InputStream inputStream = Utils.createInputStream(filename);
+		try {
+			return read(inputStream, filename);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Reads a delta from a stream of lines.
+	 * @param inputStream
+	 * @param source The name of the stream for error messages.
+	 * @return
+	 * @throws IOException If a line is not a valid change.
+	 */
+	@SuppressWarnings("unchecked")
+	public static LocationDelta read(InputStream inputStream, String source) throws IOException {
+		LocationDelta delta = new LocationDelta();
+		ObjectMapper mapper = new ObjectMapper();
+		Scanner inputScanner = new Scanner(inputStream, "UTF-8");
+		int lineNumber = 0;
+		while (inputScanner.hasNextLine()) {
+			lineNumber++;
+			String line = inputScanner.nextLine().trim();
+			if (line.length() == 0 || line.startsWith("#"))
+				continue;
+			try {
+				delta.add((Map<String, Object>)mapper.readValue(line, Map.class));
+			} catch (Exception e) {
+				throw new IOException("Bad change on line " + lineNumber + " of " + source + ": " + e.getMessage(), e);
+			}
+		}
+		inputScanner.close();
+		return delta;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void add(Map<String, Object> change) {
+		String op = (String)change.get("op");
+		if (ADD_ALIAS.equals(op))
+			addAlias(getString(change, "alias"), getId(change, "id"));
+		else if (REMOVE_ALIAS.equals(op))
+			removeAlias(getString(change, "alias"));
+		else if (ADD_LOCATION.equals(op)) {
+			Map<String, Object> locationObj = new HashMap<String, Object>(change);
+			// The parser of the locations file expects ids and coordinates as strings.
+			locationObj.put("id", Integer.toString(getId(change, "id")));
+			locationObj.put("parent_id", Integer.toString(getId(change, "parent_id")));
+			for (String field : new String[] { "latitude", "longitude" }) {
+				if (change.get(field) instanceof Number)
+					locationObj.put(field, change.get(field).toString());
+			}
+			addLocation(Location.parseLocationFromJsonObj(locationObj), (List<String>)change.get("aliases"));
+		} else if (MOVE_PARENT.equals(op))
+			moveParent(getId(change, "id"), getId(change, "parent_id"));
+		else
+			throw new IllegalArgumentException("Unknown op: " + op);
+	}
+
+	private static String getString(Map<String, Object> change, String field) {
+		Object value = change.get(field);
+		if (!(value instanceof String))
+			throw new IllegalArgumentException("Missing " + field);
+		return (String)value;
+	}
+
+	private static int getId(Map<String, Object> change, String field) {
+		Object value = change.get(field);
+		if (value instanceof Number)
+			return ((Number)value).intValue();
+		if (value instanceof String)
+			return Integer.parseInt(((String)value).trim());
+		throw new IllegalArgumentException("Missing " + field);
+	}
+
+	/**
+	 * Adds an alias of a known location, or points an existing alias at it.
+	 * @param alias
+	 * @param locationId
+	 * @return
+	 */
+	public LocationDelta addAlias(String alias, int locationId) {
+		this.changes.add(new Change(ADD_ALIAS, normalizeAlias(alias), locationId, -1, null, null));
+		return this;
+	}
+
+	public LocationDelta removeAlias(String alias) {
+		this.changes.add(new Change(REMOVE_ALIAS, normalizeAlias(alias), -1, -1, null, null));
+		return this;
+	}
+
+	/**
+	 * Adds a location, which must not be in the database. Its parent is given by its parent id.
+	 * @param location
+	 * @param aliases The aliases of the location, or null.
+	 * @return
+	 */
+	public LocationDelta addLocation(Location location, List<String> aliases) {
+		List<String> normalizedAliases = new ArrayList<String>();
+		if (aliases != null) {
+			for (String alias : aliases)
+				normalizedAliases.add(normalizeAlias(alias));
+		}
+		this.changes.add(new Change(ADD_LOCATION, null, location.getId(), location.getParentId(), location, normalizedAliases));
+		return this;
+	}
+
+	/**
+	 * Makes a known location the parent of another.
+	 * @param locationId
+	 * @param parentId
+	 * @return
+	 */
+	public LocationDelta moveParent(int locationId, int parentId) {
+		this.changes.add(new Change(MOVE_PARENT, null, locationId, parentId, null, null));
+		return this;
+	}
+
+	private static String normalizeAlias(String alias) {
+		return alias.toLowerCase().trim();
+	}
+
+	/**
+	 * The changes, in the order they are applied.
+	 * @return
+	 */
+	public List<Change> getChanges() {
+		return Collections.unmodifiableList(this.changes);
+	}
+
+	public int size() {
+		return this.changes.size();
+	}
+
+	/**
+	 * A single change. Which fields are set depends on the op.
+	 */
+	public static class Change {
+		private final String op;
+		private final String alias;
+		private final int locationId;
+		private final int parentId;
+		private final Location location;
+		private final List<String> aliases;
+
+		protected Change(String op, String alias, int locationId, int parentId, Location location, List<String> aliases) {
+			this.op = op;
+			this.alias = alias;
+			this.locationId = locationId;
+			this.parentId = parentId;
+			this.location = location;
+			this.aliases = aliases;
+		}
+
+		public String getOp() {
+			return this.op;
+		}
+
+		/**
+		 * The alias of add_alias and remove_alias.
+		 * @return
+		 */
+		public String getAlias() {
+			return this.alias;
+		}
+
+		/**
+		 * The location of add_alias, add_location and move_parent.
+		 * @return
+		 */
+		public int getLocationId() {
+			return this.locationId;
+		}
+
+		/**
+		 * The new parent of add_location and move_parent.
+		 * @return
+		 */
+		public int getParentId() {
+			return this.parentId;
+		}
+
+		/**
+		 * The location of add_location.
+		 * @return
+		 */
+		public Location getLocation() {
+			return this.location;
+		}
+
+		/**
+		 * The aliases of add_location.
+		 * @return
+		 */
+		public List<String> getAliases() {
+			return this.aliases;
+		}
+
+		public String toString() {
+			if (ADD_ALIAS.equals(this.op))
+				return this.op + " " + this.alias + " -> " + this.locationId;
+			if (REMOVE_ALIAS.equals(this.op))
+				return this.op + " " + this.alias;
+			return this.op + " " + this.locationId + " (parent " + this.parentId + ")";
+		}
+	}
+}
@@ -5,38 +5,55 @@
 package carmen;
 
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import carmen.types.Constants;
 import carmen.types.GeocodeLocationResolver;
 import carmen.types.Location;
+import carmen.types.NameFilter;
+import carmen.types.Resolution;
 import carmen.types.ResolutionMethod;
+import carmen.types.UserLocationCache;
 import carmen.utils.CarmenProperties;
 import carmen.utils.Utils;
 
 import org.apache.log4j.Logger;
 
-import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.javadocmd.simplelatlng.LatLng;
 
 /**
- * This is the main class used by Carmen. A single instance is created (using getLocationResolver()).
+ * This is the main class used by Carmen. A single instance configured by carmen.properties is created
+ * using getLocationResolver(). Other instances with their own options can be created with builder().
+ * All instances share the LocationDatabase that holds the known locations, so additional resolvers are cheap.
+ * Each instance keeps its own unknown locations.
  * 
- * Given a tweet, resolveLocationFromTweet() will return a location for a tweet. The location can
- * be saved with the tweet.
+ * Given a tweet, resolve() will return a Resolution for a tweet: its location and how the location was
+ * found. The location can be saved with the tweet. resolveAsync() does the same on an executor and returns
+ * a CompletableFuture, sharing lookups between requests for the same place or profile location.
  * 
- * The returned location can be null if no location can be inferred for this tweet. If a Location is returned,
- * it can be a known or unknown location (see below.) 
+ * The returned resolution is null if no location can be inferred for this tweet. Otherwise its Location
+ * can be a known or unknown location (see below.) Locations are shared between tweets and threads and are
+ * not changed by resolve(). 
  * 
  * This class provides functionality to return the children (children contained within location) and parent (location contained within parent)
  * of a location. Because the database does not know about all locations, the parent of a location may not be known (but will be returned
@@ -45,6 +62,11 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * 
  * A NONE location represents the root of the location hierarchy.
  * 
+ * The database can be replaced by a new version while the resolver is in use (see LocationDatabaseProvider).
+ * Each call uses the version that was current when it started. Unknown locations registered before a new version
+ * was swapped in keep the parents they were given then; an unknown location that the new version knows is returned
+ * as the known location from then on.
+ * 
  * If use_unknown_places is true, then the LocationResolver will always return a Location when the place field is set in a tweet.
  * In this case, the Location object may be missing information (e.g. county).
  * 
@@ -56,8 +78,14 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * use_user_string: attempt to resolve based on the tweet's user profile's location field.
  * use_unknown_places: return places even if they are not in the database.
  * use_known_parent_for_unknown_places: if use_unknown_places is false, then this option will try to find a known parent for a location. If a known parent is found, and no location is found using another method, the parent is used. 
+ * user_location_cache_size: if greater than 0, remember the location resolved from each user's profile location string (keyed by user id and the string) for up to this many users.
+ * user_location_cache_ttl: the number of seconds a remembered user location is kept.
+ * use_location_radius: when resolving coordinates, return the most specific location whose radius contains the point and whose center is within geocode_max_distance, if it is more specific than the closest location (false by default).
+ * geocode_raster_file: a GeocodeRaster of the locations (see carmen.tools.BuildGeocodeRaster), which resolves most coordinates with a single lookup and gives the same locations.
+ * deterministic_location_ids: derive the id of an unknown location from its names instead of numbering unknown locations in the order
+ * they are seen, so that separate processes (e.g. shards of one input) give the same unknown location the same id.
  * 
- * The LocationResolver relies on resources specified in carmen.properties.
+ * The LocationResolver relies on resources specified in carmen.properties, which are loaded by LocationDatabase.
  * 
  * locations: The database of locations in JSON format.
  * place_name_mapping: A mapping of Twitter place names to normalized forms.
@@ -72,44 +100,71 @@ public class LocationResolver {
 	protected static Logger logger = Logger.getLogger(LocationResolver.class);
 	
 	protected static LocationResolver resolver = null;
+	private static ExecutorService defaultExecutor = null;
 	
-	private HashSet<String> stateFullNames = new HashSet<String>();							// list of states full names
-	private HashSet<String> countryFullNames = new HashSet<String>();						// list of states full names
-	private HashMap<String, String> stateAbbreviationToFullName = new HashMap<String, String>();	// list of states abbv map to states full names
-	private HashMap<String, String> countryAbbreviationToFullName = new HashMap<String, String>();	// list of country abbv map to country full names
-	private boolean usePlace;
-	private boolean useGeocodes;
-	private boolean useUserString;
-	private boolean useKnownParentForUnknownPlaces;
-	private GeocodeLocationResolver geocodeLocationResolver;
-	private boolean useUnknownPlaces = true; // If true, return twitter place objects even when unknown in the database.
+	private final LocationDatabaseProvider databaseProvider;
+	private final boolean usePlace;
+	private final boolean useGeocodes;
+	private final boolean useUserString;
+	private final boolean useKnownParentForUnknownPlaces;
+	private final boolean deterministicLocationIds;
+	private final double geocodeMaxDistance;
+	private final boolean useLocationRadius;
+	private final UserLocationCache userLocationCache;
+	// The database version used by calls that start now, updated when the provider swaps in a new version.
+	private volatile Snapshot snapshot;
+	private volatile boolean useUnknownPlaces = true; // If true, return twitter place objects even when unknown in the database.
 	private int newLocationIndex = Constants.NEW_LOCATION_STARTING_INDEX;
 
 	private Pattern statePattern = Pattern.compile(".+,\\s*(\\w+)");
 
-	private HashMap<String, String> placeNameToNormalizedPlaceName = new HashMap<String,String>();
-	private HashMap<String, Location> locationNameToLocation = new HashMap<String, Location>();
-	private HashMap<Location, Location> locationToParent = new HashMap<Location,Location>();
-	private HashMap<Location, List<Location>> locationToChildren = new HashMap<Location,List<Location>>();
-	private HashMap<Integer, Location> idToLocation = new HashMap<Integer, Location>();
-	private HashMap<Location, Integer> locationToId = new HashMap<Location, Integer>();
+	// Locations that are not in the database. These maps grow as new locations are registered,
+	// which may happen on several threads at once. Writes are guarded by registerNewLocation().
+	private ConcurrentHashMap<Location, Location> locationToParent = new ConcurrentHashMap<Location,Location>();
+	private ConcurrentHashMap<Location, List<Location>> locationToChildren = new ConcurrentHashMap<Location,List<Location>>();
+	private ConcurrentHashMap<Integer, Location> idToLocation = new ConcurrentHashMap<Integer, Location>();
+	private ConcurrentHashMap<Location, Integer> locationToId = new ConcurrentHashMap<Location, Integer>();
 
+	private final List<ResolutionListener> resolutionListeners = new CopyOnWriteArrayList<ResolutionListener>();
+	
+	// The lookups of resolveAsync() that are running, by database version and place id or profile location.
+	private final ConcurrentHashMap<String, CompletableFuture<PlaceResolution>> placeRequests = new ConcurrentHashMap<String, CompletableFuture<PlaceResolution>>();
+	private final ConcurrentHashMap<String, CompletableFuture<Location>> userLocationRequests = new ConcurrentHashMap<String, CompletableFuture<Location>>();
+	private final AtomicLong numCoalescedRequests = new AtomicLong();
 	
 	
-	public static LocationResolver getLocationResolver() throws IOException {
+	public static synchronized LocationResolver getLocationResolver() throws IOException {
 		if (resolver == null)
 			resolver = new LocationResolver();
 		return resolver;
 	}
 	
+	/**
+	 * Returns a builder for a new LocationResolver. Options that are not set are read from carmen.properties,
+	 * and the default LocationDatabase is used unless another is given.
+	 * @return
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+	
 	protected LocationResolver() throws IOException {
-		
-		
-		this.usePlace = CarmenProperties.getBoolean("use_place");
-		this.useGeocodes = CarmenProperties.getBoolean("use_geocodes");
-		this.useUserString = CarmenProperties.getBoolean("use_user_string");
-		this.useKnownParentForUnknownPlaces = CarmenProperties.getBoolean("use_known_parent_for_unknown_places");
-		this.useUnknownPlaces = CarmenProperties.getBoolean("use_unknown_places");
+		this(new Builder());
+	}
+	
+	protected LocationResolver(Builder builder) throws IOException {
+		if (builder.databaseProvider != null)
+			this.databaseProvider = builder.databaseProvider;
+		else if (builder.database != null)
+			this.databaseProvider = new LocationDatabaseProvider(builder.database);
+		else
+			this.databaseProvider = LocationDatabaseProvider.getDefaultProvider();
+		this.usePlace = builder.usePlace != null ? builder.usePlace : CarmenProperties.getBoolean("use_place");
+		this.useGeocodes = builder.useGeocodes != null ? builder.useGeocodes : CarmenProperties.getBoolean("use_geocodes");
+		this.useUserString = builder.useUserString != null ? builder.useUserString : CarmenProperties.getBoolean("use_user_string");
+		this.useKnownParentForUnknownPlaces = builder.useKnownParentForUnknownPlaces != null ? builder.useKnownParentForUnknownPlaces : CarmenProperties.getBoolean("use_known_parent_for_unknown_places");
+		this.useUnknownPlaces = builder.useUnknownPlaces != null ? builder.useUnknownPlaces : CarmenProperties.getBoolean("use_unknown_places");
+		this.deterministicLocationIds = builder.deterministicLocationIds != null ? builder.deterministicLocationIds : CarmenProperties.getBoolean("deterministic_location_ids", false);
 		
 		logger.info("Geocoding using these resources:");
 		if (this.usePlace)
@@ -119,66 +174,74 @@ public class LocationResolver {
 		if (this.useUserString)
 			logger.info("user profile");
 		
+		int userLocationCacheSize = builder.userLocationCacheSize != null ? builder.userLocationCacheSize : CarmenProperties.getInt("user_location_cache_size", 0);
+		if (this.useUserString && userLocationCacheSize > 0) {
+			long ttlSeconds = builder.userLocationCacheTtl != null ? builder.userLocationCacheTtl : CarmenProperties.getLong("user_location_cache_ttl", 3600);
+			this.userLocationCache = new UserLocationCache(userLocationCacheSize, ttlSeconds * 1000);
+			logger.info("Caching user locations for " + userLocationCacheSize + " users.");
+		} else {
+			this.userLocationCache = null;
+		}
+		
 		logger.info("useKnownParentForUnknownPlaces: " + useKnownParentForUnknownPlaces);
 		logger.info("useUnknownPlaces: " + useUnknownPlaces);
-		logger.info("Loading location resources.");
-		
-		// Load the location objects.
-		loadLocationFile(CarmenProperties.getString("locations"));
-		this.idToLocation.put(-1, Location.getNoneLocation());
 		
-		HashSet<Location> knownLocations = new HashSet<Location>();
-		for (Location location : this.idToLocation.values()) {
-			knownLocations.add(location);
-		}
-		
-		for (Location location : knownLocations) {
-			Location parent = this.idToLocation.get(location.getParentId());
-			//Location parent = this.createParentOfLocation(location);
-			if (parent != null) {
-				this.locationToParent.put(location, parent); 
-				if (!this.locationToChildren.containsKey(parent))
-					this.locationToChildren.put(parent, new LinkedList<Location>());
-				this.locationToChildren.get(parent).add(location);
-				
-				// The parents are now all in the json file, so there is no reason to add them up the pipeline.
-				/*
-				// Add this parent up the entire hierarchy.
-				// Add to the hashs, add to parent children, walk up until null.
-				Location currentLocation = parent;
-				parent = this.createParentOfLocation(currentLocation);
-				while (parent != null) {
-					if (!this.locationToParent.containsKey(currentLocation))
-						this.locationToParent.put(currentLocation, parent); 
-					if (!this.locationToChildren.containsKey(parent))
-						this.locationToChildren.put(parent, new LinkedList<Location>());
-					this.locationToChildren.get(parent).add(currentLocation);
-					
-					currentLocation = parent;
-					parent = this.createParentOfLocation(currentLocation);
-				}
-				*/
-			}
+		if (this.useGeocodes) {
+			this.geocodeMaxDistance = builder.geocodeMaxDistance != null ? builder.geocodeMaxDistance : CarmenProperties.getDouble("geocode_max_distance");
+			this.useLocationRadius = builder.useLocationRadius != null ? builder.useLocationRadius : CarmenProperties.getBoolean("use_location_radius", false);
+		} else {
+			this.geocodeMaxDistance = 0;
+			this.useLocationRadius = false;
 		}
-		
-		
-		if (this.usePlace) {
-			loadNameAndAbbreviation(CarmenProperties.getString("place_name_mapping"), null, this.placeNameToNormalizedPlaceName, false);
+		this.snapshot = new Snapshot(this.databaseProvider.getVersion());
+	}
+	
+	/**
+	 * Returns the current version of the database.
+	 * @return
+	 */
+	public LocationDatabase getDatabase() {
+		return getSnapshot().database;
+	}
+	
+	public LocationDatabaseProvider getDatabaseProvider() {
+		return this.databaseProvider;
+	}
+	
+	/**
+	 * Returns the current version of the database with the geocoder for it. Each public method reads the
+	 * snapshot once and passes it on, so a call finishes with the version it started with even if a new one
+	 * is swapped in.
+	 * @return
+	 */
+	protected Snapshot getSnapshot() {
+		Snapshot snapshot = this.snapshot;
+		LocationDatabaseProvider.Version version = this.databaseProvider.getVersion();
+		if (snapshot.version != version) {
+			// Threads that see the new version at the same time may each make a snapshot; they are the same.
+			snapshot = new Snapshot(version);
+			this.snapshot = snapshot;
 		}
-		
-		loadNameAndAbbreviation(CarmenProperties.getString("state_names_file"), this.stateFullNames, this.stateAbbreviationToFullName, true);
-		loadNameAndAbbreviation(CarmenProperties.getString("country_names_file"), this.countryFullNames, this.countryAbbreviationToFullName, true);
-		
-		if (this.useGeocodes) {
-			// Register the locations as known places for geocode resolution.
-			this.geocodeLocationResolver = new GeocodeLocationResolver();
-			for (Location location : this.idToLocation.values())
-				this.geocodeLocationResolver.addLocation(location);
-		}	
+		return snapshot;
 	}
 	
+	/**
+	 * Returns the location in the database or among the unknown locations registered with this resolver
+	 * that is equal to the given location, or null if there is none.
+	 * @param location
+	 * @return
+	 */
+	private Location getRegisteredLocation(LocationDatabase database, Location location) {
+		Location knownLocation = database.getKnownLocation(location);
+		if (knownLocation != null)
+			return knownLocation;
+		Integer index = this.locationToId.get(location);
+		if (index != null)
+			return this.idToLocation.get(index);
+		return null;
+	}
 	
-	private Location createParentOfLocation(Location location, boolean registerLocation) {
+	private Location createParentOfLocation(LocationDatabase database, Location location, boolean registerLocation) {
 		// If we have a city, backoff to the state.
 		Location parentLocation = null;
 		if (location.getCity() != null)
@@ -195,96 +258,293 @@ public class LocationResolver {
 
 		// The parent location is missing an id. We will retrieve the location that correctly contains the id.
 		// The equals method doesn't look at the id, so this lookup will work.
-		if (this.locationToId.containsKey(parentLocation)) {
-			return this.idToLocation.get(this.locationToId.get(parentLocation));
+		Location registeredLocation = this.getRegisteredLocation(database, parentLocation);
+		if (registeredLocation != null) {
+			return registeredLocation;
 		}
 
 		if (registerLocation)
-			registerNewLocation(parentLocation);
+			return registerNewLocation(database, parentLocation);
 		
 		return parentLocation;
 	}
 
-	// Load files
-	protected static void loadNameAndAbbreviation(String filename,
-			HashSet<String> fullName,
-			HashMap<String, String> abbreviations, boolean secondColumnKey) throws FileNotFoundException {
-		Scanner inputScanner = new Scanner(new FileInputStream(filename),"UTF-8");
-		while (inputScanner.hasNextLine()) {
-			String line = inputScanner.nextLine().toLowerCase();
-			String[] splitString = line.split("\t");
-			splitString[0] = splitString[0].trim();
-			if (fullName != null)
-				fullName.add(splitString[0]);
-			if (abbreviations != null) {
-				if (!secondColumnKey) {
-					abbreviations.put(splitString[0], splitString[1]);
-				} else {
-					abbreviations.put(splitString[1], splitString[0]);
-				}
-			}
-		}
-		inputScanner.close();		
-	}
-
 	// Getter/Setter
 	public boolean isUseUnknownPlaces() {
 		return useUnknownPlaces;
 	}
 
+	/**
+	 * Changes use_unknown_places for this resolver. To use different settings at the same time,
+	 * build separate resolvers with builder() instead; they share the location database.
+	 * @param useUnknownPlaces
+	 */
 	public void setUseUnknownPlaces(boolean useUnknownPlaces) {
 		this.useUnknownPlaces = useUnknownPlaces;
 	}
 	
-	public Location resolveLocationFromTweet(Map<String,Object> tweet) {
-		Location location = null;
-		Location provisionalLocation = null;
-		if (this.usePlace) {
-			location = resolveLocationUsingPlace(tweet);
-			
-			if (location != null) {
-				location.setResolutionMethod(ResolutionMethod.PLACE);
-				
-				if (!location.isKnownLocation()) {
-					// The location is not known. Should we use it?
-					if (this.useUnknownPlaces)
-						// Yes, use it. Register a new location.
-						registerNewLocation(location);
-					else if (this.useKnownParentForUnknownPlaces) {
-						// Don't use it, but try to find a known parent.
-						Location parent = this.createParentOfLocation(location, false);
-						location = null;
-						while (parent != null && !parent.isKnownLocation()) {
-							parent = this.createParentOfLocation(parent, false);
-						}
-						if (parent != null && parent.isKnownLocation())
-							provisionalLocation = parent;
-						// Try to find a better place using another method before using the parent.
-					} else
-						// We can't find a known location.
-						location = null;
-				}
-			}
-		}
+	/**
+	 * Resolves the location of a tweet with the methods enabled for this resolver: the tweet's place,
+	 * then its coordinates, then its user's profile location.
+	 * @param tweet
+	 * @return The resolution, or null if the tweet's location could not be resolved.
+	 */
+	public Resolution resolve(Map<String,Object> tweet) {
+		Snapshot snapshot = getSnapshot();
+		PlaceResolution place = NO_PLACE;
+		if (this.usePlace)
+			place = resolvePlace(snapshot, tweet);
+		Location location = place.location;
+		ResolutionMethod resolutionMethod = location == null ? null : ResolutionMethod.PLACE;
+		
 		if (location == null && this.useGeocodes) {
-			location = resolveLocationUsingGeocodes(tweet);
+			location = resolveLocationUsingGeocodes(snapshot, tweet);
 			if (location != null)
-				location.setResolutionMethod(ResolutionMethod.COORDINATES);
+				resolutionMethod = ResolutionMethod.COORDINATES;
 		}
 		
 		if (location == null && this.useUserString) {
-			location = resolveLocationUsingUserLocation(tweet);
+			location = resolveLocationUsingCachedUserLocation(snapshot, tweet);
 			if (location != null)
-				location.setResolutionMethod(ResolutionMethod.USER_LOCATION);
+				resolutionMethod = ResolutionMethod.USER_LOCATION;
+		}
+		
+		return finishResolution(tweet, location, resolutionMethod, place.provisionalLocation);
+	}
+	
+	/**
+	 * The location found from a tweet's place: the location to use, or the known parent of an unknown
+	 * place to use if no other method finds a location.
+	 */
+	private static final class PlaceResolution {
+		private final Location location;
+		private final Location provisionalLocation;
+		
+		private PlaceResolution(Location location, Location provisionalLocation) {
+			this.location = location;
+			this.provisionalLocation = provisionalLocation;
+		}
+	}
+	
+	private static final PlaceResolution NO_PLACE = new PlaceResolution(null, null);
+	
+	private PlaceResolution resolvePlace(Snapshot snapshot, Map<String,Object> tweet) {
+		Location location = resolveLocationUsingPlace(snapshot, tweet);
+		if (location == null || location.isKnownLocation())
+			return location == null ? NO_PLACE : new PlaceResolution(location, null);
+		
+		// The location is not known. Should we use it?
+		if (this.useUnknownPlaces)
+			// Yes, use it. Register a new location.
+			return new PlaceResolution(registerNewLocation(snapshot.database, location), null);
+		if (this.useKnownParentForUnknownPlaces) {
+			// Don't use it, but try to find a known parent.
+			Location parent = this.createParentOfLocation(snapshot.database, location, false);
+			while (parent != null && !parent.isKnownLocation()) {
+				parent = this.createParentOfLocation(snapshot.database, parent, false);
+			}
+			// Try to find a better place using another method before using the parent.
+			if (parent != null && parent.isKnownLocation())
+				return new PlaceResolution(null, parent);
 		}
+		// We can't find a known location.
+		return NO_PLACE;
+	}
+	
+	/**
+	 * Creates the resolution of a tweet from the location found by the first method that found one, or
+	 * the provisional parent of its place, and tells the listeners.
+	 */
+	private Resolution finishResolution(Map<String,Object> tweet, Location location, ResolutionMethod resolutionMethod, Location provisionalLocation) {
+		Resolution resolution = null;
+		if (location != null)
+			resolution = new Resolution(location, resolutionMethod, false);
+		else if (provisionalLocation != null)
+			// The parent was found from the tweet's place.
+			resolution = new Resolution(provisionalLocation, ResolutionMethod.PLACE, true);
 		
-		if (location == null && provisionalLocation != null)
-			location = provisionalLocation;
+		if (!this.resolutionListeners.isEmpty()) {
+			for (ResolutionListener listener : this.resolutionListeners)
+				listener.locationResolved(tweet, resolution);
+		}
+		return resolution;
+	}
+	
+	/**
+	 * Resolves a tweet as resolve() does, on the default executor (see resolveAsync(Map, Executor)).
+	 * @param tweet
+	 * @return A future of the resolution, which may be null.
+	 */
+	public CompletableFuture<Resolution> resolveAsync(Map<String,Object> tweet) {
+		return resolveAsync(tweet, getDefaultExecutor());
+	}
+	
+	/**
+	 * Resolves a tweet as resolve() does, on the given executor, and returns at once. Requests that are
+	 * running at the same time share work: tweets with the same place id wait for a single lookup of the
+	 * place, and tweets that need their user's profile location wait for a single lookup of the same string.
+	 * So a burst of tweets from a trending place does not queue one lookup per tweet. Listeners are called
+	 * for every tweet. If the tweet can not be resolved (e.g. it is malformed), the future completes
+	 * exceptionally.
+	 * @param tweet
+	 * @param executor Runs the lookups.
+	 * @return A future of the resolution, which may be null.
+	 */
+	public CompletableFuture<Resolution> resolveAsync(final Map<String,Object> tweet, final Executor executor) {
+		final Snapshot snapshot = getSnapshot();
+		CompletableFuture<PlaceResolution> placeFuture;
+		try {
+			Map<String,Object> place = this.usePlace ? Utils.getPlaceFromTweet(tweet) : null;
+			if (place == null) {
+				placeFuture = CompletableFuture.completedFuture(NO_PLACE);
+			} else {
+				Supplier<PlaceResolution> placeLookup = new Supplier<PlaceResolution>() {
+					public PlaceResolution get() {
+						return resolvePlace(snapshot, tweet);
+					}
+				};
+				Object placeId = place.get("id");
+				if (placeId == null)
+					placeFuture = CompletableFuture.supplyAsync(placeLookup, executor);
+				else
+					placeFuture = coalesce(this.placeRequests, snapshot.getVersion() + "\t" + placeId, placeLookup, executor);
+			}
+		} catch (RuntimeException e) {
+			// A malformed place fails the future, as errors in the lookups do, rather than this call.
+			placeFuture = new CompletableFuture<PlaceResolution>();
+			placeFuture.completeExceptionally(e);
+		}
 		
+		return placeFuture.thenComposeAsync(new Function<PlaceResolution, CompletionStage<Resolution>>() {
+			public CompletionStage<Resolution> apply(final PlaceResolution place) {
+				if (place.location != null)
+					return CompletableFuture.completedFuture(finishResolution(tweet, place.location, ResolutionMethod.PLACE, null));
+				if (LocationResolver.this.useGeocodes) {
+					Location location = resolveLocationUsingGeocodes(snapshot, tweet);
+					if (location != null)
+						return CompletableFuture.completedFuture(finishResolution(tweet, location, ResolutionMethod.COORDINATES, null));
+				}
+				final String userLocation = LocationResolver.this.useUserString ? Utils.getLocationFromTweet(tweet) : null;
+				if (userLocation == null)
+					return CompletableFuture.completedFuture(finishResolution(tweet, null, null, place.provisionalLocation));
+				
+				// As in resolveLocationUsingCachedUserLocation(), but only the lookup of the string is shared,
+				// so that every user gets an entry in the cache.
+				final UserLocationCache cache = LocationResolver.this.userLocationCache;
+				final String userId = cache == null ? null : Utils.getUserIdFromTweet(tweet);
+				if (userId != null) {
+					UserLocationCache.Entry entry = cache.get(userId, userLocation, snapshot.getVersion());
+					if (entry != null)
+						return CompletableFuture.completedFuture(finishUserLocationResolution(tweet, entry.getLocation(), place.provisionalLocation));
+				}
+				Supplier<Location> userLocationLookup = new Supplier<Location>() {
+					public Location get() {
+						return resolveLocationUsingUserLocation(snapshot, tweet);
+					}
+				};
+				return coalesce(LocationResolver.this.userLocationRequests, snapshot.getVersion() + "\t" + userLocation, userLocationLookup, executor)
+						.thenApply(new Function<Location, Resolution>() {
+							public Resolution apply(Location location) {
+								if (userId != null)
+									cache.put(userId, userLocation, location, snapshot.getVersion());
+								return finishUserLocationResolution(tweet, location, place.provisionalLocation);
+							}
+						});
+			}
+		}, executor);
+	}
+	
+	private Resolution finishUserLocationResolution(Map<String,Object> tweet, Location location, Location provisionalLocation) {
+		return finishResolution(tweet, location, location == null ? null : ResolutionMethod.USER_LOCATION, provisionalLocation);
+	}
+	
+	/**
+	 * Returns the future of the request with the given key that is running, or starts one on the executor.
+	 */
+	private <T> CompletableFuture<T> coalesce(final ConcurrentHashMap<String, CompletableFuture<T>> requests, final String key,
+			final Supplier<T> lookup, Executor executor) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		CompletableFuture<T> running = requests.putIfAbsent(key, future);
+		if (running != null) {
+			this.numCoalescedRequests.incrementAndGet();
+			return running;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					T value;
+					try {
+						value = lookup.get();
+					} catch (Throwable e) {
+						// Including Errors, so that later requests for the key do not wait forever.
+						requests.remove(key, future);
+						future.completeExceptionally(e);
+						return;
+					}
+					// Requests from now on start a new lookup.
+					requests.remove(key, future);
+					future.complete(value);
+				}
+			});
+		} catch (Throwable e) {
+			// The executor was shut down or could not start a thread.
+			requests.remove(key, future);
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	/**
+	 * Returns the number of lookups by resolveAsync() that were shared with a request already running.
+	 * @return
+	 */
+	public long getNumCoalescedRequests() {
+		return this.numCoalescedRequests.get();
+	}
+	
+	/**
+	 * Returns the executor used by resolveAsync() when none is given: a new virtual thread per task when
+	 * the JVM supports them, or else a pool of daemon threads, two per processor, shared by all resolvers.
+	 * @return
+	 */
+	protected static synchronized Executor getDefaultExecutor() {
+		// Daemon threads, so that the executor does not keep the JVM running.
+		if (defaultExecutor == null)
+			defaultExecutor = Utils.createExecutor(0, true);
+		return defaultExecutor;
+	}
+	
+	/**
+	 * Resolves the location of a tweet and sets its resolution method on the returned location.
+	 * Locations are shared by all tweets, so the resolution method is overwritten by the next tweet
+	 * with the same location, which may be on another thread.
+	 * @deprecated Use resolve(), which does not change the location.
+	 * @param tweet
+	 * @return The location, or null.
+	 */
+	@Deprecated
+	public Location resolveLocationFromTweet(Map<String,Object> tweet) {
+		Resolution resolution = resolve(tweet);
+		if (resolution == null)
+			return null;
+		Location location = resolution.getLocation();
+		location.setResolutionMethod(resolution.getResolutionMethod());
 		return location;
 	}
+	
+	/**
+	 * Adds a listener that is called with every tweet resolved by resolve().
+	 * @param listener
+	 */
+	public void addResolutionListener(ResolutionListener listener) {
+		this.resolutionListeners.add(listener);
+	}
+	
+	public void removeResolutionListener(ResolutionListener listener) {
+		this.resolutionListeners.remove(listener);
+	}
 
-	protected Location resolveLocationUsingPlace(Map<String,Object> tweet) {
+	protected Location resolveLocationUsingPlace(Snapshot snapshot, Map<String,Object> tweet) {
 		Map<String,Object> place = Utils.getPlaceFromTweet(tweet);
 		if (place == null)
 			return null;
@@ -297,8 +557,9 @@ public class LocationResolver {
 			return null;
 		}
 		
-		if (this.placeNameToNormalizedPlaceName.containsKey(country.toLowerCase())) {
-			country = placeNameToNormalizedPlaceName.get(country.toLowerCase());
+		String normalizedCountry = snapshot.database.getNormalizedPlaceName(country.toLowerCase());
+		if (normalizedCountry != null) {
+			country = normalizedCountry;
 		}
 		
 		String placeType = (String)place.get("place_type"); 
@@ -318,20 +579,21 @@ public class LocationResolver {
 				if (matcher.matches()) {
 					// extracting the state name
 					String matchedString = matcher.group(1).toLowerCase();
-					if(stateAbbreviationToFullName.containsKey(matchedString)) {
-						state = stateAbbreviationToFullName.get(matchedString);
+					String stateFullName = snapshot.database.getStateFullName(matchedString);
+					if (stateFullName != null) {
+						state = stateFullName;
 					}
 				}
 				
-				return getLocationForPlace(country, state, null, city, url, id);
+				return getLocationForPlace(snapshot.database, country, state, null, city, url, id);
 			} else {
-				return getLocationForPlace(country, null, null, city, url, id);
+				return getLocationForPlace(snapshot.database, country, null, null, city, url, id);
 			}
 		} else if (placeType.equalsIgnoreCase("admin")) {
 			String state = (String)place.get("name");
-			return getLocationForPlace(country, state, null, null, url, id);
+			return getLocationForPlace(snapshot.database, country, state, null, null, url, id);
 		} else if (placeType.equalsIgnoreCase("country")) {
-			return getLocationForPlace(country, null, null, null, url, id);
+			return getLocationForPlace(snapshot.database, country, null, null, null, url, id);
 		} else if  (placeType.equalsIgnoreCase("neighborhood") || placeType.equalsIgnoreCase("poi")) {
 			String fullName = (String)place.get("full_name");
 			if (fullName == null) {
@@ -343,7 +605,7 @@ public class LocationResolver {
 			if (splitFullName.length > 1) {
 				city = splitFullName[1];
 			}
-			return getLocationForPlace(country, null, null, city, url, id);
+			return getLocationForPlace(snapshot.database, country, null, null, city, url, id);
 		} else {
 			logger.warn("Unknown place type: " + placeType);
 		}
@@ -351,50 +613,247 @@ public class LocationResolver {
 		return null;
 	}
 
-	protected Location resolveLocationUsingGeocodes(Map<String,Object> tweet) {
-		return this.geocodeLocationResolver.resolveLocation(tweet);
+	protected Location resolveLocationUsingGeocodes(Snapshot snapshot, Map<String,Object> tweet) {
+		return snapshot.geocodeLocationResolver.resolveLocation(tweet);
 	}
 
-	protected Location resolveLocationUsingUserLocation(Map<String,Object> tweet) {
+	/**
+	 * Resolves a raw coordinate pair to a known location without a tweet.
+	 * Returns null if no location is close enough or if use_geocodes is false.
+	 * @param latitude
+	 * @param longitude
+	 * @return
+	 */
+	public Location resolveLocationFromCoordinates(double latitude, double longitude) {
+		GeocodeLocationResolver geocodeLocationResolver = getSnapshot().geocodeLocationResolver;
+		if (geocodeLocationResolver == null)
+			return null;
+		return geocodeLocationResolver.resolveLocation(new LatLng(latitude, longitude));
+	}
+
+	/**
+	 * Resolves many coordinate pairs at once, as resolveLocationFromCoordinates() does for each. This is
+	 * much faster for large batches (see GeocodeLocationResolver.resolveLocations()).
+	 * @param latitudes
+	 * @param longitudes
+	 * @return The location of each pair, or null. All null if use_geocodes is false.
+	 */
+	public Location[] resolveLocationsFromCoordinates(double[] latitudes, double[] longitudes) {
+		GeocodeLocationResolver geocodeLocationResolver = getSnapshot().geocodeLocationResolver;
+		if (geocodeLocationResolver == null)
+			return new Location[latitudes.length];
+		return geocodeLocationResolver.resolveLocations(latitudes, longitudes);
+	}
+
+	/**
+	 * Resolves the user's profile location, using the user location cache if it is enabled.
+	 * Prolific users repeat the same profile location in every tweet, so most lookups are hits.
+	 * @param tweet
+	 * @return
+	 */
+	protected Location resolveLocationUsingCachedUserLocation(Snapshot snapshot, Map<String,Object> tweet) {
+		if (this.userLocationCache == null)
+			return resolveLocationUsingUserLocation(snapshot, tweet);
+		
+		String userLocation = Utils.getLocationFromTweet(tweet);
+		if (userLocation == null)
+			return null;
+		String userId = Utils.getUserIdFromTweet(tweet);
+		if (userId == null)
+			return resolveLocationUsingUserLocation(snapshot, tweet);
+		
+		// Entries resolved with an older version of the database are resolved again.
+		UserLocationCache.Entry entry = this.userLocationCache.get(userId, userLocation, snapshot.getVersion());
+		if (entry != null)
+			return entry.getLocation();
+		
+		Location location = resolveLocationUsingUserLocation(snapshot, tweet);
+		this.userLocationCache.put(userId, userLocation, location, snapshot.getVersion());
+		return location;
+	}
+	
+	public UserLocationCache getUserLocationCache() {
+		return this.userLocationCache;
+	}
+
+	protected Location resolveLocationUsingUserLocation(Snapshot snapshot, Map<String,Object> tweet) {
 		String tweetLocation = Utils.getLocationFromTweet(tweet);
-		if (tweetLocation != null) {
-			String location = tweetLocation.replaceAll("\\p{Punct}", " ").replaceAll("\\s+", " ").toLowerCase().trim();
-			
-			// Check if this is a known location
-			if (this.locationNameToLocation.containsKey(location)) {
-				return this.locationNameToLocation.get(location);
+		if (tweetLocation != null)
+			return resolveUserLocation(snapshot.database, tweetLocation);
+		return null;
+	}
+	
+	/**
+	 * Resolves a user profile location string (the user location of a tweet) to a known location.
+	 * @param tweetLocation
+	 * @return The location, or null if the string is not a known location.
+	 */
+	public Location resolveUserLocation(String tweetLocation) {
+		return resolveUserLocation(getSnapshot().database, tweetLocation);
+	}
+	
+	protected Location resolveUserLocation(LocationDatabase database, String tweetLocation) {
+		// Most user locations are not places, and the filters reject most of them without a lookup.
+		String location = normalizeUserLocation(database, tweetLocation);
+		
+		// Check if this is a known location
+		if (location != null) {
+			Location knownLocation = database.getLocationForName(location);
+			if (knownLocation != null) {
+				return knownLocation;
 			}
-			
-			// Look for patterns in the location. Replace punctuation but keep ","
-			String locationWithComma = tweetLocation.replaceAll("[!\\\"#$%&'\\(\\)\\*\\+-\\./:;<=>\\?@\\[\\\\]^_`\\{\\|\\}~]", " ").replaceAll("\\s+", " ").toLowerCase().trim();
-			
-			Matcher matcher = this.statePattern .matcher(locationWithComma);
-			if (matcher.matches()) 	{
-				// extracting the state name or country name of location strings, if available
-				String matchedString = matcher.group(1).toLowerCase();
-				String stateOrCountryName = null;
-				if (stateFullNames.contains(matchedString) || countryFullNames.contains(matchedString)) 
-					stateOrCountryName = matchedString;
-				else if (stateAbbreviationToFullName.containsKey(matchedString)) 
-					stateOrCountryName = stateAbbreviationToFullName.get(matchedString);
-				else if (countryAbbreviationToFullName.containsKey(matchedString)) 
-					stateOrCountryName = countryAbbreviationToFullName.get(matchedString);
-			
-				if (stateOrCountryName != null && this.locationNameToLocation.containsKey(stateOrCountryName)) {
-					return this.locationNameToLocation.get(stateOrCountryName);
-				}
+		}
+		
+		if (!mightEndWithStateOrCountryName(database, tweetLocation))
+			return null;
+		
+		// Look for patterns in the location. Replace punctuation but keep ","
+		String locationWithComma = tweetLocation.replaceAll("[!\\\"#$%&'\\(\\)\\*\\+-\\./:;<=>\\?@\\[\\\\]^_`\\{\\|\\}~]", " ").replaceAll("\\s+", " ").toLowerCase().trim();
+		
+		Matcher matcher = this.statePattern .matcher(locationWithComma);
+		if (matcher.matches()) 	{
+			// extracting the state name or country name of location strings, if available
+			String matchedString = matcher.group(1).toLowerCase();
+			String stateOrCountryName = null;
+			if (database.isStateFullName(matchedString) || database.isCountryFullName(matchedString)) 
+				stateOrCountryName = matchedString;
+			else if (database.getStateFullName(matchedString) != null) 
+				stateOrCountryName = database.getStateFullName(matchedString);
+			else if (database.getCountryFullName(matchedString) != null) 
+				stateOrCountryName = database.getCountryFullName(matchedString);
+		
+			if (stateOrCountryName != null) {
+				return database.getLocationForName(stateOrCountryName);
 			}
 		}
-			
+		
 		return null;
 	}
 	
+	/**
+	 * Normalizes a user location string to look it up by name: punctuation and runs of white space become
+	 * a single space, and the string is lower cased and trimmed. Returns null if the normalized string is
+	 * not the name of a known location (see LocationDatabase.getNameFilter()); a string that is returned
+	 * may still not be a name.
+	 * @param userLocation
+	 * @return
+	 */
+	protected String normalizeUserLocation(LocationDatabase database, String userLocation) {
+		// \p{Punct} and \s are ASCII, so punctuation and white space are replaced in one pass over the chars,
+		// which also lower cases ASCII letters and computes the hash code. When the result is printable ASCII,
+		// a string that is rejected is never made.
+		boolean asciiLowerCase = isAsciiLowerCaseLocale();
+		boolean ascii = asciiLowerCase;
+		int length = userLocation.length();
+		char[] normalized = new char[length];
+		int size = 0;
+		int hashCode = 0;
+		boolean space = false;
+		for (int ii = 0; ii < length; ii++) {
+			char c = userLocation.charAt(ii);
+			if (isWhitespace(c) || isPunctuation(c)) {
+				space = true;
+				continue;
+			}
+			// Leading and trailing spaces are trimmed.
+			if (space && size > 0) {
+				normalized[size++] = ' ';
+				hashCode = NameFilter.addToHashCode(hashCode, ' ');
+			}
+			space = false;
+			if (asciiLowerCase && c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			else if (c < ' ' || c >= 0x7f)
+				ascii = false;
+			normalized[size++] = c;
+			hashCode = NameFilter.addToHashCode(hashCode, c);
+		}
+		if (ascii) {
+			if (!database.getNameFilter().mightContain(hashCode))
+				return null;
+			return new String(normalized, 0, size);
+		}
+		
+		String location = new String(normalized, 0, size).toLowerCase().trim();
+		if (!database.getNameFilter().mightContain(location))
+			return null;
+		return location;
+	}
+	
+	/**
+	 * Returns false if the user location can not end with a comma and the name or abbreviation of a state or
+	 * country, as matched by statePattern in resolveLocationUsingUserLocation(). That is, if there is no comma,
+	 * or the word at the end of the string is not in LocationDatabase.getStateOrCountryNameFilter().
+	 * @param userLocation
+	 * @return
+	 */
+	protected boolean mightEndWithStateOrCountryName(LocationDatabase database, String userLocation) {
+		if (userLocation.indexOf(',') == -1)
+			return false;
+		if (!isAsciiLowerCaseLocale())
+			return true;
+		
+		// The word is the \w chars at the end, before any trailing white space. The string is lower cased
+		// before it is matched, which can turn some chars that are not ASCII into word chars.
+		int end = userLocation.length();
+		while (end > 0 && userLocation.charAt(end - 1) <= ' ')
+			end--;
+		int start = end;
+		while (start > 0 && isWordChar(userLocation.charAt(start - 1)))
+			start--;
+		if (start > 0 && userLocation.charAt(start - 1) >= 0x80)
+			return true;
+		if (start == end)
+			return false;
+		int hashCode = 0;
+		for (int ii = start; ii < end; ii++) {
+			char c = userLocation.charAt(ii);
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			hashCode = NameFilter.addToHashCode(hashCode, c);
+		}
+		return database.getStateOrCountryNameFilter().mightContain(hashCode);
+	}
+	
+	/**
+	 * String.toLowerCase() lower cases ASCII letters to ASCII letters on their own, whatever chars are around them,
+	 * except in Turkish, Azerbaijani and Lithuanian.
+	 */
+	private static boolean isAsciiLowerCaseLocale() {
+		String language = Locale.getDefault().getLanguage();
+		return !"tr".equals(language) && !"az".equals(language) && !"lt".equals(language);
+	}
+	
+	/**
+	 * The chars matched by \s.
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || (c >= '\t' && c <= '\r');
+	}
+	
+	/**
+	 * The chars matched by \p{Punct}.
+	 */
+	private static boolean isPunctuation(char c) {
+		return (c >= '!' && c <= '/') || (c >= ':' && c <= '@') || (c >= '[' && c <= '`') || (c >= '{' && c <= '~');
+	}
+	
+	/**
+	 * The chars matched by \w.
+	 */
+	private static boolean isWordChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+	
 	/**
 	 * 
 	 * @param number
 	 * @return
 	 */
 	public Location getLocationForId(int id) {
+		Location location = getSnapshot().database.getLocationForId(id);
+		if (location != null)
+			return location;
 		if (this.idToLocation.containsKey(id))
 			return this.idToLocation.get(id);
 		throw new IllegalArgumentException("Unknown location for index: " + id);
@@ -435,79 +894,14 @@ public class LocationResolver {
 		return map;
 	}
 	
-	@SuppressWarnings("unchecked")
-	protected void loadLocationFile(String filename) throws JsonParseException, JsonMappingException, IOException {
-		ObjectMapper mapper = new ObjectMapper();
-
-		Scanner inputScanner = new Scanner(new FileInputStream(filename));
-		while (inputScanner.hasNextLine()) {
-			String line = inputScanner.nextLine();
-			Map<String,Object> locationObj = mapper.readValue(line, Map.class);
-			Location location = Location.parseLocationFromJsonObj(locationObj);
-			
-			List<String> aliases = (List<String>)locationObj.get("aliases");
-			this.idToLocation.put(location.getId(), location);
-			this.locationToId.put(location, location.getId());
-			HashSet<String> justAddedAliases = new HashSet<String>();
-			if (aliases != null) {
-				for (String alias : aliases) {
-					if (justAddedAliases.contains(alias))
-						continue;
-
-					if (this.locationNameToLocation.containsKey(alias))
-						logger.warn("Duplicate location name: " + alias);
-					else
-						this.locationNameToLocation.put(alias, location);
-					justAddedAliases.add(alias);
-
-					// Add entries without punctuation.
-					String newEntry = alias.replaceAll("\\p{Punct}", " ").replaceAll("\\s+", " ");
-					if (justAddedAliases.contains(newEntry))
-						continue;
-
-					if (!newEntry.equals(alias)) {
-						if (this.locationNameToLocation.containsKey(newEntry))
-							logger.warn("Duplicate location name: " + newEntry);
-						else
-							this.locationNameToLocation.put(newEntry, location	);
-					}
-
-					justAddedAliases.add(newEntry);
-
-				}
-			}
-		}
-		inputScanner.close();
-	}
-//	/**
-//	 * 
-//	 * @param fileName
-//	 * @param splitOn
-//	 * @return
-//	 * @throws IOException 
-//	 * @throws JsonMappingException 
-//	 * @throws JsonParseException 
-//	 */
-//	protected HashMap<Integer, Location> loadLocationFile(String filename) throws JsonParseException, JsonMappingException, IOException {
-//		HashMap<Integer, Location> map = new HashMap<Integer, Location>();						
-//		Scanner inputScanner = new Scanner(new FileInputStream(filename),"UTF-8");
-//		while (inputScanner.hasNextLine()) {
-//			String line = inputScanner.nextLine();
-//			String[] splitString = line.split("\t");
-//			Location location = Location.parseLocation(splitString[1].trim());
-//			map.put(Integer.parseInt(splitString[0].trim()), location);
-//		}
-//		inputScanner.close();
-//		return map;
-//	}
-	
-	protected Location getLocationForPlace(String country, String state,
+	protected Location getLocationForPlace(LocationDatabase database, String country, String state,
 			String county, String city, String url, String id) {
 		Location location = new Location(country, state, county, city, -1, -1, false);
 		
 		// This we already have a location object, use it.
-		if (this.locationToId.containsKey(location)) {
-			return this.idToLocation.get(this.locationToId.get(location));
+		Location registeredLocation = this.getRegisteredLocation(database, location);
+		if (registeredLocation != null) {
+			return registeredLocation;
 		}
 		
 		// This is an unknown location.
@@ -517,34 +911,110 @@ public class LocationResolver {
 		return location;
 	}
 
-	private void registerNewLocation(Location location) {
+	/**
+	 * Registers a location that is not in the database. If another thread registered an equal location
+	 * first, that location is returned instead.
+	 * @param location
+	 * @return The registered location.
+	 */
+	private synchronized Location registerNewLocation(LocationDatabase database, Location location) {
+		Location registeredLocation = this.getRegisteredLocation(database, location);
+		if (registeredLocation != null)
+			return registeredLocation;
+		
 		// There is no such location. Create a new index with a large offset.
-		int index = this.newLocationIndex++;
+		int index;
+		if (this.deterministicLocationIds)
+			index = this.getDeterministicLocationId(location);
+		else
+			index = this.newLocationIndex++;
 
 		location.setId(index);
+		location.precomputeJson();
 		this.locationToId.put(location, index);
 		this.idToLocation.put(index, location);
 
 		// Put in hierarchy.
-		Location parent = this.createParentOfLocation(location, true);
+		Location parent = this.createParentOfLocation(database, location, true);
 		if (parent != null) {
 			this.locationToParent.put(location, parent); 
 			if (!this.locationToChildren.containsKey(parent))
 				this.locationToChildren.put(parent, new LinkedList<Location>());
 			this.locationToChildren.get(parent).add(location);
 		}
+		return location;
+	}
+
+	/**
+	 * Derives an id for an unknown location from its names (ignoring case, as equals() does), so that
+	 * every process gives a location the same id. Ids are hashed into the range above
+	 * NEW_LOCATION_STARTING_INDEX; if the id is taken by another location, the next free id is used.
+	 * Ids are 31 bits, so collisions start to appear with tens of thousands of unknown locations. Which location
+	 * gets the next id depends on the order locations are seen, so collisions are logged.
+	 * @param location
+	 * @return
+	 */
+	private int getDeterministicLocationId(Location location) {
+		// 64 bit FNV-1a over the names, with a separator so that ("a", "bc") and ("ab", "c") differ.
+		long hash = 0xcbf29ce484222325L;
+		String[] names = { location.getCountry(), location.getState(), location.getCounty(), location.getCity() };
+		for (String name : names) {
+			if (name != null && name.length() != 0) {
+				String lowerCaseName = name.toLowerCase(Locale.ENGLISH);
+				for (int ii = 0; ii < lowerCaseName.length(); ii++) {
+					hash ^= lowerCaseName.charAt(ii);
+					hash *= 0x100000001b3L;
+				}
+			}
+			hash ^= 0xffff;
+			hash *= 0x100000001b3L;
+		}
+		if (location.isNone())
+			hash = ~hash;
+		// FNV alone leaves similar names close together, so mix the bits (the MurmurHash3 finalizer).
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+
+		long range = (long)Integer.MAX_VALUE - Constants.NEW_LOCATION_STARTING_INDEX;
+		int index = (int)(Constants.NEW_LOCATION_STARTING_INDEX + (hash >>> 1) % range);
+		while (this.idToLocation.containsKey(index)) {
+			logger.warn("The id " + index + " of " + location + " is taken by " + this.idToLocation.get(index) + ". Ids may differ between processes.");
+			index = index == Integer.MAX_VALUE - 1 ? Constants.NEW_LOCATION_STARTING_INDEX : index + 1;
+		}
+		return index;
 	}
 
 	public Location getParent(Location location) {
+		Location parent = getSnapshot().database.getParent(location);
+		if (parent != null)
+			return parent;
 		if (this.locationToParent.containsKey(location))
 			return this.locationToParent.get(location);
 		return null;
 	}
 	
+	/**
+	 * Returns the children of the location: the known children from the database and any
+	 * unknown children registered with this resolver. Returns null if there are none.
+	 * @param location
+	 * @return
+	 */
 	public List<Location> getChildren(Location location) {
-		if (this.locationToChildren.containsKey(location))
-			return this.locationToChildren.get(location);
-		return null;
+		List<Location> knownChildren = getSnapshot().database.getChildren(location);
+		List<Location> unknownChildren = this.locationToChildren.get(location);
+		if (unknownChildren == null)
+			return knownChildren;
+		
+		List<Location> children = new ArrayList<Location>();
+		if (knownChildren != null)
+			children.addAll(knownChildren);
+		synchronized (this) {
+			children.addAll(unknownChildren);
+		}
+		return children;
 	}
 
 	/**
@@ -554,12 +1024,182 @@ public class LocationResolver {
 	 * @return
 	 */
 	public Location lookupLocation(Location location) {
-		if (this.locationToId.containsKey(location)) {
-			return this.idToLocation.get(this.locationToId.get(location));
+		LocationDatabase database = getSnapshot().database;
+		Location registeredLocation = this.getRegisteredLocation(database, location);
+		if (registeredLocation != null) {
+			return registeredLocation;
 		}
 		
-		this.registerNewLocation(location);
-		return location;
+		return this.registerNewLocation(database, location);
+	}
+
+	/**
+	 * Returns the locations that are not in the database and have been registered with this resolver, by id.
+	 * @return
+	 */
+	public synchronized List<Location> getRegisteredLocations() {
+		List<Location> locations = new ArrayList<Location>(this.idToLocation.values());
+		Collections.sort(locations, new Comparator<Location>() {
+			public int compare(Location location1, Location location2) {
+				return location1.getId() < location2.getId() ? -1 : (location1.getId() == location2.getId() ? 0 : 1);
+			}
+		});
+		return locations;
+	}
+
+	/**
+	 * Registers locations saved with getRegisteredLocations() by another run (e.g. before a restart), with their
+	 * saved ids. This must be called before any other location is registered, so that the ids of the locations
+	 * registered afterwards are the same as in the other run. With deterministic_location_ids, the ids are derived
+	 * from the names again.
+	 * @param locations The locations, ordered by id.
+	 */
+	public synchronized void restoreRegisteredLocations(List<Location> locations) {
+		if (!this.idToLocation.isEmpty())
+			throw new IllegalStateException("Locations can only be restored before any location is registered.");
+		LocationDatabase database = getSnapshot().database;
+		int nextIndex = this.newLocationIndex;
+		for (Location location : locations) {
+			// Parents are registered with their children, with the next ids, as they were originally.
+			if (this.getRegisteredLocation(database, location) != null)
+				continue;
+			this.newLocationIndex = location.getId();
+			this.registerNewLocation(database, location);
+			nextIndex = Math.max(nextIndex, this.newLocationIndex);
+		}
+		this.newLocationIndex = nextIndex;
+	}
+
+	/**
+	 * A version of the database with the geocoder for it, with this resolver's options.
+	 */
+	protected final class Snapshot {
+		private final LocationDatabaseProvider.Version version;
+		private final LocationDatabase database;
+		private final GeocodeLocationResolver geocodeLocationResolver;
+		
+		private Snapshot(LocationDatabaseProvider.Version version) {
+			this.version = version;
+			this.database = version.getDatabase();
+			if (LocationResolver.this.useGeocodes)
+				this.geocodeLocationResolver = this.database.getGeocodeLocationResolver().withOptions(
+						LocationResolver.this.geocodeMaxDistance, LocationResolver.this.useLocationRadius);
+			else
+				this.geocodeLocationResolver = null;
+		}
+		
+		public LocationDatabase getDatabase() {
+			return this.database;
+		}
+		
+		public long getVersion() {
+			return this.version.getVersion();
+		}
 	}
-}
 
+	/**
+	 * Creates LocationResolvers. Options that are not set are read from carmen.properties.
+	 * Resolvers built with the same database share all of its data.
+	 */
+	public static class Builder {
+		private LocationDatabase database;
+		private LocationDatabaseProvider databaseProvider;
+		private Boolean usePlace;
+		private Boolean useGeocodes;
+		private Boolean useUserString;
+		private Boolean useUnknownPlaces;
+		private Boolean useKnownParentForUnknownPlaces;
+		private Boolean deterministicLocationIds;
+		private Double geocodeMaxDistance;
+		private Boolean useLocationRadius;
+		private Integer userLocationCacheSize;
+		private Long userLocationCacheTtl;
+		
+		protected Builder() {
+		}
+		
+		/**
+		 * @param database A database that is used for the life of the resolver.
+		 */
+		public Builder database(LocationDatabase database) {
+			this.database = database;
+			return this;
+		}
+		
+		/**
+		 * @param databaseProvider Provides the database, which can be replaced by a new version while the resolver
+		 * is in use. Overrides database().
+		 */
+		public Builder databaseProvider(LocationDatabaseProvider databaseProvider) {
+			this.databaseProvider = databaseProvider;
+			return this;
+		}
+		
+		public Builder usePlace(boolean usePlace) {
+			this.usePlace = usePlace;
+			return this;
+		}
+		
+		public Builder useGeocodes(boolean useGeocodes) {
+			this.useGeocodes = useGeocodes;
+			return this;
+		}
+		
+		public Builder useUserString(boolean useUserString) {
+			this.useUserString = useUserString;
+			return this;
+		}
+		
+		public Builder useUnknownPlaces(boolean useUnknownPlaces) {
+			this.useUnknownPlaces = useUnknownPlaces;
+			return this;
+		}
+		
+		public Builder useKnownParentForUnknownPlaces(boolean useKnownParentForUnknownPlaces) {
+			this.useKnownParentForUnknownPlaces = useKnownParentForUnknownPlaces;
+			return this;
+		}
+		
+		/**
+		 * @param deterministicLocationIds If true, the ids of unknown locations are derived from their names, so they
+		 * are the same in every process. Otherwise they are numbered in the order the locations are seen.
+		 */
+		public Builder deterministicLocationIds(boolean deterministicLocationIds) {
+			this.deterministicLocationIds = deterministicLocationIds;
+			return this;
+		}
+		
+		/**
+		 * @param geocodeMaxDistance The maximum distance in miles to a location found from coordinates.
+		 */
+		public Builder geocodeMaxDistance(double geocodeMaxDistance) {
+			this.geocodeMaxDistance = geocodeMaxDistance;
+			return this;
+		}
+		
+		public Builder useLocationRadius(boolean useLocationRadius) {
+			this.useLocationRadius = useLocationRadius;
+			return this;
+		}
+		
+		/**
+		 * @param userLocationCacheSize The number of users to cache, 0 to disable the cache.
+		 */
+		public Builder userLocationCacheSize(int userLocationCacheSize) {
+			this.userLocationCacheSize = userLocationCacheSize;
+			return this;
+		}
+		
+		/**
+		 * @param userLocationCacheTtl The number of seconds to keep a cached user location.
+		 */
+		public Builder userLocationCacheTtl(long userLocationCacheTtl) {
+			this.userLocationCacheTtl = userLocationCacheTtl;
+			return this;
+		}
+		
+		public LocationResolver build() throws IOException {
+			return new LocationResolver(this);
+		}
+	}
+}
@@ -0,0 +1,515 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+import carmen.types.Resolution;
+import carmen.utils.Utils;
+
+/**
+ * A java.util.concurrent.Flow.Processor that resolves the locations of tweets (parsed JSON maps, as given
+ * to LocationResolver.resolve()) and publishes a Result for each tweet, to a single subscriber.
+ *
+ * The processor holds at most bufferSize tweets at a time (received but not yet published), and requests
+ * more tweets from its publisher only as results are published, which happens only as the subscriber
+ * requests them. So a slow subscriber slows the publisher down instead of filling memory.
+ *
+ * Tweets are resolved on up to parallelism tasks at once on the executor, in batches of up to batchSize
+ * tweets. A batch is started when it is full, or at once if fewer than parallelism tasks are running, so
+ * batches are large under load without delaying tweets when there is little traffic. If ordered is true
+ * (the default), the results are published in the order the tweets were received; otherwise each batch is
+ * published as soon as it is resolved.
+ *
+ * A tweet that can not be resolved because it is malformed (resolve() throws) gives a Result with the error,
+ * and the stream continues. An error from the publisher is passed on after the results of the tweets
+ * received before it. An Error thrown while resolving (e.g. an OutOfMemoryError) cancels the publisher and
+ * ends the stream with that error at once.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class LocationResolverProcessor implements Flow.Processor<Map<String, Object>, LocationResolverProcessor.Result> {
+	protected static Logger logger = Logger.getLogger(LocationResolverProcessor.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	private final LocationResolver resolver;
+	private final int parallelism;
+	private final int batchSize;
+	private final int bufferSize;
+	private final boolean ordered;
+	private final Executor executor;
+	// Shut down when the stream ends, if the processor created it.
+	private final ExecutorService ownedExecutor;
+
+	// All of the state below is guarded by this.
+	private Flow.Subscription upstream = null;
+	private Flow.Subscriber<? super Result> downstream = null;
+	// Set once onSubscribe() of the downstream has returned. Nothing else is signalled to it before.
+	private boolean subscribed = false;
+	// Read without the lock to stop publishing soon after a cancel.
+	private volatile boolean cancelled = false;
+	private boolean upstreamDone = false;
+	private Throwable upstreamError = null;
+	// An error that stopped a batch (e.g. an OutOfMemoryError), which ends the stream.
+	private Throwable failure = null;
+	private boolean terminated = false;
+	// Tweets requested from the publisher and not yet received.
+	private long upstreamRequested = 0;
+	// Results requested by the subscriber and not yet published.
+	private long demand = 0;
+	// Tweets received and not yet published.
+	private int held = 0;
+	private int runningTasks = 0;
+	private List<Map<String, Object>> pendingBatch = new ArrayList<Map<String, Object>>();
+	// Batches that have been started, in order, if ordered.
+	private final ArrayDeque<Batch> startedBatches = new ArrayDeque<Batch>();
+	private final ArrayDeque<Result> readyResults = new ArrayDeque<Result>();
+	private boolean draining = false;
+	private boolean drainAgain = false;
+
+	/**
+	 * The result for one tweet: its resolution (null if its location could not be resolved), or the error
+	 * that stopped it from being resolved.
+	 */
+	public static final class Result {
+		private final Map<String, Object> tweet;
+		private final Resolution resolution;
+		private final RuntimeException error;
+
+		private Result(Map<String, Object> tweet, Resolution resolution, RuntimeException error) {
+			this.tweet = tweet;
+			this.resolution = resolution;
+			this.error = error;
+		}
+
+		public Map<String, Object> getTweet() {
+			return this.tweet;
+		}
+
+		/**
+		 * @return The resolution, or null if the location was not resolved or there was an error.
+		 */
+		public Resolution getResolution() {
+			return this.resolution;
+		}
+
+		/**
+		 * @return The error thrown while resolving the tweet, or null.
+		 */
+		public RuntimeException getError() {
+			return this.error;
+		}
+
+		public boolean isError() {
+			return this.error != null;
+		}
+	}
+
+	private static final class Batch {
+		private final List<Map<String, Object>> tweets;
+		private List<Result> results = null;
+
+		private Batch(List<Map<String, Object>> tweets) {
+			this.tweets = tweets;
+		}
+	}
+
+	protected LocationResolverProcessor(Builder builder) {
+		this.resolver = builder.resolver;
+		this.parallelism = Math.max(1, builder.parallelism);
+		this.batchSize = Math.max(1, builder.batchSize);
+		this.bufferSize = Math.max(this.batchSize, builder.bufferSize > 0 ? builder.bufferSize : 2 * this.parallelism * this.batchSize);
+		this.ordered = builder.ordered;
+		if (builder.executor != null) {
+			this.executor = builder.executor;
+			this.ownedExecutor = null;
+		} else {
+			this.ownedExecutor = Utils.createExecutor(this.parallelism);
+			this.executor = this.ownedExecutor;
+		}
+	}
+
+	public static Builder builder(LocationResolver resolver) {
+		return new Builder(resolver);
+	}
+
+	public void subscribe(Flow.Subscriber<? super Result> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException("The subscriber is null.");
+		boolean accepted;
+		synchronized (this) {
+			accepted = this.downstream == null;
+			if (accepted)
+				this.downstream = subscriber;
+		}
+		if (!accepted) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long n) {
+				}
+
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("A LocationResolverProcessor has only one subscriber."));
+			return;
+		}
+		subscriber.onSubscribe(new DownstreamSubscription());
+		synchronized (this) {
+			this.subscribed = true;
+		}
+		drain();
+	}
+
+	public void onSubscribe(Flow.Subscription subscription) {
+		if (subscription == null)
+			throw new NullPointerException("The subscription is null.");
+		boolean accepted;
+		synchronized (this) {
+			accepted = this.upstream == null && !this.cancelled;
+			if (accepted)
+				this.upstream = subscription;
+		}
+		if (!accepted) {
+			subscription.cancel();
+			return;
+		}
+		drain();
+	}
+
+	public void onNext(Map<String, Object> tweet) {
+		if (tweet == null)
+			throw new NullPointerException("The tweet is null.");
+		Batch batch = null;
+		synchronized (this) {
+			if (this.cancelled || this.upstreamDone)
+				return;
+			if (this.upstreamRequested > 0)
+				this.upstreamRequested--;
+			this.held++;
+			this.pendingBatch.add(tweet);
+			if (this.pendingBatch.size() >= this.batchSize || this.runningTasks < this.parallelism)
+				batch = startBatch();
+		}
+		if (batch != null)
+			execute(batch);
+	}
+
+	public void onError(Throwable throwable) {
+		if (throwable == null)
+			throw new NullPointerException("The error is null.");
+		finishUpstream(throwable);
+	}
+
+	public void onComplete() {
+		finishUpstream(null);
+	}
+
+	private void finishUpstream(Throwable throwable) {
+		Batch batch = null;
+		synchronized (this) {
+			if (this.upstreamDone)
+				return;
+			this.upstreamDone = true;
+			this.upstreamError = throwable;
+			if (!this.pendingBatch.isEmpty())
+				batch = startBatch();
+		}
+		if (batch != null)
+			execute(batch);
+		drain();
+	}
+
+	/**
+	 * Takes the pending tweets as a new batch. Called holding the lock.
+	 */
+	private Batch startBatch() {
+		Batch batch = new Batch(this.pendingBatch);
+		this.pendingBatch = new ArrayList<Map<String, Object>>(this.batchSize);
+		this.runningTasks++;
+		if (this.ordered)
+			this.startedBatches.add(batch);
+		return batch;
+	}
+
+	private void execute(final Batch batch) {
+		try {
+			this.executor.execute(new Runnable() {
+				public void run() {
+					resolveBatch(batch);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// The executor was shut down. Resolve the batch here so that the stream still ends.
+			resolveBatch(batch);
+		}
+	}
+
+	private void resolveBatch(Batch batch) {
+		List<Result> results = new ArrayList<Result>(batch.tweets.size());
+		boolean resolved = false;
+		Throwable error = null;
+		try {
+			for (Map<String, Object> tweet : batch.tweets) {
+				Result result;
+				try {
+					result = new Result(tweet, this.resolver.resolve(tweet), null);
+				} catch (RuntimeException e) {
+					logger.debug("Unable to resolve a tweet.", e);
+					result = new Result(tweet, null, e);
+				}
+				results.add(result);
+			}
+			resolved = true;
+		} catch (Error e) {
+			error = e;
+			throw e;
+		} finally {
+			if (resolved)
+				finishBatch(batch, results);
+			else
+				failBatch(error != null ? error : new IllegalStateException("Unable to resolve a batch of tweets."));
+		}
+	}
+
+	private void finishBatch(Batch batch, List<Result> results) {
+		Batch next = null;
+		synchronized (this) {
+			batch.results = results;
+			this.runningTasks--;
+			if (this.ordered) {
+				while (!this.startedBatches.isEmpty() && this.startedBatches.peek().results != null)
+					this.readyResults.addAll(this.startedBatches.poll().results);
+			} else {
+				this.readyResults.addAll(results);
+			}
+			if (this.cancelled) {
+				this.readyResults.clear();
+			} else if (!this.pendingBatch.isEmpty() && this.runningTasks < this.parallelism) {
+				// Start the tweets that arrived while all the tasks were running.
+				next = startBatch();
+			}
+		}
+		if (next != null)
+			execute(next);
+		drain();
+	}
+
+	/**
+	 * Ends the stream with an error that stopped a batch, which can not be given to a single tweet.
+	 */
+	private void failBatch(Throwable error) {
+		logger.error("Unable to resolve a batch of tweets, ending the stream.", error);
+		Flow.Subscription subscription = null;
+		synchronized (this) {
+			this.runningTasks--;
+			if (this.failure == null)
+				this.failure = error;
+			if (!this.upstreamDone) {
+				this.upstreamDone = true;
+				subscription = this.upstream;
+			}
+			this.pendingBatch.clear();
+			this.startedBatches.clear();
+			this.readyResults.clear();
+		}
+		if (subscription != null)
+			subscription.cancel();
+		drain();
+	}
+
+	/**
+	 * Publishes the ready results the subscriber has asked for, requests more tweets if there is room, and
+	 * ends the stream when everything has been published. Only one thread drains at a time; a call while
+	 * another thread is draining makes that thread go around again.
+	 */
+	private void drain() {
+		synchronized (this) {
+			if (this.draining) {
+				this.drainAgain = true;
+				return;
+			}
+			this.draining = true;
+		}
+		while (true) {
+			Flow.Subscriber<? super Result> subscriber;
+			List<Result> results = null;
+			Flow.Subscription subscription = null;
+			long request = 0;
+			boolean complete = false;
+			Throwable error = null;
+			synchronized (this) {
+				this.drainAgain = false;
+				subscriber = this.downstream;
+				if (subscriber != null && this.subscribed && !this.cancelled && !this.terminated && this.failure != null) {
+					complete = true;
+					error = this.failure;
+					this.terminated = true;
+				} else if (subscriber != null && this.subscribed && !this.cancelled && !this.terminated) {
+					while (this.demand > 0 && !this.readyResults.isEmpty()) {
+						if (results == null)
+							results = new ArrayList<Result>();
+						results.add(this.readyResults.poll());
+						this.demand--;
+						this.held--;
+					}
+					if (this.upstreamDone) {
+						if (this.held == 0) {
+							complete = true;
+							error = this.upstreamError;
+							this.terminated = true;
+						}
+					} else if (this.upstream != null) {
+						// Keep bufferSize tweets in hand or on the way, requesting at least a batch at a time.
+						long room = this.bufferSize - this.held - this.upstreamRequested;
+						if (room >= Math.min(this.batchSize, this.bufferSize / 2)) {
+							request = room;
+							this.upstreamRequested += room;
+							subscription = this.upstream;
+						}
+					}
+				}
+			}
+
+			if (results != null) {
+				for (Result result : results) {
+					if (this.cancelled)
+						break;
+					subscriber.onNext(result);
+				}
+			}
+			if (subscription != null)
+				subscription.request(request);
+			if (complete) {
+				shutdown();
+				if (error != null)
+					subscriber.onError(error);
+				else
+					subscriber.onComplete();
+			}
+
+			synchronized (this) {
+				if (!this.drainAgain && results == null && subscription == null) {
+					this.draining = false;
+					return;
+				}
+			}
+		}
+	}
+
+	private void shutdown() {
+		if (this.ownedExecutor != null)
+			this.ownedExecutor.shutdown();
+	}
+
+	private class DownstreamSubscription implements Flow.Subscription {
+		public void request(long n) {
+			if (n <= 0) {
+				Flow.Subscriber<? super Result> subscriber;
+				synchronized (LocationResolverProcessor.this) {
+					subscriber = terminated ? null : downstream;
+				}
+				cancel();
+				if (subscriber != null)
+					subscriber.onError(new IllegalArgumentException("The number of results requested must be positive: " + n));
+				return;
+			}
+			synchronized (LocationResolverProcessor.this) {
+				demand += n;
+				// Unbounded demand.
+				if (demand < 0)
+					demand = Long.MAX_VALUE;
+			}
+			drain();
+		}
+
+		public void cancel() {
+			Flow.Subscription subscription;
+			synchronized (LocationResolverProcessor.this) {
+				if (cancelled)
+					return;
+				cancelled = true;
+				subscription = upstream;
+				pendingBatch.clear();
+				readyResults.clear();
+				startedBatches.clear();
+			}
+			if (subscription != null)
+				subscription.cancel();
+			shutdown();
+		}
+	}
+
+	/**
+	 * Creates LocationResolverProcessors.
+	 */
+	public static class Builder {
+		private final LocationResolver resolver;
+		private int parallelism = Runtime.getRuntime().availableProcessors();
+		private int batchSize = DEFAULT_BATCH_SIZE;
+		private int bufferSize = 0;
+		private boolean ordered = true;
+		private Executor executor = null;
+
+		protected Builder(LocationResolver resolver) {
+			this.resolver = resolver;
+		}
+
+		/**
+		 * @param parallelism The most batches resolved at once (the number of processors by default).
+		 */
+		public Builder parallelism(int parallelism) {
+			this.parallelism = parallelism;
+			return this;
+		}
+
+		/**
+		 * @param batchSize The most tweets resolved by one task.
+		 */
+		public Builder batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		/**
+		 * @param bufferSize The most tweets held at once (2 * parallelism * batchSize by default).
+		 */
+		public Builder bufferSize(int bufferSize) {
+			this.bufferSize = bufferSize;
+			return this;
+		}
+
+		/**
+		 * @param ordered If true, results are published in the order the tweets were received.
+		 */
+		public Builder ordered(boolean ordered) {
+			this.ordered = ordered;
+			return this;
+		}
+
+		/**
+		 * @param executor Runs the batches. By default the processor creates a pool of parallelism threads
+		 * and shuts it down when the stream ends.
+		 */
+		public Builder executor(Executor executor) {
+			this.executor = executor;
+			return this;
+		}
+
+		public LocationResolverProcessor build() {
+			return new LocationResolverProcessor(this);
+		}
+	}
+}
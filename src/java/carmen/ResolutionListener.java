@@ -0,0 +1,25 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen;
+
+import java.util.Map;
+
+import carmen.types.Resolution;
+
+/**
+ * Called by a LocationResolver for every tweet it resolves (see LocationResolver.addResolutionListener()).
+ * Listeners are called on the thread that resolved the tweet, so they must be thread safe if the
+ * resolver is shared between threads, and should be fast.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public interface ResolutionListener {
+	/**
+	 * @param tweet The tweet.
+	 * @param resolution The resolution of the tweet, or null if it could not be resolved.
+	 */
+	public void locationResolved(Map<String, Object> tweet, Resolution resolution);
+}
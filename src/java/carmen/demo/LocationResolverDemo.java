@@ -3,23 +3,27 @@
 // Mark Dredze, mdredze@cs.jhu.edu
 package carmen.demo;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.text.ParseException;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 
 import org.apache.commons.cli.Option;
 import org.apache.log4j.Logger;
 
 import carmen.LocationResolver;
-import carmen.types.Location;
+import carmen.io.ByteLineReader;
+import carmen.io.ResultWriter;
+import carmen.io.TweetParser;
+import carmen.io.TweetWriter;
+import carmen.stats.StageTimer;
+import carmen.types.Resolution;
 import carmen.utils.CommandLineUtilities;
 import carmen.utils.Utils;
 
@@ -27,13 +31,41 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
  * A simple demo that creates a location resolver and resolves tweets in an input file.
+ *
+ * If the input file is "-" the tweets are read from standard input, and if the output file is "-"
+ * the geolocated tweets are written to standard output, so the demo can be used as a filter in a
+ * pipeline. In that case log messages go to standard error. Output is flushed whenever no more input
+ * is immediately available, or after every tweet if output_buffer_size is 0. If the reader of the
+ * output goes away (e.g. head), the demo stops quietly.
+ *
+ * With output_mode splice, only the fields needed to resolve each tweet are parsed and the location
+ * is spliced into the original bytes of the tweet (see TweetWriter), which is much cheaper than
+ * parsing and serializing every tweet in full.
+ *
+ * With output_format binary or tsv, only the tweet id, location id and resolution method of each tweet
+ * are written (see ResultWriter).
+ *
+ * A progress line with rates is logged every progress_interval seconds, and at the end the time spent
+ * reading, parsing, resolving (by resolution method), serializing and writing is reported (see StageTimer).
  * @author Mark Dredze mdredze@cs.jhu.edu
  *
  */
 public class LocationResolverDemo {
 	protected static Logger logger = Logger.getLogger(LocationResolverDemo.class);
 	protected static List<Option> options = new LinkedList<Option>();
-	
+
+	protected static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	protected static final double DEFAULT_PROGRESS_INTERVAL = 10;
+
+	protected LocationResolver resolver;
+	protected ObjectMapper mapper = new ObjectMapper();
+	protected TweetParser tweetParser = new TweetParser(mapper);
+	protected int numResolved = 0;
+	protected int total = 0;
+	protected int skipped = 0;
+	// Times nothing unless set.
+	protected StageTimer stageTimer = new StageTimer(0, 0, logger);
+
 	public static void main(String[] args) throws ParseException, FileNotFoundException, IOException, ClassNotFoundException
 	{
 		// Parse the command line.
@@ -47,50 +79,198 @@ public class LocationResolverDemo {
 		if (CommandLineUtilities.hasArg("output_file")) {
 			outputFile = CommandLineUtilities.getOptionValue("output_file");
 		}
-		
+		int outputBufferSize = DEFAULT_BUFFER_SIZE;
+		if (CommandLineUtilities.hasArg("output_buffer_size")) {
+			outputBufferSize = CommandLineUtilities.getOptionValueAsInt("output_buffer_size");
+		}
+		TweetWriter.OutputMode outputMode = TweetWriter.OutputMode.RESERIALIZE;
+		if (CommandLineUtilities.hasArg("output_mode")) {
+			outputMode = TweetWriter.OutputMode.valueOf(CommandLineUtilities.getOptionValue("output_mode").toUpperCase());
+		}
+		String outputFormat = ResultWriter.FORMAT_JSON;
+		if (CommandLineUtilities.hasArg("output_format")) {
+			outputFormat = CommandLineUtilities.getOptionValue("output_format").toLowerCase();
+		}
+		ResultWriter.checkOutputFile(outputFormat, outputFile);
+		int timingSampleInterval = StageTimer.DEFAULT_SAMPLE_INTERVAL;
+		if (CommandLineUtilities.hasArg("timing_sample_interval")) {
+			timingSampleInterval = CommandLineUtilities.getOptionValueAsInt("timing_sample_interval");
+		}
+		double progressInterval = DEFAULT_PROGRESS_INTERVAL;
+		if (CommandLineUtilities.hasArg("progress_interval")) {
+			progressInterval = CommandLineUtilities.getOptionValueAsFloat("progress_interval");
+		}
+
+		// Keep standard output for the tweets.
+		if (Utils.STANDARD_STREAM.equals(outputFile))
+			Utils.redirectConsoleLoggingToStderr();
+
 		logger.info("Creating LocationResolver.");
-		LocationResolver resolver = LocationResolver.getLocationResolver();
+		LocationResolverDemo demo = new LocationResolverDemo(LocationResolver.getLocationResolver());
+
+		ByteLineReader reader = new ByteLineReader(Utils.createInputStream(inputFile), DEFAULT_BUFFER_SIZE);
+		demo.stageTimer = new StageTimer(timingSampleInterval, progressInterval, logger);
 
-		Scanner scanner = Utils.createScanner(inputFile);
-	
-		Writer writer = null;
+		TweetWriter writer = null;
+		ResultWriter resultWriter = null;
 		if (outputFile != null) {
-			writer = Utils.createWriter(outputFile);
-			logger.info("Saving geolocated tweets to: " + outputFile);
-		}
-		ObjectMapper mapper = new ObjectMapper();
-		int numResolved = 0;
-		int total = 0;
-		while (scanner.hasNextLine()) {
-			String line = scanner.nextLine();
-			@SuppressWarnings("unchecked")
-			HashMap<String, Object> tweet = (HashMap<String, Object>) mapper.readValue(line, Map.class);
-			
-			total++;
-			Location location = resolver.resolveLocationFromTweet(tweet);
-			
-			if (location != null) {
-				logger.debug("Found location: " + location.toString());
-				numResolved++;
+			OutputStream outputStream = new BufferedOutputStream(demo.stageTimer.wrap(Utils.createOutputStream(outputFile)), Math.max(1, outputBufferSize));
+			if (!outputFormat.equals(ResultWriter.FORMAT_JSON)) {
+				Writer dynamicLocationsWriter = null;
+				if (!Utils.STANDARD_STREAM.equals(outputFile))
+					dynamicLocationsWriter = Utils.createWriter(ResultWriter.getDynamicLocationsFile(outputFile));
+				resultWriter = ResultWriter.create(outputFormat, outputStream, dynamicLocationsWriter, demo.resolver, false);
+				logger.info("Saving " + outputFormat + " results to: " + outputFile);
+			} else {
+				writer = new TweetWriter(outputStream, outputMode, demo.mapper);
+				logger.info("Saving geolocated tweets to: " + outputFile);
 			}
-			if (writer != null) {
-				if (location != null) {
-					tweet.put("location", Location.createJsonFromLocation(location));
+		}
+
+		demo.resolveTweets(reader, writer, resultWriter, outputBufferSize == 0);
+		demo.stageTimer.log();
+
+		logger.info("Resolved locations for " + demo.numResolved + " of " + demo.total + " tweets.");
+		if (demo.skipped > 0)
+			logger.info("Skipped (not included in total): " + demo.skipped);
+	}
+
+	public LocationResolverDemo(LocationResolver resolver) {
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Resolves every tweet in the reader and writes the tweets with their locations to the writer (if not null).
+	 * Lines that are not valid tweets are written unchanged. Both the reader and writer are closed.
+	 * @param reader
+	 * @param writer
+	 * @param flushEveryTweet If true, the writer is flushed after every tweet. Otherwise it is flushed
+	 * when no more input is immediately available.
+	 * @throws IOException
+	 */
+	public void resolveTweets(ByteLineReader reader, TweetWriter writer, boolean flushEveryTweet) throws IOException {
+		resolveTweets(reader, writer, null, flushEveryTweet);
+	}
+
+	/**
+	 * Resolves every tweet in the reader and writes the tweets with their locations to the writer (if not null),
+	 * and the results to the result writer (if not null). Lines that are not valid tweets are written unchanged
+	 * to the writer and are not written to the result writer. The reader and writers are closed.
+	 * @param reader
+	 * @param writer
+	 * @param resultWriter
+	 * @param flushEveryTweet If true, the writers are flushed after every tweet. Otherwise they are flushed
+	 * when no more input is immediately available.
+	 * @throws IOException
+	 */
+	public void resolveTweets(ByteLineReader reader, TweetWriter writer, ResultWriter resultWriter, boolean flushEveryTweet) throws IOException {
+		// Only the fields used for resolution are needed unless the tweet will be reserialized.
+		boolean parseAllFields = writer != null && writer.getOutputMode() == TweetWriter.OutputMode.RESERIALIZE;
+		try {
+			this.stageTimer.startRecord();
+			while (reader.nextLine()) {
+				this.stageTimer.stageDone(StageTimer.Stage.READ);
+				byte[] line = reader.getBuffer();
+				int start = reader.getStart();
+				int length = reader.getLength();
+
+				HashMap<String, Object> tweet = parseTweet(line, start, length, parseAllFields);
+				this.stageTimer.stageDone(StageTimer.Stage.PARSE);
+				Resolution resolution = null;
+				if (tweet != null) {
+					resolution = resolveTweet(tweet);
+					this.stageTimer.resolveDone(resolution);
+				}
+
+				if (writer != null) {
+					try {
+						if (tweet == null)
+							writer.writeUnchanged(line, start, length);
+						else
+							writer.write(line, start, length, tweet, resolution);
+						if (flushEveryTweet || !reader.ready())
+							writer.flush();
+					} catch (IOException e) {
+						// The reader of our output went away (e.g. a broken pipe). Stop without an error.
+						logger.info("Stopping, unable to write output: " + e.getMessage());
+						writer = null;
+						break;
+					}
 				}
-				mapper.writeValue(writer, tweet);
-				writer.write("\n");
+				if (resultWriter != null && tweet != null) {
+					try {
+						resultWriter.write(tweet, resolution);
+						if (flushEveryTweet || !reader.ready())
+							resultWriter.flush();
+					} catch (IOException e) {
+						logger.info("Stopping, unable to write output: " + e.getMessage());
+						resultWriter = null;
+						break;
+					}
+				}
+				this.stageTimer.stageDone(StageTimer.Stage.SERIALIZE);
+				this.stageTimer.endRecord();
+				this.stageTimer.startRecord();
 			}
-				
+		} finally {
+			reader.close();
+			if (writer != null)
+				writer.close();
+			if (resultWriter != null)
+				resultWriter.close();
 		}
-		scanner.close();
-		if (writer != null)
-			writer.close();
+	}
 
-		logger.info("Resolved locations for " + numResolved + " of " + total + " tweets.");
+	/**
+	 * Parses a tweet in JSON format. Returns null (and counts the tweet as skipped) if it is not valid.
+	 */
+	protected HashMap<String, Object> parseTweet(byte[] line, int start, int length, boolean parseAllFields) {
+		HashMap<String, Object> tweet;
+		try {
+			if (parseAllFields) {
+				@SuppressWarnings("unchecked")
+				HashMap<String, Object> readValue = (HashMap<String, Object>) mapper.readValue(line, start, length, Map.class);
+				tweet = readValue;
+			} else {
+				tweet = tweetParser.parseFields(line, start, length);
+			}
+		} catch (IOException e) {
+			tweet = null;
+		}
+		if (tweet == null) {
+			try {
+				logger.warn("Skipping bad tweet: " + new String(line, start, length, "UTF-8"));
+			} catch (java.io.UnsupportedEncodingException e) {
+				// UTF-8 is always supported.
+			}
+			skipped++;
+		}
+		return tweet;
 	}
-	
+
+	/**
+	 * Resolves the location of a tweet.
+	 * @param tweet
+	 * @return
+	 */
+	protected Resolution resolveTweet(HashMap<String, Object> tweet) {
+		total++;
+		Resolution resolution = resolver.resolve(tweet);
+
+		if (resolution != null) {
+			logger.debug("Found location: " + resolution.toString());
+			numResolved++;
+		}
+		return resolution;
+	}
+
 	private static void createCommandLineOptions() {
-		Utils.registerOption(options, "input_file", "String", true, "A file containing the tweets to locate with geolocation field.");
-		Utils.registerOption(options, "output_file", "String", true, "A file to write geolocated tweets.");
+		Utils.registerOption(options, "input_file", "String", true, "A file containing the tweets to locate with geolocation field, or - for standard input.");
+		Utils.registerOption(options, "output_file", "String", true, "A file to write geolocated tweets, or - for standard output.");
+		Utils.registerOption(options, "output_buffer_size", "int", true, "The size of the output buffer in bytes. Use 0 to flush after every tweet.");
+		Utils.registerOption(options, "output_mode", "String", true, "reserialize (default) to write each tweet from its parsed form, or splice to copy the original tweet and insert the location.");
+		Utils.registerOption(options, "output_format", "String", true, "json (default) to write the geolocated tweets, or binary or tsv to write only the tweet id, location id and resolution method.");
+		Utils.registerOption(options, "timing_sample_interval", "int", true, "Time the stages of one tweet in this many (default " + StageTimer.DEFAULT_SAMPLE_INTERVAL + "), or 0 for none.");
+		Utils.registerOption(options, "progress_interval", "double", true, "The seconds between progress lines (default " + (int)DEFAULT_PROGRESS_INTERVAL + "), or 0 for none.");
 	}
-}
\ No newline at end of file
+}
@@ -3,33 +3,59 @@
 // Mark Dredze, mdredze@cs.jhu.edu
 package carmen.demo;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 
 import org.apache.commons.cli.Option;
 import org.apache.log4j.Logger;
 
 import carmen.LocationResolver;
-import carmen.types.Constants;
+import carmen.io.ByteLineReader;
+import carmen.io.Checkpoint;
+import carmen.io.RestartableOutputStream;
+import carmen.io.ResultWriter;
+import carmen.io.Shard;
+import carmen.io.TweetParser;
+import carmen.io.TweetWriter;
+import carmen.stats.LocationAggregator;
+import carmen.stats.NdjsonWindowListener;
+import carmen.stats.ResolutionStats;
+import carmen.stats.StageTimer;
+import carmen.stats.WindowedLocationCounter;
 import carmen.types.Location;
-import carmen.types.ResolutionMethod;
+import carmen.types.Resolution;
 import carmen.utils.CommandLineUtilities;
 import carmen.utils.Timer;
 import carmen.utils.Utils;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.javadocmd.simplelatlng.LatLng;
 
 /**
  * A demo of the LocationResolver that computes statistics about the locations in the given tweets.
- * The geolocated tweets are written out to a new file.
+ * The geolocated tweets are written out to a new file. With output_mode splice only the fields
+ * used for resolution are parsed and the location is spliced into the original tweet (see TweetWriter).
+ * With output_format binary or tsv only the tweet id, location id and resolution method are written (see ResultWriter).
+ * With location_counts, the number of tweets per location, state and country are written to tables (see LocationAggregator).
+ * With window_counts, the number of tweets per location in time windows is written as each window closes
+ * (see WindowedLocationCounter).
+ * With checkpoint_file, the state of the run is saved every checkpoint_interval lines, and a run that
+ * stopped (e.g. crashed) can be continued from its last checkpoint with --resume, giving the same output as
+ * a run that did not stop (see Checkpoint and RestartableOutputStream).
+ * With shard k/N, only the k-th of N parts of the input file is read, and with stats_file the statistics are
+ * written as JSON, so that one file can be split across processes and the statistics merged (see Shard and MergeStats).
+ * A progress line with rates is logged every progress_interval seconds, and at the end the time spent reading,
+ * parsing, resolving (by resolution method), serializing and writing is reported (see StageTimer).
  * This class was used for the experiments published in the Carmen paper.
  * @author Mark Dredze mdredze@cs.jhu.edu
  *
@@ -38,7 +64,22 @@ public class LocationResolverStatsDemo {
 
 	protected static List<Option> options = new LinkedList<Option>();
 	protected static Logger logger = Logger.getLogger(LocationResolverStatsDemo.class);
+	protected static final int DEFAULT_CHECKPOINT_INTERVAL = 1000000;
+	protected static final double DEFAULT_PROGRESS_INTERVAL = 10;
+	protected static final String STATS_STATE = "stats";
+	protected static final String LOCATION_COUNTS_STATE = "location_counts";
+	protected static final String UNRESOLVED_COUNT_STATE = "unresolved";
+	protected static final String WRITTEN_DYNAMIC_LOCATIONS_STATE = "written_dynamic_locations";
+	protected static final String SHARD_STATE = "shard";
+
 	protected LocationResolver _locationResolver;
+	protected ResolutionStats stats = new ResolutionStats();
+	protected LocationAggregator aggregator = null;
+	protected String outputFile = null;
+	protected Shard shard = null;
+	protected String statsFile = null;
+	protected int timingSampleInterval = StageTimer.DEFAULT_SAMPLE_INTERVAL;
+	protected double progressInterval = DEFAULT_PROGRESS_INTERVAL;
 
 	public static void main(String[] args) throws ParseException, FileNotFoundException, IOException, ClassNotFoundException
 	{
@@ -53,12 +94,81 @@ public class LocationResolverStatsDemo {
 		if (CommandLineUtilities.hasArg("output_file")) {
 			outputFile = CommandLineUtilities.getOptionValue("output_file");
 		}
+		TweetWriter.OutputMode outputMode = TweetWriter.OutputMode.RESERIALIZE;
+		if (CommandLineUtilities.hasArg("output_mode")) {
+			outputMode = TweetWriter.OutputMode.valueOf(CommandLineUtilities.getOptionValue("output_mode").toUpperCase());
+		}
+		String outputFormat = ResultWriter.FORMAT_JSON;
+		if (CommandLineUtilities.hasArg("output_format")) {
+			outputFormat = CommandLineUtilities.getOptionValue("output_format").toLowerCase();
+		}
+		ResultWriter.checkOutputFile(outputFormat, outputFile);
+		String locationCountsPrefix = null;
+		if (CommandLineUtilities.hasArg("location_counts")) {
+			locationCountsPrefix = CommandLineUtilities.getOptionValue("location_counts");
+		}
+		String windowCountsFile = null;
+		if (CommandLineUtilities.hasArg("window_counts")) {
+			windowCountsFile = CommandLineUtilities.getOptionValue("window_counts");
+		}
+		String checkpointFile = null;
+		if (CommandLineUtilities.hasArg("checkpoint_file")) {
+			checkpointFile = CommandLineUtilities.getOptionValue("checkpoint_file");
+		}
+		int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+		if (CommandLineUtilities.hasArg("checkpoint_interval")) {
+			checkpointInterval = CommandLineUtilities.getOptionValueAsInt("checkpoint_interval");
+		}
+		boolean resume = CommandLineUtilities.hasArg("resume");
+		if (resume && checkpointFile == null)
+			throw new IllegalArgumentException("--resume needs --checkpoint_file.");
+		Shard shard = null;
+		if (CommandLineUtilities.hasArg("shard")) {
+			shard = Shard.parse(CommandLineUtilities.getOptionValue("shard"));
+		}
+		// Keep standard output for the window counts or stats.
+		if (Utils.STANDARD_STREAM.equals(windowCountsFile) || Utils.STANDARD_STREAM.equals(CommandLineUtilities.getOptionValue("stats_file")))
+			Utils.redirectConsoleLoggingToStderr();
 
 		Timer timer = new Timer();
 		timer.start();
-		LocationResolverStatsDemo tester = new LocationResolverStatsDemo();
+		LocationResolverStatsDemo tester = new LocationResolverStatsDemo(shard);
+		tester.outputFile = outputFile;
+		if (CommandLineUtilities.hasArg("stats_file")) {
+			tester.statsFile = CommandLineUtilities.getOptionValue("stats_file");
+		}
+		if (CommandLineUtilities.hasArg("timing_sample_interval")) {
+			tester.timingSampleInterval = CommandLineUtilities.getOptionValueAsInt("timing_sample_interval");
+		}
+		if (CommandLineUtilities.hasArg("progress_interval")) {
+			tester.progressInterval = CommandLineUtilities.getOptionValueAsFloat("progress_interval");
+		}
 
-		tester.run(inputFile, outputFile);
+		WindowedLocationCounter windowCounter = null;
+		NdjsonWindowListener windowListener = null;
+		if (windowCountsFile != null) {
+			long windowSize = CommandLineUtilities.getOptionValueAsInt("window_size") * 1000L;
+			long windowSlide = windowSize;
+			if (CommandLineUtilities.hasArg("window_slide"))
+				windowSlide = CommandLineUtilities.getOptionValueAsInt("window_slide") * 1000L;
+			long windowLateness = 0;
+			if (CommandLineUtilities.hasArg("window_lateness"))
+				windowLateness = CommandLineUtilities.getOptionValueAsInt("window_lateness") * 1000L;
+			windowListener = new NdjsonWindowListener(Utils.createWriter(windowCountsFile, 8192));
+			windowCounter = new WindowedLocationCounter(tester._locationResolver, windowSize, windowSlide, windowLateness, windowListener);
+			tester._locationResolver.addResolutionListener(windowCounter);
+			logger.info("Writing window counts to: " + windowCountsFile);
+			if (resume)
+				logger.warn("Window counts are not saved in checkpoints. They will only include the rest of the input.");
+		}
+
+		tester.run(inputFile, outputFile, outputMode, outputFormat, locationCountsPrefix, checkpointFile, checkpointInterval, resume);
+		if (windowCounter != null) {
+			windowCounter.close();
+			windowListener.close();
+			logger.info("Counted in windows: " + windowCounter.getNumCounted() + ", late: " + windowCounter.getNumLate() +
+					", without created_at: " + windowCounter.getNumWithoutTime());
+		}
 		timer.stop();
 
 		logger.info("Done. " + timer.getFullTime());
@@ -67,132 +177,246 @@ public class LocationResolverStatsDemo {
 	}
 
 	public LocationResolverStatsDemo() throws IOException, ClassNotFoundException {
-		this._locationResolver = LocationResolver.getLocationResolver();
-		this._locationResolver.setUseUnknownPlaces(false);
+		this(null);
 	}
 
-	private void run(String inputFile, String outputFile) throws FileNotFoundException, IOException {
-		Writer output = null;
-		if (outputFile != null)
-			output = Utils.createWriter(outputFile);
+	/**
+	 * @param shard The part of the input file to read, or null for all of it. Shards give unknown locations
+	 * ids derived from their names, so that the results of all the shards agree.
+	 */
+	public LocationResolverStatsDemo(Shard shard) throws IOException, ClassNotFoundException {
+		LocationResolver.Builder builder = LocationResolver.builder().useUnknownPlaces(false);
+		if (shard != null)
+			builder.deterministicLocationIds(true);
+		this._locationResolver = builder.build();
+		this.shard = shard;
+	}
 
-		HashMap<ResolutionMethod, Integer> resolutionMethodCounts = new HashMap<ResolutionMethod, Integer>();
-		
-		int numCity = 0;
-		int numCounty = 0;
-		int numState = 0;
-		int numCountry = 0;
-		
-		int hasPlace = 0;
-		int hasCoordinate = 0;
-		int hasCoordinate2 = 0;
-		int hasGeo = 0;
-		int hasUserProfile = 0;
-				
-		Scanner scanner = Utils.createScanner(inputFile);
-		
+	private void run(String inputFile, String outputFile, TweetWriter.OutputMode outputMode, String outputFormat,
+			String locationCountsPrefix, String checkpointFile, int checkpointInterval, boolean resume) throws FileNotFoundException, IOException {
+		if (checkpointFile != null && (Utils.STANDARD_STREAM.equals(inputFile) || Utils.STANDARD_STREAM.equals(outputFile)))
+			throw new IllegalArgumentException("Checkpoints need an input file and output file, not standard input or output.");
+		if (this.shard != null && Utils.STANDARD_STREAM.equals(inputFile))
+			throw new IllegalArgumentException("Standard input can not be sharded.");
+		if (locationCountsPrefix != null)
+			this.aggregator = new LocationAggregator(this._locationResolver);
+
+		// Restore the state at the last checkpoint.
+		Checkpoint checkpoint = null;
+		if (resume) {
+			checkpoint = Checkpoint.read(checkpointFile);
+			if (!inputFile.equals(checkpoint.getInputFile()))
+				throw new IllegalArgumentException("The checkpoint is for the input file " + checkpoint.getInputFile() + ", not " + inputFile);
+			String shardName = this.shard == null ? null : this.shard.toString();
+			if (shardName == null ? checkpoint.getState(SHARD_STATE) != null : !shardName.equals(checkpoint.getState(SHARD_STATE)))
+				throw new IllegalArgumentException("The checkpoint is for the shard " + checkpoint.getState(SHARD_STATE) + ", not " + shardName);
+			restoreCheckpoint(checkpoint);
+			logger.info("Resuming after " + checkpoint.getRecords() + " lines (" + checkpoint.getInputOffset() + " bytes) of " + inputFile);
+		}
+
+		StageTimer stageTimer = new StageTimer(this.timingSampleInterval, this.progressInterval, logger);
 		ObjectMapper mapper = new ObjectMapper();
-		int numResolved = 0;
-		int total = 0;
-		int skipped = 0;
-		while (scanner.hasNextLine()) {
-			String line = scanner.nextLine();
+		TweetWriter output = null;
+		ResultWriter resultOutput = null;
+		RestartableOutputStream restartableOutput = null;
+		RestartableOutputStream restartableDynamicLocations = null;
+		if (outputFile != null && checkpointFile == null) {
+			BufferedOutputStream outputStream = new BufferedOutputStream(stageTimer.wrap(Utils.createOutputStream(outputFile)), 64 * 1024);
+			if (!outputFormat.equals(ResultWriter.FORMAT_JSON)) {
+				Writer dynamicLocationsWriter = null;
+				if (!Utils.STANDARD_STREAM.equals(outputFile))
+					dynamicLocationsWriter = Utils.createWriter(ResultWriter.getDynamicLocationsFile(outputFile));
+				resultOutput = ResultWriter.create(outputFormat, outputStream, dynamicLocationsWriter, this._locationResolver, false);
+			} else {
+				output = new TweetWriter(outputStream, outputMode, mapper);
+			}
+		} else if (outputFile != null) {
+			restartableOutput = new RestartableOutputStream(outputFile, checkpoint == null ? -1 : checkpoint.getOutputLength(outputFile));
+			BufferedOutputStream outputStream = new BufferedOutputStream(stageTimer.wrap(restartableOutput), 64 * 1024);
+			if (!outputFormat.equals(ResultWriter.FORMAT_JSON)) {
+				String dynamicLocationsFile = ResultWriter.getDynamicLocationsFile(outputFile);
+				restartableDynamicLocations = new RestartableOutputStream(dynamicLocationsFile,
+						checkpoint == null ? -1 : checkpoint.getOutputLength(dynamicLocationsFile));
+				Writer dynamicLocationsWriter = new BufferedWriter(new OutputStreamWriter(restartableDynamicLocations, "UTF-8"));
+				resultOutput = ResultWriter.create(outputFormat, outputStream, dynamicLocationsWriter, this._locationResolver, checkpoint != null);
+				if (checkpoint != null)
+					resultOutput.addWrittenDynamicLocations(getIntegers(checkpoint.getState(WRITTEN_DYNAMIC_LOCATIONS_STATE)));
+			} else {
+				output = new TweetWriter(outputStream, outputMode, mapper);
+			}
+		}
+		// Only the fields used for resolution are needed unless the tweets are reserialized.
+		TweetParser tweetParser = null;
+		if (output == null || outputMode == TweetWriter.OutputMode.SPLICE)
+			tweetParser = new TweetParser(mapper);
+
+		ByteLineReader reader;
+		long inputOffset = 0;
+		long records = 0;
+		if (this.shard != null)
+			logger.info("Reading shard " + this.shard + " of " + inputFile);
+		if (checkpoint != null) {
+			reader = this.shard != null ? checkpoint.openInput(this.shard.open(inputFile)) : checkpoint.openInput();
+			inputOffset = checkpoint.getInputOffset();
+			records = checkpoint.getRecords();
+		} else {
+			reader = new ByteLineReader(this.shard != null ? this.shard.open(inputFile) : Utils.createInputStream(inputFile));
+		}
+
+		stageTimer.startRecord();
+		while (reader.nextLine()) {
+			stageTimer.stageDone(StageTimer.Stage.READ);
+			byte[] line = reader.getBuffer();
+			int start = reader.getStart();
+			int length = reader.getLength();
+			records++;
 			
 			HashMap<String, Object> tweet = null;
 
 			try {
-				@SuppressWarnings("unchecked")
-				HashMap<String, Object> readValue = (HashMap<String, Object>) mapper.readValue(line, Map.class);
-				tweet = readValue;
-			} catch (com.fasterxml.jackson.core.JsonParseException exception) {
-				logger.warn("Skipping bad tweet: " + line);
-				skipped++;
-				continue;
-			} catch (com.fasterxml.jackson.databind.JsonMappingException exception) {
-				logger.warn("Skipping bad tweet: " + line);
-				skipped++;
-				continue;
+				if (tweetParser != null) {
+					tweet = tweetParser.parseFields(line, start, length);
+				} else {
+					@SuppressWarnings("unchecked")
+					HashMap<String, Object> readValue = (HashMap<String, Object>) mapper.readValue(line, start, length, Map.class);
+					tweet = readValue;
+				}
+			} catch (com.fasterxml.jackson.core.JsonProcessingException exception) {
+				logger.warn("Skipping bad tweet: " + reader.getLineAsString());
+				this.stats.addSkipped();
+				tweet = null;
 			}
-			Map<String, Object> place = Utils.getPlaceFromTweet(tweet);
-			if (place != null && place.size() > 0)
-				hasPlace++;
-			LatLng latLng = Utils.getLatLngFromTweet(tweet);
-			if (latLng != null)
-				hasCoordinate++;
-			if (tweet.get("coordinates") != null)
-				hasCoordinate2++;
-			if (tweet.get("geo") != null)
-				hasGeo++;
-			
-			String tweet_location = Utils.getLocationFromTweet(tweet);
-			if (tweet_location != null && tweet_location.length() != 0) {
-				hasUserProfile++;
-			}
-			
-			total++;
+			stageTimer.stageDone(StageTimer.Stage.PARSE);
 
-			if (total % 10000 == 0) {
-				logger.info(total + "\r");
-			}
-			Location resolvedLocation = this._locationResolver.resolveLocationFromTweet(tweet);
-
-			if (resolvedLocation != null && !resolvedLocation.isNone()) {
-				tweet.put(Constants.TWEET_USER_LOCATION, Location.createJsonFromLocation(resolvedLocation));
-				
-				numResolved++;
-				ResolutionMethod resolutionMethod = resolvedLocation.getResolutionMethod();
-				if (!resolutionMethodCounts.containsKey(resolutionMethod))
-					resolutionMethodCounts.put(resolutionMethod, 0);
-				resolutionMethodCounts.put(resolutionMethod, resolutionMethodCounts.get(resolutionMethod) + 1);
-			
-				
-				// What resolution is this location?
-				if (resolvedLocation.getCity() != null) {
-					numCity++;
-				} else if (resolvedLocation.getCounty() != null) {
-					numCounty++;
-				} else if (resolvedLocation.getState() != null) {
-					numState++;
-				} else if (resolvedLocation.getCountry() != null) {
-					numCountry++;
-				}	
-			}
-			if (output != null) {
-				String outputString = mapper.writeValueAsString(tweet);
-				output.write(outputString);
-				output.write("\n");
+			if (tweet != null) {
+				Resolution resolution = this._locationResolver.resolve(tweet);
+				stageTimer.resolveDone(resolution);
+				this.stats.add(tweet, resolution);
+				stageTimer.skip();
+
+				if (resolution != null && resolution.getLocation().isNone())
+					resolution = null;
+				if (output != null)
+					output.write(line, start, length, tweet, resolution);
+				if (resultOutput != null)
+					resultOutput.write(tweet, resolution);
+				stageTimer.stageDone(StageTimer.Stage.SERIALIZE);
+				if (this.aggregator != null)
+					this.aggregator.add(resolution == null ? null : resolution.getLocation());
 			}
 
+			if (checkpointFile != null && records % checkpointInterval == 0)
+				writeCheckpoint(checkpointFile, inputFile, records, inputOffset + reader.getPosition(),
+						output, resultOutput, restartableOutput, restartableDynamicLocations);
+			stageTimer.endRecord();
+			stageTimer.startRecord();
 		}
+		// The last checkpoint is at the end of the input, so resuming a finished job does nothing.
+		if (checkpointFile != null)
+			writeCheckpoint(checkpointFile, inputFile, records, inputOffset + reader.getPosition(),
+					output, resultOutput, restartableOutput, restartableDynamicLocations);
 		if (output != null)
 			output.close();
-		
-		scanner.close();
-		logger.info("Total: " + total);
-		logger.info("Resolved: " + numResolved);
-		logger.info("Skipped (not included in total): " + skipped);
-		
-		logger.info("Has Place:" + hasPlace);
-		logger.info("Has Coordinate: " + hasCoordinate);
-		logger.info("Has Coordinate2: " + hasCoordinate2);
-		logger.info("Has UserProfile: " + hasUserProfile);
-		logger.info("Has Geo: " + hasGeo);
-		
-		logger.info("Num city: " + numCity);
-		logger.info("Num county: " + numCounty);
-		logger.info("Num state: " + numState);
-		logger.info("Num country: " + numCountry);
-		
-		for (ResolutionMethod method : resolutionMethodCounts.keySet()) {
-			int count = resolutionMethodCounts.get(method);
-			logger.info(method + "\t" + count);
+		if (resultOutput != null)
+			resultOutput.close();
+		if (this.aggregator != null) {
+			logger.info("Writing location counts to: " + locationCountsPrefix + LocationAggregator.LOCATIONS_TABLE_SUFFIX);
+			this.aggregator.writeTables(locationCountsPrefix);
 		}
 		
+		reader.close();
+		this.stats.log(logger);
+		stageTimer.log();
+		if (this.statsFile != null) {
+			logger.info("Writing stats to: " + this.statsFile);
+			this.stats.write(this.statsFile);
+		}
+	}
+
+	/**
+	 * Makes the output written so far durable and saves the state of the run, so it can be resumed from here.
+	 */
+	private void writeCheckpoint(String checkpointFile, String inputFile, long records, long inputOffset,
+			TweetWriter output, ResultWriter resultOutput,
+			RestartableOutputStream restartableOutput, RestartableOutputStream restartableDynamicLocations) throws IOException {
+		Checkpoint checkpoint = new Checkpoint(inputFile);
+		checkpoint.setRecords(records);
+		checkpoint.setInputOffset(inputOffset);
+
+		if (output != null)
+			output.flush();
+		if (resultOutput != null) {
+			resultOutput.flush();
+			checkpoint.setState(WRITTEN_DYNAMIC_LOCATIONS_STATE, new ArrayList<Integer>(resultOutput.getWrittenDynamicLocations()));
+		}
+		if (restartableOutput != null)
+			checkpoint.setOutputLength(this.outputFile, restartableOutput.checkpoint());
+		if (restartableDynamicLocations != null)
+			checkpoint.setOutputLength(ResultWriter.getDynamicLocationsFile(this.outputFile), restartableDynamicLocations.checkpoint());
+
+		checkpoint.setRegisteredLocations(this._locationResolver.getRegisteredLocations());
+		checkpoint.setState(STATS_STATE, this.stats.toJson());
+		if (this.shard != null)
+			checkpoint.setState(SHARD_STATE, this.shard.toString());
+		if (this.aggregator != null) {
+			LocationAggregator.LocationCounts counts = this.aggregator.getCounts();
+			Map<String, Object> locationCounts = new LinkedHashMap<String, Object>();
+			for (Location location : counts.getLocations()) {
+				if (counts.getCount(location) != 0)
+					locationCounts.put(Integer.toString(location.getId()), counts.getCount(location));
+			}
+			checkpoint.setState(LOCATION_COUNTS_STATE, locationCounts);
+			checkpoint.setState(UNRESOLVED_COUNT_STATE, counts.getNumUnresolved());
+		}
+		checkpoint.write(checkpointFile);
+		logger.info("Checkpoint after " + records + " lines.");
+	}
+
+	@SuppressWarnings("unchecked")
+	private void restoreCheckpoint(Checkpoint checkpoint) {
+		this._locationResolver.restoreRegisteredLocations(checkpoint.getRegisteredLocations());
+		this.stats = ResolutionStats.fromJson((Map<String, Object>)checkpoint.getState(STATS_STATE));
+		if (this.aggregator != null) {
+			Map<String, Object> locationCounts = (Map<String, Object>)checkpoint.getState(LOCATION_COUNTS_STATE);
+			if (locationCounts == null) {
+				logger.warn("The checkpoint has no location counts. The counts will only include the rest of the input.");
+			} else {
+				for (Map.Entry<String, Object> entry : locationCounts.entrySet()) {
+					Location location = this._locationResolver.getLocationForId(Integer.parseInt(entry.getKey()));
+					this.aggregator.add(location, ((Number)entry.getValue()).longValue());
+				}
+				this.aggregator.add(null, ((Number)checkpoint.getState(UNRESOLVED_COUNT_STATE)).longValue());
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Integer> getIntegers(Object value) {
+		List<Integer> integers = new ArrayList<Integer>();
+		if (value != null) {
+			for (Object number : (List<Object>)value)
+				integers.add(((Number)number).intValue());
+		}
+		return integers;
 	}
 
 	private static void createCommandLineOptions() {
 		Utils.registerOption(options, "input_file", "StringList", true, "A file containing the tweets to locate with geolocation field.");
 		Utils.registerOption(options, "output_file", "StringList", true, "An optional file to write the geolocated tweets.");
+		Utils.registerOption(options, "output_mode", "String", true, "reserialize (default) to write each tweet from its parsed form, or splice to copy the original tweet and insert the location.");
+		Utils.registerOption(options, "output_format", "String", true, "json (default) to write the geolocated tweets, or binary or tsv to write only the tweet id, location id and resolution method.");
+		Utils.registerOption(options, "window_counts", "String", true, "An optional file (or - for standard output) to write the number of tweets per location in each time window, one JSON object per window.");
+		Utils.registerOption(options, "window_size", "int", true, "The size of each window in seconds (required with window_counts).");
+		Utils.registerOption(options, "window_slide", "int", true, "The time between the starts of windows in seconds. Must divide window_size. Defaults to window_size (tumbling windows).");
+		Utils.registerOption(options, "window_lateness", "int", true, "How long in seconds (of tweet time) to wait for late tweets before closing a window. Defaults to 0.");
+		Utils.registerOption(options, "checkpoint_file", "String", true, "An optional file to save checkpoints to, so that the run can be resumed with --resume.");
+		Utils.registerOption(options, "checkpoint_interval", "int", true, "The number of input lines between checkpoints (default " + DEFAULT_CHECKPOINT_INTERVAL + ").");
+		Utils.registerOption(options, "resume", null, false, "Resume from the last checkpoint in checkpoint_file. The output is truncated to the checkpoint and continued.");
+		Utils.registerOption(options, "shard", "String", true, "Read only part k/N (k from 0 to N - 1) of an uncompressed input file, so N processes can share the file. Unknown locations get ids derived from their names.");
+		Utils.registerOption(options, "stats_file", "String", true, "An optional file (or - for standard output) to write the statistics to as JSON. The files of several shards can be combined with carmen.tools.MergeStats.");
+		Utils.registerOption(options, "location_counts", "String", true, "An optional file prefix to write the number of tweets per location, state and country (prefix.locations.tsv, prefix.states.tsv, prefix.countries.tsv).");
+		Utils.registerOption(options, "timing_sample_interval", "int", true, "Time the stages of one tweet in this many (default " + StageTimer.DEFAULT_SAMPLE_INTERVAL + "), or 0 for none.");
+		Utils.registerOption(options, "progress_interval", "double", true, "The seconds between progress lines (default " + (int)DEFAULT_PROGRESS_INTERVAL + "), or 0 for none.");
 
 	}
 
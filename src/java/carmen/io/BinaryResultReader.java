@@ -0,0 +1,136 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.io;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import carmen.types.ResolutionMethod;
+
+/**
+ * Reads a file written by BinaryResultWriter by memory mapping it, so records can be read by index
+ * without loading the file. Files larger than 2GB are mapped in several pieces.
+ *
+ * Run main() with a file name to print its records as tab separated lines (see TsvResultWriter).
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class BinaryResultReader {
+	// The number of records in each mapped piece of the file.
+	private static final int RECORDS_PER_BUFFER = Integer.MAX_VALUE / BinaryResultWriter.RECORD_SIZE;
+
+	private final MappedByteBuffer[] buffers;
+	private final long numRecords;
+
+	public BinaryResultReader(String filename) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			if (size < BinaryResultWriter.HEADER_SIZE)
+				throw new IOException("Not a binary result file: " + filename);
+
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, BinaryResultWriter.HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			if ((header.get(0) & 0xff) == 0x1f && (header.get(1) & 0xff) == 0x8b)
+				throw new IOException("The binary result file is compressed with gzip. Decompress it first: " + filename);
+			for (int ii = 0; ii < BinaryResultWriter.MAGIC.length; ii++) {
+				if (header.get(ii) != BinaryResultWriter.MAGIC[ii])
+					throw new IOException("Not a binary result file: " + filename);
+			}
+			int version = header.getInt(4);
+			int recordSize = header.getInt(8);
+			if (version != BinaryResultWriter.VERSION || recordSize != BinaryResultWriter.RECORD_SIZE)
+				throw new IOException("Unsupported binary result file version " + version + " with record size " + recordSize + ": " + filename);
+
+			this.numRecords = (size - BinaryResultWriter.HEADER_SIZE) / BinaryResultWriter.RECORD_SIZE;
+			int numBuffers = (int)((this.numRecords + RECORDS_PER_BUFFER - 1) / RECORDS_PER_BUFFER);
+			this.buffers = new MappedByteBuffer[numBuffers];
+			for (int ii = 0; ii < numBuffers; ii++) {
+				long firstRecord = (long)ii * RECORDS_PER_BUFFER;
+				long records = Math.min(RECORDS_PER_BUFFER, this.numRecords - firstRecord);
+				long position = BinaryResultWriter.HEADER_SIZE + firstRecord * BinaryResultWriter.RECORD_SIZE;
+				this.buffers[ii] = channel.map(FileChannel.MapMode.READ_ONLY, position, records * BinaryResultWriter.RECORD_SIZE);
+				this.buffers[ii].order(ByteOrder.LITTLE_ENDIAN);
+			}
+		} finally {
+			// The mappings stay valid after the file is closed.
+			file.close();
+		}
+	}
+
+	public long getNumRecords() {
+		return this.numRecords;
+	}
+
+	private MappedByteBuffer getBuffer(long record) {
+		if (record < 0 || record >= this.numRecords)
+			throw new IndexOutOfBoundsException("Record " + record + " of " + this.numRecords);
+		return this.buffers[(int)(record / RECORDS_PER_BUFFER)];
+	}
+
+	private static int getOffset(long record) {
+		return (int)(record % RECORDS_PER_BUFFER) * BinaryResultWriter.RECORD_SIZE;
+	}
+
+	/**
+	 * Returns the tweet id of a record, or -1 if the tweet had no id.
+	 */
+	public long getTweetId(long record) {
+		return getBuffer(record).getLong(getOffset(record));
+	}
+
+	/**
+	 * Returns the location id of a record, or -1 if the tweet has no location.
+	 */
+	public int getLocationId(long record) {
+		return getBuffer(record).getInt(getOffset(record) + 8);
+	}
+
+	/**
+	 * Returns the resolution method of a record, or null if the tweet has no location.
+	 */
+	public ResolutionMethod getResolutionMethod(long record) {
+		return ResultWriter.decodeResolutionMethod(getBuffer(record).get(getOffset(record) + 12) & 0xff);
+	}
+
+	/**
+	 * Returns the flags of a record (ResultWriter.FLAG_*).
+	 */
+	public int getFlags(long record) {
+		return getBuffer(record).get(getOffset(record) + 13) & 0xff;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: BinaryResultReader <file>");
+			System.exit(1);
+		}
+		BinaryResultReader reader = new BinaryResultReader(args[0]);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"), 64 * 1024);
+		for (long ii = 0; ii < reader.getNumRecords(); ii++) {
+			int flags = reader.getFlags(ii);
+			if ((flags & ResultWriter.FLAG_NO_TWEET_ID) == 0)
+				writer.write(Long.toString(reader.getTweetId(ii)));
+			writer.write('\t');
+			writer.write(Integer.toString(reader.getLocationId(ii)));
+			writer.write('\t');
+			ResolutionMethod resolutionMethod = reader.getResolutionMethod(ii);
+			if (resolutionMethod != null)
+				writer.write(resolutionMethod.name());
+			writer.write('\t');
+			writer.write(Integer.toString(flags));
+			writer.write('\n');
+		}
+		writer.flush();
+	}
+}
@@ -0,0 +1,78 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import carmen.LocationResolver;
+import carmen.types.ResolutionMethod;
+
+/**
+ * Writes results as fixed width little endian binary records, so that a file can be memory mapped
+ * and indexed directly (see BinaryResultReader).
+ *
+ * The file starts with a 16 byte header: the magic bytes "CRMN", the format version, the record size
+ * and a reserved int. Each record is 16 bytes:
+ * <pre>
+ * offset 0   long   tweet id (-1 if missing)
+ * offset 8   int    location id (-1 for no location)
+ * offset 12  byte   resolution method (0 for none, otherwise the ordinal plus one)
+ * offset 13  byte   flags (ResultWriter.FLAG_*)
+ * offset 14  short  reserved (0)
+ * </pre>
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class BinaryResultWriter extends ResultWriter {
+	public static final byte[] MAGIC = { 'C', 'R', 'M', 'N' };
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 16;
+	public static final int RECORD_SIZE = 16;
+
+	private final byte[] record = new byte[RECORD_SIZE];
+
+	public BinaryResultWriter(OutputStream outputStream, Writer dynamicLocationsWriter, LocationResolver resolver) throws IOException {
+		this(outputStream, dynamicLocationsWriter, resolver, false);
+	}
+
+	/**
+	 * @param append If true, the stream continues an existing file, so the header is not written.
+	 */
+	public BinaryResultWriter(OutputStream outputStream, Writer dynamicLocationsWriter, LocationResolver resolver, boolean append) throws IOException {
+		super(outputStream, dynamicLocationsWriter, resolver);
+		if (append)
+			return;
+		byte[] header = new byte[HEADER_SIZE];
+		System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+		putInt(header, 4, VERSION);
+		putInt(header, 8, RECORD_SIZE);
+		this.outputStream.write(header);
+	}
+
+	protected void writeRecord(long tweetId, int locationId, ResolutionMethod resolutionMethod, int flags) throws IOException {
+		putLong(this.record, 0, tweetId);
+		putInt(this.record, 8, locationId);
+		this.record[12] = (byte)encodeResolutionMethod(resolutionMethod);
+		this.record[13] = (byte)flags;
+		this.record[14] = 0;
+		this.record[15] = 0;
+		this.outputStream.write(this.record);
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte)value;
+		buffer[offset + 1] = (byte)(value >>> 8);
+		buffer[offset + 2] = (byte)(value >>> 16);
+		buffer[offset + 3] = (byte)(value >>> 24);
+	}
+
+	private static void putLong(byte[] buffer, int offset, long value) {
+		putInt(buffer, offset, (int)value);
+		putInt(buffer, offset + 4, (int)(value >>> 32));
+	}
+}
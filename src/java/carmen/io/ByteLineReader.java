@@ -0,0 +1,141 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads lines from a stream as raw bytes, without decoding them into Strings.
+ *
+ * After nextLine() returns true, the line is in getBuffer() from getStart() for getLength() bytes,
+ * without the line terminator (\n or \r\n). The buffer is reused, so the line is only valid until the
+ * next call to nextLine().
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class ByteLineReader {
+	private final InputStream inputStream;
+	private byte[] buffer;
+	// The buffer holds valid data in [position, limit).
+	private int position = 0;
+	private int limit = 0;
+	private boolean endOfStream = false;
+
+	private int lineStart = 0;
+	private int lineLength = 0;
+	// The number of bytes of the stream consumed by the lines returned so far.
+	private long streamPosition = 0;
+
+	public ByteLineReader(InputStream inputStream, int bufferSize) {
+		this.inputStream = inputStream;
+		this.buffer = new byte[Math.max(bufferSize, 16)];
+	}
+
+	public ByteLineReader(InputStream inputStream) {
+		this(inputStream, 64 * 1024);
+	}
+
+	/**
+	 * Reads the next line.
+	 * @return false if there are no more lines.
+	 * @throws IOException
+	 */
+	public boolean nextLine() throws IOException {
+		int searchFrom = this.position;
+		while (true) {
+			for (int ii = searchFrom; ii < this.limit; ii++) {
+				if (this.buffer[ii] == '\n') {
+					setLine(this.position, ii, ii + 1);
+					return true;
+				}
+			}
+			if (this.endOfStream) {
+				if (this.position == this.limit)
+					return false;
+				// The last line has no terminator.
+				setLine(this.position, this.limit, this.limit);
+				return true;
+			}
+			searchFrom = this.limit - this.position;
+			fill();
+		}
+	}
+
+	private void setLine(int start, int end, int next) {
+		if (end > start && this.buffer[end - 1] == '\r')
+			end--;
+		this.lineStart = start;
+		this.lineLength = end - start;
+		this.streamPosition += next - this.position;
+		this.position = next;
+	}
+
+	/**
+	 * Moves the unread data to the front of the buffer (growing it if it is full) and reads more data.
+	 */
+	private void fill() throws IOException {
+		int remaining = this.limit - this.position;
+		if (this.position > 0) {
+			System.arraycopy(this.buffer, this.position, this.buffer, 0, remaining);
+		} else if (remaining == this.buffer.length) {
+			byte[] newBuffer = new byte[this.buffer.length * 2];
+			System.arraycopy(this.buffer, 0, newBuffer, 0, remaining);
+			this.buffer = newBuffer;
+		}
+		this.position = 0;
+		this.limit = remaining;
+
+		int read = this.inputStream.read(this.buffer, this.limit, this.buffer.length - this.limit);
+		if (read == -1)
+			this.endOfStream = true;
+		else
+			this.limit += read;
+	}
+
+	public byte[] getBuffer() {
+		return this.buffer;
+	}
+
+	public int getStart() {
+		return this.lineStart;
+	}
+
+	public int getLength() {
+		return this.lineLength;
+	}
+
+	/**
+	 * Returns the current line decoded as UTF-8.
+	 */
+	public String getLineAsString() {
+		try {
+			return new String(this.buffer, this.lineStart, this.lineLength, "UTF-8");
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of the stream that have been consumed by the lines read so far,
+	 * including their terminators.
+	 */
+	public long getPosition() {
+		return this.streamPosition;
+	}
+
+	/**
+	 * Returns true if more input can be read without blocking.
+	 * @throws IOException
+	 */
+	public boolean ready() throws IOException {
+		return this.position < this.limit || (!this.endOfStream && this.inputStream.available() > 0);
+	}
+
+	public void close() throws IOException {
+		this.inputStream.close();
+	}
+}
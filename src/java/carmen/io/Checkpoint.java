@@ -0,0 +1,205 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import carmen.types.Location;
+import carmen.utils.Utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The state of a file resolution job at a checkpoint, saved as a JSON file so that the job can be resumed
+ * after a crash: the input file and how much of it was read, the length of the output files, the locations
+ * registered during the job (so they keep their ids) and any other state of the job (e.g. statistics).
+ *
+ * The input offset is the number of (uncompressed) bytes of the input that were read. The output lengths
+ * are the lengths of the output files as returned by RestartableOutputStream.checkpoint().
+ *
+ * write() replaces the checkpoint file atomically (the new checkpoint is written to a temporary file that is
+ * then renamed), so a crash while writing a checkpoint leaves the previous one.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class Checkpoint {
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private String inputFile;
+	private long records = 0;
+	private long inputOffset = 0;
+	private Map<String, Long> outputLengths = new LinkedHashMap<String, Long>();
+	private List<Location> registeredLocations = new ArrayList<Location>();
+	private Map<String, Object> state = new LinkedHashMap<String, Object>();
+
+	public Checkpoint(String inputFile) {
+		this.inputFile = inputFile;
+	}
+
+	public String getInputFile() {
+		return this.inputFile;
+	}
+
+	/**
+	 * The number of input lines read.
+	 */
+	public long getRecords() {
+		return this.records;
+	}
+
+	public void setRecords(long records) {
+		this.records = records;
+	}
+
+	/**
+	 * The number of bytes of the input read. For compressed input, this is the number of uncompressed bytes.
+	 */
+	public long getInputOffset() {
+		return this.inputOffset;
+	}
+
+	public void setInputOffset(long inputOffset) {
+		this.inputOffset = inputOffset;
+	}
+
+	/**
+	 * Returns the length of an output file at the checkpoint, or -1 if it is not in the checkpoint.
+	 */
+	public long getOutputLength(String outputFile) {
+		Long length = this.outputLengths.get(outputFile);
+		return length == null ? -1 : length;
+	}
+
+	public void setOutputLength(String outputFile, long length) {
+		this.outputLengths.put(outputFile, length);
+	}
+
+	public List<Location> getRegisteredLocations() {
+		return this.registeredLocations;
+	}
+
+	public void setRegisteredLocations(List<Location> registeredLocations) {
+		this.registeredLocations = registeredLocations;
+	}
+
+	/**
+	 * Returns other state of the job saved with setState(), or null.
+	 */
+	public Object getState(String key) {
+		return this.state.get(key);
+	}
+
+	/**
+	 * Saves other state of the job. The value must be serializable as JSON (maps, lists, strings and numbers).
+	 */
+	public void setState(String key, Object value) {
+		this.state.put(key, value);
+	}
+
+	public void write(String filename) throws IOException {
+		Map<String, Object> json = new LinkedHashMap<String, Object>();
+		json.put("input_file", this.inputFile);
+		json.put("records", this.records);
+		json.put("input_offset", this.inputOffset);
+		json.put("output_lengths", this.outputLengths);
+		List<Map<String, Object>> locations = new ArrayList<Map<String, Object>>();
+		for (Location location : this.registeredLocations) {
+			Map<String, Object> locationJson = new LinkedHashMap<String, Object>();
+			locationJson.put("id", location.getId());
+			locationJson.put("country", location.getCountry());
+			locationJson.put("state", location.getState());
+			locationJson.put("county", location.getCounty());
+			locationJson.put("city", location.getCity());
+			locationJson.put("url", location.getUrl());
+			locationJson.put("twitter_id", location.getTwitterId());
+			locations.add(locationJson);
+		}
+		json.put("registered_locations", locations);
+		json.put("state", this.state);
+
+		File file = new File(filename);
+		File tempFile = new File(filename + ".tmp");
+		FileOutputStream outputStream = new FileOutputStream(tempFile);
+		try {
+			outputStream.write(mapper.writeValueAsBytes(json));
+			outputStream.getFD().sync();
+		} finally {
+			outputStream.close();
+		}
+		if (!tempFile.renameTo(file)) {
+			// Some platforms do not replace an existing file on rename.
+			if (!file.delete() || !tempFile.renameTo(file))
+				throw new IOException("Unable to replace the checkpoint " + filename);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public static Checkpoint read(String filename) throws IOException {
+		Map<String, Object> json = (Map<String, Object>)mapper.readValue(new File(filename), Map.class);
+
+		Checkpoint checkpoint = new Checkpoint((String)json.get("input_file"));
+		checkpoint.records = ((Number)json.get("records")).longValue();
+		checkpoint.inputOffset = ((Number)json.get("input_offset")).longValue();
+		Map<String, Object> outputLengths = (Map<String, Object>)json.get("output_lengths");
+		for (Map.Entry<String, Object> entry : outputLengths.entrySet())
+			checkpoint.outputLengths.put(entry.getKey(), ((Number)entry.getValue()).longValue());
+		for (Map<String, Object> locationJson : (List<Map<String, Object>>)json.get("registered_locations")) {
+			Location location = new Location(
+					(String)locationJson.get("country"),
+					(String)locationJson.get("state"),
+					(String)locationJson.get("county"),
+					(String)locationJson.get("city"),
+					((Number)locationJson.get("id")).intValue(), -1, false);
+			location.setUrl((String)locationJson.get("url"));
+			location.setTwitterId((String)locationJson.get("twitter_id"));
+			checkpoint.registeredLocations.add(location);
+		}
+		checkpoint.state = (Map<String, Object>)json.get("state");
+		return checkpoint;
+	}
+
+	/**
+	 * Opens the input file and skips the input read before the checkpoint. Compressed input is
+	 * decompressed and skipped, since gzip has no index to seek with.
+	 * @return
+	 * @throws IOException
+	 */
+	public ByteLineReader openInput() throws IOException {
+		// skip() on a file may go past its end, so check the length of uncompressed files first.
+		File file = new File(this.inputFile);
+		if (!this.inputFile.endsWith(".gz") && file.length() < this.inputOffset)
+			throw new IOException("The input file " + this.inputFile + " is shorter than the checkpoint offset " + this.inputOffset);
+		return openInput(Utils.createInputStream(this.inputFile));
+	}
+
+	/**
+	 * Skips the input read before the checkpoint in an input stream opened by the caller (e.g. a Shard of the input file).
+	 * @param inputStream
+	 * @return
+	 * @throws IOException
+	 */
+	public ByteLineReader openInput(InputStream inputStream) throws IOException {
+		long remaining = this.inputOffset;
+		while (remaining > 0) {
+			long skipped = inputStream.skip(remaining);
+			if (skipped <= 0) {
+				// skip() may stop early (e.g. for compressed input). read() tells us about the end of the file.
+				if (inputStream.read() == -1)
+					throw new IOException("The input file " + this.inputFile + " is shorter than the checkpoint offset " + this.inputOffset);
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+		return new ByteLineReader(inputStream);
+	}
+}
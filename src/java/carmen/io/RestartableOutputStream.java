@@ -0,0 +1,148 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.io;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An output file that can be checkpointed and later reopened at the checkpoint, for jobs that
+ * resume after a crash.
+ *
+ * checkpoint() makes everything written so far durable and returns the length of the file. Reopening the
+ * file with that length truncates anything written after the checkpoint and appends from there.
+ * Files ending in .gz are compressed. Each checkpoint finishes a gzip member and the next write starts
+ * a new one; concatenated members are a valid gzip file, so the output can be read with any gzip reader.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class RestartableOutputStream extends OutputStream {
+	private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+	private final FileOutputStream fileStream;
+	private final CountingOutputStream countingStream;
+	private final boolean compress;
+	// The current gzip member, or null if none has been started since the last checkpoint.
+	private GZIPOutputStream gzipStream = null;
+
+	/**
+	 * Creates a new file, replacing any existing file.
+	 * @param filename
+	 * @throws IOException
+	 */
+	public RestartableOutputStream(String filename) throws IOException {
+		this(filename, -1);
+	}
+
+	/**
+	 * Opens the file at a checkpoint: the file is truncated to the given length (returned by checkpoint())
+	 * and written from there. If the length is negative, a new file is created.
+	 * @param filename
+	 * @param length
+	 * @throws IOException
+	 */
+	public RestartableOutputStream(String filename, long length) throws IOException {
+		if (length >= 0) {
+			RandomAccessFile file = new RandomAccessFile(filename, "rw");
+			try {
+				if (file.length() < length)
+					throw new IOException("The file " + filename + " is shorter (" + file.length() + " bytes) than the checkpoint (" + length + " bytes).");
+				file.setLength(length);
+			} finally {
+				file.close();
+			}
+			this.fileStream = new FileOutputStream(filename, true);
+		} else {
+			this.fileStream = new FileOutputStream(filename);
+			length = 0;
+		}
+		this.countingStream = new CountingOutputStream(this.fileStream, length);
+		this.compress = filename.endsWith(".gz");
+	}
+
+	private OutputStream getStream() throws IOException {
+		if (!this.compress)
+			return this.countingStream;
+		if (this.gzipStream == null)
+			this.gzipStream = new GZIPOutputStream(this.countingStream, GZIP_BUFFER_SIZE);
+		return this.gzipStream;
+	}
+
+	public void write(int value) throws IOException {
+		getStream().write(value);
+	}
+
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		getStream().write(buffer, offset, length);
+	}
+
+	public void flush() throws IOException {
+		if (this.gzipStream != null)
+			this.gzipStream.flush();
+		this.countingStream.flush();
+	}
+
+	/**
+	 * Writes everything written so far to disk (finishing the current gzip member) and returns the length of the file.
+	 * @return
+	 * @throws IOException
+	 */
+	public long checkpoint() throws IOException {
+		if (this.gzipStream != null) {
+			this.gzipStream.finish();
+			this.gzipStream = null;
+		}
+		this.countingStream.flush();
+		this.fileStream.getFD().sync();
+		return this.countingStream.getCount();
+	}
+
+	public void close() throws IOException {
+		if (this.gzipStream != null) {
+			this.gzipStream.finish();
+			this.gzipStream = null;
+		}
+		this.countingStream.close();
+	}
+
+	/**
+	 * Counts the bytes written to the file.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		private final OutputStream outputStream;
+		private long count;
+
+		private CountingOutputStream(OutputStream outputStream, long count) {
+			this.outputStream = outputStream;
+			this.count = count;
+		}
+
+		public void write(int value) throws IOException {
+			this.outputStream.write(value);
+			this.count++;
+		}
+
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			this.outputStream.write(buffer, offset, length);
+			this.count += length;
+		}
+
+		public void flush() throws IOException {
+			this.outputStream.flush();
+		}
+
+		public void close() throws IOException {
+			this.outputStream.close();
+		}
+
+		private long getCount() {
+			return this.count;
+		}
+	}
+}
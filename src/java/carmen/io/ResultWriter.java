@@ -0,0 +1,228 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.io;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import carmen.LocationResolver;
+import carmen.types.Location;
+import carmen.types.Resolution;
+import carmen.types.ResolutionMethod;
+import carmen.utils.Utils;
+
+/**
+ * Writes the result of resolving each tweet as a compact record, (tweet id, location id, resolution method),
+ * instead of writing the whole tweet. See BinaryResultWriter and TsvResultWriter for the formats.
+ *
+ * Location ids of known locations are the ids in the location database. Locations that are not in the
+ * database get ids that are only valid for one run, so they are written to a side table the first time they
+ * are used, one per line: id, parent id, country, state, county, city, url, twitter id (tab separated,
+ * empty for null).
+ *
+ * Tweets without a location are written with location id -1 and no resolution method.
+ *
+ * Binary files can not be compressed, since BinaryResultReader memory maps them (see checkOutputFile()).
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public abstract class ResultWriter {
+	public static final String FORMAT_JSON = "json";
+	public static final String FORMAT_BINARY = "binary";
+	public static final String FORMAT_TSV = "tsv";
+
+	public static final String DYNAMIC_LOCATIONS_SUFFIX = ".dynamic.tsv";
+
+	// Record flags.
+	public static final int FLAG_DYNAMIC_LOCATION = 1;
+	public static final int FLAG_NO_TWEET_ID = 2;
+	// The location is the known parent of the tweet's unknown place (see Resolution.isProvisionalParent()).
+	public static final int FLAG_PROVISIONAL_PARENT = 4;
+
+	protected final OutputStream outputStream;
+	protected final Writer dynamicLocationsWriter;
+	protected final LocationResolver resolver;
+	private final Set<Integer> writtenDynamicLocations = new HashSet<Integer>();
+
+	/**
+	 * @param outputStream Where the records are written.
+	 * @param dynamicLocationsWriter Where locations that are not in the database are written, or null to not write them.
+	 * @param resolver Used to find the parents of new locations, or null.
+	 */
+	protected ResultWriter(OutputStream outputStream, Writer dynamicLocationsWriter, LocationResolver resolver) {
+		this.outputStream = outputStream;
+		this.dynamicLocationsWriter = dynamicLocationsWriter;
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Creates a writer in the given format (binary or tsv) for the given file ("-" for standard output).
+	 * The side table of new locations is written to the file name followed by .dynamic.tsv, and is not
+	 * written when the output is standard output.
+	 * @throws IOException
+	 */
+	public static ResultWriter create(String format, String filename, int bufferSize, LocationResolver resolver) throws IOException {
+		if (!FORMAT_BINARY.equals(format) && !FORMAT_TSV.equals(format))
+			throw new IllegalArgumentException("Unknown result format: " + format);
+		checkOutputFile(format, filename);
+		OutputStream outputStream = new BufferedOutputStream(Utils.createOutputStream(filename), Math.max(1, bufferSize));
+		Writer dynamicLocationsWriter = null;
+		if (!Utils.STANDARD_STREAM.equals(filename))
+			dynamicLocationsWriter = Utils.createWriter(getDynamicLocationsFile(filename));
+		return create(format, outputStream, dynamicLocationsWriter, resolver, false);
+	}
+
+	/**
+	 * Creates a writer in the given format (binary or tsv) that writes to the given streams.
+	 * @param append If true, the output stream continues an existing file (e.g. when a job is resumed).
+	 * @throws IOException
+	 */
+	public static ResultWriter create(String format, OutputStream outputStream, Writer dynamicLocationsWriter,
+			LocationResolver resolver, boolean append) throws IOException {
+		if (FORMAT_BINARY.equals(format))
+			return new BinaryResultWriter(outputStream, dynamicLocationsWriter, resolver, append);
+		else if (FORMAT_TSV.equals(format))
+			return new TsvResultWriter(outputStream, dynamicLocationsWriter, resolver);
+		throw new IllegalArgumentException("Unknown result format: " + format);
+	}
+
+	/**
+	 * Checks that results in the given format can be written to the given file. Files ending in .gz are
+	 * compressed, which is not allowed for the binary format.
+	 * @param format
+	 * @param filename The output file, or null for none.
+	 * @throws IllegalArgumentException If the file can not be used.
+	 */
+	public static void checkOutputFile(String format, String filename) {
+		if (FORMAT_BINARY.equals(format) && filename != null && filename.endsWith(".gz"))
+			throw new IllegalArgumentException("Binary results can not be compressed, since they are read by memory mapping the file: " + filename);
+	}
+
+	/**
+	 * Returns the name of the side table of new locations for this output file.
+	 */
+	public static String getDynamicLocationsFile(String filename) {
+		if (filename.endsWith(".gz"))
+			filename = filename.substring(0, filename.length() - 3);
+		return filename + DYNAMIC_LOCATIONS_SUFFIX;
+	}
+
+	/**
+	 * Writes the result for a tweet.
+	 * @param tweet The tweet. Only its id is used.
+	 * @param resolution The resolution of the tweet, or null.
+	 * @throws IOException
+	 */
+	public void write(Map<String, Object> tweet, Resolution resolution) throws IOException {
+		Long tweetId = Utils.getTweetIdFromTweet(tweet);
+		int flags = 0;
+		if (tweetId == null)
+			flags |= FLAG_NO_TWEET_ID;
+
+		int locationId = -1;
+		ResolutionMethod resolutionMethod = null;
+		if (resolution != null && !resolution.getLocation().isNone()) {
+			Location location = resolution.getLocation();
+			locationId = location.getId();
+			resolutionMethod = resolution.getResolutionMethod();
+			if (resolution.isProvisionalParent())
+				flags |= FLAG_PROVISIONAL_PARENT;
+			if (!location.isKnownLocation()) {
+				flags |= FLAG_DYNAMIC_LOCATION;
+				writeDynamicLocation(location);
+			}
+		}
+		writeRecord(tweetId == null ? -1 : tweetId, locationId, resolutionMethod, flags);
+	}
+
+	/**
+	 * Writes a new location, and its new ancestors, to the side table if it has not been written yet.
+	 */
+	protected void writeDynamicLocation(Location location) throws IOException {
+		if (this.dynamicLocationsWriter == null)
+			return;
+		while (location != null && !location.isNone() && !location.isKnownLocation()
+				&& this.writtenDynamicLocations.add(location.getId())) {
+			Location parent = this.resolver == null ? null : this.resolver.getParent(location);
+			StringBuilder sb = new StringBuilder();
+			sb.append(location.getId());
+			sb.append('\t');
+			sb.append(parent == null ? -1 : parent.getId());
+			appendField(sb, location.getCountry());
+			appendField(sb, location.getState());
+			appendField(sb, location.getCounty());
+			appendField(sb, location.getCity());
+			appendField(sb, location.getUrl());
+			appendField(sb, location.getTwitterId());
+			sb.append('\n');
+			this.dynamicLocationsWriter.write(sb.toString());
+			location = parent;
+		}
+	}
+
+	private static void appendField(StringBuilder sb, String value) {
+		sb.append('\t');
+		if (value != null)
+			sb.append(value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+	}
+
+	/**
+	 * Returns the ids of the locations written to the side table.
+	 */
+	public Set<Integer> getWrittenDynamicLocations() {
+		return Collections.unmodifiableSet(this.writtenDynamicLocations);
+	}
+
+	/**
+	 * Records that these locations are already in the side table, e.g. when a job is resumed.
+	 */
+	public void addWrittenDynamicLocations(Collection<Integer> ids) {
+		this.writtenDynamicLocations.addAll(ids);
+	}
+
+	/**
+	 * Writes one record.
+	 * @param tweetId The tweet id, or -1 if it is missing (in which case FLAG_NO_TWEET_ID is set).
+	 * @param locationId The location id, or -1 for no location.
+	 * @param resolutionMethod The resolution method, or null for no location.
+	 * @param flags
+	 * @throws IOException
+	 */
+	protected abstract void writeRecord(long tweetId, int locationId, ResolutionMethod resolutionMethod, int flags) throws IOException;
+
+	public void flush() throws IOException {
+		this.outputStream.flush();
+		if (this.dynamicLocationsWriter != null)
+			this.dynamicLocationsWriter.flush();
+	}
+
+	public void close() throws IOException {
+		this.outputStream.close();
+		if (this.dynamicLocationsWriter != null)
+			this.dynamicLocationsWriter.close();
+	}
+
+	/**
+	 * Encodes a resolution method in one byte: 0 for none, otherwise the ordinal plus one.
+	 */
+	public static int encodeResolutionMethod(ResolutionMethod resolutionMethod) {
+		return resolutionMethod == null ? 0 : resolutionMethod.ordinal() + 1;
+	}
+
+	public static ResolutionMethod decodeResolutionMethod(int code) {
+		if (code <= 0 || code > ResolutionMethod.values().length)
+			return null;
+		return ResolutionMethod.values()[code - 1];
+	}
+}
+
@@ -0,0 +1,145 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * One of N byte ranges of an uncompressed file of lines (e.g. tweets), so that N processes can each
+ * read their own part of the file. Shard k (0 based) covers the bytes [k * length / N, (k + 1) * length / N)
+ * moved forward to the start of the next line, i.e. a shard has the lines that start in its range.
+ * Every line is in exactly one shard.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class Shard {
+	private final int index;
+	private final int count;
+
+	public Shard(int index, int count) {
+		if (count < 1 || index < 0 || index >= count)
+			throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+		this.index = index;
+		this.count = count;
+	}
+
+	/**
+	 * Parses a shard given as k/N, where k is between 0 and N - 1.
+	 * @param shard
+	 * @return
+	 */
+	public static Shard parse(String shard) {
+		int slash = shard.indexOf('/');
+		if (slash == -1)
+			throw new IllegalArgumentException("A shard must be given as k/N: " + shard);
+		try {
+			return new Shard(Integer.parseInt(shard.substring(0, slash).trim()), Integer.parseInt(shard.substring(slash + 1).trim()));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("A shard must be given as k/N: " + shard);
+		}
+	}
+
+	public int getIndex() {
+		return this.index;
+	}
+
+	public int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * Opens the lines of this shard of the file.
+	 * @param filename
+	 * @return A stream of the bytes of the shard.
+	 * @throws IOException
+	 */
+	public InputStream open(String filename) throws IOException {
+		if (filename.endsWith(".gz"))
+			throw new IOException("Compressed files can not be sharded: " + filename);
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			long length = file.length();
+			long start = findLineStart(file, (long)((double)length * this.index / this.count));
+			long end = this.index == this.count - 1 ? length : findLineStart(file, (long)((double)length * (this.index + 1) / this.count));
+			file.seek(start);
+			return new RangeInputStream(file, end - start);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the position of the first line that starts at or after the offset.
+	 */
+	private static long findLineStart(RandomAccessFile file, long offset) throws IOException {
+		if (offset <= 0)
+			return 0;
+		if (offset >= file.length())
+			return file.length();
+		// The line starts at the offset if the previous byte ends a line.
+		file.seek(offset - 1);
+		byte[] buffer = new byte[8192];
+		long position = offset - 1;
+		int read;
+		while ((read = file.read(buffer)) > 0) {
+			for (int ii = 0; ii < read; ii++) {
+				if (buffer[ii] == '\n')
+					return position + ii + 1;
+			}
+			position += read;
+		}
+		return file.length();
+	}
+
+	public String toString() {
+		return this.index + "/" + this.count;
+	}
+
+	/**
+	 * Reads a number of bytes from the current position of a file.
+	 */
+	private static class RangeInputStream extends InputStream {
+		private final RandomAccessFile file;
+		private long remaining;
+
+		private RangeInputStream(RandomAccessFile file, long length) {
+			this.file = file;
+			this.remaining = length;
+		}
+
+		public int read() throws IOException {
+			if (this.remaining <= 0)
+				return -1;
+			int value = this.file.read();
+			if (value != -1)
+				this.remaining--;
+			return value;
+		}
+
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (this.remaining <= 0)
+				return -1;
+			int read = this.file.read(buffer, offset, (int)Math.min(length, this.remaining));
+			if (read > 0)
+				this.remaining -= read;
+			return read;
+		}
+
+		public long skip(long length) throws IOException {
+			long skipped = Math.max(0, Math.min(length, this.remaining));
+			this.file.seek(this.file.getFilePointer() + skipped);
+			this.remaining -= skipped;
+			return skipped;
+		}
+
+		public void close() throws IOException {
+			this.file.close();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import carmen.LocationResolver;
+import carmen.types.ResolutionMethod;
+
+/**
+ * Writes results as tab separated lines: tweet id, location id, resolution method, flags.
+ * A missing tweet id or resolution method is written as an empty field.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class TsvResultWriter extends ResultWriter {
+	private final StringBuilder line = new StringBuilder();
+	private byte[] bytes = new byte[64];
+
+	public TsvResultWriter(OutputStream outputStream, Writer dynamicLocationsWriter, LocationResolver resolver) {
+		super(outputStream, dynamicLocationsWriter, resolver);
+	}
+
+	protected void writeRecord(long tweetId, int locationId, ResolutionMethod resolutionMethod, int flags) throws IOException {
+		StringBuilder sb = this.line;
+		sb.setLength(0);
+		if ((flags & FLAG_NO_TWEET_ID) == 0)
+			sb.append(tweetId);
+		sb.append('\t');
+		sb.append(locationId);
+		sb.append('\t');
+		if (resolutionMethod != null)
+			sb.append(resolutionMethod.name());
+		sb.append('\t');
+		sb.append(flags);
+		sb.append('\n');
+
+		// The line is ASCII.
+		int length = sb.length();
+		if (length > this.bytes.length)
+			this.bytes = new byte[length];
+		for (int ii = 0; ii < length; ii++)
+			this.bytes[ii] = (byte)sb.charAt(ii);
+		this.outputStream.write(this.bytes, 0, length);
+	}
+}
@@ -0,0 +1,77 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import carmen.types.Constants;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Parses only the fields of a tweet that are used to resolve its location, skipping everything else
+ * (text, entities, the rest of the user object, etc.) without building objects for it.
+ *
+ * The returned map has the same structure as a fully parsed tweet, restricted to: id, id_str,
+ * created_at, place, coordinates, geo, location and the id, id_str and location fields of user.
+ * It can be passed to LocationResolver.resolve() but should not be written out
+ * as the tweet.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class TweetParser {
+	protected static final Set<String> TWEET_FIELDS = new HashSet<String>(Arrays.asList(
+			Constants.TWEET_ID, Constants.TWEET_ID_STR, Constants.TWEET_CREATED_AT, "geo", Constants.PLACE, Constants.COORDINATES, Constants.TWEET_LOCATION));
+	protected static final Set<String> USER_FIELDS = new HashSet<String>(Arrays.asList(
+			Constants.TWEET_USER_ID, Constants.TWEET_USER_ID_STR, Constants.TWEET_USER_LOCATION));
+
+	private final ObjectMapper mapper;
+
+	public TweetParser(ObjectMapper mapper) {
+		this.mapper = mapper;
+	}
+
+	/**
+	 * Parses the location fields of the tweet in the given UTF-8 bytes.
+	 * @throws IOException If the bytes are not a JSON object.
+	 */
+	public HashMap<String, Object> parseFields(byte[] buffer, int start, int length) throws IOException {
+		JsonParser parser = this.mapper.getFactory().createParser(buffer, start, length);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new JsonParseException("Expected a JSON object", parser.getCurrentLocation());
+			return parseObject(parser, TWEET_FIELDS, true);
+		} finally {
+			parser.close();
+		}
+	}
+
+	private HashMap<String, Object> parseObject(JsonParser parser, Set<String> fields, boolean parseUser) throws IOException {
+		HashMap<String, Object> object = new HashMap<String, Object>();
+		JsonToken token;
+		while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			token = parser.nextToken();
+			if (parseUser && name.equals(Constants.TWEET_USER) && token == JsonToken.START_OBJECT) {
+				object.put(name, parseObject(parser, USER_FIELDS, false));
+			} else if (fields.contains(name)) {
+				object.put(name, this.mapper.readValue(parser, Object.class));
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (token != JsonToken.END_OBJECT)
+			throw new JsonParseException("Unexpected token: " + token, parser.getCurrentLocation());
+		return object;
+	}
+}
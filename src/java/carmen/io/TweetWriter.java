@@ -0,0 +1,131 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import carmen.types.Constants;
+import carmen.types.Location;
+import carmen.types.Resolution;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes geolocated tweets, one per line, with the location added as the "location" field.
+ *
+ * In RESERIALIZE mode the parsed tweet is serialized again with the location added. In SPLICE mode
+ * the original bytes of the line are copied unchanged and the serialized location is inserted before
+ * the closing brace, so the tweet is never re-encoded and its field order is preserved. SPLICE mode only
+ * needs the fields used for resolution (see TweetParser). If the line already has a location field or
+ * does not end with a closing brace, the tweet is parsed in full and reserialized instead.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class TweetWriter {
+	public enum OutputMode {
+		RESERIALIZE, SPLICE
+	}
+
+	protected static final byte[] LOCATION_FIELD_PREFIX = ("\"" + Constants.TWEET_LOCATION + "\":").getBytes();
+
+	protected final OutputStream outputStream;
+	protected final OutputMode outputMode;
+	protected final ObjectMapper mapper;
+
+	public TweetWriter(OutputStream outputStream, OutputMode outputMode, ObjectMapper mapper) {
+		this.outputStream = outputStream;
+		this.outputMode = outputMode;
+		this.mapper = mapper;
+	}
+
+	public OutputMode getOutputMode() {
+		return this.outputMode;
+	}
+
+	/**
+	 * Writes a tweet with its location.
+	 * @param line The bytes of the original line.
+	 * @param start
+	 * @param length
+	 * @param tweet The parsed tweet. In SPLICE mode this may contain only the fields used for resolution.
+	 * @param resolution The resolution of the tweet or null.
+	 * @throws IOException
+	 */
+	public void write(byte[] line, int start, int length, Map<String, Object> tweet, Resolution resolution) throws IOException {
+		if (this.outputMode == OutputMode.SPLICE) {
+			if (resolution == null) {
+				writeUnchanged(line, start, length);
+				return;
+			}
+			if (!tweet.containsKey(Constants.TWEET_LOCATION) && splice(line, start, length, resolution))
+				return;
+
+			// Fall back to the full tweet.
+			@SuppressWarnings("unchecked")
+			Map<String, Object> fullTweet = (Map<String, Object>)this.mapper.readValue(line, start, length, Map.class);
+			tweet = fullTweet;
+		}
+
+		if (resolution != null)
+			tweet.put(Constants.TWEET_LOCATION, Location.createJsonFromResolution(resolution));
+		this.outputStream.write(this.mapper.writeValueAsBytes(tweet));
+		this.outputStream.write('\n');
+	}
+
+	/**
+	 * Writes the line without changes.
+	 * @throws IOException
+	 */
+	public void writeUnchanged(byte[] line, int start, int length) throws IOException {
+		this.outputStream.write(line, start, length);
+		this.outputStream.write('\n');
+	}
+
+	/**
+	 * Copies the line with the location field inserted before the closing brace of the tweet.
+	 * @return false if the line does not end with a closing brace. Nothing is written in that case.
+	 * @throws IOException
+	 */
+	protected boolean splice(byte[] line, int start, int length, Resolution resolution) throws IOException {
+		int closingBrace = start + length - 1;
+		while (closingBrace >= start && isWhitespace(line[closingBrace]))
+			closingBrace--;
+		if (closingBrace < start || line[closingBrace] != '}')
+			return false;
+
+		int previous = closingBrace - 1;
+		while (previous >= start && isWhitespace(line[previous]))
+			previous--;
+		if (previous < start)
+			return false;
+		boolean emptyObject = line[previous] == '{';
+
+		this.outputStream.write(line, start, closingBrace - start);
+		if (!emptyObject)
+			this.outputStream.write(',');
+		this.outputStream.write(LOCATION_FIELD_PREFIX);
+		// The location was serialized when it was loaded or registered.
+		this.outputStream.write(resolution.getLocation().getJsonPrefix());
+		this.outputStream.write(Location.getJsonSuffix(resolution.getResolutionMethod()));
+		this.outputStream.write('}');
+		this.outputStream.write('\n');
+		return true;
+	}
+
+	private static boolean isWhitespace(byte value) {
+		return value == ' ' || value == '\t' || value == '\r' || value == '\n';
+	}
+
+	public void flush() throws IOException {
+		this.outputStream.flush();
+	}
+
+	public void close() throws IOException {
+		this.outputStream.close();
+	}
+}
@@ -0,0 +1,643 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+package carmen.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.cli.Option;
+import org.apache.log4j.Logger;
+
+import carmen.LocationDatabaseProvider;
+import carmen.LocationDelta;
+import carmen.LocationResolver;
+import carmen.types.Location;
+import carmen.types.Resolution;
+import carmen.types.ResolutionMethod;
+import carmen.utils.CommandLineUtilities;
+import carmen.utils.Utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An HTTP server that keeps a single LocationResolver loaded and resolves tweets sent to it.
+ * It uses the HTTP server included in the JDK, so no additional dependencies are needed.
+ *
+ * Endpoints:
+ * POST /resolve: the body is a single tweet in JSON format. Returns the location of the tweet.
+ * POST /resolve/batch: the body contains tweets in JSON format, one per line. The locations are
+ * streamed back in the same order, one JSON object per line. Empty lines are skipped. A tweet that
+ * cannot be parsed produces an object with an error field.
+ * GET /geocode?latitude=..&longitude=..: resolves a coordinate pair to a known location.
+ * GET /health: returns the status of the server, request counters and the version of the location database.
+ * POST /reload (admin): loads a new version of the location database from the files in carmen.properties in the
+ * background and swaps it in without stopping requests (see LocationDatabaseProvider). Returns 202 at once,
+ * or with ?wait=true, returns the new version when it is loaded.
+ * POST /delta (admin): the body is a delta (see LocationDelta), which is applied to the location database at once.
+ * Returns the new version.
+ *
+ * The server listens on the loopback address unless host is given. Admin endpoints change the location database,
+ * so they are disabled unless the server has an admin token (admin_token_file), and a request must send the
+ * token in the X-Carmen-Admin-Token header. Other requests get 403.
+ *
+ * Each result is a JSON object with a location field (null if no location was found) and a
+ * resolution_method field. If the tweet has an id, it is copied to the result.
+ *
+ * Request bodies larger than max_body_size bytes (16 MB by default) get 413. For /resolve/batch the limit
+ * applies to each line; a longer line ends the response with an error object.
+ *
+ * Requests are handled by a fixed pool of threads if threads is given. Otherwise virtual threads
+ * are used if the JVM supports them. Connections are kept alive between requests.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class LocationResolverServer {
+	protected static Logger logger = Logger.getLogger(LocationResolverServer.class);
+	protected static List<Option> options = new LinkedList<Option>();
+
+	protected static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
+	protected static final String NDJSON_CONTENT_TYPE = "application/x-ndjson; charset=UTF-8";
+	protected static final String ADMIN_TOKEN_HEADER = "X-Carmen-Admin-Token";
+	protected static final int DEFAULT_MAX_BODY_SIZE = 16 * 1024 * 1024;
+
+	protected final LocationResolver resolver;
+	protected final ObjectMapper mapper = new ObjectMapper();
+	protected HttpServer server;
+	protected ExecutorService executor;
+	protected long startTime;
+	// Admin endpoints are disabled if null.
+	protected String adminToken = null;
+	protected int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+
+	// Counters reported by /health.
+	protected final AtomicLong numRequests = new AtomicLong();
+	protected final AtomicLong numTweets = new AtomicLong();
+	protected final AtomicLong numResolved = new AtomicLong();
+	protected final AtomicLong numErrors = new AtomicLong();
+	protected final AtomicLongArray resolutionMethodCounts = new AtomicLongArray(ResolutionMethod.values().length);
+
+	public static void main(String[] args) throws ParseException, IOException {
+		createCommandLineOptions();
+		CommandLineUtilities.initCommandLineParameters(args, LocationResolverServer.options, null);
+
+		int port = 8080;
+		if (CommandLineUtilities.hasArg("port"))
+			port = CommandLineUtilities.getOptionValueAsInt("port");
+		String host = CommandLineUtilities.getOptionValue("host");
+		int threads = 0;
+		if (CommandLineUtilities.hasArg("threads"))
+			threads = CommandLineUtilities.getOptionValueAsInt("threads");
+		int backlog = 0;
+		if (CommandLineUtilities.hasArg("backlog"))
+			backlog = CommandLineUtilities.getOptionValueAsInt("backlog");
+		int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+		if (CommandLineUtilities.hasArg("max_body_size"))
+			maxBodySize = CommandLineUtilities.getOptionValueAsInt("max_body_size");
+		String adminToken = null;
+		if (CommandLineUtilities.hasArg("admin_token_file")) {
+			// Read from a file so that the token is not visible in the process list.
+			BufferedReader reader = Utils.createReader(CommandLineUtilities.getOptionValue("admin_token_file"), 1024);
+			adminToken = reader.readLine();
+			reader.close();
+			if (adminToken == null || adminToken.trim().length() == 0)
+				throw new IOException("The admin token file is empty.");
+			adminToken = adminToken.trim();
+		}
+
+		logger.info("Creating LocationResolver.");
+		LocationResolver resolver = LocationResolver.getLocationResolver();
+
+		InetSocketAddress address = host == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port) : new InetSocketAddress(host, port);
+		final LocationResolverServer server = new LocationResolverServer(resolver);
+		server.setAdminToken(adminToken);
+		server.setMaxBodySize(maxBodySize);
+		server.start(address, backlog, Utils.createExecutor(threads));
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				server.stop(1);
+			}
+		});
+	}
+
+	public LocationResolverServer(LocationResolver resolver) {
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Enables the admin endpoints for requests that send this token, or disables them if null.
+	 * @param adminToken
+	 */
+	public void setAdminToken(String adminToken) {
+		this.adminToken = adminToken;
+	}
+
+	/**
+	 * Sets the largest request body accepted, in bytes, and of each line sent to /resolve/batch.
+	 * @param maxBodySize
+	 */
+	public void setMaxBodySize(int maxBodySize) {
+		this.maxBodySize = maxBodySize;
+	}
+
+	public void start(InetSocketAddress address, int backlog, ExecutorService executor) throws IOException {
+		this.executor = executor;
+		this.server = HttpServer.create(address, backlog);
+		this.server.createContext("/resolve", new ResolveHandler());
+		this.server.createContext("/resolve/batch", new BatchResolveHandler());
+		this.server.createContext("/geocode", new GeocodeHandler());
+		this.server.createContext("/health", new HealthHandler());
+		this.server.createContext("/reload", new ReloadHandler());
+		this.server.createContext("/delta", new DeltaHandler());
+		this.server.setExecutor(executor);
+		this.startTime = System.currentTimeMillis();
+		this.server.start();
+		logger.info("Listening on " + this.server.getAddress());
+	}
+
+	/**
+	 * Stops the server, waiting at most delay seconds for open exchanges to finish.
+	 * @param delay
+	 */
+	public void stop(int delay) {
+		if (this.server != null)
+			this.server.stop(delay);
+		if (this.executor != null)
+			this.executor.shutdown();
+	}
+
+	public InetSocketAddress getAddress() {
+		return this.server.getAddress();
+	}
+
+	/**
+	 * Resolves a single tweet and returns the result object sent to the client.
+	 * @param tweet
+	 * @return
+	 */
+	protected Map<String, Object> resolveTweet(Map<String, Object> tweet) {
+		this.numTweets.incrementAndGet();
+		Resolution resolution = this.resolver.resolve(tweet);
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		if (tweet.containsKey("id"))
+			result.put("id", tweet.get("id"));
+		addResolutionToResult(result, resolution);
+		return result;
+	}
+
+	protected void addResolutionToResult(Map<String, Object> result, Resolution resolution) {
+		if (resolution == null) {
+			result.put("location", null);
+			result.put("resolution_method", null);
+			return;
+		}
+		this.numResolved.incrementAndGet();
+		ResolutionMethod resolutionMethod = resolution.getResolutionMethod();
+		if (resolutionMethod != null)
+			this.resolutionMethodCounts.incrementAndGet(resolutionMethod.ordinal());
+		result.put("location", Location.createJsonFromResolution(resolution));
+		result.put("resolution_method", resolutionMethod);
+		if (resolution.isProvisionalParent())
+			result.put("provisional_parent", true);
+	}
+
+	protected Map<String, Object> createErrorResult(String message) {
+		this.numErrors.incrementAndGet();
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("error", message);
+		return result;
+	}
+
+	protected void sendJson(HttpExchange exchange, int status, Object value) throws IOException {
+		byte[] bytes = this.mapper.writeValueAsBytes(value);
+		exchange.getResponseHeaders().set("Content-Type", JSON_CONTENT_TYPE);
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream outputStream = exchange.getResponseBody();
+		outputStream.write(bytes);
+		outputStream.close();
+	}
+
+	protected void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		sendJson(exchange, status, createErrorResult(message));
+	}
+
+	/**
+	 * Reads and discards the remaining request body so the connection can be reused.
+	 * @param exchange
+	 * @throws IOException
+	 */
+	protected static void drainRequestBody(HttpExchange exchange) throws IOException {
+		InputStream inputStream = exchange.getRequestBody();
+		byte[] buffer = new byte[8192];
+		while (inputStream.read(buffer) != -1);
+		inputStream.close();
+	}
+
+	/**
+	 * Reads the request body.
+	 * @param exchange
+	 * @param maxLength The largest body to read, in bytes.
+	 * @return
+	 * @throws RequestTooLargeException If the body is larger than maxLength. The rest of the body is not read.
+	 */
+	protected static byte[] readRequestBody(HttpExchange exchange, int maxLength) throws IOException {
+		String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+		if (contentLength != null) {
+			try {
+				if (Long.parseLong(contentLength.trim()) > maxLength)
+					throw new RequestTooLargeException("Request body larger than " + maxLength + " bytes.");
+			} catch (NumberFormatException e) {
+				// The server rejects bad lengths before the handler is called.
+			}
+		}
+		InputStream inputStream = exchange.getRequestBody();
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int length;
+		while ((length = inputStream.read(buffer)) != -1) {
+			// A chunked body has no length.
+			if (outputStream.size() + length > maxLength)
+				throw new RequestTooLargeException("Request body larger than " + maxLength + " bytes.");
+			outputStream.write(buffer, 0, length);
+		}
+		inputStream.close();
+		return outputStream.toByteArray();
+	}
+
+	/**
+	 * Reads a line of at most maxLength chars, without the line end.
+	 * @return The line, or null at the end of the input.
+	 * @throws RequestTooLargeException If the line is longer than maxLength.
+	 */
+	protected static String readLine(Reader reader, StringBuilder builder, int maxLength) throws IOException {
+		builder.setLength(0);
+		int c;
+		while ((c = reader.read()) != -1 && c != '\n') {
+			if (builder.length() == maxLength)
+				throw new RequestTooLargeException("Line longer than " + maxLength + " characters.");
+			builder.append((char)c);
+		}
+		if (c == -1 && builder.length() == 0)
+			return null;
+		int length = builder.length();
+		if (length > 0 && builder.charAt(length - 1) == '\r')
+			builder.setLength(length - 1);
+		return builder.toString();
+	}
+
+	/**
+	 * Thrown when a request body is larger than the server accepts. The server answers 413 and reads no more of it.
+	 */
+	protected static class RequestTooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public RequestTooLargeException(String message) {
+			super(message);
+		}
+	}
+
+	protected static Map<String, String> parseQuery(String query) throws IOException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (query == null)
+			return parameters;
+		for (String pair : query.split("&")) {
+			int index = pair.indexOf('=');
+			if (index <= 0)
+				continue;
+			parameters.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+		}
+		return parameters;
+	}
+
+	/**
+	 * Handles the common parts of each request: counting, checking the method and reporting unexpected errors.
+	 */
+	protected abstract class BaseHandler implements HttpHandler {
+		private final String requestMethod;
+
+		protected BaseHandler(String requestMethod) {
+			this.requestMethod = requestMethod;
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			numRequests.incrementAndGet();
+			try {
+				if (!this.requestMethod.equalsIgnoreCase(exchange.getRequestMethod())) {
+					drainRequestBody(exchange);
+					exchange.getResponseHeaders().set("Allow", this.requestMethod);
+					sendError(exchange, 405, "Method not allowed: " + exchange.getRequestMethod());
+					return;
+				}
+				// Contexts match on prefixes. Only serve the exact path.
+				if (!exchange.getRequestURI().getPath().equals(exchange.getHttpContext().getPath())) {
+					drainRequestBody(exchange);
+					sendError(exchange, 404, "Unknown path: " + exchange.getRequestURI().getPath());
+					return;
+				}
+				handleRequest(exchange);
+			} catch (RequestTooLargeException e) {
+				// Close the connection rather than reading the rest of the body.
+				exchange.getResponseHeaders().set("Connection", "close");
+				sendError(exchange, 413, e.getMessage());
+			} catch (Exception e) {
+				logger.warn("Error handling request " + exchange.getRequestURI(), e);
+				try {
+					exchange.getResponseHeaders().set("Connection", "close");
+					sendError(exchange, 500, "Internal server error.");
+				} catch (Exception sendException) {
+					// The response was already started (e.g. a batch), so closing the connection is all that is left.
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+
+		protected abstract void handleRequest(HttpExchange exchange) throws IOException;
+	}
+
+	protected class ResolveHandler extends BaseHandler {
+		protected ResolveHandler() {
+			super("POST");
+		}
+
+		protected void handleRequest(HttpExchange exchange) throws IOException {
+			byte[] body = readRequestBody(exchange, maxBodySize);
+			Map<String, Object> tweet = null;
+			try {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> readValue = (Map<String, Object>)mapper.readValue(body, Map.class);
+				tweet = readValue;
+			} catch (IOException e) {
+				sendError(exchange, 400, "Bad tweet: " + e.getMessage());
+				return;
+			}
+			if (tweet == null) {
+				sendError(exchange, 400, "Empty request body.");
+				return;
+			}
+
+			Map<String, Object> result;
+			try {
+				result = resolveTweet(tweet);
+			} catch (RuntimeException e) {
+				sendError(exchange, 400, "Unable to resolve tweet: " + e);
+				return;
+			}
+			sendJson(exchange, 200, result);
+		}
+	}
+
+	protected class BatchResolveHandler extends BaseHandler {
+		protected BatchResolveHandler() {
+			super("POST");
+		}
+
+		protected void handleRequest(HttpExchange exchange) throws IOException {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+			StringBuilder lineBuilder = new StringBuilder();
+			exchange.getResponseHeaders().set("Content-Type", NDJSON_CONTENT_TYPE);
+			// A length of zero means the response is sent in chunks as the tweets are resolved.
+			exchange.sendResponseHeaders(200, 0);
+			Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), "UTF-8"));
+
+			String line;
+			while (true) {
+				try {
+					line = readLine(reader, lineBuilder, maxBodySize);
+				} catch (RequestTooLargeException e) {
+					// The status has been sent. Report the error and stop reading.
+					writer.write(mapper.writeValueAsString(createErrorResult(e.getMessage())));
+					writer.write("\n");
+					break;
+				}
+				if (line == null)
+					break;
+				if (line.trim().length() == 0)
+					continue;
+
+				Map<String, Object> result;
+				try {
+					@SuppressWarnings("unchecked")
+					Map<String, Object> tweet = (Map<String, Object>)mapper.readValue(line, Map.class);
+					result = resolveTweet(tweet);
+				} catch (IOException e) {
+					result = createErrorResult("Bad tweet: " + e.getMessage());
+				} catch (RuntimeException e) {
+					result = createErrorResult("Unable to resolve tweet: " + e);
+				}
+				writer.write(mapper.writeValueAsString(result));
+				writer.write("\n");
+
+				// Send what we have if the client has not sent more tweets yet.
+				if (!reader.ready())
+					writer.flush();
+			}
+			reader.close();
+			writer.close();
+		}
+	}
+
+	protected class GeocodeHandler extends BaseHandler {
+		protected GeocodeHandler() {
+			super("GET");
+		}
+
+		protected void handleRequest(HttpExchange exchange) throws IOException {
+			drainRequestBody(exchange);
+			Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+			String latitudeString = parameters.containsKey("latitude") ? parameters.get("latitude") : parameters.get("lat");
+			String longitudeString = parameters.containsKey("longitude") ? parameters.get("longitude") : parameters.get("lon");
+			if (latitudeString == null || longitudeString == null) {
+				sendError(exchange, 400, "Both latitude and longitude are required.");
+				return;
+			}
+
+			double latitude;
+			double longitude;
+			try {
+				latitude = Double.parseDouble(latitudeString);
+				longitude = Double.parseDouble(longitudeString);
+			} catch (NumberFormatException e) {
+				sendError(exchange, 400, "Bad coordinates: " + latitudeString + ", " + longitudeString);
+				return;
+			}
+			if (latitude < -90 || latitude > 90 || longitude < -180 || longitude > 180) {
+				sendError(exchange, 400, "Coordinates out of range: " + latitude + ", " + longitude);
+				return;
+			}
+
+			Location location = resolver.resolveLocationFromCoordinates(latitude, longitude);
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			if (location == null) {
+				result.put("location", null);
+				result.put("resolution_method", null);
+			} else {
+				numResolved.incrementAndGet();
+				result.put("location", Location.createJsonFromLocation(location, ResolutionMethod.COORDINATES));
+				result.put("resolution_method", ResolutionMethod.COORDINATES);
+			}
+			sendJson(exchange, 200, result);
+		}
+	}
+
+	protected class HealthHandler extends BaseHandler {
+		protected HealthHandler() {
+			super("GET");
+		}
+
+		protected void handleRequest(HttpExchange exchange) throws IOException {
+			drainRequestBody(exchange);
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			result.put("status", "ok");
+			result.put("uptime_ms", System.currentTimeMillis() - startTime);
+			result.put("requests", numRequests.get());
+			result.put("tweets", numTweets.get());
+			result.put("resolved", numResolved.get());
+			result.put("errors", numErrors.get());
+			Map<String, Object> methodCounts = new LinkedHashMap<String, Object>();
+			for (ResolutionMethod method : ResolutionMethod.values())
+				methodCounts.put(method.toString(), resolutionMethodCounts.get(method.ordinal()));
+			result.put("resolution_methods", methodCounts);
+
+			result.put("database", createDatabaseResult());
+
+			Runtime runtime = Runtime.getRuntime();
+			result.put("heap_used_bytes", runtime.totalMemory() - runtime.freeMemory());
+			result.put("heap_max_bytes", runtime.maxMemory());
+			sendJson(exchange, 200, result);
+		}
+	}
+
+	protected Map<String, Object> createDatabaseResult() {
+		LocationDatabaseProvider provider = this.resolver.getDatabaseProvider();
+		LocationDatabaseProvider.Version version = provider.getVersion();
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("version", version.getVersion());
+		result.put("locations", version.getDatabase().getNumLocations());
+		result.put("loaded_at_ms", version.getLoadedTime());
+		result.put("load_ms", version.getLoadMillis());
+		result.put("reloads", provider.getNumReloads());
+		result.put("failed_reloads", provider.getNumFailedReloads());
+		result.put("deltas", provider.getNumDeltas());
+		result.put("last_error", provider.getLastError());
+		result.put("reloading", provider.isReloading());
+		return result;
+	}
+
+	/**
+	 * Handles a request that changes the server, if it has the admin token.
+	 */
+	protected abstract class AdminHandler extends BaseHandler {
+		protected AdminHandler(String requestMethod) {
+			super(requestMethod);
+		}
+
+		protected void handleRequest(HttpExchange exchange) throws IOException {
+			if (adminToken == null) {
+				sendError(exchange, 403, "Admin endpoints are disabled.");
+				return;
+			}
+			String token = exchange.getRequestHeaders().getFirst(ADMIN_TOKEN_HEADER);
+			// Compare in constant time.
+			if (token == null || !MessageDigest.isEqual(adminToken.getBytes("UTF-8"), token.getBytes("UTF-8"))) {
+				logger.warn("Rejected admin request " + exchange.getRequestURI() + " from " + exchange.getRemoteAddress());
+				sendError(exchange, 403, "Missing or wrong " + ADMIN_TOKEN_HEADER + " header.");
+				return;
+			}
+			handleAdminRequest(exchange);
+		}
+
+		protected abstract void handleAdminRequest(HttpExchange exchange) throws IOException;
+	}
+
+	protected class ReloadHandler extends AdminHandler {
+		protected ReloadHandler() {
+			super("POST");
+		}
+
+		protected void handleAdminRequest(HttpExchange exchange) throws IOException {
+			drainRequestBody(exchange);
+			LocationDatabaseProvider provider = resolver.getDatabaseProvider();
+			if (!provider.isReloadable()) {
+				sendError(exchange, 501, "The location database can not be reloaded.");
+				return;
+			}
+			boolean wait = "true".equalsIgnoreCase(parseQuery(exchange.getRequestURI().getRawQuery()).get("wait"));
+			logger.info("Reloading the location database for " + exchange.getRemoteAddress());
+			if (!wait) {
+				provider.reloadAsync();
+				sendJson(exchange, 202, createDatabaseResult());
+				return;
+			}
+			try {
+				provider.reload();
+			} catch (IOException e) {
+				sendError(exchange, 500, "Unable to reload the location database: " + e.getMessage());
+				return;
+			}
+			sendJson(exchange, 200, createDatabaseResult());
+		}
+	}
+
+	protected class DeltaHandler extends AdminHandler {
+		protected DeltaHandler() {
+			super("POST");
+		}
+
+		protected void handleAdminRequest(HttpExchange exchange) throws IOException {
+			byte[] body = readRequestBody(exchange, maxBodySize);
+			LocationDelta delta;
+			try {
+				delta = LocationDelta.read(new ByteArrayInputStream(body), "the request");
+			} catch (IOException e) {
+				sendError(exchange, 400, e.getMessage());
+				return;
+			}
+			try {
+				resolver.getDatabaseProvider().applyDelta(delta);
+			} catch (IllegalArgumentException e) {
+				sendError(exchange, 400, "Unable to apply the delta: " + e.getMessage());
+				return;
+			}
+			logger.info("Applied " + delta.size() + " location changes for " + exchange.getRemoteAddress());
+			sendJson(exchange, 200, createDatabaseResult());
+		}
+	}
+
+	private static void createCommandLineOptions() {
+		Utils.registerOption(options, "port", "int", true, "The port to listen on (default 8080).");
+		Utils.registerOption(options, "host", "String", true, "The address to bind to (default the loopback address). Use 0.0.0.0 for all addresses.");
+		Utils.registerOption(options, "threads", "int", true, "The number of request threads. If not given, virtual threads are used when available.");
+		Utils.registerOption(options, "backlog", "int", true, "The maximum number of queued incoming connections.");
+		Utils.registerOption(options, "max_body_size", "int", true, "The largest request body in bytes, and line of a batch (default " + DEFAULT_MAX_BODY_SIZE + ").");
+		Utils.registerOption(options, "admin_token_file", "String", true, "A file with a token that enables the admin endpoints for requests that send it in the " + ADMIN_TOKEN_HEADER + " header.");
+	}
+}
@@ -0,0 +1,139 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.stats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A histogram of durations (or any non-negative longs) with a fixed relative precision, for percentiles
+ * such as p99 and p999 without keeping every value. Values below 128 are counted exactly; larger values
+ * share a bucket with values that differ by less than 1/64 (about 1.6%). Recording does not allocate.
+ *
+ * A histogram is not thread safe: keep one per thread and combine them with add().
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+
+	private final long[] counts = new long[NUM_BUCKETS];
+	private long count = 0;
+	private long sum = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	/**
+	 * Counts a value. Negative values are counted as 0.
+	 * @param value
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		this.counts[getBucket(value)]++;
+		this.count++;
+		this.sum += value;
+		if (value < this.min)
+			this.min = value;
+		if (value > this.max)
+			this.max = value;
+	}
+
+	/**
+	 * Adds the values of another histogram to this one.
+	 * @param histogram
+	 */
+	public void add(LatencyHistogram histogram) {
+		for (int ii = 0; ii < NUM_BUCKETS; ii++)
+			this.counts[ii] += histogram.counts[ii];
+		this.count += histogram.count;
+		this.sum += histogram.sum;
+		this.min = Math.min(this.min, histogram.min);
+		this.max = Math.max(this.max, histogram.max);
+	}
+
+	public void reset() {
+		for (int ii = 0; ii < NUM_BUCKETS; ii++)
+			this.counts[ii] = 0;
+		this.count = 0;
+		this.sum = 0;
+		this.min = Long.MAX_VALUE;
+		this.max = 0;
+	}
+
+	public long getCount() {
+		return this.count;
+	}
+
+	public long getMin() {
+		return this.count == 0 ? 0 : this.min;
+	}
+
+	public long getMax() {
+		return this.max;
+	}
+
+	public double getMean() {
+		return this.count == 0 ? 0 : (double)this.sum / this.count;
+	}
+
+	/**
+	 * Returns the value below which the given percent of the values fall, e.g. 99.9 for p999, to the
+	 * precision of the buckets (never more than the largest value).
+	 * @param percentile Between 0 and 100.
+	 * @return
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (this.count == 0)
+			return 0;
+		long rank = (long)Math.ceil(percentile / 100 * this.count);
+		rank = Math.max(1, Math.min(this.count, rank));
+		long seen = 0;
+		for (int ii = 0; ii < NUM_BUCKETS; ii++) {
+			seen += this.counts[ii];
+			if (seen >= rank)
+				return Math.max(this.getMin(), Math.min(this.max, getBucketValue(ii)));
+		}
+		return this.max;
+	}
+
+	/**
+	 * The count, mean, max and usual percentiles, divided by scale (e.g. 1000 for microseconds from
+	 * nanoseconds).
+	 * @param scale
+	 * @return
+	 */
+	public Map<String, Object> toJson(double scale) {
+		Map<String, Object> json = new LinkedHashMap<String, Object>();
+		json.put("count", this.count);
+		json.put("mean", round(getMean() / scale));
+		json.put("p50", round(getValueAtPercentile(50) / scale));
+		json.put("p90", round(getValueAtPercentile(90) / scale));
+		json.put("p99", round(getValueAtPercentile(99) / scale));
+		json.put("p999", round(getValueAtPercentile(99.9) / scale));
+		json.put("max", round(getMax() / scale));
+		return json;
+	}
+
+	private static double round(double value) {
+		return Math.round(value * 1000) / 1000.0;
+	}
+
+	private static int getBucket(long value) {
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return (shift << SUB_BUCKET_BITS) + (int)(value >>> shift);
+	}
+
+	/**
+	 * The middle of the values in a bucket.
+	 */
+	private static long getBucketValue(int bucket) {
+		int shift = Math.max(0, (bucket >> SUB_BUCKET_BITS) - 1);
+		long lowest = (long)(bucket - (shift << SUB_BUCKET_BITS)) << shift;
+		return lowest + ((1L << shift) >> 1);
+	}
+}
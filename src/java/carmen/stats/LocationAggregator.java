@@ -0,0 +1,254 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.stats;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import carmen.LocationResolver;
+import carmen.types.Location;
+import carmen.utils.Utils;
+
+/**
+ * Counts tweets per location, and rolls the counts up the location hierarchy so that every
+ * location also has the total for itself and all of its descendants.
+ *
+ * add() can be called from any number of threads without a shared lock: each thread counts into its
+ * own stripe, a dense long array indexed by the id of known locations (plus a map for locations that
+ * are not in the database). The stripes are only combined by getCounts(), which should be called
+ * after the counting threads have finished (e.g. after joining them or shutting down their executor).
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class LocationAggregator {
+	public static final String LOCATIONS_TABLE_SUFFIX = ".locations.tsv";
+	public static final String STATES_TABLE_SUFFIX = ".states.tsv";
+	public static final String COUNTRIES_TABLE_SUFFIX = ".countries.tsv";
+
+	protected final LocationResolver resolver;
+	// The known locations by id. Ids that are not in the database are null.
+	private final Location[] knownLocations;
+	private final List<Stripe> stripes = new ArrayList<Stripe>();
+	private final ThreadLocal<Stripe> stripe = new ThreadLocal<Stripe>() {
+		protected Stripe initialValue() {
+			Stripe stripe = new Stripe(knownLocations.length);
+			synchronized (stripes) {
+				stripes.add(stripe);
+			}
+			return stripe;
+		}
+	};
+
+	public LocationAggregator(LocationResolver resolver) {
+		this.resolver = resolver;
+		int maxId = -1;
+		for (Location location : resolver.getDatabase().getLocations())
+			maxId = Math.max(maxId, location.getId());
+		this.knownLocations = new Location[maxId + 1];
+		for (Location location : resolver.getDatabase().getLocations()) {
+			if (location.getId() >= 0)
+				this.knownLocations[location.getId()] = location;
+		}
+	}
+
+	/**
+	 * Counts one tweet with this location. A null or none location counts as unresolved.
+	 * @param location
+	 */
+	public void add(Location location) {
+		add(location, 1);
+	}
+
+	public void add(Location location, long count) {
+		Stripe stripe = this.stripe.get();
+		if (location == null || location.isNone()) {
+			stripe.numUnresolved += count;
+			return;
+		}
+		int id = location.getId();
+		if (location.isKnownLocation() && id >= 0 && id < stripe.counts.length) {
+			stripe.counts[id] += count;
+		} else {
+			long[] dynamicCount = stripe.dynamicCounts.get(location);
+			if (dynamicCount == null) {
+				dynamicCount = new long[1];
+				stripe.dynamicCounts.put(location, dynamicCount);
+			}
+			dynamicCount[0] += count;
+		}
+	}
+
+	/**
+	 * Combines the counts of all threads and rolls them up the location hierarchy.
+	 * @return
+	 */
+	public LocationCounts getCounts() {
+		long[] counts = new long[this.knownLocations.length];
+		Map<Location, long[]> dynamicCounts = new HashMap<Location, long[]>();
+		long numUnresolved = 0;
+		synchronized (this.stripes) {
+			for (Stripe stripe : this.stripes) {
+				for (int ii = 0; ii < counts.length; ii++)
+					counts[ii] += stripe.counts[ii];
+				for (Map.Entry<Location, long[]> entry : stripe.dynamicCounts.entrySet()) {
+					long[] count = dynamicCounts.get(entry.getKey());
+					if (count == null)
+						dynamicCounts.put(entry.getKey(), entry.getValue().clone());
+					else
+						count[0] += entry.getValue()[0];
+				}
+				numUnresolved += stripe.numUnresolved;
+			}
+		}
+
+		LocationCounts locationCounts = new LocationCounts(numUnresolved);
+		for (int ii = 0; ii < counts.length; ii++) {
+			if (counts[ii] != 0)
+				locationCounts.add(this.knownLocations[ii], counts[ii], this.resolver);
+		}
+		for (Map.Entry<Location, long[]> entry : dynamicCounts.entrySet())
+			locationCounts.add(entry.getKey(), entry.getValue()[0], this.resolver);
+		return locationCounts;
+	}
+
+	/**
+	 * Writes the per location, per state and per country tables to the files prefix.locations.tsv,
+	 * prefix.states.tsv and prefix.countries.tsv.
+	 * @param prefix
+	 * @throws IOException
+	 */
+	public void writeTables(String prefix) throws IOException {
+		getCounts().writeTables(prefix);
+	}
+
+	/**
+	 * The counts of one thread. Only that thread writes to it.
+	 */
+	private static class Stripe {
+		private final long[] counts;
+		private final Map<Location, long[]> dynamicCounts = new HashMap<Location, long[]>();
+		private long numUnresolved = 0;
+
+		private Stripe(int numKnownLocations) {
+			this.counts = new long[numKnownLocations];
+		}
+	}
+
+	/**
+	 * The combined counts: for each location, the number of tweets resolved to exactly that location
+	 * and the total including all of its descendants.
+	 */
+	public static class LocationCounts {
+		private final Map<Location, long[]> counts = new HashMap<Location, long[]>();
+		private final long numUnresolved;
+		private long numResolved = 0;
+
+		protected LocationCounts(long numUnresolved) {
+			this.numUnresolved = numUnresolved;
+		}
+
+		protected void add(Location location, long count, LocationResolver resolver) {
+			this.numResolved += count;
+			getEntry(location)[0] += count;
+			while (location != null && !location.isNone()) {
+				getEntry(location)[1] += count;
+				location = resolver.getParent(location);
+			}
+		}
+
+		// {count, total}
+		private long[] getEntry(Location location) {
+			long[] entry = this.counts.get(location);
+			if (entry == null) {
+				entry = new long[2];
+				this.counts.put(location, entry);
+			}
+			return entry;
+		}
+
+		/**
+		 * The number of tweets resolved to exactly this location.
+		 */
+		public long getCount(Location location) {
+			long[] entry = this.counts.get(location);
+			return entry == null ? 0 : entry[0];
+		}
+
+		/**
+		 * The number of tweets resolved to this location or any of its descendants.
+		 */
+		public long getTotalCount(Location location) {
+			long[] entry = this.counts.get(location);
+			return entry == null ? 0 : entry[1];
+		}
+
+		public long getNumResolved() {
+			return this.numResolved;
+		}
+
+		public long getNumUnresolved() {
+			return this.numUnresolved;
+		}
+
+		/**
+		 * Returns the locations with a count or a descendant with a count, by total count (largest first).
+		 */
+		public List<Location> getLocations() {
+			List<Location> locations = new ArrayList<Location>(this.counts.keySet());
+			Collections.sort(locations, new Comparator<Location>() {
+				public int compare(Location location1, Location location2) {
+					long total1 = getTotalCount(location1);
+					long total2 = getTotalCount(location2);
+					if (total1 != total2)
+						return total1 > total2 ? -1 : 1;
+					return location1.getId() - location2.getId();
+				}
+			});
+			return locations;
+		}
+
+		public void writeTables(String prefix) throws IOException {
+			List<Location> locations = getLocations();
+
+			Writer writer = Utils.createWriter(prefix + LOCATIONS_TABLE_SUFFIX);
+			writer.write("id\tcountry\tstate\tcounty\tcity\tknown\tcount\ttotal\n");
+			for (Location location : locations) {
+				writer.write(location.getId() + "\t" + getField(location.getCountry()) + "\t" + getField(location.getState()) +
+						"\t" + getField(location.getCounty()) + "\t" + getField(location.getCity()) + "\t" + location.isKnownLocation() +
+						"\t" + getCount(location) + "\t" + getTotalCount(location) + "\n");
+			}
+			writer.close();
+
+			writer = Utils.createWriter(prefix + STATES_TABLE_SUFFIX);
+			writer.write("id\tcountry\tstate\ttotal\n");
+			for (Location location : locations) {
+				if (location.getState() != null && location.getCounty() == null && location.getCity() == null)
+					writer.write(location.getId() + "\t" + getField(location.getCountry()) + "\t" + location.getState() + "\t" + getTotalCount(location) + "\n");
+			}
+			writer.close();
+
+			writer = Utils.createWriter(prefix + COUNTRIES_TABLE_SUFFIX);
+			writer.write("id\tcountry\ttotal\n");
+			for (Location location : locations) {
+				if (location.getCountry() != null && location.getState() == null && location.getCounty() == null && location.getCity() == null)
+					writer.write(location.getId() + "\t" + location.getCountry() + "\t" + getTotalCount(location) + "\n");
+			}
+			writer.close();
+		}
+
+		private static String getField(String value) {
+			if (value == null)
+				return "";
+			return value.replace('\t', ' ');
+		}
+	}
+}
@@ -0,0 +1,73 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.stats;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import carmen.types.Location;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes each closed window as one line of JSON and flushes it, e.g.
+ * {"start":1381000000000,"end":1381000060000,"total":3,"counts":[{"id":3157,"count":2},{"id":440,"count":1}]}
+ * Times are milliseconds since the epoch, and the counts are ordered by count (largest first).
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class NdjsonWindowListener implements WindowedLocationCounter.WindowListener {
+	protected static Logger logger = Logger.getLogger(NdjsonWindowListener.class);
+
+	private final Writer writer;
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	public NdjsonWindowListener(Writer writer) {
+		this.writer = writer;
+	}
+
+	public synchronized void windowClosed(WindowedLocationCounter.Window window) {
+		List<Map.Entry<Location, Long>> entries = new ArrayList<Map.Entry<Location, Long>>(window.getCounts().entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<Location, Long>>() {
+			public int compare(Map.Entry<Location, Long> entry1, Map.Entry<Location, Long> entry2) {
+				return entry2.getValue().compareTo(entry1.getValue());
+			}
+		});
+
+		List<Map<String, Object>> counts = new ArrayList<Map<String, Object>>(entries.size());
+		for (Map.Entry<Location, Long> entry : entries) {
+			Map<String, Object> count = new LinkedHashMap<String, Object>();
+			count.put("id", entry.getKey().getId());
+			count.put("count", entry.getValue());
+			counts.add(count);
+		}
+		Map<String, Object> json = new LinkedHashMap<String, Object>();
+		json.put("start", window.getStartMillis());
+		json.put("end", window.getEndMillis());
+		json.put("total", window.getTotal());
+		json.put("counts", counts);
+
+		try {
+			this.writer.write(this.mapper.writeValueAsString(json));
+			this.writer.write("\n");
+			this.writer.flush();
+		} catch (IOException e) {
+			logger.error("Unable to write window: " + e.getMessage());
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		this.writer.close();
+	}
+}
@@ -0,0 +1,246 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.stats;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import carmen.types.Constants;
+import carmen.types.Location;
+import carmen.types.Resolution;
+import carmen.types.ResolutionMethod;
+import carmen.utils.Utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Counts what the tweets of a run contained and how their locations were resolved: the statistics
+ * reported by LocationResolverStatsDemo (and in the Carmen paper).
+ *
+ * Stats can be saved to and restored from JSON (toJson() and fromJson(), or write() and read() for files),
+ * e.g. for checkpoints, and the stats of several runs (e.g. shards of one input) can be combined with
+ * add(ResolutionStats) or the MergeStats tool.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class ResolutionStats {
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private long total = 0;
+	private long numResolved = 0;
+	private long skipped = 0;
+
+	private long hasPlace = 0;
+	private long hasCoordinate = 0;
+	private long hasCoordinate2 = 0;
+	private long hasGeo = 0;
+	private long hasUserProfile = 0;
+
+	private long numCity = 0;
+	private long numCounty = 0;
+	private long numState = 0;
+	private long numCountry = 0;
+
+	private final long[] resolutionMethodCounts = new long[ResolutionMethod.values().length];
+
+	/**
+	 * Counts a tweet and its resolution (null, or a none location, if it was not resolved).
+	 * @param tweet
+	 * @param resolution
+	 */
+	public void add(Map<String, Object> tweet, Resolution resolution) {
+		Map<String, Object> place = Utils.getPlaceFromTweet(tweet);
+		if (place != null && place.size() > 0)
+			this.hasPlace++;
+		if (Utils.getLatLngFromTweet(tweet) != null)
+			this.hasCoordinate++;
+		if (tweet.get(Constants.COORDINATES) != null)
+			this.hasCoordinate2++;
+		if (tweet.get("geo") != null)
+			this.hasGeo++;
+
+		String tweetLocation = Utils.getLocationFromTweet(tweet);
+		if (tweetLocation != null && tweetLocation.length() != 0)
+			this.hasUserProfile++;
+
+		this.total++;
+
+		if (resolution != null && !resolution.getLocation().isNone()) {
+			Location location = resolution.getLocation();
+			this.numResolved++;
+			ResolutionMethod resolutionMethod = resolution.getResolutionMethod();
+			if (resolutionMethod != null)
+				this.resolutionMethodCounts[resolutionMethod.ordinal()]++;
+
+			// What resolution is this location?
+			if (location.getCity() != null) {
+				this.numCity++;
+			} else if (location.getCounty() != null) {
+				this.numCounty++;
+			} else if (location.getState() != null) {
+				this.numState++;
+			} else if (location.getCountry() != null) {
+				this.numCountry++;
+			}
+		}
+	}
+
+	/**
+	 * Counts a line that was not a valid tweet.
+	 */
+	public void addSkipped() {
+		this.skipped++;
+	}
+
+	/**
+	 * Adds the counts of other stats to these.
+	 * @param stats
+	 */
+	public void add(ResolutionStats stats) {
+		this.total += stats.total;
+		this.numResolved += stats.numResolved;
+		this.skipped += stats.skipped;
+		this.hasPlace += stats.hasPlace;
+		this.hasCoordinate += stats.hasCoordinate;
+		this.hasCoordinate2 += stats.hasCoordinate2;
+		this.hasGeo += stats.hasGeo;
+		this.hasUserProfile += stats.hasUserProfile;
+		this.numCity += stats.numCity;
+		this.numCounty += stats.numCounty;
+		this.numState += stats.numState;
+		this.numCountry += stats.numCountry;
+		for (int ii = 0; ii < this.resolutionMethodCounts.length; ii++)
+			this.resolutionMethodCounts[ii] += stats.resolutionMethodCounts[ii];
+	}
+
+	public long getTotal() {
+		return this.total;
+	}
+
+	public long getNumResolved() {
+		return this.numResolved;
+	}
+
+	public long getSkipped() {
+		return this.skipped;
+	}
+
+	public long getResolutionMethodCount(ResolutionMethod resolutionMethod) {
+		return this.resolutionMethodCounts[resolutionMethod.ordinal()];
+	}
+
+	public void log(Logger logger) {
+		logger.info("Total: " + this.total);
+		logger.info("Resolved: " + this.numResolved);
+		logger.info("Skipped (not included in total): " + this.skipped);
+
+		logger.info("Has Place:" + this.hasPlace);
+		logger.info("Has Coordinate: " + this.hasCoordinate);
+		logger.info("Has Coordinate2: " + this.hasCoordinate2);
+		logger.info("Has UserProfile: " + this.hasUserProfile);
+		logger.info("Has Geo: " + this.hasGeo);
+
+		logger.info("Num city: " + this.numCity);
+		logger.info("Num county: " + this.numCounty);
+		logger.info("Num state: " + this.numState);
+		logger.info("Num country: " + this.numCountry);
+
+		for (ResolutionMethod method : ResolutionMethod.values()) {
+			if (this.resolutionMethodCounts[method.ordinal()] != 0)
+				logger.info(method + "\t" + this.resolutionMethodCounts[method.ordinal()]);
+		}
+	}
+
+	public Map<String, Object> toJson() {
+		Map<String, Object> json = new LinkedHashMap<String, Object>();
+		json.put("total", this.total);
+		json.put("resolved", this.numResolved);
+		json.put("skipped", this.skipped);
+		json.put("has_place", this.hasPlace);
+		json.put("has_coordinate", this.hasCoordinate);
+		json.put("has_coordinate2", this.hasCoordinate2);
+		json.put("has_geo", this.hasGeo);
+		json.put("has_user_profile", this.hasUserProfile);
+		json.put("num_city", this.numCity);
+		json.put("num_county", this.numCounty);
+		json.put("num_state", this.numState);
+		json.put("num_country", this.numCountry);
+		Map<String, Object> methods = new LinkedHashMap<String, Object>();
+		for (ResolutionMethod method : ResolutionMethod.values())
+			methods.put(method.name(), this.resolutionMethodCounts[method.ordinal()]);
+		json.put("resolution_methods", methods);
+		return json;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static ResolutionStats fromJson(Map<String, Object> json) {
+		ResolutionStats stats = new ResolutionStats();
+		stats.total = getLong(json, "total");
+		stats.numResolved = getLong(json, "resolved");
+		stats.skipped = getLong(json, "skipped");
+		stats.hasPlace = getLong(json, "has_place");
+		stats.hasCoordinate = getLong(json, "has_coordinate");
+		stats.hasCoordinate2 = getLong(json, "has_coordinate2");
+		stats.hasGeo = getLong(json, "has_geo");
+		stats.hasUserProfile = getLong(json, "has_user_profile");
+		stats.numCity = getLong(json, "num_city");
+		stats.numCounty = getLong(json, "num_county");
+		stats.numState = getLong(json, "num_state");
+		stats.numCountry = getLong(json, "num_country");
+		Map<String, Object> methods = (Map<String, Object>)json.get("resolution_methods");
+		if (methods != null) {
+			for (ResolutionMethod method : ResolutionMethod.values())
+				stats.resolutionMethodCounts[method.ordinal()] = getLong(methods, method.name());
+		}
+		return stats;
+	}
+
+	/**
+	 * Writes the stats as JSON (see toJson()). The filename may be - for standard output.
+	 * @param filename
+	 * @throws IOException
+	 */
+	public void write(String filename) throws IOException {
+		OutputStream outputStream = Utils.createOutputStream(filename);
+		try {
+			outputStream.write(mapper.writeValueAsBytes(toJson()));
+			outputStream.write('\n');
+		} finally {
+			if (Utils.STANDARD_STREAM.equals(filename))
+				outputStream.flush();
+			else
+				outputStream.close();
+		}
+	}
+
+	/**
+	 * Reads stats written by write().
+	 * @param filename
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public static ResolutionStats read(String filename) throws IOException {
+		InputStream inputStream = Utils.createInputStream(filename);
+		try {
+			return fromJson((Map<String, Object>)mapper.readValue(inputStream, Map.class));
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	private static long getLong(Map<String, Object> json, String key) {
+		Object value = json.get(key);
+		if (value == null)
+			return 0;
+		return ((Number)value).longValue();
+	}
+}
@@ -0,0 +1,288 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.stats;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+
+import carmen.types.Resolution;
+import carmen.types.ResolutionMethod;
+
+/**
+ * Measures where the time of a run over records (tweets) goes: reading lines (with decompression), parsing,
+ * resolving (for each resolution method), serializing the output and writing it (with compression), and
+ * logs a progress line with rates every few seconds and a report at the end.
+ *
+ * Only one record in every sampleInterval is timed, so the cost is a few calls to System.nanoTime() per
+ * sampled record. The total time of each stage is the elapsed time (less writing) in proportion to the time
+ * of the stage in the sampled records, so the stages and "other" (work between the stages) add up to the
+ * elapsed time. Writes are timed exactly, on the stream returned by wrap(), which should be below the output
+ * buffer so that it sees one call per buffer. The time spent writing is not counted in the other stages.
+ *
+ * A run calls startRecord() before reading each record, then stageDone() (or resolveDone()) after each
+ * stage, and endRecord() at the end of the record. A StageTimer is not thread safe.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class StageTimer {
+	public enum Stage {
+		READ, PARSE, RESOLVE, SERIALIZE, WRITE
+	}
+
+	public static final int DEFAULT_SAMPLE_INTERVAL = 64;
+	private static final int PROGRESS_CHECK_INTERVAL = 1024;
+
+	private final int sampleInterval;
+	private final long progressInterval;
+	private final Logger logger;
+
+	private final long[] sampledNanos = new long[Stage.values().length];
+	private final long[] sampledResolveNanos = new long[ResolutionMethod.values().length + 1];
+	// The time of the sampled records, less writing.
+	private long sampledRecordNanos = 0;
+	private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+	// One per resolution method, and the last for records that were not resolved.
+	private final LatencyHistogram[] resolveHistograms = new LatencyHistogram[ResolutionMethod.values().length + 1];
+	private long writeNanos = 0;
+
+	private final long startTime;
+	private long records = 0;
+	private long sampledRecords = 0;
+	private boolean sampled = false;
+	private long mark = 0;
+	private long writeMark = 0;
+	private long recordStart = 0;
+	private long recordWriteStart = 0;
+
+	private long lastProgressTime;
+	private long lastProgressRecords = 0;
+	private long nextProgressTime;
+
+	/**
+	 * @param sampleInterval Time one record in this many, or none if 0.
+	 * @param progressSeconds Seconds between progress lines, or 0 for none.
+	 * @param logger The logger for progress lines and the report.
+	 */
+	public StageTimer(int sampleInterval, double progressSeconds, Logger logger) {
+		this.sampleInterval = Math.max(0, sampleInterval);
+		this.progressInterval = (long)(progressSeconds * 1e9);
+		this.logger = logger;
+		for (int ii = 0; ii < this.histograms.length; ii++)
+			this.histograms[ii] = new LatencyHistogram();
+		for (int ii = 0; ii < this.resolveHistograms.length; ii++)
+			this.resolveHistograms[ii] = new LatencyHistogram();
+		this.startTime = System.nanoTime();
+		this.lastProgressTime = this.startTime;
+		this.nextProgressTime = this.startTime + this.progressInterval;
+	}
+
+	/**
+	 * Starts the next record, before it is read.
+	 */
+	public void startRecord() {
+		this.sampled = this.sampleInterval > 0 && this.records % this.sampleInterval == 0;
+		if (this.sampled) {
+			this.mark = System.nanoTime();
+			this.writeMark = this.writeNanos;
+			this.recordStart = this.mark;
+			this.recordWriteStart = this.writeNanos;
+		}
+	}
+
+	/**
+	 * Ends a stage of the current record, which started at the end of the last stage (or startRecord()).
+	 * @param stage
+	 */
+	public void stageDone(Stage stage) {
+		if (this.sampled)
+			add(stage, System.nanoTime());
+	}
+
+	/**
+	 * Ends the resolution of the current record.
+	 * @param resolution The resolution, or null if the record was not resolved.
+	 */
+	public void resolveDone(Resolution resolution) {
+		if (this.sampled) {
+			long nanos = add(Stage.RESOLVE, System.nanoTime());
+			int method = resolution == null ? this.resolveHistograms.length - 1 : resolution.getResolutionMethod().ordinal();
+			this.resolveHistograms[method].record(nanos);
+			this.sampledResolveNanos[method] += nanos;
+		}
+	}
+
+	/**
+	 * Restarts the current stage without counting the time since the last stage, e.g. after work that is
+	 * not one of the stages.
+	 */
+	public void skip() {
+		if (this.sampled) {
+			this.mark = System.nanoTime();
+			this.writeMark = this.writeNanos;
+		}
+	}
+
+	/**
+	 * Ends the current record, and logs a progress line if it is time.
+	 */
+	public void endRecord() {
+		this.records++;
+		if (this.sampled) {
+			this.sampledRecords++;
+			this.sampledRecordNanos += System.nanoTime() - this.recordStart - (this.writeNanos - this.recordWriteStart);
+		}
+		if (this.progressInterval > 0 && this.records % PROGRESS_CHECK_INTERVAL == 0) {
+			long now = System.nanoTime();
+			if (now >= this.nextProgressTime) {
+				logProgress(now);
+				this.nextProgressTime = now + this.progressInterval;
+			}
+		}
+	}
+
+	private long add(Stage stage, long now) {
+		// Writes in this stage were counted when they happened.
+		long nanos = now - this.mark - (this.writeNanos - this.writeMark);
+		this.sampledNanos[stage.ordinal()] += nanos;
+		this.histograms[stage.ordinal()].record(nanos);
+		this.mark = now;
+		this.writeMark = this.writeNanos;
+		return nanos;
+	}
+
+	/**
+	 * Returns a stream that counts the time spent in the given stream as the write stage.
+	 * @param outputStream
+	 * @return
+	 */
+	public OutputStream wrap(OutputStream outputStream) {
+		return new TimedOutputStream(outputStream);
+	}
+
+	public long getRecords() {
+		return this.records;
+	}
+
+	/**
+	 * Returns the estimated nanoseconds spent in a stage since the timer was created.
+	 * @param stage
+	 * @return
+	 */
+	public long getNanos(Stage stage) {
+		return estimate(stage, System.nanoTime());
+	}
+
+	/**
+	 * The share of the elapsed time (less writing) of the given sampled time.
+	 */
+	private long estimate(long sampledNanos, long now) {
+		if (this.sampledRecordNanos <= 0)
+			return 0;
+		return (long)((double)sampledNanos / this.sampledRecordNanos * Math.max(0, now - this.startTime - this.writeNanos));
+	}
+
+	private long estimate(Stage stage, long now) {
+		return stage == Stage.WRITE ? this.writeNanos : estimate(this.sampledNanos[stage.ordinal()], now);
+	}
+
+	private void logProgress(long now) {
+		double seconds = (now - this.startTime) / 1e9;
+		double recentSeconds = (now - this.lastProgressTime) / 1e9;
+		StringBuilder builder = new StringBuilder();
+		builder.append(String.format("%d records in %.1f s: %.0f records/s (%.0f records/s recently).", this.records, seconds,
+				this.records / Math.max(seconds, 1e-9), (this.records - this.lastProgressRecords) / Math.max(recentSeconds, 1e-9)));
+		if (this.sampledRecords > 0) {
+			for (Stage stage : Stage.values())
+				builder.append(String.format(" %s %.0f%%", stage.name().toLowerCase(), 100.0 * estimate(stage, now) / Math.max(1, now - this.startTime)));
+		}
+		this.logger.info(builder.toString());
+		this.lastProgressTime = now;
+		this.lastProgressRecords = this.records;
+	}
+
+	/**
+	 * Logs the total time of each stage and, for the sampled records, the percentiles of the time per record.
+	 */
+	public void log() {
+		long now = System.nanoTime();
+		long elapsed = now - this.startTime;
+		this.logger.info(String.format("%d records in %.3f s: %.0f records/s.", this.records, elapsed / 1e9, this.records / Math.max(elapsed / 1e9, 1e-9)));
+		if (this.sampleInterval == 0)
+			return;
+		this.logger.info(String.format("Stage times (from %d sampled records; write from every write):", this.sampledRecords));
+		long other = elapsed;
+		for (Stage stage : Stage.values()) {
+			long nanos = estimate(stage, now);
+			other -= nanos;
+			LatencyHistogram histogram = this.histograms[stage.ordinal()];
+			if (stage == Stage.WRITE)
+				this.logger.info(String.format("  %-22s %9.3f s %5.1f%%  %d writes, p50 %.1f us, p99 %.1f us, max %.1f us per write", stage.name().toLowerCase(),
+						nanos / 1e9, 100.0 * nanos / Math.max(1, elapsed), histogram.getCount(), histogram.getValueAtPercentile(50) / 1e3,
+						histogram.getValueAtPercentile(99) / 1e3, histogram.getMax() / 1e3));
+			else
+				logStage(stage.name().toLowerCase(), nanos, elapsed, histogram);
+			if (stage == Stage.RESOLVE) {
+				for (int ii = 0; ii < this.resolveHistograms.length; ii++) {
+					LatencyHistogram methodHistogram = this.resolveHistograms[ii];
+					if (methodHistogram.getCount() == 0)
+						continue;
+					String name = ii < ResolutionMethod.values().length ? ResolutionMethod.values()[ii].name() : "not resolved";
+					long methodNanos = estimate(this.sampledResolveNanos[ii], now);
+					logStage("  " + name.toLowerCase(), methodNanos, elapsed, methodHistogram);
+				}
+			}
+		}
+		this.logger.info(String.format("  %-22s %9.3f s %5.1f%%", "other", other / 1e9, 100.0 * other / Math.max(1, elapsed)));
+	}
+
+	private void logStage(String name, long nanos, long elapsed, LatencyHistogram histogram) {
+		this.logger.info(String.format("  %-22s %9.3f s %5.1f%%  p50 %.2f us, p99 %.2f us, p999 %.2f us, max %.1f us per record", name,
+				nanos / 1e9, 100.0 * nanos / Math.max(1, elapsed), histogram.getValueAtPercentile(50) / 1e3,
+				histogram.getValueAtPercentile(99) / 1e3, histogram.getValueAtPercentile(99.9) / 1e3, histogram.getMax() / 1e3));
+	}
+
+	/**
+	 * Counts the time spent in the underlying stream.
+	 */
+	private class TimedOutputStream extends FilterOutputStream {
+		private TimedOutputStream(OutputStream outputStream) {
+			super(outputStream);
+		}
+
+		public void write(int b) throws IOException {
+			long start = System.nanoTime();
+			this.out.write(b);
+			addWrite(start);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			this.out.write(b, off, len);
+			addWrite(start);
+		}
+
+		public void flush() throws IOException {
+			long start = System.nanoTime();
+			this.out.flush();
+			addWrite(start);
+		}
+
+		public void close() throws IOException {
+			long start = System.nanoTime();
+			this.out.close();
+			addWrite(start);
+		}
+
+		private void addWrite(long start) {
+			long nanos = System.nanoTime() - start;
+			StageTimer.this.writeNanos += nanos;
+			StageTimer.this.histograms[Stage.WRITE.ordinal()].record(nanos);
+		}
+	}
+}
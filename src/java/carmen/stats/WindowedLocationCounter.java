@@ -0,0 +1,403 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.stats;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import carmen.LocationResolver;
+import carmen.ResolutionListener;
+import carmen.types.Location;
+import carmen.types.Resolution;
+import carmen.utils.Utils;
+
+/**
+ * Counts tweets per location in time windows keyed on the time each tweet was created, and calls a
+ * WindowListener with the counts when a window closes.
+ *
+ * Windows have a fixed size and start every slide milliseconds (the slide must divide the size).
+ * A tumbling window has slide equal to size. Windows are aligned to multiples of the slide since the epoch.
+ * Time is measured by the tweets: a window closes when a tweet is seen that was created at least
+ * allowedLateness after the end of the window. Tweets that arrive later than that are still counted in
+ * the windows that are open, and are only dropped (see getNumLate()) once no open window contains them.
+ *
+ * Counts are kept per pane (a slide long piece of time) in a fixed ring of panes, so memory is bounded
+ * by the number of locations times the number of panes in a window plus the allowed lateness. Each pane
+ * holds a count for every known location, indexed by location id. Tweets resolved to locations that are
+ * not in the database are counted for their closest known ancestor.
+ *
+ * add() is lock free and can be called from any number of threads. The thread that sees the end of a window
+ * closes it and calls the listener, so the listener should be fast or hand the window off to another thread.
+ * Call close() at the end of the stream to close the remaining windows.
+ *
+ * A counter can be fed by a LocationResolver by adding it as a ResolutionListener.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class WindowedLocationCounter implements ResolutionListener {
+	/**
+	 * Called when a window closes.
+	 */
+	public interface WindowListener {
+		public void windowClosed(Window window);
+	}
+
+	protected final LocationResolver resolver;
+	protected final WindowListener listener;
+	private final long slideMillis;
+	private final long sizeMillis;
+	private final long allowedLatenessMillis;
+	private final int panesPerWindow;
+	private final int numSlots;
+
+	// The known locations by id. Ids that are not in the database are null.
+	private final Location[] knownLocations;
+	private final int numLocations;
+
+	// The counts of the pane in each slot of the ring: counts[slot * numLocations + location id].
+	private final AtomicLongArray counts;
+	// The number of threads adding to each slot. A slot is only cleared when no thread is adding to it.
+	private final AtomicIntegerArray writers;
+
+	private static final long NOT_STARTED = Long.MIN_VALUE;
+	// The latest creation time seen.
+	private final AtomicLong maxTime = new AtomicLong(NOT_STARTED);
+	// Panes before this one are closed: no open window contains them, and their slots may be reused.
+	private final AtomicLong firstOpenPane = new AtomicLong(NOT_STARTED);
+	// Panes from this one on do not have a cleared slot yet.
+	private final AtomicLong paneLimit = new AtomicLong(NOT_STARTED);
+	// The pane that ends the next window to close (exclusive).
+	private volatile long nextWindowEnd;
+	private final AtomicBoolean closing = new AtomicBoolean(false);
+	private volatile boolean closed = false;
+
+	private final AtomicLong numCounted = new AtomicLong();
+	private final AtomicLong numLate = new AtomicLong();
+	private final AtomicLong numUnresolved = new AtomicLong();
+	private final AtomicLong numWithoutTime = new AtomicLong();
+
+	/**
+	 * @param resolver Used to find the known ancestors of new locations.
+	 * @param sizeMillis The length of each window.
+	 * @param slideMillis The time between the starts of windows. Must divide sizeMillis.
+	 * @param allowedLatenessMillis How long to wait for late tweets before closing a window.
+	 * @param listener Called with each window when it closes.
+	 */
+	public WindowedLocationCounter(LocationResolver resolver, long sizeMillis, long slideMillis, long allowedLatenessMillis,
+			WindowListener listener) {
+		if (sizeMillis <= 0 || slideMillis <= 0 || sizeMillis % slideMillis != 0)
+			throw new IllegalArgumentException("The window slide (" + slideMillis + ") must divide the window size (" + sizeMillis + ").");
+		if (allowedLatenessMillis < 0)
+			throw new IllegalArgumentException("The allowed lateness must not be negative: " + allowedLatenessMillis);
+		this.resolver = resolver;
+		this.listener = listener;
+		this.sizeMillis = sizeMillis;
+		this.slideMillis = slideMillis;
+		this.allowedLatenessMillis = allowedLatenessMillis;
+		this.panesPerWindow = (int)(sizeMillis / slideMillis);
+		// Panes that may be open: those of the oldest open window, and those up to the latest time seen.
+		long latenessPanes = (allowedLatenessMillis + slideMillis - 1) / slideMillis;
+		if (this.panesPerWindow + latenessPanes + 1 > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many panes: the window size and allowed lateness are too large for the slide.");
+		this.numSlots = (int)(this.panesPerWindow + latenessPanes + 1);
+
+		int maxId = -1;
+		for (Location location : resolver.getDatabase().getLocations())
+			maxId = Math.max(maxId, location.getId());
+		this.knownLocations = new Location[maxId + 1];
+		for (Location location : resolver.getDatabase().getLocations()) {
+			if (location.getId() >= 0)
+				this.knownLocations[location.getId()] = location;
+		}
+		this.numLocations = this.knownLocations.length;
+		if ((long)this.numSlots * this.numLocations > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many panes (" + this.numSlots + ") for " + this.numLocations + " locations.");
+		this.counts = new AtomicLongArray(this.numSlots * this.numLocations);
+		this.writers = new AtomicIntegerArray(this.numSlots);
+	}
+
+	/**
+	 * Counts a resolved tweet by the time it was created. Tweets without a location or a creation time are not counted.
+	 */
+	public void locationResolved(Map<String, Object> tweet, Resolution resolution) {
+		if (resolution == null || resolution.getLocation().isNone()) {
+			this.numUnresolved.incrementAndGet();
+			return;
+		}
+		Long createdAt = Utils.getCreatedAtFromTweet(tweet);
+		if (createdAt == null) {
+			this.numWithoutTime.incrementAndGet();
+			return;
+		}
+		add(resolution.getLocation(), createdAt);
+	}
+
+	/**
+	 * Counts one tweet with this location created at the given time.
+	 * @param location
+	 * @param timeMillis
+	 */
+	public void add(Location location, long timeMillis) {
+		int locationIndex = getLocationIndex(location);
+		if (locationIndex < 0) {
+			this.numUnresolved.incrementAndGet();
+			return;
+		}
+		if (this.closed)
+			throw new IllegalStateException("The counter is closed.");
+
+		long pane = floorDiv(timeMillis, this.slideMillis);
+		start(pane);
+		updateMaxTime(timeMillis);
+
+		while (true) {
+			long firstOpen = this.firstOpenPane.get();
+			if (pane < firstOpen) {
+				this.numLate.incrementAndGet();
+				break;
+			}
+			if (pane < this.paneLimit.get()) {
+				int slot = (int)floorMod(pane, this.numSlots);
+				this.writers.incrementAndGet(slot);
+				try {
+					// The pane may have been closed since it was checked. Closing waits for the writers of a slot.
+					if (pane >= this.firstOpenPane.get()) {
+						this.counts.incrementAndGet(slot * this.numLocations + locationIndex);
+						this.numCounted.incrementAndGet();
+					} else {
+						this.numLate.incrementAndGet();
+					}
+				} finally {
+					this.writers.decrementAndGet(slot);
+				}
+				break;
+			}
+			// The pane is too far ahead for the ring. The windows before it must close first.
+			if (!closeWindows(this.maxTime.get() - this.allowedLatenessMillis, false))
+				Thread.yield();
+		}
+
+		closeWindows(this.maxTime.get() - this.allowedLatenessMillis, false);
+	}
+
+	/**
+	 * Returns the index of the counts for a location: its id if it is known, otherwise the id of its closest known ancestor.
+	 * Returns -1 if there is none.
+	 */
+	private int getLocationIndex(Location location) {
+		while (location != null && !location.isNone()) {
+			int id = location.getId();
+			if (location.isKnownLocation() && id >= 0 && id < this.numLocations)
+				return id;
+			location = this.resolver.getParent(location);
+		}
+		return -1;
+	}
+
+	/**
+	 * Sets the first open pane when the first tweet is seen. Tweets up to the allowed lateness before it are counted.
+	 */
+	private void start(long pane) {
+		if (this.firstOpenPane.get() != NOT_STARTED)
+			return;
+		long latenessPanes = this.numSlots - this.panesPerWindow - 1;
+		long firstPane = pane - latenessPanes;
+		while (!this.closing.compareAndSet(false, true))
+			Thread.yield();
+		try {
+			if (this.firstOpenPane.get() == NOT_STARTED) {
+				this.nextWindowEnd = firstPane + 1;
+				this.firstOpenPane.set(firstPane - this.panesPerWindow + 1);
+				this.paneLimit.set(firstPane - this.panesPerWindow + 1 + this.numSlots);
+			}
+		} finally {
+			this.closing.set(false);
+		}
+	}
+
+	private void updateMaxTime(long timeMillis) {
+		long max;
+		while ((max = this.maxTime.get()) < timeMillis) {
+			if (this.maxTime.compareAndSet(max, timeMillis))
+				break;
+		}
+	}
+
+	/**
+	 * Closes the windows that end at or before the watermark, if no other thread is closing windows.
+	 * @param watermarkMillis
+	 * @param finalWatermark If false, the watermark is read again from the latest time seen after closing windows.
+	 * @return false if another thread is closing windows.
+	 */
+	private boolean closeWindows(long watermarkMillis, boolean finalWatermark) {
+		while (floorDiv(watermarkMillis, this.slideMillis) >= this.nextWindowEnd) {
+			if (!this.closing.compareAndSet(false, true))
+				return false;
+			try {
+				while (floorDiv(watermarkMillis, this.slideMillis) >= this.nextWindowEnd)
+					closeNextWindow();
+			} finally {
+				this.closing.set(false);
+			}
+			// Another thread may have moved the watermark while this one held the flag.
+			if (!finalWatermark)
+				watermarkMillis = this.maxTime.get() - this.allowedLatenessMillis;
+		}
+		return true;
+	}
+
+	/**
+	 * Emits the next window and closes its first pane, which no later window contains. Only called by the closing thread.
+	 */
+	private void closeNextWindow() {
+		long end = this.nextWindowEnd;
+		long start = end - this.panesPerWindow;
+
+		// Close the first pane and wait for the threads still adding to it, so the window has all of its tweets.
+		// Tweets for the other panes of the window may still arrive; they are counted in the later windows.
+		this.firstOpenPane.set(start + 1);
+		this.nextWindowEnd = end + 1;
+		int slot = (int)floorMod(start, this.numSlots);
+		while (this.writers.get(slot) != 0)
+			Thread.yield();
+
+		Map<Location, Long> windowCounts = new LinkedHashMap<Location, Long>();
+		long total = 0;
+		for (int location = 0; location < this.numLocations; location++) {
+			long count = 0;
+			for (long pane = start; pane < end; pane++)
+				count += this.counts.get((int)floorMod(pane, this.numSlots) * this.numLocations + location);
+			if (count != 0) {
+				windowCounts.put(this.knownLocations[location], count);
+				total += count;
+			}
+		}
+
+		// Clear the first pane. Now its slot can be used by the pane after the last one in the ring.
+		int offset = slot * this.numLocations;
+		for (int location = 0; location < this.numLocations; location++)
+			this.counts.set(offset + location, 0);
+		this.paneLimit.set(start + 1 + this.numSlots);
+
+		if (this.listener != null)
+			this.listener.windowClosed(new Window(start * this.slideMillis, end * this.slideMillis, total,
+					Collections.unmodifiableMap(windowCounts)));
+	}
+
+	/**
+	 * Closes every window that contains a counted tweet. Call at the end of the stream.
+	 */
+	public void close() {
+		if (this.closed)
+			return;
+		long max = this.maxTime.get();
+		if (max != NOT_STARTED) {
+			// The last window that contains the latest tweet ends panesPerWindow panes after it.
+			long lastEnd = floorDiv(max, this.slideMillis) + this.panesPerWindow;
+			while (!closeWindows(lastEnd * this.slideMillis, true))
+				Thread.yield();
+		}
+		this.closed = true;
+	}
+
+	private static long floorDiv(long value, long divisor) {
+		long result = value / divisor;
+		if ((value % divisor != 0) && ((value < 0) != (divisor < 0)))
+			result--;
+		return result;
+	}
+
+	private static long floorMod(long value, long divisor) {
+		return value - floorDiv(value, divisor) * divisor;
+	}
+
+	public long getSizeMillis() {
+		return this.sizeMillis;
+	}
+
+	public long getSlideMillis() {
+		return this.slideMillis;
+	}
+
+	public long getAllowedLatenessMillis() {
+		return this.allowedLatenessMillis;
+	}
+
+	/**
+	 * The number of tweets counted in at least one window.
+	 */
+	public long getNumCounted() {
+		return this.numCounted.get();
+	}
+
+	/**
+	 * The number of tweets that arrived after every window that contains them had closed.
+	 */
+	public long getNumLate() {
+		return this.numLate.get();
+	}
+
+	/**
+	 * The number of tweets without a known location or known ancestor.
+	 */
+	public long getNumUnresolved() {
+		return this.numUnresolved.get();
+	}
+
+	/**
+	 * The number of resolved tweets without a valid created_at field.
+	 */
+	public long getNumWithoutTime() {
+		return this.numWithoutTime.get();
+	}
+
+	/**
+	 * The counts of a closed window.
+	 */
+	public static class Window {
+		private final long startMillis;
+		private final long endMillis;
+		private final long total;
+		private final Map<Location, Long> counts;
+
+		protected Window(long startMillis, long endMillis, long total, Map<Location, Long> counts) {
+			this.startMillis = startMillis;
+			this.endMillis = endMillis;
+			this.total = total;
+			this.counts = counts;
+		}
+
+		/**
+		 * The start of the window in milliseconds since the epoch (inclusive).
+		 */
+		public long getStartMillis() {
+			return this.startMillis;
+		}
+
+		/**
+		 * The end of the window in milliseconds since the epoch (exclusive).
+		 */
+		public long getEndMillis() {
+			return this.endMillis;
+		}
+
+		public long getTotal() {
+			return this.total;
+		}
+
+		/**
+		 * The number of tweets in the window for each location that has any, by location id.
+		 */
+		public Map<Location, Long> getCounts() {
+			return this.counts;
+		}
+	}
+}
@@ -0,0 +1,190 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import carmen.LocationDatabase;
+import carmen.LocationResolver;
+import carmen.io.ByteLineReader;
+import carmen.io.TweetParser;
+import carmen.types.Location;
+import carmen.utils.Utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Times LocationResolver.resolveUserLocation() on the user locations of a file of tweets, separately for
+ * the strings that are not resolved (the common case) and those that are, against the lookup without the
+ * name filters of LocationDatabase. Also checks that both give the same location for every string, and
+ * measures how often strings that are not names pass the filters.
+ * Usage: BenchmarkUserLocations tweets.json [repetitions]
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class BenchmarkUserLocations {
+	protected static Logger logger = Logger.getLogger(BenchmarkUserLocations.class);
+
+	private static final Pattern statePattern = Pattern.compile(".+,\\s*(\\w+)");
+
+	private final LocationDatabase database;
+	// Keeps the results of timed calls in use.
+	private static volatile int numResolved = 0;
+
+	public BenchmarkUserLocations(LocationDatabase database) {
+		this.database = database;
+	}
+
+	/**
+	 * Resolves a user location as LocationResolver does, but without the name filters.
+	 */
+	public Location resolveWithoutFilters(String userLocation) {
+		Location knownLocation = this.database.getLocationForName(normalize(userLocation));
+		if (knownLocation != null)
+			return knownLocation;
+		String stateOrCountryName = getStateOrCountryName(userLocation);
+		if (stateOrCountryName != null)
+			return this.database.getLocationForName(stateOrCountryName);
+		return null;
+	}
+
+	private static String normalize(String userLocation) {
+		return userLocation.replaceAll("\\p{Punct}", " ").replaceAll("\\s+", " ").toLowerCase().trim();
+	}
+
+	/**
+	 * Returns the word after the last comma, or null if the string does not match statePattern.
+	 */
+	private static String getLastWord(String userLocation) {
+		Matcher matcher = statePattern.matcher(userLocation.replaceAll("\\s+", " ").toLowerCase().trim());
+		if (!matcher.matches())
+			return null;
+		return matcher.group(1).toLowerCase();
+	}
+
+	private String getStateOrCountryName(String userLocation) {
+		String word = getLastWord(userLocation);
+		if (word == null)
+			return null;
+		if (this.database.isStateFullName(word) || this.database.isCountryFullName(word))
+			return word;
+		if (this.database.getStateFullName(word) != null)
+			return this.database.getStateFullName(word);
+		return this.database.getCountryFullName(word);
+	}
+
+	private boolean isStateOrCountryName(String word) {
+		return this.database.isStateFullName(word) || this.database.isCountryFullName(word)
+				|| this.database.getStateFullName(word) != null || this.database.getCountryFullName(word) != null;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: BenchmarkUserLocations <tweet_file> [repetitions]");
+			System.exit(1);
+		}
+		int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		LocationResolver resolver = LocationResolver.getLocationResolver();
+		LocationDatabase database = resolver.getDatabase();
+		BenchmarkUserLocations benchmark = new BenchmarkUserLocations(database);
+
+		logger.info("Reading user locations from: " + args[0]);
+		List<String> userLocations = new ArrayList<String>();
+		TweetParser parser = new TweetParser(new ObjectMapper());
+		ByteLineReader reader = new ByteLineReader(Utils.createInputStream(args[0]));
+		while (reader.nextLine()) {
+			try {
+				String userLocation = Utils.getLocationFromTweet(parser.parseFields(reader.getBuffer(), reader.getStart(), reader.getLength()));
+				if (userLocation != null)
+					userLocations.add(userLocation);
+			} catch (IOException e) {
+				// Skip lines that are not tweets.
+			}
+		}
+		reader.close();
+
+		// Split the strings into those that are resolved and those that are not, checking that the filters
+		// do not change any result.
+		List<String> misses = new ArrayList<String>();
+		List<String> hits = new ArrayList<String>();
+		int differences = 0;
+		for (String userLocation : userLocations) {
+			Location expected = benchmark.resolveWithoutFilters(userLocation);
+			if (expected != resolver.resolveUserLocation(userLocation)) {
+				if (differences++ < 10)
+					logger.error("Different location for: " + userLocation);
+			}
+			if (expected == null)
+				misses.add(userLocation);
+			else
+				hits.add(userLocation);
+		}
+		logger.info(userLocations.size() + " user locations: " + misses.size() + " not resolved, " + hits.size() + " resolved, "
+				+ differences + " resolved differently with the filters.");
+
+		// The false positive rates, over the distinct strings that are not names.
+		HashSet<String> names = new HashSet<String>();
+		HashSet<String> words = new HashSet<String>();
+		for (String userLocation : userLocations) {
+			String name = normalize(userLocation);
+			if (database.getLocationForName(name) == null)
+				names.add(name);
+			String word = getLastWord(userLocation);
+			if (word != null && !benchmark.isStateOrCountryName(word))
+				words.add(word);
+		}
+		int namesPassed = 0;
+		for (String name : names) {
+			if (database.getNameFilter().mightContain(name))
+				namesPassed++;
+		}
+		int wordsPassed = 0;
+		for (String word : words) {
+			if (database.getStateOrCountryNameFilter().mightContain(word))
+				wordsPassed++;
+		}
+		logger.info(String.format("Name filter: %d of %d strings that are not names passed (%.4f, expected %.4f).",
+				namesPassed, names.size(), (double)namesPassed / Math.max(1, names.size()), database.getNameFilter().getFalsePositiveRate()));
+		logger.info(String.format("State and country filter: %d of %d words that are not states or countries passed (%.4f, expected %.4f).",
+				wordsPassed, words.size(), (double)wordsPassed / Math.max(1, words.size()), database.getStateOrCountryNameFilter().getFalsePositiveRate()));
+
+		// The first repetition warms up.
+		for (int repetition = 0; repetition <= repetitions; repetition++) {
+			long missesWithout = time(benchmark, null, misses);
+			long missesWith = time(null, resolver, misses);
+			long hitsWithout = time(benchmark, null, hits);
+			long hitsWith = time(null, resolver, hits);
+			if (repetition > 0)
+				logger.info(String.format("Not resolved: %.1f ns without filters, %.1f ns with. Resolved: %.1f ns without, %.1f ns with.",
+						(double)missesWithout / Math.max(1, misses.size()), (double)missesWith / Math.max(1, misses.size()),
+						(double)hitsWithout / Math.max(1, hits.size()), (double)hitsWith / Math.max(1, hits.size())));
+		}
+	}
+
+	/**
+	 * Returns the nanoseconds taken to resolve the strings with either the benchmark (no filters) or the resolver.
+	 */
+	private static long time(BenchmarkUserLocations benchmark, LocationResolver resolver, List<String> userLocations) {
+		long start = System.nanoTime();
+		int resolved = 0;
+		for (String userLocation : userLocations) {
+			Location location = benchmark != null ? benchmark.resolveWithoutFilters(userLocation) : resolver.resolveUserLocation(userLocation);
+			if (location != null)
+				resolved++;
+		}
+		long time = System.nanoTime() - start;
+		numResolved += resolved;
+		return time;
+	}
+}
@@ -0,0 +1,40 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.tools;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import carmen.LocationDatabase;
+import carmen.types.FstAliasIndex;
+import carmen.utils.CarmenProperties;
+
+/**
+ * Builds the FstAliasIndex of the location aliases in the files given in carmen.properties and writes it
+ * to a file, which can then be memory mapped with alias_index = fst and alias_index_file.
+ * Usage: BuildAliasIndex output_file
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class BuildAliasIndex {
+	protected static Logger logger = Logger.getLogger(BuildAliasIndex.class);
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: BuildAliasIndex <output_file>");
+			System.exit(1);
+		}
+		LocationDatabase database = LocationDatabase.load(CarmenProperties.getString("locations"),
+				CarmenProperties.getString("place_name_mapping"),
+				CarmenProperties.getString("state_names_file"),
+				CarmenProperties.getString("country_names_file"),
+				LocationDatabase.ALIAS_INDEX_FST, null);
+		FstAliasIndex aliasIndex = (FstAliasIndex)database.getAliasIndex();
+		aliasIndex.write(args[0]);
+		logger.info("Wrote " + aliasIndex.size() + " names (" + aliasIndex.getSizeInBytes() + " bytes) to " + args[0]);
+	}
+}
@@ -0,0 +1,94 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.tools;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import carmen.LocationDatabase;
+import carmen.types.GeocodeLocationResolver;
+import carmen.types.GeocodeRaster;
+import carmen.types.Location;
+import carmen.utils.CarmenProperties;
+
+import com.javadocmd.simplelatlng.LatLng;
+
+/**
+ * Builds the GeocodeRaster of the locations in the files given in carmen.properties, with
+ * geocode_max_distance and use_location_radius, and writes it to a file, which can then be memory mapped
+ * with geocode_raster_file. The raster is checked against the resolver on random points before it is written.
+ * Usage: BuildGeocodeRaster output_file [resolution]
+ * The resolution is the size of a cell in degrees (0.01 by default).
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class BuildGeocodeRaster {
+	protected static Logger logger = Logger.getLogger(BuildGeocodeRaster.class);
+
+	private static final double DEFAULT_RESOLUTION = 0.01;
+	private static final int NUM_CHECKED_POINTS = 1000000;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: BuildGeocodeRaster <output_file> [resolution]");
+			System.exit(1);
+		}
+		double resolution = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_RESOLUTION;
+
+		LocationDatabase database = LocationDatabase.load(CarmenProperties.getString("locations"),
+				CarmenProperties.getString("place_name_mapping"),
+				CarmenProperties.getString("state_names_file"),
+				CarmenProperties.getString("country_names_file"));
+		// Build from the indices, even if an older raster is in use.
+		GeocodeLocationResolver resolver = database.getGeocodeLocationResolver().withRaster(null);
+
+		long start = System.currentTimeMillis();
+		GeocodeRaster raster = GeocodeRaster.build(resolver, resolution);
+		logger.info("Built the raster in " + (System.currentTimeMillis() - start) / 1000 + " seconds.");
+
+		int differences = check(resolver, resolver.withRaster(raster), NUM_CHECKED_POINTS);
+		if (differences > 0) {
+			logger.error(differences + " of " + NUM_CHECKED_POINTS + " points got a different location from the raster. Not writing it.");
+			System.exit(1);
+		}
+
+		raster.write(args[0]);
+		logger.info("Wrote the raster (" + raster.getSizeInBytes() + " bytes) to " + args[0]);
+	}
+
+	/**
+	 * Resolves random points, half of them near known locations, with and without the raster, and returns the
+	 * number that differ.
+	 */
+	private static int check(GeocodeLocationResolver resolver, GeocodeLocationResolver rasterResolver, int numPoints) {
+		List<Location> locations = resolver.getLocations();
+		Random random = new Random(0);
+		int differences = 0;
+		for (int ii = 0; ii < numPoints; ii++) {
+			double latitude;
+			double longitude;
+			if (ii % 2 == 0 || locations.isEmpty()) {
+				latitude = random.nextDouble() * 180 - 90;
+				longitude = random.nextDouble() * 360 - 180;
+			} else {
+				LatLng center = locations.get(random.nextInt(locations.size())).getLatLng();
+				latitude = center.getLatitude() + random.nextGaussian() * 0.5;
+				longitude = center.getLongitude() + random.nextGaussian() * 0.5;
+			}
+			LatLng point = new LatLng(latitude, longitude);
+			Location location = resolver.resolveLocation(point);
+			if (location != rasterResolver.resolveLocation(point)) {
+				if (differences == 0)
+					logger.error("The raster gives a different location for " + point);
+				differences++;
+			}
+		}
+		return differences;
+	}
+}
@@ -0,0 +1,738 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.apache.commons.cli.Option;
+import org.apache.log4j.Logger;
+
+import carmen.types.Constants;
+import carmen.utils.CarmenProperties;
+import carmen.utils.CommandLineUtilities;
+import carmen.utils.Utils;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes a file of synthetic tweets, one per line, for load and regression testing without Twitter data.
+ * The tweets are drawn from the locations file, the place name mappings and the state and country names
+ * given in carmen.properties. They have places of each type (known and unknown), coordinates near and far
+ * from the centers of known locations, user profile locations that are aliases, "city, state" strings,
+ * state and country names, or noise, fields that are null or missing, and the other fields of a real tweet
+ * (text, entities, the user profile), so they are about as large as real tweets.
+ *
+ * The output depends only on the options and the seed: the same options give the same file. Each user's
+ * profile is derived from the user id, so no state is kept per user and files of any size can be written.
+ * Output files ending in .gz are compressed.
+ * Usage: GenerateTweets --output_file tweets.json.gz --num_tweets 1000000 [--seed 1] [--place_mix city=40,admin=5,...]
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class GenerateTweets {
+	protected static Logger logger = Logger.getLogger(GenerateTweets.class);
+	protected static List<Option> options = new LinkedList<Option>();
+
+	public static final String DEFAULT_PLACE_MIX = "city=30,admin=6,country=3,poi=3,neighborhood=3,none=55";
+	private static final String[] PLACE_TYPES = { "city", "admin", "country", "poi", "neighborhood", "none" };
+	// The first tweet is at 2013-10-01 00:00:00 UTC.
+	private static final long START_TIME = 1380585600000L;
+	// The epoch of tweet ids.
+	private static final long TWITTER_EPOCH = 1288834974657L;
+	private static final int PROGRESS_INTERVAL = 1000000;
+
+	private static final String[] NOISE_LOCATIONS = { "in your heart", "earth", "worldwide", "everywhere", "planet earth",
+		"the internet", "somewhere over the rainbow", "wherever the wind blows", "hogwarts", "narnia", "my room",
+		"follow me", "ur mom's house", "\u2764\ufe0f", "\ud83c\udf0d", "NYC \u2708 LA", "here and there", "dreamland",
+		"on the road", "ask me", "not here", "home sweet home", "the 6ix", "mars", "at work", "lost" };
+	private static final String[] POI_NAMES = { "Starbucks", "Central Station", "City Hall", "Memorial Stadium", "Public Library",
+		"International Airport", "Main Street Mall", "Riverside Park", "Convention Center", "University Hospital", "Museum of Art" };
+	private static final String[] NEIGHBORHOOD_NAMES = { "Downtown", "Midtown", "Old Town", "Uptown", "Riverside", "Westside",
+		"Harbor District", "Northgate", "Eastview", "Hillcrest", "Chinatown", "Little Italy" };
+	private static final String[] UNKNOWN_PLACE_SUFFIXES = { "ville", "ton", " Springs", " Falls", " Heights", "burg", " Creek", "field" };
+	private static final String[] WORDS = { "the", "a", "to", "and", "is", "in", "it", "you", "of", "for", "on", "my", "that", "at",
+		"with", "me", "do", "have", "just", "this", "be", "so", "are", "not", "was", "but", "out", "up", "what", "now", "new",
+		"love", "day", "today", "good", "lol", "like", "get", "time", "going", "happy", "know", "people", "go", "got", "night",
+		"game", "weather", "traffic", "coffee", "home", "work", "school", "weekend", "tonight", "great", "rain", "sun", "city" };
+	private static final String[] HASHTAGS = { "tbt", "news", "weather", "traffic", "nowplaying", "photo", "travel", "food", "gameday", "flu" };
+	private static final String[] SOURCES = {
+		"<a href=\"http://twitter.com/download/iphone\" rel=\"nofollow\">Twitter for iPhone</a>",
+		"<a href=\"http://twitter.com/download/android\" rel=\"nofollow\">Twitter for Android</a>",
+		"<a href=\"http://twitter.com\" rel=\"nofollow\">Twitter Web Client</a>",
+		"<a href=\"http://instagram.com\" rel=\"nofollow\">Instagram</a>",
+		"<a href=\"http://foursquare.com\" rel=\"nofollow\">foursquare</a>" };
+	private static final String[] LANGUAGES = { "en", "en", "en", "en", "es", "pt", "ja", "fr", "id", "tr" };
+	private static final String[] TIME_ZONES = { "Eastern Time (US & Canada)", "Central Time (US & Canada)", "Pacific Time (US & Canada)",
+		"London", "Tokyo", "Brasilia", "Jakarta", null };
+
+	private final long seed;
+	private final List<KnownLocation> cities = new ArrayList<KnownLocation>();
+	private final List<KnownLocation> states = new ArrayList<KnownLocation>();
+	private final List<KnownLocation> countries = new ArrayList<KnownLocation>();
+	private final List<KnownLocation> allLocations = new ArrayList<KnownLocation>();
+	// Locations with coordinates, for tweets with coordinates.
+	private final List<KnownLocation> locatedLocations = new ArrayList<KnownLocation>();
+	private final Map<String, String> stateToAbbreviation = new HashMap<String, String>();
+	private final Map<String, String> countryToCode = new HashMap<String, String>();
+	// The other names of each normalized place name, e.g. alemania for germany.
+	private final Map<String, List<String>> placeNameToVariants = new HashMap<String, List<String>>();
+
+	// The cumulative weights of PLACE_TYPES.
+	private double[] placeTypeWeights;
+	private double coordinateFraction = 0.1;
+	private double farCoordinateFraction = 0.2;
+	private double unknownPlaceFraction = 0.05;
+	private double missingFieldFraction = 0.05;
+	private int numUsers = 100000;
+	private double tweetsPerSecond = 1000;
+
+	private final SimpleDateFormat createdAtFormat;
+
+	public GenerateTweets(long seed, String locationsFile, String placeNameMappingFile, String stateNamesFile, String countryNamesFile) throws IOException {
+		this.seed = seed;
+		this.createdAtFormat = new SimpleDateFormat(Constants.TWEET_CREATED_AT_FORMAT, Locale.US);
+		this.createdAtFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		setPlaceMix(DEFAULT_PLACE_MIX);
+
+		loadLocations(locationsFile);
+		for (String[] fields : readTable(stateNamesFile))
+			this.stateToAbbreviation.put(fields[0].toLowerCase(), fields[1]);
+		for (String[] fields : readTable(countryNamesFile))
+			this.countryToCode.put(fields[0].toLowerCase(), fields[1].toUpperCase());
+		for (String[] fields : readTable(placeNameMappingFile)) {
+			if (fields[0].equals(fields[1]))
+				continue;
+			List<String> variants = this.placeNameToVariants.get(fields[1]);
+			if (variants == null) {
+				variants = new ArrayList<String>();
+				this.placeNameToVariants.put(fields[1], variants);
+			}
+			variants.add(fields[0]);
+		}
+		if (this.allLocations.isEmpty())
+			throw new IOException("No locations in " + locationsFile);
+	}
+
+	private void loadLocations(String locationsFile) throws IOException {
+		ObjectMapper mapper = new ObjectMapper();
+		BufferedReader reader = Utils.createReader(locationsFile, 64 * 1024);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().length() == 0)
+					continue;
+				@SuppressWarnings("unchecked")
+				Map<String, Object> locationMap = (Map<String, Object>)mapper.readValue(line, Map.class);
+				KnownLocation location = new KnownLocation(locationMap);
+				if (location.country == null)
+					continue;
+				this.allLocations.add(location);
+				if (location.city != null)
+					this.cities.add(location);
+				else if (location.state != null && location.county == null)
+					this.states.add(location);
+				else if (location.state == null && location.county == null)
+					this.countries.add(location);
+				if (location.latitude != 0 || location.longitude != 0)
+					this.locatedLocations.add(location);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads a tab separated file of two columns.
+	 */
+	private static List<String[]> readTable(String filename) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		BufferedReader reader = Utils.createReader(filename, 64 * 1024);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length >= 2)
+					rows.add(new String[] { fields[0].trim(), fields[1].trim() });
+			}
+		} finally {
+			reader.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * Sets the relative weights of the place types, e.g. city=30,admin=6,country=3,poi=3,neighborhood=3,none=55.
+	 * Types that are not listed get no tweets.
+	 * @param placeMix
+	 */
+	public void setPlaceMix(String placeMix) {
+		double[] weights = new double[PLACE_TYPES.length];
+		for (String entry : placeMix.split(",")) {
+			String[] parts = entry.split("=");
+			int type = -1;
+			for (int ii = 0; ii < PLACE_TYPES.length; ii++) {
+				if (PLACE_TYPES[ii].equals(parts[0].trim()))
+					type = ii;
+			}
+			if (type < 0 || parts.length != 2)
+				throw new IllegalArgumentException("Bad place mix entry: " + entry);
+			weights[type] = Double.parseDouble(parts[1]);
+		}
+		double total = 0;
+		for (int ii = 0; ii < weights.length; ii++) {
+			total += weights[ii];
+			weights[ii] = total;
+		}
+		if (total <= 0)
+			throw new IllegalArgumentException("The place mix has no weight: " + placeMix);
+		for (int ii = 0; ii < weights.length; ii++)
+			weights[ii] /= total;
+		this.placeTypeWeights = weights;
+	}
+
+	/**
+	 * The fraction of tweets with coordinates.
+	 */
+	public void setCoordinateFraction(double coordinateFraction) {
+		this.coordinateFraction = coordinateFraction;
+	}
+
+	/**
+	 * The fraction of the coordinates that are anywhere on earth rather than near a known location.
+	 */
+	public void setFarCoordinateFraction(double farCoordinateFraction) {
+		this.farCoordinateFraction = farCoordinateFraction;
+	}
+
+	/**
+	 * The fraction of places that are not known locations.
+	 */
+	public void setUnknownPlaceFraction(double unknownPlaceFraction) {
+		this.unknownPlaceFraction = unknownPlaceFraction;
+	}
+
+	/**
+	 * The fraction of optional fields (user location, place, coordinates) that are left out rather than null.
+	 */
+	public void setMissingFieldFraction(double missingFieldFraction) {
+		this.missingFieldFraction = missingFieldFraction;
+	}
+
+	/**
+	 * The number of distinct users. A few users write most of the tweets.
+	 */
+	public void setNumUsers(int numUsers) {
+		this.numUsers = Math.max(1, numUsers);
+	}
+
+	/**
+	 * The average rate of the tweets, which sets their created_at times.
+	 */
+	public void setTweetsPerSecond(double tweetsPerSecond) {
+		this.tweetsPerSecond = tweetsPerSecond;
+	}
+
+	/**
+	 * Writes tweets to the stream, one per line. The stream is not closed.
+	 * @param outputStream
+	 * @param numTweets
+	 * @throws IOException
+	 */
+	public void write(OutputStream outputStream, long numTweets) throws IOException {
+		Random random = new Random(this.seed);
+		JsonFactory factory = new JsonFactory();
+		// The tweets are separated by new lines only.
+		factory.setRootValueSeparator(null);
+		JsonGenerator generator = factory.createGenerator(outputStream, JsonEncoding.UTF8);
+		double time = START_TIME;
+		long previousMillis = -1;
+		int sequence = 0;
+		for (long ii = 0; ii < numTweets; ii++) {
+			time += -Math.log(1 - random.nextDouble()) * 1000 / this.tweetsPerSecond;
+			long millis = (long)time;
+			sequence = millis == previousMillis ? sequence + 1 : 0;
+			previousMillis = millis;
+			writeTweet(generator, random, millis, ((millis - TWITTER_EPOCH) << 22) | (sequence & 0xfff));
+			generator.writeRaw('\n');
+
+			if ((ii + 1) % PROGRESS_INTERVAL == 0)
+				logger.info("Wrote " + (ii + 1) + " tweets.");
+		}
+		generator.flush();
+	}
+
+	private void writeTweet(JsonGenerator generator, Random random, long millis, long id) throws IOException {
+		// Prolific users write most of the tweets.
+		double userDraw = random.nextDouble();
+		int userIndex = (int)(this.numUsers * userDraw * userDraw * userDraw);
+		User user = new User(userIndex);
+
+		// Most tweets are about the place of the user.
+		KnownLocation location = random.nextDouble() < 0.6 ? user.home : this.allLocations.get(random.nextInt(this.allLocations.size()));
+		String placeType = PLACE_TYPES[PLACE_TYPES.length - 1];
+		double placeDraw = random.nextDouble();
+		for (int ii = 0; ii < PLACE_TYPES.length; ii++) {
+			if (placeDraw < this.placeTypeWeights[ii]) {
+				placeType = PLACE_TYPES[ii];
+				break;
+			}
+		}
+
+		generator.writeStartObject();
+		generator.writeStringField("created_at", this.createdAtFormat.format(new Date(millis)));
+		generator.writeNumberField("id", id);
+		generator.writeStringField("id_str", Long.toString(id));
+		String text = createText(random);
+		generator.writeStringField("text", text);
+		generator.writeStringField("source", SOURCES[random.nextInt(SOURCES.length)]);
+		generator.writeBooleanField("truncated", false);
+		generator.writeNullField("in_reply_to_status_id");
+		generator.writeNullField("in_reply_to_status_id_str");
+		generator.writeNullField("in_reply_to_user_id");
+		generator.writeNullField("in_reply_to_user_id_str");
+		generator.writeNullField("in_reply_to_screen_name");
+		writeUser(generator, user);
+
+		if (random.nextDouble() < this.coordinateFraction) {
+			double latitude;
+			double longitude;
+			if (random.nextDouble() < this.farCoordinateFraction || this.locatedLocations.isEmpty()) {
+				// Uniform on the sphere.
+				latitude = Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+				longitude = random.nextDouble() * 360 - 180;
+			} else {
+				KnownLocation center = location.latitude != 0 || location.longitude != 0 ? location
+						: this.locatedLocations.get(random.nextInt(this.locatedLocations.size()));
+				// Within a few miles of the center.
+				latitude = Math.max(-90, Math.min(90, center.latitude + random.nextGaussian() * 0.05));
+				longitude = center.longitude + random.nextGaussian() * 0.05;
+			}
+			latitude = Math.round(latitude * 1e8) / 1e8;
+			longitude = Math.round(longitude * 1e8) / 1e8;
+			generator.writeObjectFieldStart("geo");
+			generator.writeStringField("type", "Point");
+			generator.writeArrayFieldStart("coordinates");
+			generator.writeNumber(latitude);
+			generator.writeNumber(longitude);
+			generator.writeEndArray();
+			generator.writeEndObject();
+			generator.writeObjectFieldStart(Constants.COORDINATES);
+			generator.writeStringField("type", "Point");
+			generator.writeArrayFieldStart(Constants.COORDINATES);
+			generator.writeNumber(longitude);
+			generator.writeNumber(latitude);
+			generator.writeEndArray();
+			generator.writeEndObject();
+		} else if (random.nextDouble() >= this.missingFieldFraction) {
+			generator.writeNullField("geo");
+			generator.writeNullField(Constants.COORDINATES);
+		}
+
+		if (!placeType.equals("none"))
+			writePlace(generator, random, placeType, location);
+		else if (random.nextDouble() >= this.missingFieldFraction)
+			generator.writeNullField(Constants.PLACE);
+
+		generator.writeNullField("contributors");
+		generator.writeNumberField("retweet_count", random.nextDouble() < 0.8 ? 0 : random.nextInt(500));
+		generator.writeNumberField("favorite_count", random.nextDouble() < 0.7 ? 0 : random.nextInt(200));
+		writeEntities(generator, random, text);
+		generator.writeBooleanField("favorited", false);
+		generator.writeBooleanField("retweeted", false);
+		generator.writeStringField("filter_level", "medium");
+		generator.writeStringField("lang", LANGUAGES[random.nextInt(LANGUAGES.length)]);
+		generator.writeStringField("timestamp_ms", Long.toString(millis));
+		generator.writeEndObject();
+	}
+
+	private void writeUser(JsonGenerator generator, User user) throws IOException {
+		generator.writeObjectFieldStart(Constants.TWEET_USER);
+		generator.writeNumberField(Constants.TWEET_USER_ID, user.id);
+		generator.writeStringField(Constants.TWEET_USER_ID_STR, Long.toString(user.id));
+		generator.writeStringField("name", user.name);
+		generator.writeStringField("screen_name", user.screenName);
+		if (user.locationMissing) {
+			// No location field.
+		} else if (user.location == null) {
+			generator.writeNullField(Constants.TWEET_USER_LOCATION);
+		} else {
+			generator.writeStringField(Constants.TWEET_USER_LOCATION, user.location);
+		}
+		generator.writeNullField("url");
+		generator.writeStringField("description", user.description);
+		generator.writeBooleanField("protected", false);
+		generator.writeNumberField("followers_count", user.followersCount);
+		generator.writeNumberField("friends_count", user.friendsCount);
+		generator.writeNumberField("listed_count", user.followersCount / 50);
+		generator.writeStringField("created_at", this.createdAtFormat.format(new Date(user.createdAt)));
+		generator.writeNumberField("favourites_count", user.statusesCount / 3);
+		if (user.timeZone == null) {
+			generator.writeNullField("utc_offset");
+			generator.writeNullField("time_zone");
+		} else {
+			generator.writeNumberField("utc_offset", -18000);
+			generator.writeStringField("time_zone", user.timeZone);
+		}
+		generator.writeBooleanField("geo_enabled", user.geoEnabled);
+		generator.writeBooleanField("verified", false);
+		generator.writeNumberField("statuses_count", user.statusesCount);
+		generator.writeStringField("lang", "en");
+		generator.writeBooleanField("contributors_enabled", false);
+		generator.writeBooleanField("is_translator", false);
+		generator.writeStringField("profile_background_color", "C0DEED");
+		generator.writeStringField("profile_background_image_url", "http://abs.twimg.com/images/themes/theme1/bg.png");
+		generator.writeStringField("profile_image_url", "http://pbs.twimg.com/profile_images/" + user.id + "/avatar_normal.jpeg");
+		generator.writeStringField("profile_image_url_https", "https://pbs.twimg.com/profile_images/" + user.id + "/avatar_normal.jpeg");
+		generator.writeStringField("profile_link_color", "0084B4");
+		generator.writeStringField("profile_sidebar_border_color", "C0DEED");
+		generator.writeStringField("profile_sidebar_fill_color", "DDEEF6");
+		generator.writeStringField("profile_text_color", "333333");
+		generator.writeBooleanField("profile_use_background_image", true);
+		generator.writeBooleanField("default_profile", user.followersCount % 2 == 0);
+		generator.writeBooleanField("default_profile_image", false);
+		generator.writeNullField("following");
+		generator.writeNullField("follow_request_sent");
+		generator.writeNullField("notifications");
+		generator.writeEndObject();
+	}
+
+	private void writePlace(JsonGenerator generator, Random random, String placeType, KnownLocation location) throws IOException {
+		// Places of a type the location does not have come from the locations of that type.
+		if (placeType.equals("admin") && (location.state == null || location.city != null || location.county != null) && !this.states.isEmpty())
+			location = this.states.get(random.nextInt(this.states.size()));
+		else if (placeType.equals("country") && (location.state != null || location.city != null) && !this.countries.isEmpty())
+			location = this.countries.get(random.nextInt(this.countries.size()));
+		else if (!placeType.equals("admin") && !placeType.equals("country") && location.city == null && !this.cities.isEmpty())
+			location = this.cities.get(random.nextInt(this.cities.size()));
+
+		boolean unknown = random.nextDouble() < this.unknownPlaceFraction;
+		String country = toTitleCase(location.country);
+		String countryCode = this.countryToCode.get(location.country.toLowerCase());
+		String city = location.city == null ? null : toTitleCase(location.city);
+		if (unknown) {
+			// A made up place in the same country.
+			city = toTitleCase(WORDS[random.nextInt(WORDS.length)]) + UNKNOWN_PLACE_SUFFIXES[random.nextInt(UNKNOWN_PLACE_SUFFIXES.length)];
+		}
+
+		String name;
+		String fullName;
+		if (placeType.equals("city")) {
+			name = city;
+			String stateAbbreviation = location.state == null ? null : this.stateToAbbreviation.get(location.state.toLowerCase());
+			if (country.equalsIgnoreCase("united states") && stateAbbreviation != null)
+				fullName = city + ", " + stateAbbreviation;
+			else
+				fullName = city + ", " + country;
+		} else if (placeType.equals("admin")) {
+			name = unknown ? city : toTitleCase(location.state);
+			fullName = name + ", " + (country.equalsIgnoreCase("united states") ? "USA" : country);
+		} else if (placeType.equals("country")) {
+			name = country;
+			fullName = country;
+		} else {
+			String[] names = placeType.equals("poi") ? POI_NAMES : NEIGHBORHOOD_NAMES;
+			name = names[random.nextInt(names.length)];
+			fullName = name + ", " + city;
+		}
+		// Some countries are given by another name.
+		List<String> variants = this.placeNameToVariants.get(location.country.toLowerCase());
+		if (variants != null && random.nextDouble() < 0.05)
+			country = variants.get(random.nextInt(variants.size()));
+
+		// The same place always has the same id.
+		String placeId = String.format("%016x", ((long)fullName.hashCode() << 32) ^ placeType.hashCode() ^ (country.hashCode() & 0xffffffffL));
+		generator.writeObjectFieldStart(Constants.PLACE);
+		generator.writeStringField("id", placeId);
+		generator.writeStringField("url", "https://api.twitter.com/1.1/geo/id/" + placeId + ".json");
+		generator.writeStringField("place_type", placeType);
+		generator.writeStringField("name", name);
+		generator.writeStringField("full_name", fullName);
+		if (countryCode == null)
+			generator.writeStringField("country_code", "");
+		else
+			generator.writeStringField("country_code", countryCode);
+		generator.writeStringField("country", country);
+		generator.writeObjectFieldStart("bounding_box");
+		generator.writeStringField("type", "Polygon");
+		generator.writeArrayFieldStart("coordinates");
+		generator.writeStartArray();
+		double size = placeType.equals("country") ? 5 : placeType.equals("admin") ? 2 : placeType.equals("city") ? 0.1 : 0.01;
+		double[][] corners = { { -1, -1 }, { -1, 1 }, { 1, 1 }, { 1, -1 } };
+		for (double[] corner : corners) {
+			generator.writeStartArray();
+			generator.writeNumber(Math.round((location.longitude + corner[0] * size) * 1e6) / 1e6);
+			generator.writeNumber(Math.round((location.latitude + corner[1] * size) * 1e6) / 1e6);
+			generator.writeEndArray();
+		}
+		generator.writeEndArray();
+		generator.writeEndArray();
+		generator.writeEndObject();
+		generator.writeObjectFieldStart("attributes");
+		generator.writeEndObject();
+		generator.writeEndObject();
+	}
+
+	private String createText(Random random) {
+		StringBuilder text = new StringBuilder();
+		int numWords = 4 + random.nextInt(20);
+		for (int ii = 0; ii < numWords; ii++) {
+			if (ii > 0)
+				text.append(' ');
+			text.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		if (random.nextDouble() < 0.2)
+			text.append(" #").append(HASHTAGS[random.nextInt(HASHTAGS.length)]);
+		if (random.nextDouble() < 0.15)
+			text.append(" http://t.co/").append(Long.toString(random.nextLong() & Long.MAX_VALUE, 36).substring(0, 10));
+		return text.toString();
+	}
+
+	private void writeEntities(JsonGenerator generator, Random random, String text) throws IOException {
+		generator.writeObjectFieldStart("entities");
+		generator.writeArrayFieldStart("hashtags");
+		int hashtag = text.indexOf(" #");
+		if (hashtag >= 0) {
+			int end = text.indexOf(' ', hashtag + 1);
+			if (end < 0)
+				end = text.length();
+			generator.writeStartObject();
+			generator.writeStringField("text", text.substring(hashtag + 2, end));
+			generator.writeArrayFieldStart("indices");
+			generator.writeNumber(hashtag + 1);
+			generator.writeNumber(end);
+			generator.writeEndArray();
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+		generator.writeArrayFieldStart("symbols");
+		generator.writeEndArray();
+		generator.writeArrayFieldStart("urls");
+		int url = text.indexOf(" http://t.co/");
+		if (url >= 0) {
+			generator.writeStartObject();
+			generator.writeStringField("url", text.substring(url + 1));
+			generator.writeStringField("expanded_url", "http://example.com/" + random.nextInt(100000));
+			generator.writeStringField("display_url", "example.com/\u2026");
+			generator.writeArrayFieldStart("indices");
+			generator.writeNumber(url + 1);
+			generator.writeNumber(text.length());
+			generator.writeEndArray();
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+		generator.writeArrayFieldStart("user_mentions");
+		generator.writeEndArray();
+		generator.writeEndObject();
+	}
+
+	/**
+	 * A profile location string for a user: an alias, a "city, state" or "city, country" string, a state or
+	 * country name, noise, or empty, with some noise in the case and punctuation.
+	 */
+	private String createProfileLocation(Random random, KnownLocation home) {
+		double draw = random.nextDouble();
+		String location;
+		if (draw < 0.25 && !home.aliases.isEmpty()) {
+			location = home.aliases.get(random.nextInt(home.aliases.size()));
+		} else if (draw < 0.4 && home.city != null) {
+			String state = home.state == null ? null : this.stateToAbbreviation.get(home.state.toLowerCase());
+			if (state != null)
+				location = home.city + ", " + (random.nextBoolean() ? state : home.state);
+			else
+				location = home.city + ", " + home.country;
+		} else if (draw < 0.5 && home.state != null) {
+			String abbreviation = this.stateToAbbreviation.get(home.state.toLowerCase());
+			location = abbreviation != null && random.nextBoolean() ? abbreviation : home.state;
+		} else if (draw < 0.6) {
+			List<String> variants = this.placeNameToVariants.get(home.country.toLowerCase());
+			location = variants != null && random.nextBoolean() ? variants.get(random.nextInt(variants.size())) : home.country;
+		} else if (draw < 0.9) {
+			location = NOISE_LOCATIONS[random.nextInt(NOISE_LOCATIONS.length)];
+		} else {
+			return "";
+		}
+
+		double noise = random.nextDouble();
+		if (noise < 0.4)
+			location = toTitleCase(location);
+		else if (noise < 0.45)
+			location = location.toUpperCase();
+		else if (noise < 0.5)
+			location = location + "!!";
+		else if (noise < 0.55)
+			location = "\ud83d\udccd " + location;
+		else if (noise < 0.6)
+			location = "  " + location.replace(" ", "  ") + " ";
+		return location;
+	}
+
+	private static String toTitleCase(String string) {
+		StringBuilder builder = new StringBuilder(string.length());
+		boolean start = true;
+		for (int ii = 0; ii < string.length(); ii++) {
+			char c = string.charAt(ii);
+			builder.append(start ? Character.toUpperCase(c) : c);
+			start = c == ' ' || c == '-';
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * A user, derived from its index.
+	 */
+	private class User {
+		private final long id;
+		private final String name;
+		private final String screenName;
+		private final String location;
+		private final boolean locationMissing;
+		private final KnownLocation home;
+		private final String description;
+		private final int followersCount;
+		private final int friendsCount;
+		private final int statusesCount;
+		private final long createdAt;
+		private final String timeZone;
+		private final boolean geoEnabled;
+
+		private User(int index) {
+			Random random = new Random(GenerateTweets.this.seed * 1000003 + index);
+			this.id = 10000000L + index * 7919L;
+			this.home = GenerateTweets.this.allLocations.get(random.nextInt(GenerateTweets.this.allLocations.size()));
+			this.name = toTitleCase(WORDS[random.nextInt(WORDS.length)]) + " " + toTitleCase(WORDS[random.nextInt(WORDS.length)]);
+			this.screenName = WORDS[random.nextInt(WORDS.length)] + "_" + index;
+			double missing = random.nextDouble();
+			this.locationMissing = missing < GenerateTweets.this.missingFieldFraction;
+			String location = createProfileLocation(random, this.home);
+			this.location = missing < 2 * GenerateTweets.this.missingFieldFraction ? null : location;
+			StringBuilder description = new StringBuilder();
+			int numWords = random.nextInt(25);
+			for (int ii = 0; ii < numWords; ii++)
+				description.append(ii > 0 ? " " : "").append(WORDS[random.nextInt(WORDS.length)]);
+			this.description = description.toString();
+			this.followersCount = (int)Math.exp(random.nextDouble() * 10);
+			this.friendsCount = (int)Math.exp(random.nextDouble() * 7);
+			this.statusesCount = (int)Math.exp(random.nextDouble() * 11);
+			this.createdAt = START_TIME - (long)(random.nextDouble() * 5 * 365 * 86400000L);
+			this.timeZone = TIME_ZONES[random.nextInt(TIME_ZONES.length)];
+			this.geoEnabled = random.nextBoolean();
+		}
+	}
+
+	/**
+	 * The fields of a location in the locations file.
+	 */
+	private static class KnownLocation {
+		private final String city;
+		private final String county;
+		private final String state;
+		private final String country;
+		private final double latitude;
+		private final double longitude;
+		private final List<String> aliases;
+
+		@SuppressWarnings("unchecked")
+		private KnownLocation(Map<String, Object> locationMap) {
+			this.city = getString(locationMap, "city");
+			this.county = getString(locationMap, "county");
+			this.state = getString(locationMap, "state");
+			this.country = getString(locationMap, "country");
+			this.latitude = getDouble(locationMap, "latitude");
+			this.longitude = getDouble(locationMap, "longitude");
+			List<String> aliases = (List<String>)locationMap.get("aliases");
+			this.aliases = aliases == null ? new ArrayList<String>() : aliases;
+		}
+
+		private static String getString(Map<String, Object> locationMap, String key) {
+			Object value = locationMap.get(key);
+			if (value == null || value.toString().trim().length() == 0)
+				return null;
+			return value.toString();
+		}
+
+		private static double getDouble(Map<String, Object> locationMap, String key) {
+			String value = getString(locationMap, key);
+			return value == null ? 0 : Double.parseDouble(value);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		String[] manditory_args = { "output_file" };
+		createCommandLineOptions();
+		CommandLineUtilities.initCommandLineParameters(args, GenerateTweets.options, manditory_args);
+
+		String outputFile = CommandLineUtilities.getOptionValue("output_file");
+		long numTweets = 1000000;
+		if (CommandLineUtilities.hasArg("num_tweets"))
+			numTweets = Long.parseLong(CommandLineUtilities.getOptionValue("num_tweets"));
+		long seed = 1;
+		if (CommandLineUtilities.hasArg("seed"))
+			seed = Long.parseLong(CommandLineUtilities.getOptionValue("seed"));
+
+		if (Utils.STANDARD_STREAM.equals(outputFile))
+			Utils.redirectConsoleLoggingToStderr();
+
+		GenerateTweets generator = new GenerateTweets(seed, CarmenProperties.getString("locations"),
+				CarmenProperties.getString("place_name_mapping"),
+				CarmenProperties.getString("state_names_file"),
+				CarmenProperties.getString("country_names_file"));
+		if (CommandLineUtilities.hasArg("place_mix"))
+			generator.setPlaceMix(CommandLineUtilities.getOptionValue("place_mix"));
+		if (CommandLineUtilities.hasArg("coordinate_fraction"))
+			generator.setCoordinateFraction(Double.parseDouble(CommandLineUtilities.getOptionValue("coordinate_fraction")));
+		if (CommandLineUtilities.hasArg("far_coordinate_fraction"))
+			generator.setFarCoordinateFraction(Double.parseDouble(CommandLineUtilities.getOptionValue("far_coordinate_fraction")));
+		if (CommandLineUtilities.hasArg("unknown_place_fraction"))
+			generator.setUnknownPlaceFraction(Double.parseDouble(CommandLineUtilities.getOptionValue("unknown_place_fraction")));
+		if (CommandLineUtilities.hasArg("missing_field_fraction"))
+			generator.setMissingFieldFraction(Double.parseDouble(CommandLineUtilities.getOptionValue("missing_field_fraction")));
+		if (CommandLineUtilities.hasArg("num_users"))
+			generator.setNumUsers(CommandLineUtilities.getOptionValueAsInt("num_users"));
+		else
+			generator.setNumUsers((int)Math.min(Integer.MAX_VALUE, Math.max(1, numTweets / 10)));
+		if (CommandLineUtilities.hasArg("tweets_per_second"))
+			generator.setTweetsPerSecond(Double.parseDouble(CommandLineUtilities.getOptionValue("tweets_per_second")));
+
+		logger.info("Writing " + numTweets + " tweets to: " + outputFile);
+		long start = System.currentTimeMillis();
+		OutputStream outputStream = new BufferedOutputStream(Utils.createOutputStream(outputFile), 64 * 1024);
+		try {
+			generator.write(outputStream, numTweets);
+		} finally {
+			outputStream.close();
+		}
+		logger.info("Done. " + (System.currentTimeMillis() - start) / 1000 + " seconds.");
+	}
+
+	private static void createCommandLineOptions() {
+		Utils.registerOption(options, "output_file", "String", true, "The file to write the tweets to, or - for standard output. Files ending in .gz are compressed.");
+		Utils.registerOption(options, "num_tweets", "long", true, "The number of tweets (1000000 by default).");
+		Utils.registerOption(options, "seed", "long", true, "The random seed (1 by default). The same seed and options give the same tweets.");
+		Utils.registerOption(options, "place_mix", "String", true, "The relative weights of the place types (" + DEFAULT_PLACE_MIX + " by default).");
+		Utils.registerOption(options, "coordinate_fraction", "double", true, "The fraction of tweets with coordinates (0.1 by default).");
+		Utils.registerOption(options, "far_coordinate_fraction", "double", true, "The fraction of coordinates that are anywhere rather than near a known location (0.2 by default).");
+		Utils.registerOption(options, "unknown_place_fraction", "double", true, "The fraction of places that are not known locations (0.05 by default).");
+		Utils.registerOption(options, "missing_field_fraction", "double", true, "The fraction of optional fields that are left out rather than null (0.05 by default).");
+		Utils.registerOption(options, "num_users", "int", true, "The number of distinct users (a tenth of the tweets by default).");
+		Utils.registerOption(options, "tweets_per_second", "double", true, "The average rate of the created_at times (1000 by default).");
+	}
+}
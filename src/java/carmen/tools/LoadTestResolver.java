@@ -0,0 +1,352 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.cli.Option;
+import org.apache.log4j.Logger;
+
+import carmen.LocationResolver;
+import carmen.io.ByteLineReader;
+import carmen.io.TweetParser;
+import carmen.stats.LatencyHistogram;
+import carmen.types.Resolution;
+import carmen.types.ResolutionMethod;
+import carmen.utils.CommandLineUtilities;
+import carmen.utils.Utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Replays a file of tweets through one LocationResolver on several threads and measures the throughput,
+ * the latency of resolve() for each resolution method, the memory allocated per tweet and the garbage
+ * collections, for each number of threads in turn. The tweets are parsed before the runs (only the fields
+ * used for resolution are kept), so only resolution is timed.
+ *
+ * By default each thread resolves tweets as fast as it can (a closed loop). With --rate, tweets arrive at
+ * that many per second in total whatever the resolver does (an open loop), and the latency of a tweet is
+ * measured from the time it should have started, so that time spent waiting behind slow tweets is counted.
+ *
+ * The results are written as JSON (--results_file), one object per number of threads, so that runs of
+ * different versions can be compared. Latencies are in microseconds.
+ * Usage: LoadTestResolver --input_file tweets.json.gz --threads 1,8,32,64 [--duration 30] [--rate 50000] [--results_file results.json]
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class LoadTestResolver {
+	protected static Logger logger = Logger.getLogger(LoadTestResolver.class);
+	protected static List<Option> options = new LinkedList<Option>();
+
+	// The name of the latencies of tweets that were not resolved.
+	public static final String UNRESOLVED = "NONE";
+	public static final String ALL = "ALL";
+
+	private final LocationResolver resolver;
+	private final List<Map<String, Object>> tweets;
+	private final double rate;
+
+	/**
+	 * @param resolver
+	 * @param tweets The tweets, which are reused from the start once they run out.
+	 * @param rate The tweets per second over all threads, or 0 to resolve them as fast as possible.
+	 */
+	public LoadTestResolver(LocationResolver resolver, List<Map<String, Object>> tweets, double rate) {
+		if (tweets.isEmpty())
+			throw new IllegalArgumentException("No tweets to replay.");
+		this.resolver = resolver;
+		this.tweets = tweets;
+		this.rate = rate;
+	}
+
+	/**
+	 * Resolves tweets on numThreads threads for warmupSeconds, then measures for durationSeconds.
+	 * @param numThreads
+	 * @param warmupSeconds
+	 * @param durationSeconds
+	 * @return The results of the measured part of the run.
+	 * @throws InterruptedException
+	 */
+	public Map<String, Object> run(int numThreads, double warmupSeconds, double durationSeconds) throws InterruptedException {
+		long start = System.nanoTime();
+		long measureStart = start + (long)(warmupSeconds * 1e9);
+		long end = measureStart + (long)(durationSeconds * 1e9);
+		AtomicLong nextTweet = new AtomicLong();
+
+		List<Worker> workers = new ArrayList<Worker>();
+		for (int ii = 0; ii < numThreads; ii++) {
+			Worker worker = new Worker(nextTweet, start, measureStart, end);
+			worker.setName("load-test-" + ii);
+			worker.setDaemon(true);
+			workers.add(worker);
+		}
+		for (Worker worker : workers)
+			worker.start();
+
+		long sleep = measureStart - System.nanoTime();
+		if (sleep > 0)
+			Thread.sleep(sleep / 1000000, (int)(sleep % 1000000));
+		long gcCountStart = getGcCount();
+		long gcTimeStart = getGcTime();
+		for (Worker worker : workers)
+			worker.join();
+		long gcCount = getGcCount() - gcCountStart;
+		long gcTime = getGcTime() - gcTimeStart;
+
+		LatencyHistogram[] histograms = new LatencyHistogram[ResolutionMethod.values().length + 1];
+		for (int ii = 0; ii < histograms.length; ii++)
+			histograms[ii] = new LatencyHistogram();
+		LatencyHistogram all = new LatencyHistogram();
+		long allocatedBytes = 0;
+		long lastFinish = measureStart;
+		for (Worker worker : workers) {
+			for (int ii = 0; ii < histograms.length; ii++) {
+				histograms[ii].add(worker.histograms[ii]);
+				all.add(worker.histograms[ii]);
+			}
+			allocatedBytes = allocatedBytes < 0 || worker.allocatedBytes < 0 ? -1 : allocatedBytes + worker.allocatedBytes;
+			lastFinish = Math.max(lastFinish, worker.lastFinish);
+		}
+		double seconds = (lastFinish - measureStart) / 1e9;
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("threads", numThreads);
+		result.put("rate", this.rate);
+		result.put("tweets", all.getCount());
+		result.put("seconds", Math.round(seconds * 1000) / 1000.0);
+		result.put("tweets_per_second", Math.round(all.getCount() / Math.max(seconds, 1e-9)));
+		result.put("allocated_bytes_per_tweet", allocatedBytes < 0 ? -1 : allocatedBytes / Math.max(1, all.getCount()));
+		result.put("gc_count", gcCount);
+		result.put("gc_time_ms", gcTime);
+		Map<String, Object> latencies = new LinkedHashMap<String, Object>();
+		latencies.put(ALL, all.toJson(1000));
+		for (ResolutionMethod method : ResolutionMethod.values())
+			latencies.put(method.name(), histograms[method.ordinal()].toJson(1000));
+		latencies.put(UNRESOLVED, histograms[histograms.length - 1].toJson(1000));
+		result.put("latency_us", latencies);
+		return result;
+	}
+
+	/**
+	 * Resolves tweets until the end of a run, recording those that start after the warmup.
+	 */
+	private class Worker extends Thread {
+		private final AtomicLong nextTweet;
+		private final long start;
+		private final long measureStart;
+		private final long end;
+		// One per resolution method, and the last for tweets that were not resolved.
+		private final LatencyHistogram[] histograms = new LatencyHistogram[ResolutionMethod.values().length + 1];
+		private long allocatedBytes = 0;
+		private long lastFinish = 0;
+
+		private Worker(AtomicLong nextTweet, long start, long measureStart, long end) {
+			this.nextTweet = nextTweet;
+			this.start = start;
+			this.measureStart = measureStart;
+			this.end = end;
+			for (int ii = 0; ii < this.histograms.length; ii++)
+				this.histograms[ii] = new LatencyHistogram();
+		}
+
+		public void run() {
+			int numTweets = LoadTestResolver.this.tweets.size();
+			double interval = LoadTestResolver.this.rate > 0 ? 1e9 / LoadTestResolver.this.rate : 0;
+			long allocatedStart = -1;
+			while (true) {
+				long index = this.nextTweet.getAndIncrement();
+				long begin;
+				if (interval > 0) {
+					// The time the tweet arrives, whether or not a thread is free.
+					begin = this.start + (long)(index * interval);
+					if (begin >= this.end)
+						break;
+					long wait = begin - System.nanoTime();
+					if (wait > 0)
+						LockSupport.parkNanos(wait);
+				} else {
+					begin = System.nanoTime();
+					if (begin >= this.end)
+						break;
+				}
+				if (allocatedStart < 0 && begin >= this.measureStart)
+					allocatedStart = getAllocatedBytes();
+
+				Resolution resolution = LoadTestResolver.this.resolver.resolve(LoadTestResolver.this.tweets.get((int)(index % numTweets)));
+				long finish = System.nanoTime();
+
+				if (begin >= this.measureStart) {
+					int bucket = resolution == null ? this.histograms.length - 1 : resolution.getResolutionMethod().ordinal();
+					this.histograms[bucket].record(finish - begin);
+					this.lastFinish = finish;
+				}
+			}
+			long allocatedEnd = getAllocatedBytes();
+			if (allocatedStart < 0)
+				this.allocatedBytes = allocatedEnd < 0 ? -1 : 0;
+			else
+				this.allocatedBytes = allocatedEnd < 0 ? -1 : allocatedEnd - allocatedStart;
+		}
+	}
+
+	/**
+	 * Returns the bytes allocated by the current thread so far, or -1 if the JVM does not count them.
+	 */
+	private static long getAllocatedBytes() {
+		java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean)threadBean;
+			if (allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled())
+				return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static long getGcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(0, bean.getCollectionCount());
+		return count;
+	}
+
+	private static long getGcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+			time += Math.max(0, bean.getCollectionTime());
+		return time;
+	}
+
+	/**
+	 * Reads the fields used for resolution from a file of tweets, one per line.
+	 * @param inputFile
+	 * @param maxTweets The most tweets to read, or 0 for all.
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Map<String, Object>> readTweets(String inputFile, int maxTweets) throws IOException {
+		List<Map<String, Object>> tweets = new ArrayList<Map<String, Object>>();
+		TweetParser parser = new TweetParser(new ObjectMapper());
+		ByteLineReader reader = new ByteLineReader(Utils.createInputStream(inputFile));
+		try {
+			while (reader.nextLine() && (maxTweets <= 0 || tweets.size() < maxTweets)) {
+				try {
+					tweets.add(parser.parseFields(reader.getBuffer(), reader.getStart(), reader.getLength()));
+				} catch (IOException e) {
+					// Skip lines that are not tweets.
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return tweets;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void logResult(Map<String, Object> result) {
+		Map<String, Object> latencies = (Map<String, Object>)result.get("latency_us");
+		StringBuilder builder = new StringBuilder();
+		builder.append(String.format("%d threads: %d tweets/s, %d bytes/tweet, %d GCs (%d ms).",
+				result.get("threads"), result.get("tweets_per_second"), result.get("allocated_bytes_per_tweet"),
+				result.get("gc_count"), result.get("gc_time_ms")));
+		for (Map.Entry<String, Object> entry : latencies.entrySet()) {
+			Map<String, Object> latency = (Map<String, Object>)entry.getValue();
+			if (((Long)latency.get("count")) == 0)
+				continue;
+			builder.append(String.format(" %s: %d, p50 %.1f us, p99 %.1f us, p999 %.1f us, max %.1f us.", entry.getKey(),
+					latency.get("count"), latency.get("p50"), latency.get("p99"), latency.get("p999"), latency.get("max")));
+		}
+		logger.info(builder.toString());
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String[] manditory_args = { "input_file" };
+		createCommandLineOptions();
+		CommandLineUtilities.initCommandLineParameters(args, LoadTestResolver.options, manditory_args);
+
+		String inputFile = CommandLineUtilities.getOptionValue("input_file");
+		String threads = "1,8,32,64";
+		if (CommandLineUtilities.hasArg("threads"))
+			threads = CommandLineUtilities.getOptionValue("threads");
+		double duration = 30;
+		if (CommandLineUtilities.hasArg("duration"))
+			duration = Double.parseDouble(CommandLineUtilities.getOptionValue("duration"));
+		double warmup = 10;
+		if (CommandLineUtilities.hasArg("warmup"))
+			warmup = Double.parseDouble(CommandLineUtilities.getOptionValue("warmup"));
+		double rate = 0;
+		if (CommandLineUtilities.hasArg("rate"))
+			rate = Double.parseDouble(CommandLineUtilities.getOptionValue("rate"));
+		int maxTweets = 0;
+		if (CommandLineUtilities.hasArg("max_tweets"))
+			maxTweets = CommandLineUtilities.getOptionValueAsInt("max_tweets");
+		String resultsFile = null;
+		if (CommandLineUtilities.hasArg("results_file"))
+			resultsFile = CommandLineUtilities.getOptionValue("results_file");
+		if (Utils.STANDARD_STREAM.equals(resultsFile))
+			Utils.redirectConsoleLoggingToStderr();
+
+		LocationResolver resolver = LocationResolver.getLocationResolver();
+		logger.info("Reading tweets from: " + inputFile);
+		List<Map<String, Object>> tweets = readTweets(inputFile, maxTweets);
+		logger.info("Read " + tweets.size() + " tweets.");
+		LoadTestResolver loadTest = new LoadTestResolver(resolver, tweets, rate);
+
+		List<Object> runs = new ArrayList<Object>();
+		for (String numThreads : threads.split(",")) {
+			logger.info("Running with " + numThreads.trim() + " threads.");
+			Map<String, Object> result = loadTest.run(Integer.parseInt(numThreads.trim()), warmup, duration);
+			logResult(result);
+			runs.add(result);
+		}
+
+		if (resultsFile != null) {
+			Map<String, Object> results = new LinkedHashMap<String, Object>();
+			results.put("input_file", inputFile);
+			results.put("input_tweets", tweets.size());
+			results.put("rate", rate);
+			results.put("warmup_seconds", warmup);
+			results.put("duration_seconds", duration);
+			results.put("java_version", System.getProperty("java.version"));
+			results.put("processors", Runtime.getRuntime().availableProcessors());
+			results.put("max_memory", Runtime.getRuntime().maxMemory());
+			results.put("runs", runs);
+			ObjectMapper mapper = new ObjectMapper();
+			mapper.enable(SerializationFeature.INDENT_OUTPUT);
+			OutputStream outputStream = Utils.createOutputStream(resultsFile);
+			try {
+				outputStream.write(mapper.writeValueAsBytes(results));
+				outputStream.write('\n');
+			} finally {
+				if (Utils.STANDARD_STREAM.equals(resultsFile))
+					outputStream.flush();
+				else
+					outputStream.close();
+			}
+			logger.info("Wrote the results to: " + resultsFile);
+		}
+	}
+
+	private static void createCommandLineOptions() {
+		Utils.registerOption(options, "input_file", "String", true, "A file of tweets, one per line, to replay.");
+		Utils.registerOption(options, "threads", "String", true, "The numbers of threads to run with, in turn (1,8,32,64 by default).");
+		Utils.registerOption(options, "duration", "double", true, "The seconds to measure each number of threads (30 by default).");
+		Utils.registerOption(options, "warmup", "double", true, "The seconds to run each number of threads before measuring (10 by default).");
+		Utils.registerOption(options, "rate", "double", true, "The tweets per second over all threads, measuring latency from when each tweet should start (0, as fast as possible, by default).");
+		Utils.registerOption(options, "max_tweets", "int", true, "The most tweets to read from the input file (all by default).");
+		Utils.registerOption(options, "results_file", "String", true, "The file to write the results to as JSON, or - for standard output.");
+	}
+}
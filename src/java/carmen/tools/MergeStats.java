@@ -0,0 +1,42 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.tools;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import carmen.stats.ResolutionStats;
+import carmen.utils.Utils;
+
+/**
+ * Adds up the statistics written by several runs of LocationResolverStatsDemo with --stats_file
+ * (e.g. one per shard of an input file) and writes the total in the same format.
+ * Usage: MergeStats output.json stats1.json stats2.json ...
+ * The output file may be - for standard output.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class MergeStats {
+	protected static Logger logger = Logger.getLogger(MergeStats.class);
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: MergeStats <output_file> <stats_file>...");
+			System.exit(1);
+		}
+		if (Utils.STANDARD_STREAM.equals(args[0]))
+			Utils.redirectConsoleLoggingToStderr();
+
+		ResolutionStats stats = new ResolutionStats();
+		for (int ii = 1; ii < args.length; ii++) {
+			logger.info("Reading stats from: " + args[ii]);
+			stats.add(ResolutionStats.read(args[ii]));
+		}
+		stats.log(logger);
+		stats.write(args[0]);
+	}
+}
@@ -0,0 +1,28 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.types;
+
+/**
+ * A read only map from location names and aliases to locations, used by LocationDatabase
+ * to resolve user profile locations. alias_index in carmen.properties selects the implementation:
+ * hash (HashAliasIndex, the default) or fst (FstAliasIndex, smaller and with prefix lookups).
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public interface AliasIndex {
+	/**
+	 * Returns the location with this name, or null if there is none.
+	 * @param name
+	 * @return
+	 */
+	public Location get(String name);
+
+	/**
+	 * The number of names.
+	 * @return
+	 */
+	public int size();
+}
@@ -9,6 +9,13 @@ public class Constants {
 	public static final String PLACE = "place";
 	public static final String TWEET_USER = "user";
 	public static final String TWEET_USER_LOCATION = "location";
+	public static final String TWEET_USER_ID = "id";
+	public static final String TWEET_USER_ID_STR = "id_str";
 	public static final String COORDINATES = "coordinates";
+	public static final String TWEET_LOCATION = "location";
+	public static final String TWEET_ID = "id";
+	public static final String TWEET_ID_STR = "id_str";
+	public static final String TWEET_CREATED_AT = "created_at";
+	public static final String TWEET_CREATED_AT_FORMAT = "EEE MMM dd HH:mm:ss Z yyyy";
 	public static final int NEW_LOCATION_STARTING_INDEX = 1000000;
 }
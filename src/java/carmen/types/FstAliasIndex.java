@@ -0,0 +1,536 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.types;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An AliasIndex stored as a minimal acyclic finite state transducer over the UTF-8 bytes of the names.
+ * Names that share prefixes or suffixes share states, so large alias sets take much less memory than
+ * a hash table, and the index can be written to a file and memory mapped instead of being built
+ * (write() and read()).
+ *
+ * The transducer maps each name to its ordinal: its position among the names sorted by their bytes.
+ * Each arc carries the number of names that sort before any name through it, and the ordinal of a name
+ * is the sum of the arcs on its path. The ordinal indexes a table of location ids.
+ * Besides exact lookups, getNamesWithPrefix() lists the names that start with a prefix, in sorted order.
+ *
+ * The index is a single little endian byte array:
+ * <pre>
+ * header  ints: magic "CFST", version, number of names, position of the root state, position of the id table
+ * states  a varint header (number of arcs &lt;&lt; 1 | 1 if the state is final), and if there are arcs, a byte
+ *         with the widths in bytes of the outputs (low 4 bits) and targets (high 4 bits) of the state's arcs.
+ *         Then for each arc, sorted by label: the label byte, the output and the position of the target state.
+ * ids     the location id (int) of each name, by ordinal
+ * </pre>
+ * Since the arcs of a state have the same size, they are binary searched.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class FstAliasIndex implements AliasIndex {
+	protected static Logger logger = Logger.getLogger(FstAliasIndex.class);
+
+	public static final byte[] MAGIC = { 'C', 'F', 'S', 'T' };
+	public static final int VERSION = 1;
+	// The size of the header in bytes.
+	private static final int HEADER_SIZE = 20;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer buffer;
+	private final int numNames;
+	private final int root;
+	private final Location[] locations;
+
+	private FstAliasIndex(ByteBuffer buffer, Location[] locations) throws IOException {
+		this.buffer = buffer;
+		for (int ii = 0; ii < MAGIC.length; ii++) {
+			if (buffer.get(ii) != MAGIC[ii])
+				throw new IOException("Not an alias index.");
+		}
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported alias index version: " + buffer.getInt(4));
+		this.numNames = buffer.getInt(8);
+		this.root = buffer.getInt(12);
+		this.locations = locations;
+	}
+
+	/**
+	 * Builds the index for a map of names to locations.
+	 * @param nameToLocation
+	 * @return
+	 * @throws IOException
+	 */
+	public static FstAliasIndex build(Map<String, Location> nameToLocation) throws IOException {
+		// The transducer is built from the names in sorted order.
+		List<Map.Entry<byte[], Location>> entries = new ArrayList<Map.Entry<byte[], Location>>(nameToLocation.size());
+		for (Map.Entry<String, Location> entry : nameToLocation.entrySet())
+			entries.add(new java.util.AbstractMap.SimpleEntry<byte[], Location>(entry.getKey().getBytes(UTF8), entry.getValue()));
+		Collections.sort(entries, new Comparator<Map.Entry<byte[], Location>>() {
+			public int compare(Map.Entry<byte[], Location> entry1, Map.Entry<byte[], Location> entry2) {
+				return compareBytes(entry1.getKey(), entry2.getKey());
+			}
+		});
+
+		Builder builder = new Builder();
+		Location[] locations = new Location[entries.size()];
+		int ordinal = 0;
+		for (Map.Entry<byte[], Location> entry : entries) {
+			builder.add(entry.getKey());
+			locations[ordinal++] = entry.getValue();
+		}
+		// The states follow the header.
+		byte[] states = builder.finish();
+
+		ByteBuffer buffer = ByteBuffer.allocate(states.length + locations.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(locations.length);
+		buffer.putInt(builder.getRoot());
+		buffer.putInt(states.length);
+		buffer.put(states, HEADER_SIZE, states.length - HEADER_SIZE);
+		for (Location location : locations)
+			buffer.putInt(location.getId());
+		buffer.flip();
+
+		return new FstAliasIndex(buffer, locations);
+	}
+
+	/**
+	 * Memory maps an index written by write(). The locations are looked up by id.
+	 * @param filename
+	 * @param idToLocation
+	 * @return
+	 * @throws IOException
+	 */
+	public static FstAliasIndex read(String filename, Map<Integer, Location> idToLocation) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		ByteBuffer buffer;
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("The alias index " + filename + " is too large to map.");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			file.close();
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.capacity() < HEADER_SIZE)
+			throw new IOException("Not an alias index: " + filename);
+
+		int numNames = buffer.getInt(8);
+		int idsStart = buffer.getInt(16);
+		Location[] locations = new Location[numNames];
+		int missing = 0;
+		for (int ii = 0; ii < numNames; ii++) {
+			locations[ii] = idToLocation.get(buffer.getInt(idsStart + ii * 4));
+			if (locations[ii] == null)
+				missing++;
+		}
+		if (missing > 0)
+			logger.warn(missing + " names in " + filename + " refer to locations that are not in the database.");
+		return new FstAliasIndex(buffer, locations);
+	}
+
+	/**
+	 * Writes the index to a file that can be memory mapped with read().
+	 * @param filename
+	 * @throws IOException
+	 */
+	public void write(String filename) throws IOException {
+		FileOutputStream outputStream = new FileOutputStream(filename);
+		try {
+			FileChannel channel = outputStream.getChannel();
+			ByteBuffer buffer = this.buffer.duplicate();
+			buffer.clear();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} finally {
+			outputStream.close();
+		}
+	}
+
+	public Location get(String name) {
+		long result = walk(name);
+		if (result == -1)
+			return null;
+		int state = (int)(result >>> 32);
+		if ((readHeader(state) & 1) == 0)
+			return null;
+		return this.locations[(int)result];
+	}
+
+	public int size() {
+		return this.numNames;
+	}
+
+	/**
+	 * The size of the index in bytes (as written by write()).
+	 * @return
+	 */
+	public int getSizeInBytes() {
+		return this.buffer.capacity();
+	}
+
+	/**
+	 * Returns the names that start with the prefix, in sorted order (by their UTF-8 bytes).
+	 * @param prefix
+	 * @param maxNames The maximum number of names to return.
+	 * @return
+	 */
+	public List<String> getNamesWithPrefix(String prefix, int maxNames) {
+		List<String> names = new ArrayList<String>();
+		long result = walk(prefix);
+		if (result == -1 || maxNames <= 0)
+			return names;
+		byte[] prefixBytes = prefix.getBytes(UTF8);
+		byte[] name = Arrays.copyOf(prefixBytes, Math.max(16, prefixBytes.length * 2));
+		collectNames((int)(result >>> 32), name, prefixBytes.length, names, maxNames);
+		return names;
+	}
+
+	private byte[] collectNames(int state, byte[] name, int length, List<String> names, int maxNames) {
+		int header = readHeader(state);
+		int numArcs = header >>> 1;
+		if ((header & 1) != 0)
+			names.add(new String(name, 0, length, UTF8));
+		if (numArcs == 0)
+			return name;
+		int position = state + headerSize(header);
+		int widths = this.buffer.get(position++);
+		int outputWidth = widths & 0xf;
+		int targetWidth = widths >>> 4;
+		for (int arc = 0; arc < numArcs && names.size() < maxNames; arc++) {
+			int arcPosition = position + arc * (1 + outputWidth + targetWidth);
+			if (length == name.length)
+				name = Arrays.copyOf(name, name.length * 2);
+			name[length] = this.buffer.get(arcPosition);
+			int target = readNumber(arcPosition + 1 + outputWidth, targetWidth);
+			name = collectNames(target, name, length + 1, names, maxNames);
+		}
+		return name;
+	}
+
+	/**
+	 * Follows the UTF-8 bytes of a string from the root. Returns the state reached in the high int and the
+	 * sum of the outputs in the low int, or -1 if there is no path.
+	 */
+	private long walk(String string) {
+		long result = (long)this.root << 32;
+		int length = string.length();
+		for (int ii = 0; ii < length && result != -1; ii++) {
+			char c = string.charAt(ii);
+			if (c < 0x80) {
+				result = step(result, c);
+			} else if (c < 0x800) {
+				result = step(result, 0xc0 | (c >> 6));
+				result = step(result, 0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && ii + 1 < length && Character.isLowSurrogate(string.charAt(ii + 1))) {
+				int codePoint = Character.toCodePoint(c, string.charAt(++ii));
+				result = step(result, 0xf0 | (codePoint >> 18));
+				result = step(result, 0x80 | ((codePoint >> 12) & 0x3f));
+				result = step(result, 0x80 | ((codePoint >> 6) & 0x3f));
+				result = step(result, 0x80 | (codePoint & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				// String.getBytes() encodes an unpaired surrogate as '?'.
+				result = step(result, '?');
+			} else {
+				result = step(result, 0xe0 | (c >> 12));
+				result = step(result, 0x80 | ((c >> 6) & 0x3f));
+				result = step(result, 0x80 | (c & 0x3f));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Follows the arc with the label (a byte) from the state in the high int of result, adding its output to the low int.
+	 * The arcs are sorted, so few arcs are scanned and many are searched.
+	 */
+	private long step(long result, int label) {
+		if (result == -1)
+			return -1;
+		int state = (int)(result >>> 32);
+		int header = readHeader(state);
+		int numArcs = header >>> 1;
+		if (numArcs == 0)
+			return -1;
+		int position = state + headerSize(header);
+		int widths = this.buffer.get(position++);
+		int outputWidth = widths & 0xf;
+		int arcSize = 1 + outputWidth + (widths >>> 4);
+
+		int arc = -1;
+		if (numArcs <= 8) {
+			for (int ii = 0; ii < numArcs; ii++) {
+				int arcLabel = this.buffer.get(position + ii * arcSize) & 0xff;
+				if (arcLabel >= label) {
+					if (arcLabel == label)
+						arc = ii;
+					break;
+				}
+			}
+		} else {
+			int low = 0;
+			int high = numArcs - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int arcLabel = this.buffer.get(position + middle * arcSize) & 0xff;
+				if (arcLabel < label) {
+					low = middle + 1;
+				} else if (arcLabel > label) {
+					high = middle - 1;
+				} else {
+					arc = middle;
+					break;
+				}
+			}
+		}
+		if (arc == -1)
+			return -1;
+		int arcPosition = position + arc * arcSize;
+		int output = (int)result + readNumber(arcPosition + 1, outputWidth);
+		int target = readNumber(arcPosition + 1 + outputWidth, widths >>> 4);
+		return ((long)target << 32) | (output & 0xffffffffL);
+	}
+
+	/**
+	 * Reads the header of a state: a varint of the number of arcs shifted left by one, plus one if the state is final.
+	 */
+	private int readHeader(int state) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = this.buffer.get(state++);
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	private static int headerSize(int header) {
+		return header < (1 << 7) ? 1 : (header < (1 << 14) ? 2 : (header < (1 << 21) ? 3 : 4));
+	}
+
+	/**
+	 * Reads a little endian number of 0 to 4 bytes.
+	 */
+	private int readNumber(int position, int width) {
+		int value = 0;
+		for (int ii = 0; ii < width; ii++)
+			value |= (this.buffer.get(position + ii) & 0xff) << (8 * ii);
+		return value;
+	}
+
+	private static int width(int value) {
+		if (value == 0)
+			return 0;
+		return value < (1 << 8) ? 1 : (value < (1 << 16) ? 2 : (value < (1 << 24) ? 3 : 4));
+	}
+
+	private static int compareBytes(byte[] bytes1, byte[] bytes2) {
+		int length = Math.min(bytes1.length, bytes2.length);
+		for (int ii = 0; ii < length; ii++) {
+			int difference = (bytes1[ii] & 0xff) - (bytes2[ii] & 0xff);
+			if (difference != 0)
+				return difference;
+		}
+		return bytes1.length - bytes2.length;
+	}
+
+	/**
+	 * Builds a minimal transducer from names added in sorted order, merging equivalent states as soon as
+	 * they are complete (Daciuk et al., Incremental construction of minimal acyclic finite-state automata, 2000).
+	 */
+	private static class Builder {
+		private final State rootState = new State();
+		private final HashMap<State, State> register = new HashMap<State, State>();
+		// The states of the path of the last name added. path[ii] is reached after ii bytes.
+		private State[] path = new State[64];
+		private byte[] previous = new byte[0];
+		// Room is left for the header of the index.
+		private byte[] bytes = new byte[4096];
+		private int size = HEADER_SIZE;
+		private int root = -1;
+
+		private Builder() {
+			this.path[0] = this.rootState;
+		}
+
+		private void add(byte[] name) {
+			int common = 0;
+			while (common < name.length && common < this.previous.length && name[common] == this.previous[common])
+				common++;
+			if (common == name.length && common == this.previous.length && name.length != 0)
+				throw new IllegalArgumentException("Duplicate name.");
+			minimize(common);
+
+			if (name.length + 1 > this.path.length)
+				this.path = Arrays.copyOf(this.path, (name.length + 1) * 2);
+			for (int ii = common; ii < name.length; ii++) {
+				State state = new State();
+				this.path[ii].addArc(name[ii], state);
+				this.path[ii + 1] = state;
+			}
+			this.path[name.length].isFinal = true;
+			this.previous = name;
+		}
+
+		/**
+		 * Replaces the states of the previous name after depth by equivalent registered states, or registers them.
+		 */
+		private void minimize(int depth) {
+			for (int ii = this.previous.length; ii > depth; ii--) {
+				State state = this.path[ii];
+				State registered = this.register.get(state);
+				if (registered != null) {
+					this.path[ii - 1].setLastTarget(registered);
+				} else {
+					state.computeHashCode();
+					this.register.put(state, state);
+				}
+			}
+		}
+
+		/**
+		 * Writes the states, children before parents, and returns the bytes (starting with room for the header).
+		 */
+		private byte[] finish() {
+			minimize(0);
+			this.register.clear();
+			this.root = write(this.rootState);
+			return Arrays.copyOf(this.bytes, this.size);
+		}
+
+		private int getRoot() {
+			return this.root;
+		}
+
+		/**
+		 * Writes a state after its targets and returns its position. Also computes the number of names from each state.
+		 */
+		private int write(State state) {
+			if (state.position != -1)
+				return state.position;
+			int count = state.isFinal ? 1 : 0;
+			int[] targets = new int[state.numArcs];
+			for (int arc = 0; arc < state.numArcs; arc++) {
+				targets[arc] = write(state.targets[arc]);
+				count += state.targets[arc].count;
+			}
+			state.count = count;
+
+			// All the arcs of a state use the same number of bytes for outputs and targets, so they can be searched.
+			int maxOutput = count;
+			int maxTarget = 0;
+			for (int arc = 0; arc < state.numArcs; arc++)
+				maxTarget = Math.max(maxTarget, targets[arc]);
+			int outputWidth = width(maxOutput);
+			int targetWidth = Math.max(1, width(maxTarget));
+
+			ensureCapacity(5 + 1 + state.numArcs * (1 + outputWidth + targetWidth));
+			state.position = this.size;
+			int header = (state.numArcs << 1) | (state.isFinal ? 1 : 0);
+			while (header >= 0x80) {
+				this.bytes[this.size++] = (byte)(header | 0x80);
+				header >>>= 7;
+			}
+			this.bytes[this.size++] = (byte)header;
+			if (state.numArcs > 0) {
+				this.bytes[this.size++] = (byte)(outputWidth | (targetWidth << 4));
+				int output = state.isFinal ? 1 : 0;
+				for (int arc = 0; arc < state.numArcs; arc++) {
+					this.bytes[this.size++] = state.labels[arc];
+					writeNumber(output, outputWidth);
+					writeNumber(targets[arc], targetWidth);
+					output += state.targets[arc].count;
+				}
+			}
+			// The arcs are no longer needed.
+			state.labels = null;
+			state.targets = null;
+			return state.position;
+		}
+
+		private void writeNumber(int value, int width) {
+			for (int ii = 0; ii < width; ii++)
+				this.bytes[this.size++] = (byte)(value >>> (8 * ii));
+		}
+
+		private void ensureCapacity(int needed) {
+			if (this.size + needed > this.bytes.length)
+				this.bytes = Arrays.copyOf(this.bytes, Math.max(this.size + needed, this.bytes.length * 2));
+		}
+	}
+
+	/**
+	 * A state while building. Registered states do not change, so their hash code is computed once.
+	 */
+	private static class State {
+		private boolean isFinal = false;
+		private int numArcs = 0;
+		private byte[] labels = new byte[2];
+		private State[] targets = new State[2];
+		private int hashCode = 0;
+		private int count = 0;
+		private int position = -1;
+
+		private void addArc(byte label, State target) {
+			if (this.numArcs == this.labels.length) {
+				this.labels = Arrays.copyOf(this.labels, this.numArcs * 2);
+				this.targets = Arrays.copyOf(this.targets, this.numArcs * 2);
+			}
+			this.labels[this.numArcs] = label;
+			this.targets[this.numArcs] = target;
+			this.numArcs++;
+		}
+
+		private void setLastTarget(State target) {
+			this.targets[this.numArcs - 1] = target;
+		}
+
+		private void computeHashCode() {
+			int hash = this.isFinal ? 1 : 0;
+			for (int arc = 0; arc < this.numArcs; arc++)
+				hash = hash * 31 * 31 + this.labels[arc] * 31 + System.identityHashCode(this.targets[arc]);
+			this.hashCode = hash;
+		}
+
+		public int hashCode() {
+			if (this.hashCode == 0)
+				computeHashCode();
+			return this.hashCode;
+		}
+
+		public boolean equals(Object object) {
+			if (!(object instanceof State))
+				return false;
+			State state = (State)object;
+			if (this.isFinal != state.isFinal || this.numArcs != state.numArcs)
+				return false;
+			for (int arc = 0; arc < this.numArcs; arc++) {
+				if (this.labels[arc] != state.labels[arc] || this.targets[arc] != state.targets[arc])
+					return false;
+			}
+			return true;
+		}
+	}
+}
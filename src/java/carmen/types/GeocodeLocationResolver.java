@@ -5,32 +5,135 @@
 package carmen.types;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import carmen.utils.CarmenProperties;
 import carmen.utils.Utils;
 
 import com.javadocmd.simplelatlng.LatLng;
 import com.javadocmd.simplelatlng.LatLngTool;
-import com.javadocmd.simplelatlng.util.LengthUnit;
+import com.javadocmd.simplelatlng.util.LatLngConfig;
 
 /**
  * A helper class used by the LocationResolver to handle coordinates.
+ * 
+ * The closest location within geocode_max_distance miles is returned. If use_location_radius is true
+ * (it is false by default), the point is also tested against the bounding circles of the known locations
+ * (the radius field in the locations file) whose centers are within geocode_max_distance. The most specific
+ * containing location is returned instead if it is more specific than the closest location, e.g. a city
+ * whose circle contains a point that is closest to the center of its state. The radii in the database are
+ * rough, so a containing location never replaces a closest location that is as specific, and the circles
+ * of states and countries are not used (see LocationCircleIndex.MAX_VALID_RADIUS).
+ *
+ * The closest location is found with a LocationPointIndex, which keeps the coordinates in primitive arrays.
+ * resolveLocations() resolves many points at once, which is faster for large batches.
+ *
+ * withRaster() adds a GeocodeRaster, a precomputed grid of the locations, which resolves most points with
+ * one lookup. Points in the cells of the raster where the location may change are resolved with the indices.
+ * The raster is only used by resolvers with the locations and options it was built for, so it is dropped by
+ * withChanges().
+ *
+ * A resolver does not change once it is created; withChanges(), withOptions() and withRaster() return new
+ * resolvers that share what they can with this one.
  * @author Mark Dredze mdredze@cs.jhu.edu
  *
  */
 public class GeocodeLocationResolver {
 	private final double maxDistance;
-	private final HashMap<String,List<Location>> locationMap = new HashMap<String,List<Location>>();
-	private final int cellSize = 100;
+	private final boolean useLocationRadius;
+	private final LocationPointIndex pointIndex;
+	private final LocationCircleIndex circleIndex;
+	// The raster, kept for other views even if it was built with other options, and whether this view uses it.
+	private final GeocodeRaster raster;
+	private final boolean useRaster;
 	
 	public GeocodeLocationResolver () throws IOException {
-		maxDistance = CarmenProperties.getDouble("geocode_max_distance");
+		this(Collections.<Location>emptyList());
+	}
+	
+	public GeocodeLocationResolver(double maxDistance, boolean useLocationRadius) {
+		this(maxDistance, useLocationRadius, Collections.<Location>emptyList());
+	}
+	
+	/**
+	 * Creates a resolver of these locations, with the options geocode_max_distance and use_location_radius.
+	 * @param locations
+	 * @throws IOException
+	 */
+	public GeocodeLocationResolver(Collection<Location> locations) throws IOException {
+		this(CarmenProperties.getDouble("geocode_max_distance"), CarmenProperties.getBoolean("use_location_radius", false), locations);
+	}
+	
+	public GeocodeLocationResolver(double maxDistance, boolean useLocationRadius, Collection<Location> locations) {
+		this.maxDistance = maxDistance;
+		this.useLocationRadius = useLocationRadius;
+		this.pointIndex = new LocationPointIndex(locations);
+		this.circleIndex = new LocationCircleIndex();
+		// Always index the circles so that views with use_location_radius can use them.
+		for (Location location : locations)
+			this.circleIndex.addLocation(location);
+		this.raster = null;
+		this.useRaster = false;
+	}
+	
+	private GeocodeLocationResolver(double maxDistance, boolean useLocationRadius, LocationPointIndex pointIndex, LocationCircleIndex circleIndex,
+			GeocodeRaster raster) {
+		this.maxDistance = maxDistance;
+		this.useLocationRadius = useLocationRadius;
+		this.pointIndex = pointIndex;
+		this.circleIndex = circleIndex;
+		this.raster = raster;
+		this.useRaster = raster != null && raster.getMaxDistance() == maxDistance && raster.isUseLocationRadius() == useLocationRadius;
+	}
+	
+	/**
+	 * Returns a resolver with some locations removed and others added, with the same options. This resolver
+	 * does not change, so both can be used at once.
+	 * @param removedLocations Locations to remove (the same objects that were added).
+	 * @param addedLocations
+	 * @return
+	 */
+	public GeocodeLocationResolver withChanges(Collection<Location> removedLocations, Collection<Location> addedLocations) {
+		return new GeocodeLocationResolver(this.maxDistance, this.useLocationRadius,
+				this.pointIndex.withChanges(removedLocations, addedLocations),
+				this.circleIndex.withChanges(removedLocations, addedLocations), null);
+	}
+	
+	/**
+	 * Returns a resolver over the same locations with different options. The locations are shared, not copied.
+	 * @param maxDistance
+	 * @param useLocationRadius
+	 * @return
+	 */
+	public GeocodeLocationResolver withOptions(double maxDistance, boolean useLocationRadius) {
+		return new GeocodeLocationResolver(maxDistance, useLocationRadius, this.pointIndex, this.circleIndex, this.raster);
+	}
+	
+	/**
+	 * Returns a resolver that uses a raster, which must have been built from these locations (see GeocodeRaster.matches()).
+	 * Views with the options of the raster use it.
+	 * @param raster The raster, or null for none.
+	 * @return
+	 */
+	public GeocodeLocationResolver withRaster(GeocodeRaster raster) {
+		if (raster != null && !raster.matches(this.withOptions(raster.getMaxDistance(), raster.isUseLocationRadius())))
+			throw new IllegalArgumentException("The geocode raster was built from other locations.");
+		return new GeocodeLocationResolver(this.maxDistance, this.useLocationRadius, this.pointIndex, this.circleIndex, raster);
+	}
+	
+	public GeocodeRaster getRaster() {
+		return this.raster;
+	}
+	
+	public double getMaxDistance() {
+		return this.maxDistance;
+	}
+	
+	public boolean isUseLocationRadius() {
+		return this.useLocationRadius;
 	}
 	
 	public Location resolveLocation(Map<String,Object> tweet) {
@@ -39,79 +142,123 @@ public class GeocodeLocationResolver {
 		if (givenLatLong == null)
 			return null;
 		
-		Set<Location> locations = this.getPossibleLocations(givenLatLong);
-		Location closestLocation = null;
-		double closestDistance = 0;
-		
+		return resolveLocation(givenLatLong);
+	}
+	
+	public Location resolveLocation(LatLng givenLatLong) {
+		double latitude = givenLatLong.getLatitude();
+		double longitude = givenLatLong.getLongitude();
+		if (this.useRaster) {
+			int value = this.raster.lookup(latitude, longitude);
+			if (value != GeocodeRaster.BOUNDARY)
+				return this.raster.getLocation(value);
+		}
+		Location closestLocation = this.pointIndex.getClosestLocation(latitude, longitude, this.maxDistance);
+		return selectLocation(latitude, longitude, closestLocation);
+	}
+	
+	/**
+	 * Resolves many points at once. Each point gets the same location as resolveLocation(new LatLng(latitude, longitude)),
+	 * but no objects are created for the points and the points are resolved in the order of their grid cells.
+	 * Use this for large batches of coordinates, e.g. when backfilling.
+	 * @param latitudes In degrees.
+	 * @param longitudes In degrees.
+	 * @return The location of each point, or null if it has none or is not a valid point.
+	 */
+	public Location[] resolveLocations(double[] latitudes, double[] longitudes) {
+		if (latitudes.length != longitudes.length)
+			throw new IllegalArgumentException("The number of latitudes and longitudes must match.");
 		
-		for (Location location : locations) {
-			// Check the distance to this location.
-			LatLng latLong = location.getLatLng();
-			
-			double distanceInMiles = LatLngTool.distance(givenLatLong, latLong, LengthUnit.MILE);
-			if (closestLocation == null | closestDistance > distanceInMiles) {
-				closestDistance = distanceInMiles;
-				closestLocation = location;
+		// Round the points as LatLng does. Invalid points are moved out of the way and dropped at the end.
+		int numPoints = latitudes.length;
+		double[] roundedLatitudes = new double[numPoints];
+		double[] roundedLongitudes = new double[numPoints];
+		boolean[] invalid = new boolean[numPoints];
+		for (int ii = 0; ii < numPoints; ii++) {
+			double latitude = LatLngTool.normalizeLatitude(latitudes[ii]);
+			double longitude = LatLngTool.normalizeLongitude(longitudes[ii]);
+			if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+				invalid[ii] = true;
+				continue;
 			}
+			long roundedLatitude = LatLngConfig.doubleToLong(latitude);
+			roundedLatitudes[ii] = LatLngConfig.longToDouble(roundedLatitude);
+			// As in LatLng, the longitude of a pole is 0.
+			if (Math.abs(roundedLatitude) != LatLngConfig.doubleToLong(90))
+				roundedLongitudes[ii] = LatLngConfig.longToDouble(LatLngConfig.doubleToLong(longitude));
 		}
 		
-		if (closestLocation != null && closestDistance < this.maxDistance) {
-			return closestLocation;
+		Location[] locations = new Location[numPoints];
+		if (!this.useRaster) {
+			this.pointIndex.getClosestLocations(roundedLatitudes, roundedLongitudes, this.maxDistance, locations);
+			for (int ii = 0; ii < numPoints; ii++) {
+				if (invalid[ii])
+					locations[ii] = null;
+				else
+					locations[ii] = selectLocation(roundedLatitudes[ii], roundedLongitudes[ii], locations[ii]);
+			}
+			return locations;
 		}
-		return null;
-	}
-
-	private Set<Location> getPossibleLocations(LatLng latLong) {
-		List<String> keys = this.getKeys(latLong);
 		
-		Set<Location> locationSet = new HashSet<Location>();
-		for (String key : keys) {
-			if (this.locationMap.containsKey(key)) {
-				List<Location> locations = this.locationMap.get(key);
-				for (Location location : locations) {
-					locationSet.add(location);
-				}
-			}			
+		// Look the points up in the raster, and resolve the points in its boundary cells with the indices.
+		int[] remaining = new int[numPoints];
+		int numRemaining = 0;
+		for (int ii = 0; ii < numPoints; ii++) {
+			if (invalid[ii])
+				continue;
+			int value = this.raster.lookup(roundedLatitudes[ii], roundedLongitudes[ii]);
+			if (value == GeocodeRaster.BOUNDARY)
+				remaining[numRemaining++] = ii;
+			else
+				locations[ii] = this.raster.getLocation(value);
 		}
-		
-		return locationSet;
+		double[] remainingLatitudes = new double[numRemaining];
+		double[] remainingLongitudes = new double[numRemaining];
+		for (int ii = 0; ii < numRemaining; ii++) {
+			remainingLatitudes[ii] = roundedLatitudes[remaining[ii]];
+			remainingLongitudes[ii] = roundedLongitudes[remaining[ii]];
+		}
+		Location[] remainingLocations = new Location[numRemaining];
+		this.pointIndex.getClosestLocations(remainingLatitudes, remainingLongitudes, this.maxDistance, remainingLocations);
+		for (int ii = 0; ii < numRemaining; ii++)
+			locations[remaining[ii]] = selectLocation(remainingLatitudes[ii], remainingLongitudes[ii], remainingLocations[ii]);
+		return locations;
 	}
 	
-	public void addLocation(Location location) {
-		if (location.getLatLng() == null)
-			return;
-		
-		LatLng latLong = location.getLatLng();
-		List<String> keys = this.getKeys(latLong);
-		
-		for (String key : keys) {
-			if (!this.locationMap.containsKey(key)) {
-				this.locationMap.put(key, new LinkedList<Location>());
-			}
-			
-			List<Location> locations = this.locationMap.get(key);
-			locations.add(location);
+	/**
+	 * Chooses between the closest location and the most specific location whose circle contains the point.
+	 */
+	private Location selectLocation(double latitude, double longitude, Location closestLocation) {
+		if (this.useLocationRadius) {
+			Location containingLocation = this.circleIndex.getMostSpecificContainingLocation(latitude, longitude, this.maxDistance);
+			if (containingLocation != null && (closestLocation == null ||
+					LocationCircleIndex.getSpecificity(containingLocation) > LocationCircleIndex.getSpecificity(closestLocation)))
+				return containingLocation;
 		}
+		return closestLocation;
 	}
-
-	private List<String> getKeys(LatLng latLong) {
-		double latitude = latLong.getLatitude() * 100;
-		double longitude = latLong.getLongitude() * 100;
-		double shiftSize = this.cellSize  / (double)2;
-		
-		List<String> keys = new LinkedList<String>();
-		
-		keys.add(Integer.toString((int) (latitude/this.cellSize)) + "&&" + Integer.toString((int) (longitude/this.cellSize)));
-		
-		keys.add(Integer.toString((int) (latitude+shiftSize/this.cellSize)) + "&&" + Integer.toString((int) (longitude/this.cellSize)));
-		keys.add(Integer.toString((int) (latitude-shiftSize/this.cellSize)) + "&&" + Integer.toString((int) (longitude/this.cellSize)));
-		keys.add(Integer.toString((int) (latitude/this.cellSize)) + "&&" + Integer.toString((int) (longitude+shiftSize/this.cellSize)));
-		keys.add(Integer.toString((int) (latitude/this.cellSize)) + "&&" + Integer.toString((int) (longitude-shiftSize/this.cellSize)));
-		keys.add(Integer.toString((int) (latitude+shiftSize/this.cellSize)) + "&&" + Integer.toString((int) (longitude+shiftSize/this.cellSize)));
-		keys.add(Integer.toString((int) (latitude+shiftSize/this.cellSize)) + "&&" + Integer.toString((int) (longitude-shiftSize/this.cellSize)));
-		keys.add(Integer.toString((int) (latitude-shiftSize/this.cellSize)) + "&&" + Integer.toString((int) (longitude+shiftSize/this.cellSize)));
-		keys.add(Integer.toString((int) (latitude-shiftSize/this.cellSize)) + "&&" + Integer.toString((int) (longitude-shiftSize/this.cellSize)));
-				
-		return keys;
+	
+	/**
+	 * The number of known locations.
+	 * @return
+	 */
+	public int size() {
+		return this.pointIndex.size();
+	}
+	
+	/**
+	 * The known locations, in the order they were added.
+	 * @return
+	 */
+	public List<Location> getLocations() {
+		return this.pointIndex.getLocations();
+	}
+	
+	protected LocationPointIndex getPointIndex() {
+		return this.pointIndex;
+	}
+	
+	protected LocationCircleIndex getCircleIndex() {
+		return this.circleIndex;
 	}
 }
@@ -0,0 +1,623 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.types;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A precomputed grid of the locations that a GeocodeLocationResolver gives for coordinates, so that
+ * most points are resolved with a single lookup instead of a search of the spatial indices.
+ *
+ * The grid has cells of resolution degrees, centered on multiples of the resolution (so with a resolution
+ * of 0.01, on the cells of the point index). A cell holds the location of every point in it, or none, when
+ * that can be proven for the whole cell: the distances from its center to the candidates and the circles
+ * differ by more than the size of the cell. Cells where the answer may change (next to the boundary between
+ * two locations, at geocode_max_distance, or on the edge of a circle) are marked as boundary cells, and
+ * their points, as well as points within a rounding error of the edge of a cell, are resolved with the
+ * spatial indices. Resolving with the raster therefore gives the same locations as without it.
+ *
+ * Each row of the grid is stored as runs of cells with the same value (the start column and the value of
+ * each run), so the oceans and the areas far from any location take almost no space. The file is little
+ * endian and is memory mapped by read(). The raster is built for one set of locations and one
+ * geocode_max_distance and use_location_radius; matches() checks that it fits a resolver.
+ * See carmen.tools.BuildGeocodeRaster.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class GeocodeRaster {
+	protected static Logger logger = Logger.getLogger(GeocodeRaster.class);
+
+	public static final byte[] MAGIC = { 'C', 'G', 'R', 'S' };
+	public static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+
+	// The values of cells. Other values are locations (see getLocation()).
+	public static final int NONE = 0;
+	public static final int BOUNDARY = 1;
+	private static final int FIRST_LOCATION = 2;
+
+	// Points closer than this (as a fraction of a cell) to the edge of a cell are resolved without the raster,
+	// so that rounding can not put a point in the wrong cell.
+	private static final double EDGE_TOLERANCE = 1e-6;
+
+	private final ByteBuffer buffer;
+	private final double resolution;
+	private final double maxDistance;
+	private final boolean useLocationRadius;
+	private final int numRows;
+	private final int numColumns;
+	private final long fingerprint;
+	private final int rowsStart;
+	private final int runsStart;
+	private final Location[] locations;
+
+	private GeocodeRaster(ByteBuffer buffer, Location[] locations) throws IOException {
+		this.buffer = buffer;
+		for (int ii = 0; ii < MAGIC.length; ii++) {
+			if (buffer.get(ii) != MAGIC[ii])
+				throw new IOException("Not a geocode raster.");
+		}
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported geocode raster version: " + buffer.getInt(4));
+		this.resolution = buffer.getDouble(8);
+		this.maxDistance = buffer.getDouble(16);
+		this.useLocationRadius = buffer.getInt(24) != 0;
+		this.numRows = buffer.getInt(28);
+		this.numColumns = buffer.getInt(32);
+		this.fingerprint = buffer.getLong(40);
+		this.rowsStart = buffer.getInt(52);
+		this.runsStart = buffer.getInt(56);
+		this.locations = locations;
+	}
+
+	/**
+	 * Builds the raster of a resolver, with its geocode_max_distance and use_location_radius.
+	 * This takes a while (a minute or two for the default locations at a resolution of 0.01).
+	 * @param resolver
+	 * @param resolution The size of a cell in degrees, at most 1.
+	 * @return
+	 * @throws IOException
+	 */
+	public static GeocodeRaster build(GeocodeLocationResolver resolver, double resolution) throws IOException {
+		if (!(resolution > 0 && resolution <= 1))
+			throw new IllegalArgumentException("The resolution must be more than 0 and at most 1 degree: " + resolution);
+		return new Builder(resolver, resolution).build();
+	}
+
+	/**
+	 * Memory maps a raster written by write(). The locations are looked up by id.
+	 * @param filename
+	 * @param idToLocation
+	 * @return
+	 * @throws IOException
+	 */
+	public static GeocodeRaster read(String filename, Map<Integer, Location> idToLocation) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		ByteBuffer buffer;
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("The geocode raster " + filename + " is too large to map.");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			file.close();
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.capacity() < HEADER_SIZE)
+			throw new IOException("Not a geocode raster: " + filename);
+
+		int numLocations = buffer.getInt(36);
+		int locationsStart = buffer.getInt(48);
+		Location[] locations = new Location[numLocations];
+		// A location that is not in the database means the raster was built from other locations, which
+		// matches() finds.
+		for (int ii = 0; ii < numLocations; ii++)
+			locations[ii] = idToLocation.get(buffer.getInt(locationsStart + ii * 4));
+		return new GeocodeRaster(buffer, locations);
+	}
+
+	/**
+	 * Writes the raster to a file that can be memory mapped with read().
+	 * @param filename
+	 * @throws IOException
+	 */
+	public void write(String filename) throws IOException {
+		FileOutputStream outputStream = new FileOutputStream(filename);
+		try {
+			FileChannel channel = outputStream.getChannel();
+			ByteBuffer buffer = this.buffer.duplicate();
+			buffer.clear();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} finally {
+			outputStream.close();
+		}
+	}
+
+	/**
+	 * Returns true if the raster was built from the locations of the resolver (in the same order) with its options.
+	 * @param resolver
+	 * @return
+	 */
+	public boolean matches(GeocodeLocationResolver resolver) {
+		return resolver.getMaxDistance() == this.maxDistance && resolver.isUseLocationRadius() == this.useLocationRadius
+				&& getFingerprint(resolver.getPointIndex()) == this.fingerprint;
+	}
+
+	/**
+	 * Returns the value of the cell of a point: NONE, BOUNDARY (the point must be resolved without the raster)
+	 * or a location (see getLocation()).
+	 * @param latitude In degrees, as returned by LatLng.getLatitude().
+	 * @param longitude In degrees, as returned by LatLng.getLongitude().
+	 * @return
+	 */
+	public int lookup(double latitude, double longitude) {
+		double rowPosition = (latitude + 90) / this.resolution + 0.5;
+		double columnPosition = (longitude + 180) / this.resolution + 0.5;
+		int row = (int)Math.floor(rowPosition);
+		int column = (int)Math.floor(columnPosition);
+		if (row < 0 || row >= this.numRows || column < 0 || column >= this.numColumns)
+			return BOUNDARY;
+		double rowOffset = rowPosition - row;
+		double columnOffset = columnPosition - column;
+		if (rowOffset < EDGE_TOLERANCE || rowOffset > 1 - EDGE_TOLERANCE
+				|| columnOffset < EDGE_TOLERANCE || columnOffset > 1 - EDGE_TOLERANCE)
+			return BOUNDARY;
+
+		// The last run of the row that starts at or before the column.
+		int first = this.buffer.getInt(this.rowsStart + row * 4);
+		int last = this.buffer.getInt(this.rowsStart + row * 4 + 4) - 1;
+		while (first < last) {
+			int middle = (first + last + 1) >>> 1;
+			if (this.buffer.getInt(this.runsStart + middle * 8) <= column)
+				first = middle;
+			else
+				last = middle - 1;
+		}
+		return this.buffer.getInt(this.runsStart + first * 8 + 4);
+	}
+
+	/**
+	 * Returns the location of a value returned by lookup(), or null for NONE.
+	 * @param value A value other than BOUNDARY.
+	 * @return
+	 */
+	public Location getLocation(int value) {
+		if (value == NONE)
+			return null;
+		return this.locations[value - FIRST_LOCATION];
+	}
+
+	public double getResolution() {
+		return this.resolution;
+	}
+
+	public double getMaxDistance() {
+		return this.maxDistance;
+	}
+
+	public boolean isUseLocationRadius() {
+		return this.useLocationRadius;
+	}
+
+	public int getSizeInBytes() {
+		return this.buffer.capacity();
+	}
+
+	/**
+	 * A hash of the locations of a point index, in order, and of everything about them that the resolver uses.
+	 */
+	protected static long getFingerprint(LocationPointIndex pointIndex) {
+		long hash = 0xcbf29ce484222325L;
+		for (int ordinal = 0; ordinal < pointIndex.size(); ordinal++) {
+			Location location = pointIndex.getLocation(ordinal);
+			hash = (hash ^ location.getId()) * 0x100000001b3L;
+			hash = (hash ^ Double.doubleToLongBits(pointIndex.getLatitude(ordinal))) * 0x100000001b3L;
+			hash = (hash ^ Double.doubleToLongBits(pointIndex.getLongitude(ordinal))) * 0x100000001b3L;
+			hash = (hash ^ Double.doubleToLongBits(location.getRadius())) * 0x100000001b3L;
+			hash = (hash ^ LocationCircleIndex.getSpecificity(location)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Computes the cells of a raster one band of whole degrees of latitude at a time. Each whole degree block of
+	 * a band is split into smaller regions until the locations agree on all points of a region. A region where
+	 * every candidate is further than maxDistance has no closest location, so only the circles decide it and
+	 * it is only split where a circle crosses it. Other regions are split down to single cells.
+	 */
+	private static class Builder {
+		// Whether a circle contains all, none or some of the points of a region.
+		private static final int CONTAINS_ALL = 0;
+		private static final int CONTAINS_NONE = 1;
+		private static final int CONTAINS_SOME = 2;
+		// Distances must differ by this much more than the size of a region to be told apart.
+		private static final double RELATIVE_MARGIN = 1e-9;
+		private static final double ABSOLUTE_MARGIN = 1e-12;
+		// Returned by getContainingLocation() when the circles do not agree on all points of a region.
+		private static final Location MIXED = new Location(null, null, null, null, -1, -1, false);
+
+		private final GeocodeLocationResolver resolver;
+		private final LocationPointIndex pointIndex;
+		private final LocationCircleIndex circleIndex;
+		private final double resolution;
+		private final double maxDistance;
+		private final boolean useLocationRadius;
+		private final int numRows;
+		private final int numColumns;
+
+		private final IdentityHashMap<Location, Integer> locationToValue = new IdentityHashMap<Location, Integer>();
+		private final List<Location> valueLocations = new ArrayList<Location>();
+		private final long[] valueCounts = new long[FIRST_LOCATION + 1];
+
+		// The circles of the cells of the current block that contain some of its points.
+		private HashMap<String, BlockCircles> blockCircles;
+		private double[] blockBounds;
+
+		private Builder(GeocodeLocationResolver resolver, double resolution) {
+			this.resolver = resolver;
+			this.pointIndex = resolver.getPointIndex();
+			this.circleIndex = resolver.getCircleIndex();
+			this.resolution = resolution;
+			this.maxDistance = resolver.getMaxDistance();
+			this.useLocationRadius = resolver.isUseLocationRadius();
+			this.numRows = (int)Math.round(180 / resolution) + 1;
+			this.numColumns = (int)Math.round(360 / resolution) + 1;
+		}
+
+		private GeocodeRaster build() throws IOException {
+			int[] rowStarts = new int[this.numRows + 1];
+			int[] runs = new int[1024];
+			int numRuns = 0;
+
+			// The first column of each longitude block.
+			int[] blockColumns = new int[362];
+			int column = 0;
+			for (int longitudeBlock = -180; longitudeBlock <= 181; longitudeBlock++) {
+				while (column < this.numColumns && getCenter(column, -180) < longitudeBlock)
+					column++;
+				blockColumns[longitudeBlock + 180] = column;
+			}
+
+			int row = 0;
+			while (row < this.numRows) {
+				int latitudeBlock = (int)Math.floor(getCenter(row, -90));
+				int endRow = row;
+				while (endRow < this.numRows && Math.floor(getCenter(endRow, -90)) == latitudeBlock)
+					endRow++;
+
+				int[][] values = new int[endRow - row][this.numColumns];
+				for (int longitudeBlock = -180; longitudeBlock <= 180; longitudeBlock++) {
+					int startColumn = blockColumns[longitudeBlock + 180];
+					int endColumn = blockColumns[longitudeBlock + 181];
+					if (startColumn < endColumn)
+						fillBlock(values, row, endRow, startColumn, endColumn);
+				}
+
+				for (int ii = 0; ii < values.length; ii++) {
+					rowStarts[row + ii] = numRuns;
+					int[] rowValues = values[ii];
+					for (int jj = 0; jj < this.numColumns; jj++) {
+						this.valueCounts[Math.min(rowValues[jj], FIRST_LOCATION)]++;
+						if (jj > 0 && rowValues[jj] == rowValues[jj - 1])
+							continue;
+						if (numRuns * 2 + 2 > runs.length)
+							runs = Arrays.copyOf(runs, runs.length * 2);
+						runs[numRuns * 2] = jj;
+						runs[numRuns * 2 + 1] = rowValues[jj];
+						numRuns++;
+					}
+				}
+				row = endRow;
+			}
+			rowStarts[this.numRows] = numRuns;
+
+			int locationsStart = HEADER_SIZE;
+			long rowsStart = locationsStart + (long)this.valueLocations.size() * 4;
+			long runsStart = rowsStart + (long)rowStarts.length * 4;
+			long size = runsStart + (long)numRuns * 8;
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("The geocode raster is too large. Use a larger resolution.");
+
+			ByteBuffer buffer = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.put(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putDouble(this.resolution);
+			buffer.putDouble(this.maxDistance);
+			buffer.putInt(this.useLocationRadius ? 1 : 0);
+			buffer.putInt(this.numRows);
+			buffer.putInt(this.numColumns);
+			buffer.putInt(this.valueLocations.size());
+			buffer.putLong(getFingerprint(this.pointIndex));
+			buffer.putInt(locationsStart);
+			buffer.putInt((int)rowsStart);
+			buffer.putInt((int)runsStart);
+			buffer.putInt(numRuns);
+			for (Location location : this.valueLocations)
+				buffer.putInt(location.getId());
+			for (int rowStart : rowStarts)
+				buffer.putInt(rowStart);
+			for (int ii = 0; ii < numRuns * 2; ii++)
+				buffer.putInt(runs[ii]);
+			buffer.flip();
+
+			logger.info("Geocode raster cells: " + this.valueCounts[NONE] + " without a location, " + this.valueCounts[BOUNDARY]
+					+ " boundary cells and " + this.valueCounts[FIRST_LOCATION] + " with a location; " + numRuns + " runs.");
+			return new GeocodeRaster(buffer, this.valueLocations.toArray(new Location[this.valueLocations.size()]));
+		}
+
+		/**
+		 * The center in degrees of a row or column.
+		 */
+		private double getCenter(int index, double origin) {
+			return index * this.resolution + origin;
+		}
+
+		/**
+		 * The bounds of a region of cells: the minimum and maximum latitude and longitude of its points,
+		 * followed by its center and its radius in radians (the distance from the center to the furthest point).
+		 * Points near the edges of cells are not looked up in the raster, so the bounds leave them out.
+		 */
+		private double[] getBounds(int startRow, int endRow, int startColumn, int endColumn) {
+			double halfCell = this.resolution * (1 - EDGE_TOLERANCE) / 2;
+			double minLatitude = Math.max(-90, getCenter(startRow, -90) - halfCell);
+			double maxLatitude = Math.min(90, getCenter(endRow - 1, -90) + halfCell);
+			double minLongitude = Math.max(-180, getCenter(startColumn, -180) - halfCell);
+			double maxLongitude = Math.min(180, getCenter(endColumn - 1, -180) + halfCell);
+			double centerLatitude = (minLatitude + maxLatitude) / 2;
+			double centerLongitude = (minLongitude + maxLongitude) / 2;
+			double radius = 0;
+			for (int ii = 0; ii <= 2; ii++) {
+				for (int jj = 0; jj <= 2; jj++) {
+					double latitude = minLatitude + (maxLatitude - minLatitude) * ii / 2;
+					double longitude = minLongitude + (maxLongitude - minLongitude) * jj / 2;
+					radius = Math.max(radius, LocationPointIndex.distanceInRadians(centerLatitude, centerLongitude, latitude, longitude));
+				}
+			}
+			// The furthest point is a corner, but allow for the curvature of the edges.
+			radius = radius * 1.01 + ABSOLUTE_MARGIN;
+			return new double[] { minLatitude, maxLatitude, minLongitude, maxLongitude, centerLatitude, centerLongitude, radius };
+		}
+
+		private void fillBlock(int[][] values, int bandRow, int endRow, int startColumn, int endColumn) {
+			this.blockBounds = getBounds(bandRow, endRow, startColumn, endColumn);
+			this.blockCircles = new HashMap<String, BlockCircles>();
+			fillRegion(values, bandRow, bandRow, endRow, startColumn, endColumn);
+		}
+
+		/**
+		 * Fills a region of the current block, splitting it until the locations agree on all of its points.
+		 */
+		private void fillRegion(int[][] values, int bandRow, int startRow, int endRow, int startColumn, int endColumn) {
+			double[] bounds = getBounds(startRow, endRow, startColumn, endColumn);
+			boolean singleCell = endRow - startRow == 1 && endColumn - startColumn == 1;
+			int value;
+			if (hasCloseCandidates(bounds)) {
+				value = singleCell ? getCellValue(bounds) : -1;
+			} else {
+				Location containingLocation = getContainingLocation(bounds);
+				if (containingLocation == MIXED)
+					value = singleCell ? BOUNDARY : -1;
+				else
+					value = containingLocation == null ? NONE : getValue(containingLocation);
+			}
+
+			if (value >= 0) {
+				for (int row = startRow; row < endRow; row++)
+					Arrays.fill(values[row - bandRow], startColumn, endColumn, value);
+			} else if (endRow - startRow >= endColumn - startColumn) {
+				int middleRow = (startRow + endRow) >>> 1;
+				fillRegion(values, bandRow, startRow, middleRow, startColumn, endColumn);
+				fillRegion(values, bandRow, middleRow, endRow, startColumn, endColumn);
+			} else {
+				int middleColumn = (startColumn + endColumn) >>> 1;
+				fillRegion(values, bandRow, startRow, endRow, startColumn, middleColumn);
+				fillRegion(values, bandRow, startRow, endRow, middleColumn, endColumn);
+			}
+		}
+
+		/**
+		 * Returns true if some point of a region may have a candidate closer than maxDistance.
+		 */
+		private boolean hasCloseCandidates(double[] bounds) {
+			double maxAngle = this.maxDistance / LocationPointIndex.EARTH_RADIUS_MILES;
+			for (int candidate : this.pointIndex.getCandidates(bounds[0], bounds[1], bounds[2], bounds[3])) {
+				double distance = LocationPointIndex.distanceInRadians(bounds[4], bounds[5],
+						this.pointIndex.getLatitude(candidate), this.pointIndex.getLongitude(candidate));
+				if (distance - bounds[6] <= maxAngle * (1 + RELATIVE_MARGIN) + ABSOLUTE_MARGIN)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * The value of a cell that may have candidates.
+		 */
+		private int getCellValue(double[] bounds) {
+			// The candidates must be the same for all points of the cell.
+			if (!LocationPointIndex.haveSameCells(bounds[0], bounds[2], bounds[1], bounds[3]))
+				return BOUNDARY;
+
+			double centerLatitude = bounds[4];
+			double centerLongitude = bounds[5];
+			double radius = bounds[6];
+			double maxAngle = this.maxDistance / LocationPointIndex.EARTH_RADIUS_MILES;
+			Location closestLocation = this.pointIndex.getClosestLocation(centerLatitude, centerLongitude, this.maxDistance);
+			int[] candidates = this.pointIndex.getCandidates(centerLatitude, centerLatitude, centerLongitude, centerLongitude);
+			if (closestLocation == null) {
+				// Some candidate is close to maxDistance from some point (see hasCloseCandidates()).
+				return BOUNDARY;
+			} else {
+				// The closest location must be closer than the others and than maxDistance for all points. Locations
+				// at the same coordinates are always at the same distance, so the tie is always broken the same way.
+				double closestLatitude = closestLocation.getLatLng().getLatitude();
+				double closestLongitude = closestLocation.getLatLng().getLongitude();
+				double closestDistance = LocationPointIndex.distanceInRadians(centerLatitude, centerLongitude, closestLatitude, closestLongitude);
+				if (closestDistance + radius >= maxAngle * (1 - RELATIVE_MARGIN) - ABSOLUTE_MARGIN)
+					return BOUNDARY;
+				for (int candidate : candidates) {
+					double latitude = this.pointIndex.getLatitude(candidate);
+					double longitude = this.pointIndex.getLongitude(candidate);
+					if (latitude == closestLatitude && longitude == closestLongitude)
+						continue;
+					double distance = LocationPointIndex.distanceInRadians(centerLatitude, centerLongitude, latitude, longitude);
+					if (distance - closestDistance <= 2 * radius + distance * RELATIVE_MARGIN + ABSOLUTE_MARGIN)
+						return BOUNDARY;
+				}
+			}
+
+			Location containingLocation = getContainingLocation(bounds);
+			if (containingLocation == MIXED)
+				return BOUNDARY;
+			if (containingLocation != null && (closestLocation == null ||
+					LocationCircleIndex.getSpecificity(containingLocation) > LocationCircleIndex.getSpecificity(closestLocation)))
+				return getValue(containingLocation);
+			return closestLocation == null ? NONE : getValue(closestLocation);
+		}
+
+		/**
+		 * Returns the most specific location whose circle contains all points of a region, as
+		 * LocationCircleIndex.getMostSpecificContainingLocation() does for each point, null if there is none,
+		 * or MIXED if the circles do not agree on all points.
+		 */
+		private Location getContainingLocation(double[] bounds) {
+			if (!this.useLocationRadius)
+				return null;
+
+			// Check the circles of every cell and large cell that the region overlaps.
+			Location containingLocation = null;
+			boolean first = true;
+			for (int latCell = this.circleIndex.getCell(bounds[0]); latCell <= this.circleIndex.getCell(bounds[1]); latCell++) {
+				for (int lonCell = this.circleIndex.getCell(bounds[2]); lonCell <= this.circleIndex.getCell(bounds[3]); lonCell++) {
+					for (int largeLatCell = LocationCircleIndex.getLargeCell(bounds[0]); largeLatCell <= LocationCircleIndex.getLargeCell(bounds[1]); largeLatCell++) {
+						for (int largeLonCell = LocationCircleIndex.getLargeCell(bounds[2]); largeLonCell <= LocationCircleIndex.getLargeCell(bounds[3]); largeLonCell++) {
+							BlockCircles circles = getBlockCircles(latCell, lonCell, largeLatCell, largeLonCell);
+							Location location = getContainingLocation(circles, bounds);
+							if (location == MIXED || (!first && location != containingLocation))
+								return MIXED;
+							containingLocation = location;
+							first = false;
+						}
+					}
+				}
+			}
+			return containingLocation;
+		}
+
+		/**
+		 * Follows LocationCircleIndex.findBest() over the circles of one cell and large cell.
+		 */
+		private Location getContainingLocation(BlockCircles circles, double[] bounds) {
+			LocationCircleIndex.Circle best = null;
+			for (int ii = 0; ii < circles.circles.length; ii++) {
+				LocationCircleIndex.Circle circle = circles.circles[ii];
+				if (best != null && !circle.isMoreSpecificThan(best))
+					continue;
+				int contains = circles.containsAll[ii] ? CONTAINS_ALL : getContains(circle, bounds);
+				if (contains == CONTAINS_SOME)
+					return MIXED;
+				if (contains == CONTAINS_ALL)
+					best = circle;
+			}
+			return best == null ? null : best.location;
+		}
+
+		/**
+		 * The circles of a cell and large cell that contain some points of the current block.
+		 */
+		private BlockCircles getBlockCircles(int latCell, int lonCell, int largeLatCell, int largeLonCell) {
+			String key = latCell + " " + lonCell + " " + largeLatCell + " " + largeLonCell;
+			BlockCircles blockCircles = this.blockCircles.get(key);
+			if (blockCircles == null) {
+				List<LocationCircleIndex.Circle> circles = new ArrayList<LocationCircleIndex.Circle>();
+				List<Boolean> containsAll = new ArrayList<Boolean>();
+				for (LocationCircleIndex.Circle circle : this.circleIndex.getCircles(latCell, lonCell, largeLatCell, largeLonCell)) {
+					int contains = getContains(circle, this.blockBounds);
+					if (contains == CONTAINS_NONE)
+						continue;
+					circles.add(circle);
+					containsAll.add(contains == CONTAINS_ALL);
+				}
+				blockCircles = new BlockCircles(circles, containsAll);
+				this.blockCircles.put(key, blockCircles);
+			}
+			return blockCircles;
+		}
+
+		/**
+		 * Whether a circle (within its bounding box and maxDistance of its center, as LocationCircleIndex checks
+		 * it) contains all, none or some of the points of a region.
+		 */
+		private int getContains(LocationCircleIndex.Circle circle, double[] bounds) {
+			int boxContains = getBoxContains(circle, bounds);
+			if (boxContains == CONTAINS_NONE)
+				return CONTAINS_NONE;
+			double distance = LocationPointIndex.distanceInRadians(bounds[4], bounds[5], circle.centerLatitude, circle.centerLongitude);
+			double radius = Math.min(circle.radius / LocationPointIndex.EARTH_RADIUS_METERS, this.maxDistance / LocationPointIndex.EARTH_RADIUS_MILES);
+			double margin = radius * RELATIVE_MARGIN + ABSOLUTE_MARGIN;
+			if (distance - bounds[6] > radius + margin)
+				return CONTAINS_NONE;
+			if (distance + bounds[6] < radius - margin && boxContains == CONTAINS_ALL)
+				return CONTAINS_ALL;
+			return CONTAINS_SOME;
+		}
+
+		private static int getBoxContains(LocationCircleIndex.Circle circle, double[] bounds) {
+			double margin = 1e-9;
+			if (bounds[1] < circle.minLatitude - margin || bounds[0] > circle.maxLatitude + margin)
+				return CONTAINS_NONE;
+			boolean latitudeInside = bounds[0] > circle.minLatitude + margin && bounds[1] < circle.maxLatitude - margin;
+			boolean overlaps = false;
+			for (int shift = -360; shift <= 360; shift += 360) {
+				double minLongitude = bounds[2] + shift;
+				double maxLongitude = bounds[3] + shift;
+				if (latitudeInside && minLongitude > circle.minLongitude + margin && maxLongitude < circle.maxLongitude - margin)
+					return CONTAINS_ALL;
+				if (maxLongitude >= circle.minLongitude - margin && minLongitude <= circle.maxLongitude + margin)
+					overlaps = true;
+			}
+			return overlaps ? CONTAINS_SOME : CONTAINS_NONE;
+		}
+
+		private int getValue(Location location) {
+			Integer value = this.locationToValue.get(location);
+			if (value == null) {
+				value = FIRST_LOCATION + this.valueLocations.size();
+				this.locationToValue.put(location, value);
+				this.valueLocations.add(location);
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * The circles of a cell that contain some points of a block, and whether each contains all of them.
+	 */
+	private static class BlockCircles {
+		private final LocationCircleIndex.Circle[] circles;
+		private final boolean[] containsAll;
+
+		private BlockCircles(List<LocationCircleIndex.Circle> circles, List<Boolean> containsAll) {
+			this.circles = circles.toArray(new LocationCircleIndex.Circle[circles.size()]);
+			this.containsAll = new boolean[containsAll.size()];
+			for (int ii = 0; ii < this.containsAll.length; ii++)
+				this.containsAll[ii] = containsAll.get(ii);
+		}
+	}
+}
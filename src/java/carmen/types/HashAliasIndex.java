@@ -0,0 +1,164 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.types;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * The default AliasIndex, built once from a HashMap of names to locations.
+ * The names are stored back to back as UTF-8 in a single byte array and found with an open
+ * addressing hash table of ints, instead of a String and a HashMap entry per alias.
+ *
+ * get() does not allocate: it compares the chars of the name with the stored bytes directly.
+ * The hash of a name is String.hashCode(), which Strings cache.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class HashAliasIndex implements AliasIndex {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// The names, one after the other. Name ii is at [offsets[ii], offsets[ii + 1]).
+	private final byte[] arena;
+	private final int[] offsets;
+	private final Location[] locations;
+	// Each slot is two ints: the hash code of a name and the index of the name plus one (0 if the slot is empty).
+	// Keeping the hash code in the slot means probing reads one array. The number of slots is a power of two.
+	private final int[] table;
+	private final int mask;
+
+	public HashAliasIndex(Map<String, Location> nameToLocation) {
+		int size = nameToLocation.size();
+		this.offsets = new int[size + 1];
+		int[] hashCodes = new int[size];
+		this.locations = new Location[size];
+
+		byte[][] encodedNames = new byte[size][];
+		int index = 0;
+		int length = 0;
+		for (Map.Entry<String, Location> entry : nameToLocation.entrySet()) {
+			encodedNames[index] = entry.getKey().getBytes(UTF8);
+			hashCodes[index] = entry.getKey().hashCode();
+			this.locations[index] = entry.getValue();
+			length += encodedNames[index].length;
+			index++;
+		}
+		this.arena = new byte[length];
+		for (int ii = 0; ii < size; ii++) {
+			System.arraycopy(encodedNames[ii], 0, this.arena, this.offsets[ii], encodedNames[ii].length);
+			this.offsets[ii + 1] = this.offsets[ii] + encodedNames[ii].length;
+		}
+
+		// Keep the table at most half full.
+		int capacity = 2;
+		while (capacity < size * 2)
+			capacity *= 2;
+		this.table = new int[capacity * 2];
+		this.mask = capacity - 1;
+		for (int ii = 0; ii < size; ii++) {
+			int slot = mix(hashCodes[ii]) & this.mask;
+			while (this.table[slot * 2 + 1] != 0)
+				slot = (slot + 1) & this.mask;
+			this.table[slot * 2] = hashCodes[ii];
+			this.table[slot * 2 + 1] = ii + 1;
+		}
+	}
+
+	public Location get(String name) {
+		int hashCode = name.hashCode();
+		int slot = mix(hashCode) & this.mask;
+		int entry;
+		while ((entry = this.table[slot * 2 + 1]) != 0) {
+			if (this.table[slot * 2] == hashCode) {
+				int index = entry - 1;
+				if (matches(name, this.offsets[index], this.offsets[index + 1]))
+					return this.locations[index];
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		return null;
+	}
+
+	public int size() {
+		return this.locations.length;
+	}
+
+	/**
+	 * The number of bytes used by the names.
+	 * @return
+	 */
+	public int getArenaSize() {
+		return this.arena.length;
+	}
+
+	/**
+	 * Compares a string with the UTF-8 bytes in [start, end) of the arena.
+	 */
+	private boolean matches(String name, int start, int end) {
+		byte[] arena = this.arena;
+		int length = name.length();
+		// Each char takes at least one byte.
+		if (end - start < length)
+			return false;
+		// Most names are ASCII, one byte per char.
+		int ii = 0;
+		while (ii < length) {
+			char c = name.charAt(ii);
+			if (c >= 0x80)
+				break;
+			if (arena[start + ii] != c)
+				return false;
+			ii++;
+		}
+		if (ii == length)
+			return end - start == length;
+
+		int position = start + ii;
+		for (; ii < length; ii++) {
+			if (position >= end)
+				return false;
+			char c = name.charAt(ii);
+			int b = arena[position];
+			if (c < 0x80) {
+				if (b != c)
+					return false;
+				position++;
+			} else if (c < 0x800) {
+				if (position + 2 > end || (b & 0xff) != (0xc0 | (c >> 6)) || (arena[position + 1] & 0xff) != (0x80 | (c & 0x3f)))
+					return false;
+				position += 2;
+			} else if (Character.isHighSurrogate(c) && ii + 1 < length && Character.isLowSurrogate(name.charAt(ii + 1))) {
+				int codePoint = Character.toCodePoint(c, name.charAt(++ii));
+				if (position + 4 > end
+						|| (b & 0xff) != (0xf0 | (codePoint >> 18))
+						|| (arena[position + 1] & 0xff) != (0x80 | ((codePoint >> 12) & 0x3f))
+						|| (arena[position + 2] & 0xff) != (0x80 | ((codePoint >> 6) & 0x3f))
+						|| (arena[position + 3] & 0xff) != (0x80 | (codePoint & 0x3f)))
+					return false;
+				position += 4;
+			} else if (Character.isSurrogate(c)) {
+				// An unpaired surrogate is encoded as '?', so it only matches a name with the same character.
+				return false;
+			} else {
+				if (position + 3 > end
+						|| (b & 0xff) != (0xe0 | (c >> 12))
+						|| (arena[position + 1] & 0xff) != (0x80 | ((c >> 6) & 0x3f))
+						|| (arena[position + 2] & 0xff) != (0x80 | (c & 0x3f)))
+					return false;
+				position += 3;
+			}
+		}
+		return position == end;
+	}
+
+	/**
+	 * Spreads the bits of String.hashCode(), which are weak in the low bits for short strings.
+	 */
+	private static int mix(int hashCode) {
+		hashCode *= 0x9e3779b9;
+		return hashCode ^ (hashCode >>> 16);
+	}
+}
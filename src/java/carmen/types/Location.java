@@ -41,8 +41,16 @@ import com.javadocmd.simplelatlng.LatLng;
  * will be dependent on the particular run of the software as they are not stored on disk.
  * The IDs will be large numbers (see LocationResolver).
  * 
- * When a location object is returned for a tweet, the field ResolutionMethod will be set to the 
- * method used for resolving the location.
+ * Locations are shared by all the tweets they are resolved for, so the method used to resolve a tweet
+ * is returned in a Resolution (see LocationResolver.resolve()). The deprecated ResolutionMethod field
+ * is only set by LocationResolver.resolveLocationFromTweet().
+ * 
+ * The locations of a LocationDatabase share their country, state, county and city strings through the
+ * database's NameDictionary (see shareNames()). Other locations keep their own strings.
+ * 
+ * The JSON form of a location (createJsonFromLocation) is serialized once and cached, since the same
+ * few thousand locations are written out for every tweet. getJsonPrefix() returns the cached UTF-8 bytes
+ * without the closing brace, and getJsonSuffix() the bytes that add the resolution method and close it.
  * 
  * @author Mark Dredze mdredze@cs.jhu.edu
  *
@@ -57,6 +65,7 @@ public class Location {
 	protected int parentId = -1;
 	protected double latitude = 0;
 	protected double longitude = 0;
+	protected double radius = 0;
 	
 	protected String url;
 	protected String twitterId;
@@ -65,6 +74,15 @@ public class Location {
 	protected ResolutionMethod resolutionMethod = null;
 	protected boolean knownLocation;
 	
+	// The hash of the lower case names, computed on first use (0 if not computed yet).
+	private int hashCode = 0;
+	// The cached JSON object for this location, without its closing brace.
+	private volatile byte[] jsonPrefix = null;
+	
+	private static final ObjectMapper jsonMapper = new ObjectMapper();
+	// Indexed by the ordinal of the resolution method. The last entry (no method) only closes the object.
+	private static final byte[][] jsonSuffixes = createJsonSuffixes();
+	
 	
 	public Location(String country, String state, String county, String city, int id, int parentId, boolean knownLocation) {
 		this.country = country;
@@ -82,6 +100,11 @@ public class Location {
 		this.longitude = longitude;
 	}
 	
+	public Location(String country, String state, String county, String city, double latitude, double longitude, double radius, int id, int parentId, boolean knownLocation) {
+		this(country, state, county, city, latitude, longitude, id, parentId, knownLocation);
+		this.radius = radius;
+	}
+	
 
 	public String getCountry() {
 		return this.country;
@@ -135,7 +158,10 @@ public class Location {
 	}
 	
 	public int hashCode() {
-		int total = 0;
+		// The names do not change, so the hash is computed once.
+		int total = this.hashCode;
+		if (total != 0)
+			return total;
 		if (this.city != null)
 			total += this.city.toLowerCase().hashCode();
 		if (this.county != null)
@@ -146,6 +172,7 @@ public class Location {
 			total += this.country.toLowerCase().hashCode();
 		if (this.isNone)
 			total ++;
+		this.hashCode = total;
 		return total;
 	}
 	
@@ -220,6 +247,15 @@ public class Location {
 		return (city == null);
 	}
 	
+	/**
+	 * The radius of the location in meters, measured from the center given by getLatLng().
+	 * Returns 0 if the database does not provide a radius for this location.
+	 * @return
+	 */
+	public double getRadius() {
+		return this.radius;
+	}
+	
 	public LatLng getLatLng() {
 		LatLng point = new LatLng(this.latitude, this.longitude);
 		return point;
@@ -242,8 +278,39 @@ public class Location {
 		return false;
 	}
 
+	/**
+	 * Returns a copy of this location with another parent. Known locations are shared between threads,
+	 * so they are copied rather than changed (see LocationDatabase.applyDelta()).
+	 * @param parentId
+	 * @return
+	 */
+	public Location copyWithParentId(int parentId) {
+		Location location = new Location(null, null, null, null, this.latitude, this.longitude, this.radius, this.id, parentId, this.knownLocation);
+		location.country = this.country;
+		location.state = this.state;
+		location.county = this.county;
+		location.city = this.city;
+		location.url = this.url;
+		location.twitterId = this.twitterId;
+		location.isNone = this.isNone;
+		return location;
+	}
+
+	/**
+	 * Replaces the names of this location with the copies in the dictionary, so that the locations of a
+	 * database share them. Called by LocationDatabase before the location is shared between threads.
+	 * @param dictionary
+	 */
+	public void shareNames(NameDictionary dictionary) {
+		this.country = dictionary.share(this.country);
+		this.state = dictionary.share(this.state);
+		this.county = dictionary.share(this.county);
+		this.city = dictionary.share(this.city);
+	}
+
 	public void setId(int id) {
 		this.id = id;
+		this.jsonPrefix = null;
 	}
 
 	public boolean isNone() {
@@ -252,16 +319,27 @@ public class Location {
 
 	public void setUrl(String url) {
 		this.url = url;		
+		this.jsonPrefix = null;
 	}
 	
 	public void setTwitterId(String twitterId) {
 		this.twitterId = twitterId;
+		this.jsonPrefix = null;
 	}
 
+	/**
+	 * @deprecated The resolution method belongs to a tweet, not a location. See Resolution.
+	 */
+	@Deprecated
 	public void setResolutionMethod(ResolutionMethod resolutionMethod) {
 		this.resolutionMethod = resolutionMethod;
 		
 	}
+
+	/**
+	 * @deprecated The resolution method belongs to a tweet, not a location. See Resolution.
+	 */
+	@Deprecated
 	public ResolutionMethod getResolutionMethod() {
 		return this.resolutionMethod;
 	}
@@ -295,21 +373,55 @@ public class Location {
 			latitude = Double.parseDouble((String)locationMap.get("latitude"));
 		if (locationMap.containsKey("longitude"))
 			longitude = Double.parseDouble((String)locationMap.get("longitude"));
+		double radius = 0;
+		Object radiusObj = locationMap.get("radius");
+		if (radiusObj instanceof Number)
+			radius = ((Number)radiusObj).doubleValue();
+		else if (radiusObj instanceof String && ((String)radiusObj).trim().length() != 0)
+			radius = Double.parseDouble((String)radiusObj);
 		
 		int parentId = Integer.parseInt((String)locationMap.get("parent_id"));
 		return new Location(country, state, county, city,
-				latitude, longitude, id, parentId, true);
+				latitude, longitude, radius, id, parentId, true);
 	}
 	
+	@SuppressWarnings("deprecation")
 	public static Map<String, Object> createJsonFromLocation(Location location) {
+		return createJsonFromLocation(location, location.getResolutionMethod());
+	}
+	
+	/**
+	 * Returns the JSON object for a location resolved with this method (which may be null).
+	 * @param location
+	 * @param resolutionMethod
+	 * @return
+	 */
+	public static Map<String, Object> createJsonFromLocation(Location location, ResolutionMethod resolutionMethod) {
+		Map<String, Object> jsonObject = createJsonFromLocationWithoutResolutionMethod(location);
+		if (resolutionMethod != null)
+			jsonObject.put("resolution_method", resolutionMethod.toString());
+		return jsonObject;
+	}
+	
+	/**
+	 * Returns the JSON object for the location of a resolution, with its resolution method.
+	 * @param resolution
+	 * @return
+	 */
+	public static Map<String, Object> createJsonFromResolution(Resolution resolution) {
+		return createJsonFromLocation(resolution.getLocation(), resolution.getResolutionMethod());
+	}
+	
+	private static Map<String, Object> createJsonFromLocationWithoutResolutionMethod(Location location) {
 		Map<String,Object> jsonObject = new HashMap<String, Object>();
 		jsonObject.put("country", location.getCountry());
 		jsonObject.put("state", location.getState());
 		jsonObject.put("county", location.getCounty());
 		jsonObject.put("city", location.getCity());
 		jsonObject.put("id", location.getId());
-		jsonObject.put("latitude", location.getLatLng().getLatitude());
-		jsonObject.put("longitude", location.getLatLng().getLongitude());
+		LatLng latLng = location.getLatLng();
+		jsonObject.put("latitude", latLng.getLatitude());
+		jsonObject.put("longitude", latLng.getLongitude());
 		
 		if (location.getUrl() != null && location.getUrl().length() != 0)
 			jsonObject.put("id", location.getId());
@@ -319,4 +431,60 @@ public class Location {
 		
 		return jsonObject;
 	}
+	
+	/**
+	 * Serializes this location now, so that writing it out later does not have to.
+	 * Called when a location is loaded or registered.
+	 */
+	public void precomputeJson() {
+		getJsonPrefix();
+	}
+	
+	/**
+	 * Returns the UTF-8 bytes of the JSON object for this location (see createJsonFromLocation) without
+	 * the resolution method and without the closing brace. Follow it with getJsonSuffix().
+	 * The returned array is shared and must not be modified.
+	 * @return
+	 */
+	public byte[] getJsonPrefix() {
+		byte[] prefix = this.jsonPrefix;
+		if (prefix == null) {
+			byte[] json;
+			try {
+				json = jsonMapper.writeValueAsBytes(createJsonFromLocationWithoutResolutionMethod(this));
+			} catch (IOException e) {
+				// A map of strings and numbers can always be serialized.
+				throw new RuntimeException(e);
+			}
+			prefix = new byte[json.length - 1];
+			System.arraycopy(json, 0, prefix, 0, prefix.length);
+			this.jsonPrefix = prefix;
+		}
+		return prefix;
+	}
+	
+	/**
+	 * Returns the bytes that complete getJsonPrefix(): the resolution method field (if the method is not null)
+	 * and the closing brace. The returned array is shared and must not be modified.
+	 * @param resolutionMethod
+	 * @return
+	 */
+	public static byte[] getJsonSuffix(ResolutionMethod resolutionMethod) {
+		if (resolutionMethod == null)
+			return jsonSuffixes[jsonSuffixes.length - 1];
+		return jsonSuffixes[resolutionMethod.ordinal()];
+	}
+	
+	private static byte[][] createJsonSuffixes() {
+		ResolutionMethod[] methods = ResolutionMethod.values();
+		byte[][] suffixes = new byte[methods.length + 1][];
+		try {
+			for (ResolutionMethod method : methods)
+				suffixes[method.ordinal()] = (",\"resolution_method\":\"" + method + "\"}").getBytes("UTF-8");
+			suffixes[methods.length] = "}".getBytes("UTF-8");
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return suffixes;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,411 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.types;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import com.javadocmd.simplelatlng.LatLng;
+
+/**
+ * A spatial index over the bounding circles of locations. Each location with a radius is
+ * represented by a circle around its center. The index answers which locations contain a given point
+ * within a maximum distance of their center.
+ *
+ * Circles are placed in every grid cell that their bounding box overlaps. Each circle also keeps its
+ * bounding box so that most candidates in a cell can be rejected without computing a distance.
+ * Very large circles (e.g. countries) would fill thousands of cells, so they are kept in a
+ * separate grid of much larger cells (LARGE_CELL_SIZE degrees), which wraps around the antimeridian.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class LocationCircleIndex {
+	// Meters in one degree of latitude.
+	protected static final double METERS_PER_DEGREE = 111320;
+	// Circles larger than this (in meters) are ignored. They are states and countries, whose circles are too
+	// rough to tell which points are in them: they take in the sea and the neighbouring regions.
+	protected static final double MAX_VALID_RADIUS = 100000;
+	// The size in degrees of the cells of the large circles.
+	private static final int LARGE_CELL_SIZE = 10;
+	private static final int NUM_LARGE_LONGITUDE_CELLS = 360 / LARGE_CELL_SIZE;
+
+	private final double cellSize;
+	private final int maxCellsPerCircle;
+	private final HashMap<Long, List<Circle>> cellToCircles;
+	private final HashMap<Long, List<Circle>> largeCellToCircles;
+	private int size = 0;
+
+	/**
+	 * @param cellSize The size of a grid cell in degrees.
+	 * @param maxCellsPerCircle Circles that overlap more cells than this are kept in the cells of the large circles.
+	 */
+	public LocationCircleIndex(double cellSize, int maxCellsPerCircle) {
+		this.cellSize = cellSize;
+		this.maxCellsPerCircle = maxCellsPerCircle;
+		this.cellToCircles = new HashMap<Long, List<Circle>>();
+		this.largeCellToCircles = new HashMap<Long, List<Circle>>();
+	}
+
+	public LocationCircleIndex() {
+		this(0.5, 64);
+	}
+
+	/**
+	 * Adds the bounding circle of the location. Locations without a valid radius are ignored.
+	 * @param location
+	 * @return true if the location was added.
+	 */
+	public boolean addLocation(Location location) {
+		return addLocation(location, null, null);
+	}
+
+	/**
+	 * Adds a location. If copiedCells is not null, the lists of circles may be shared with another index,
+	 * so each list is copied the first time it is changed (see withChanges()).
+	 */
+	private boolean addLocation(Location location, HashSet<Long> copiedCells, HashSet<Long> copiedLargeCells) {
+		Circle circle = createCircle(location);
+		if (circle == null)
+			return false;
+
+		boolean large = isLarge(circle);
+		for (Long key : getKeys(circle))
+			getCircles(large ? this.largeCellToCircles : this.cellToCircles, key, large ? copiedLargeCells : copiedCells).add(circle);
+		this.size++;
+		return true;
+	}
+
+	/**
+	 * Returns an index with some locations removed and others added. The cells that do not change are shared
+	 * with this index, which does not change, so both can be used at once.
+	 * @param removedLocations Locations to remove (the same objects that were added).
+	 * @param addedLocations
+	 * @return
+	 */
+	public LocationCircleIndex withChanges(Collection<Location> removedLocations, Collection<Location> addedLocations) {
+		LocationCircleIndex index = new LocationCircleIndex(this);
+		HashSet<Long> copiedCells = new HashSet<Long>();
+		HashSet<Long> copiedLargeCells = new HashSet<Long>();
+		for (Location location : removedLocations) {
+			Circle circle = createCircle(location);
+			if (circle == null)
+				continue;
+			boolean large = isLarge(circle);
+			HashMap<Long, List<Circle>> cellToCircles = large ? index.largeCellToCircles : index.cellToCircles;
+			boolean removed = false;
+			for (Long key : getKeys(circle)) {
+				List<Circle> circles = getCircles(cellToCircles, key, large ? copiedLargeCells : copiedCells);
+				removed |= removeCircle(circles, location);
+				if (circles.isEmpty())
+					cellToCircles.remove(key);
+			}
+			if (removed)
+				index.size--;
+		}
+		for (Location location : addedLocations)
+			index.addLocation(location, copiedCells, copiedLargeCells);
+		return index;
+	}
+
+	/**
+	 * A copy that shares the lists of circles of the cells, for withChanges().
+	 */
+	private LocationCircleIndex(LocationCircleIndex other) {
+		this.cellSize = other.cellSize;
+		this.maxCellsPerCircle = other.maxCellsPerCircle;
+		this.cellToCircles = new HashMap<Long, List<Circle>>(other.cellToCircles);
+		this.largeCellToCircles = new HashMap<Long, List<Circle>>(other.largeCellToCircles);
+		this.size = other.size;
+	}
+
+	/**
+	 * Returns the circle of a location, or null if it does not have a valid radius.
+	 */
+	private static Circle createCircle(Location location) {
+		double radius = location.getRadius();
+		if (radius <= 0 || radius > MAX_VALID_RADIUS)
+			return null;
+
+		LatLng center = location.getLatLng();
+		return new Circle(location, center.getLatitude(), center.getLongitude(), radius);
+	}
+
+	/**
+	 * Circles that overlap too many cells are kept in the cells of the large circles. Circles that cross the
+	 * antimeridian are also kept there, since those cells wrap around it.
+	 */
+	private boolean isLarge(Circle circle) {
+		long numCells = (long)(getCell(circle.maxLatitude) - getCell(circle.minLatitude) + 1)
+				* (long)(getCell(circle.maxLongitude) - getCell(circle.minLongitude) + 1);
+		return numCells > this.maxCellsPerCircle || circle.minLongitude < -180 || circle.maxLongitude > 180;
+	}
+
+	/**
+	 * Returns the keys of the cells of a circle, which are the cells of the large circles if it is large.
+	 */
+	private List<Long> getKeys(Circle circle) {
+		List<Long> keys = new ArrayList<Long>();
+		if (!isLarge(circle)) {
+			for (int latCell = getCell(circle.minLatitude); latCell <= getCell(circle.maxLatitude); latCell++) {
+				for (int lonCell = getCell(circle.minLongitude); lonCell <= getCell(circle.maxLongitude); lonCell++)
+					keys.add(getKey(latCell, lonCell));
+			}
+			return keys;
+		}
+
+		int minLonCell = getLargeCell(circle.minLongitude);
+		int maxLonCell = getLargeCell(circle.maxLongitude);
+		// Each longitude cell once, even if the box goes all the way around.
+		if (maxLonCell - minLonCell >= NUM_LARGE_LONGITUDE_CELLS)
+			maxLonCell = minLonCell + NUM_LARGE_LONGITUDE_CELLS - 1;
+		for (int latCell = getLargeCell(circle.minLatitude); latCell <= getLargeCell(circle.maxLatitude); latCell++) {
+			for (int lonCell = minLonCell; lonCell <= maxLonCell; lonCell++)
+				keys.add(getKey(latCell, wrapLargeLongitudeCell(lonCell)));
+		}
+		return keys;
+	}
+
+	/**
+	 * Returns the list of circles of a cell that can be changed, creating it if needed.
+	 */
+	private static List<Circle> getCircles(HashMap<Long, List<Circle>> cellToCircles, Long key, HashSet<Long> copiedCells) {
+		List<Circle> circles = cellToCircles.get(key);
+		if (circles == null) {
+			circles = new ArrayList<Circle>(2);
+			cellToCircles.put(key, circles);
+			if (copiedCells != null)
+				copiedCells.add(key);
+		} else if (copiedCells != null && copiedCells.add(key)) {
+			circles = new ArrayList<Circle>(circles);
+			cellToCircles.put(key, circles);
+		}
+		return circles;
+	}
+
+	private static boolean removeCircle(List<Circle> circles, Location location) {
+		for (int ii = 0; ii < circles.size(); ii++) {
+			if (circles.get(ii).location == location) {
+				circles.remove(ii);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the most specific location whose circle contains the point and whose center is within maxDistance
+	 * of it: the deepest location in the hierarchy, with ties broken by the smallest circle.
+	 * @param point
+	 * @param maxDistance In miles.
+	 * @return The containing location or null if no circle contains the point.
+	 */
+	public Location getMostSpecificContainingLocation(LatLng point, double maxDistance) {
+		return getMostSpecificContainingLocation(point.getLatitude(), point.getLongitude(), maxDistance);
+	}
+
+	/**
+	 * Returns the most specific location whose circle contains the point, as getMostSpecificContainingLocation(LatLng, double).
+	 * @param latitude In degrees, as returned by LatLng.getLatitude().
+	 * @param longitude In degrees, as returned by LatLng.getLongitude().
+	 * @param maxDistance In miles.
+	 * @return
+	 */
+	public Location getMostSpecificContainingLocation(double latitude, double longitude, double maxDistance) {
+		Point point = new Point(latitude, longitude);
+		double maxAngle = maxDistance / LocationPointIndex.EARTH_RADIUS_MILES;
+		double maxRadius = maxAngle * LocationPointIndex.EARTH_RADIUS_METERS;
+		double maxRadiusChord = LocationPointIndex.getSquaredChord(maxAngle);
+		Circle best = null;
+		List<Circle> circles = this.cellToCircles.get(getKey(getCell(latitude), getCell(longitude)));
+		if (circles != null)
+			best = findBest(circles, point, maxRadius, maxRadiusChord, best);
+		circles = this.largeCellToCircles.get(getKey(getLargeCell(latitude), wrapLargeLongitudeCell(getLargeCell(longitude))));
+		if (circles != null)
+			best = findBest(circles, point, maxRadius, maxRadiusChord, best);
+
+		if (best == null)
+			return null;
+		return best.location;
+	}
+
+	private Circle findBest(List<Circle> circles, Point point, double maxRadius, double maxRadiusChord, Circle best) {
+		for (int ii = 0; ii < circles.size(); ii++) {
+			Circle circle = circles.get(ii);
+			// Only circles that are more specific than the current best are interesting.
+			if (best != null && !circle.isMoreSpecificThan(best))
+				continue;
+			if (!circle.boxContains(point.latitude, point.longitude))
+				continue;
+			if (circle.contains(point, maxRadius, maxRadiusChord))
+				best = circle;
+		}
+		return best;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the circles that are checked for the points of a cell and a large cell, in the order they are
+	 * checked, for GeocodeRaster. The large longitude cell is wrapped around the antimeridian.
+	 */
+	protected List<Circle> getCircles(int latCell, int lonCell, int largeLatCell, int largeLonCell) {
+		List<Circle> circles = new ArrayList<Circle>();
+		List<Circle> cellCircles = this.cellToCircles.get(getKey(latCell, lonCell));
+		if (cellCircles != null)
+			circles.addAll(cellCircles);
+		cellCircles = this.largeCellToCircles.get(getKey(largeLatCell, wrapLargeLongitudeCell(largeLonCell)));
+		if (cellCircles != null)
+			circles.addAll(cellCircles);
+		return circles;
+	}
+
+	protected int getCell(double degrees) {
+		return (int)Math.floor(degrees / this.cellSize);
+	}
+
+	protected static int getLargeCell(double degrees) {
+		return (int)Math.floor(degrees / LARGE_CELL_SIZE);
+	}
+
+	private static int wrapLargeLongitudeCell(int lonCell) {
+		return ((lonCell % NUM_LARGE_LONGITUDE_CELLS) + NUM_LARGE_LONGITUDE_CELLS) % NUM_LARGE_LONGITUDE_CELLS;
+	}
+
+	private static Long getKey(int latCell, int lonCell) {
+		return (((long)latCell) << 32) | (lonCell & 0xffffffffL);
+	}
+
+	/**
+	 * Returns the number of hierarchy levels (country, state, county, city) set for this location.
+	 */
+	protected static int getSpecificity(Location location) {
+		int specificity = 0;
+		if (location.getCity() != null)
+			specificity++;
+		if (location.getCounty() != null)
+			specificity++;
+		if (location.getState() != null)
+			specificity++;
+		if (location.getCountry() != null)
+			specificity++;
+		return specificity;
+	}
+
+	protected static class Circle {
+		protected final Location location;
+		protected final double centerLatitude;
+		protected final double centerLongitude;
+		// The center as a unit vector and the radius as a squared chord distance, to check most points without
+		// computing the exact distance.
+		protected final double centerX;
+		protected final double centerY;
+		protected final double centerZ;
+		protected final double radiusChord;
+		protected final double radius;
+		protected final int specificity;
+		protected final double minLatitude;
+		protected final double maxLatitude;
+		protected final double minLongitude;
+		protected final double maxLongitude;
+
+		protected Circle(Location location, double latitude, double longitude, double radius) {
+			this.location = location;
+			LatLng center = new LatLng(latitude, longitude);
+			this.centerLatitude = center.getLatitude();
+			this.centerLongitude = center.getLongitude();
+			double centerLatitudeRadians = Math.toRadians(this.centerLatitude);
+			double centerLongitudeRadians = Math.toRadians(this.centerLongitude);
+			this.centerX = Math.cos(centerLatitudeRadians) * Math.cos(centerLongitudeRadians);
+			this.centerY = Math.cos(centerLatitudeRadians) * Math.sin(centerLongitudeRadians);
+			this.centerZ = Math.sin(centerLatitudeRadians);
+			this.radiusChord = LocationPointIndex.getSquaredChord(radius / LocationPointIndex.EARTH_RADIUS_METERS);
+			this.radius = radius;
+			this.specificity = getSpecificity(location);
+
+			double latitudeDelta = radius / METERS_PER_DEGREE;
+			this.minLatitude = Math.max(-90, latitude - latitudeDelta);
+			this.maxLatitude = Math.min(90, latitude + latitudeDelta);
+
+			// Longitude degrees shrink towards the poles. Use the widest point of the circle.
+			double maxAbsLatitude = Math.max(Math.abs(this.minLatitude), Math.abs(this.maxLatitude));
+			double cosLatitude = Math.cos(Math.toRadians(maxAbsLatitude));
+			if (maxAbsLatitude >= 89 || latitudeDelta / cosLatitude >= 180) {
+				this.minLongitude = -180;
+				this.maxLongitude = 180;
+			} else {
+				double longitudeDelta = latitudeDelta / cosLatitude;
+				this.minLongitude = longitude - longitudeDelta;
+				this.maxLongitude = longitude + longitudeDelta;
+			}
+		}
+
+		protected boolean boxContains(double latitude, double longitude) {
+			if (latitude < this.minLatitude || latitude > this.maxLatitude)
+				return false;
+			// Check the longitude, allowing the box to wrap around the antimeridian.
+			if (longitude >= this.minLongitude && longitude <= this.maxLongitude)
+				return true;
+			if (longitude + 360 >= this.minLongitude && longitude + 360 <= this.maxLongitude)
+				return true;
+			if (longitude - 360 >= this.minLongitude && longitude - 360 <= this.maxLongitude)
+				return true;
+			return false;
+		}
+
+		/**
+		 * Whether the point is in the circle and within maxRadius meters (maxRadiusChord as a squared chord
+		 * distance) of its center.
+		 */
+		protected boolean contains(Point point, double maxRadius, double maxRadiusChord) {
+			double radius = Math.min(this.radius, maxRadius);
+			double radiusChord = Math.min(this.radiusChord, maxRadiusChord);
+			double dx = this.centerX - point.x;
+			double dy = this.centerY - point.y;
+			double dz = this.centerZ - point.z;
+			double chord = dx * dx + dy * dy + dz * dz;
+			double tolerance = LocationPointIndex.getTieTolerance(radiusChord);
+			if (chord < radiusChord - tolerance)
+				return true;
+			if (chord > radiusChord + tolerance)
+				return false;
+			// Too close to the edge to tell with the chord distance.
+			double distance = LocationPointIndex.distanceInRadians(this.centerLatitude, this.centerLongitude, point.latitude, point.longitude);
+			return distance * LocationPointIndex.EARTH_RADIUS_METERS <= radius;
+		}
+
+		protected boolean isMoreSpecificThan(Circle other) {
+			if (this.specificity != other.specificity)
+				return this.specificity > other.specificity;
+			return this.radius < other.radius;
+		}
+	}
+
+	/**
+	 * A point and its unit vector.
+	 */
+	protected static class Point {
+		protected final double latitude;
+		protected final double longitude;
+		protected final double x;
+		protected final double y;
+		protected final double z;
+
+		protected Point(double latitude, double longitude) {
+			this.latitude = latitude;
+			this.longitude = longitude;
+			double latitudeRadians = Math.toRadians(latitude);
+			double longitudeRadians = Math.toRadians(longitude);
+			this.x = Math.cos(latitudeRadians) * Math.cos(longitudeRadians);
+			this.y = Math.cos(latitudeRadians) * Math.sin(longitudeRadians);
+			this.z = Math.sin(latitudeRadians);
+		}
+	}
+}
@@ -0,0 +1,501 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.types;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.javadocmd.simplelatlng.LatLng;
+import com.javadocmd.simplelatlng.util.LatLngConfig;
+import com.javadocmd.simplelatlng.util.LengthUnit;
+
+/**
+ * An index of the centers of locations that finds the closest location to a point, used by the
+ * GeocodeLocationResolver.
+ *
+ * Each location is placed in the grid cells of its 9 keys (see getKeys()), and the candidates for a point are
+ * the locations in the cells of its own keys. The index stores its coordinates as parallel arrays of primitives
+ * instead of Location objects: the points of each cell are contiguous unit vectors, so checking the candidates
+ * of a cell is a tight loop over a few arrays that computes the squared chord distance to each (a monotonic
+ * function of the great circle distance) without allocating. The exact distance (the haversine distance of
+ * LatLngTool) is only computed for the closest point and for points whose chord distances are too close to tell
+ * apart, so ties are broken the same way for every point: the closest location is the first one added.
+ * The loop is plain Java rather than the Vector API (jdk.incubator.vector), which is an incubator module of
+ * JDK 16 and later, while Carmen builds for Java 9.
+ *
+ * The index does not change once built. withChanges() returns a new index.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class LocationPointIndex {
+	protected static final double EARTH_RADIUS_MILES = LatLngConfig.getEarthRadius(LengthUnit.MILE);
+	protected static final double EARTH_RADIUS_METERS = LatLngConfig.getEarthRadius(LengthUnit.METER);
+
+	// Squared chord distances closer than this (relative to the closest, plus the absolute value for points
+	// that are almost the same) are compared with the exact distance. This is far larger than the rounding
+	// error of the unit vectors.
+	private static final double RELATIVE_TIE_TOLERANCE = 1e-6;
+	private static final double ABSOLUTE_TIE_TOLERANCE = 1e-20;
+
+	private static final int CELL_SIZE = 100;
+	private static final int NUM_KEYS = 9;
+	// Batches are sorted by whole degree cells, of which there are 181 by 361. Sorting moves the points
+	// around in memory, which only pays off for large batches and for indices too large for the cache.
+	private static final int NUM_SORT_CELLS = 181 * 361;
+	private static final int MIN_SORTED_BATCH = 4096;
+	private static final int MIN_SORTED_INDEX_POINTS = 1 << 18;
+
+	// By ordinal, the order in which the locations were added.
+	private final Location[] locations;
+	private final double[] latitudes;
+	private final double[] longitudes;
+
+	// The points of each cell, stored contiguously cell by cell.
+	private final double[] pointX;
+	private final double[] pointY;
+	private final double[] pointZ;
+	private final int[] pointOrdinals;
+
+	// An open addressing table from the key of a cell to its range of points. Each slot is two longs, the key
+	// and the range (the start in the high bits and the end in the low bits), so a lookup reads one cache line.
+	private final long[] cells;
+	private final int cellMask;
+
+	public LocationPointIndex(Collection<Location> locations) {
+		int numLocations = locations.size();
+		this.locations = locations.toArray(new Location[numLocations]);
+		this.latitudes = new double[numLocations];
+		this.longitudes = new double[numLocations];
+
+		// Group the ordinals by cell, keeping the order in which the cells were first seen.
+		LinkedHashMap<Long, int[]> cellToOrdinals = new LinkedHashMap<Long, int[]>();
+		long[] keys = new long[NUM_KEYS];
+		int numPoints = 0;
+		for (int ordinal = 0; ordinal < numLocations; ordinal++) {
+			LatLng point = this.locations[ordinal].getLatLng();
+			this.latitudes[ordinal] = point.getLatitude();
+			this.longitudes[ordinal] = point.getLongitude();
+
+			int numKeys = getKeys(this.latitudes[ordinal], this.longitudes[ordinal], keys);
+			for (int ii = 0; ii < numKeys; ii++) {
+				int[] ordinals = cellToOrdinals.get(keys[ii]);
+				if (ordinals == null) {
+					ordinals = new int[] { 0, 0, 0 };
+					cellToOrdinals.put(keys[ii], ordinals);
+				} else if (ordinals[0] + 1 == ordinals.length) {
+					ordinals = Arrays.copyOf(ordinals, ordinals.length * 2);
+					cellToOrdinals.put(keys[ii], ordinals);
+				}
+				// The first element is the number of ordinals.
+				ordinals[0]++;
+				ordinals[ordinals[0]] = ordinal;
+				numPoints++;
+			}
+		}
+
+		this.pointX = new double[numPoints];
+		this.pointY = new double[numPoints];
+		this.pointZ = new double[numPoints];
+		this.pointOrdinals = new int[numPoints];
+
+		int tableSize = 4;
+		while (tableSize < cellToOrdinals.size() * 2)
+			tableSize *= 2;
+		this.cells = new long[tableSize * 2];
+		this.cellMask = tableSize - 1;
+
+		int point = 0;
+		for (Map.Entry<Long, int[]> entry : cellToOrdinals.entrySet()) {
+			int[] ordinals = entry.getValue();
+			int start = point;
+			for (int ii = 1; ii <= ordinals[0]; ii++) {
+				int ordinal = ordinals[ii];
+				double latitude = Math.toRadians(this.latitudes[ordinal]);
+				double longitude = Math.toRadians(this.longitudes[ordinal]);
+				this.pointX[point] = Math.cos(latitude) * Math.cos(longitude);
+				this.pointY[point] = Math.cos(latitude) * Math.sin(longitude);
+				this.pointZ[point] = Math.sin(latitude);
+				this.pointOrdinals[point] = ordinal;
+				point++;
+			}
+			int slot = findSlot(entry.getKey());
+			this.cells[slot * 2] = entry.getKey();
+			this.cells[slot * 2 + 1] = (((long)start) << 32) | point;
+		}
+	}
+
+	/**
+	 * Returns an index with some locations removed and others added. The added locations come after the others.
+	 * @param removedLocations Locations to remove (the same objects that were added).
+	 * @param addedLocations
+	 * @return
+	 */
+	public LocationPointIndex withChanges(Collection<Location> removedLocations, Collection<Location> addedLocations) {
+		IdentityHashMap<Location, Boolean> removed = new IdentityHashMap<Location, Boolean>();
+		for (Location location : removedLocations)
+			removed.put(location, Boolean.TRUE);
+		List<Location> locations = new ArrayList<Location>(this.locations.length + addedLocations.size());
+		for (Location location : this.locations) {
+			if (!removed.containsKey(location))
+				locations.add(location);
+		}
+		locations.addAll(addedLocations);
+		return new LocationPointIndex(locations);
+	}
+
+	/**
+	 * Returns the closest location to the point, or null if there is none closer than maxDistance miles.
+	 * @param latitude In degrees, as returned by LatLng.getLatitude().
+	 * @param longitude In degrees, as returned by LatLng.getLongitude().
+	 * @param maxDistance In miles.
+	 * @return
+	 */
+	public Location getClosestLocation(double latitude, double longitude, double maxDistance) {
+		long[] keys = new long[NUM_KEYS];
+		int numKeys = getKeys(latitude, longitude, keys);
+		int ordinal = findClosest(latitude, longitude, maxDistance, keys, numKeys);
+		return ordinal < 0 ? null : this.locations[ordinal];
+	}
+
+	/**
+	 * Finds the closest location of each point, as getClosestLocation() does. For large indices, the points
+	 * are visited in the order of their cells rather than the given order, so the points of each cell are
+	 * checked one after the other while they are in the cache. Points that share all of their cells share
+	 * the lookups.
+	 * @param latitudes In degrees, as returned by LatLng.getLatitude().
+	 * @param longitudes In degrees, as returned by LatLng.getLongitude().
+	 * @param maxDistance In miles.
+	 * @param results The closest location of each point, or null.
+	 */
+	public void getClosestLocations(double[] latitudes, double[] longitudes, double maxDistance, Location[] results) {
+		int numPoints = latitudes.length;
+		if (longitudes.length != numPoints || results.length < numPoints)
+			throw new IllegalArgumentException("The number of latitudes, longitudes and results must match.");
+
+		int[] order = getOrderByCell(latitudes, longitudes, this.pointOrdinals.length >= MIN_SORTED_INDEX_POINTS);
+
+		long[] keys = new long[NUM_KEYS];
+		long[] previousKeys = new long[NUM_KEYS];
+		int numPreviousKeys = -1;
+		int[] starts = new int[NUM_KEYS];
+		int[] ends = new int[NUM_KEYS];
+		for (int ii = 0; ii < numPoints; ii++) {
+			int index = order[ii];
+			double latitude = latitudes[index];
+			double longitude = longitudes[index];
+			int numKeys = getKeys(latitude, longitude, keys);
+			if (numKeys != numPreviousKeys || !sameKeys(keys, previousKeys, numKeys)) {
+				for (int jj = 0; jj < numKeys; jj++) {
+					long range = this.cells[findSlot(keys[jj]) * 2 + 1];
+					starts[jj] = (int)(range >>> 32);
+					ends[jj] = (int)range;
+				}
+				System.arraycopy(keys, 0, previousKeys, 0, numKeys);
+				numPreviousKeys = numKeys;
+			}
+			int ordinal = findClosest(latitude, longitude, maxDistance, starts, ends, numKeys);
+			results[index] = ordinal < 0 ? null : this.locations[ordinal];
+		}
+	}
+
+	private int findClosest(double latitude, double longitude, double maxDistance, long[] keys, int numKeys) {
+		int[] starts = new int[NUM_KEYS];
+		int[] ends = new int[NUM_KEYS];
+		for (int ii = 0; ii < numKeys; ii++) {
+			long range = this.cells[findSlot(keys[ii]) * 2 + 1];
+			starts[ii] = (int)(range >>> 32);
+			ends[ii] = (int)range;
+		}
+		return findClosest(latitude, longitude, maxDistance, starts, ends, numKeys);
+	}
+
+	/**
+	 * Returns the ordinal of the closest location in the ranges of points, or -1 if there is none closer
+	 * than maxDistance.
+	 */
+	private int findClosest(double latitude, double longitude, double maxDistance, int[] starts, int[] ends, int numRanges) {
+		double latitudeRadians = Math.toRadians(latitude);
+		double longitudeRadians = Math.toRadians(longitude);
+		double x = Math.cos(latitudeRadians) * Math.cos(longitudeRadians);
+		double y = Math.cos(latitudeRadians) * Math.sin(longitudeRadians);
+		double z = Math.sin(latitudeRadians);
+
+		int closest = -1;
+		double closestChord = Double.POSITIVE_INFINITY;
+		// The exact distance to the closest location, computed when needed.
+		double closestDistance = Double.NaN;
+		// Points further than this are not checked. It starts at the maximum distance.
+		double maxChord = getChord(maxDistance);
+		double threshold = maxChord + getTieTolerance(maxChord);
+		for (int range = 0; range < numRanges; range++) {
+			int start = starts[range];
+			int end = ends[range];
+
+			// The closest point of the cell. This loop has no branches, so the JIT can unroll it.
+			double cellChord = Double.POSITIVE_INFINITY;
+			for (int point = start; point < end; point++) {
+				double dx = this.pointX[point] - x;
+				double dy = this.pointY[point] - y;
+				double dz = this.pointZ[point] - z;
+				cellChord = Math.min(cellChord, dx * dx + dy * dy + dz * dz);
+			}
+			if (cellChord > threshold)
+				continue;
+
+			// Some point of the cell is closer than (or too close to tell from) the closest so far.
+			for (int point = start; point < end; point++) {
+				double dx = this.pointX[point] - x;
+				double dy = this.pointY[point] - y;
+				double dz = this.pointZ[point] - z;
+				double chord = dx * dx + dy * dy + dz * dz;
+				if (chord > threshold)
+					continue;
+
+				int ordinal = this.pointOrdinals[point];
+				if (ordinal == closest)
+					continue;
+				if (closest >= 0 && chord >= closestChord - getTieTolerance(closestChord)) {
+					// Too close to tell apart with the chord distance, so compare the exact distances.
+					if (Double.isNaN(closestDistance))
+						closestDistance = distanceInMiles(latitude, longitude, closest);
+					double distance = distanceInMiles(latitude, longitude, ordinal);
+					if (closestDistance < distance || (closestDistance == distance && closest < ordinal))
+						continue;
+					closestDistance = distance;
+				} else {
+					closestDistance = Double.NaN;
+				}
+				closest = ordinal;
+				closestChord = chord;
+				threshold = chord + getTieTolerance(chord);
+			}
+		}
+
+		if (closest < 0)
+			return -1;
+		// The exact distance is only needed if the closest point is about maxDistance away.
+		if (Double.isNaN(closestDistance) && closestChord < maxChord - getTieTolerance(maxChord))
+			return closest;
+		if (Double.isNaN(closestDistance))
+			closestDistance = distanceInMiles(latitude, longitude, closest);
+		if (closestDistance >= maxDistance)
+			return -1;
+		return closest;
+	}
+
+	/**
+	 * The squared chord distance of a distance in miles.
+	 */
+	private static double getChord(double distance) {
+		return getSquaredChord(distance / EARTH_RADIUS_MILES);
+	}
+
+	/**
+	 * The squared distance between two unit vectors at this angle (in radians).
+	 */
+	protected static double getSquaredChord(double angle) {
+		if (angle >= Math.PI)
+			return Double.POSITIVE_INFINITY;
+		double chord = 2 * Math.sin(angle / 2);
+		return chord * chord;
+	}
+
+	protected static double getTieTolerance(double chord) {
+		return chord * RELATIVE_TIE_TOLERANCE + ABSOLUTE_TIE_TOLERANCE;
+	}
+
+	private double distanceInMiles(double latitude, double longitude, int ordinal) {
+		return distanceInRadians(latitude, longitude, this.latitudes[ordinal], this.longitudes[ordinal]) * EARTH_RADIUS_MILES;
+	}
+
+	/**
+	 * The haversine distance between two points in degrees, computed exactly as LatLngTool.distanceInRadians()
+	 * does but without LatLng objects.
+	 */
+	protected static double distanceInRadians(double latitude1, double longitude1, double latitude2, double longitude2) {
+		double latitude1Radians = Math.toRadians(latitude1);
+		double latitude2Radians = Math.toRadians(latitude2);
+		double latitudeDelta = Math.abs(latitude2Radians - latitude1Radians);
+		double longitudeDelta = Math.abs(Math.toRadians(longitude2 - longitude1));
+		double a = Math.sin(latitudeDelta / 2) * Math.sin(latitudeDelta / 2)
+				+ Math.cos(latitude1Radians) * Math.cos(latitude2Radians) * Math.sin(longitudeDelta / 2) * Math.sin(longitudeDelta / 2);
+		return 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+	}
+
+	/**
+	 * Finds the slot of a key in the table of cells: the slot that holds it, or an empty slot if it is not there.
+	 * An empty slot has an empty range, so its points can be scanned like those of any other cell.
+	 */
+	private int findSlot(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		int slot = (int)(hash ^ (hash >>> 32)) & this.cellMask;
+		while (this.cells[slot * 2 + 1] != 0 && this.cells[slot * 2] != key)
+			slot = (slot + 1) & this.cellMask;
+		return slot;
+	}
+
+	/**
+	 * Computes the distinct keys of the cells of a point and returns how many there are. The cells of a point
+	 * are the 3x3 combinations of its latitude and longitude cut to whole degrees and rounded up and down to
+	 * hundredths of a degree. These are the cells of the original string keys of the GeocodeLocationResolver
+	 * ("latitude&&longitude"), so the same locations are candidates.
+	 */
+	private static int getKeys(double latitude, double longitude, long[] keys) {
+		double scaledLatitude = latitude * 100;
+		double scaledLongitude = longitude * 100;
+		double shift = (CELL_SIZE / (double)2) / CELL_SIZE;
+		int latitudeCell = (int)(scaledLatitude / CELL_SIZE);
+		int latitudeCellUp = (int)(scaledLatitude + shift);
+		int latitudeCellDown = (int)(scaledLatitude - shift);
+		int longitudeCell = (int)(scaledLongitude / CELL_SIZE);
+		int longitudeCellUp = (int)(scaledLongitude + shift);
+		int longitudeCellDown = (int)(scaledLongitude - shift);
+
+		int numKeys = 0;
+		for (int ii = 0; ii < 3; ii++) {
+			int latitudeKey = ii == 0 ? latitudeCell : ii == 1 ? latitudeCellUp : latitudeCellDown;
+			if ((ii > 0 && latitudeKey == latitudeCell) || (ii > 1 && latitudeKey == latitudeCellUp))
+				continue;
+			for (int jj = 0; jj < 3; jj++) {
+				int longitudeKey = jj == 0 ? longitudeCell : jj == 1 ? longitudeCellUp : longitudeCellDown;
+				if ((jj > 0 && longitudeKey == longitudeCell) || (jj > 1 && longitudeKey == longitudeCellUp))
+					continue;
+				keys[numKeys++] = (((long)latitudeKey) << 32) | (longitudeKey & 0xffffffffL);
+			}
+		}
+		return numKeys;
+	}
+
+	private static boolean sameKeys(long[] keys, long[] otherKeys, int numKeys) {
+		for (int ii = 0; ii < numKeys; ii++) {
+			if (keys[ii] != otherKeys[ii])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the indices of the points sorted by their whole degree cells (a counting sort), or in the
+	 * given order if sort is false or the batch is small.
+	 */
+	private static int[] getOrderByCell(double[] latitudes, double[] longitudes, boolean sort) {
+		int numPoints = latitudes.length;
+		int[] order = new int[numPoints];
+		if (!sort || numPoints < MIN_SORTED_BATCH) {
+			for (int ii = 0; ii < numPoints; ii++)
+				order[ii] = ii;
+			return order;
+		}
+
+		int[] cells = new int[numPoints];
+		int[] cellCounts = new int[NUM_SORT_CELLS + 1];
+		for (int ii = 0; ii < numPoints; ii++) {
+			cells[ii] = getSortCell(latitudes[ii], longitudes[ii]);
+			cellCounts[cells[ii] + 1]++;
+		}
+		for (int cell = 0; cell < NUM_SORT_CELLS; cell++)
+			cellCounts[cell + 1] += cellCounts[cell];
+		for (int ii = 0; ii < numPoints; ii++)
+			order[cellCounts[cells[ii]]++] = ii;
+		return order;
+	}
+
+	/**
+	 * The whole degree cell of a point, from 0 to NUM_SORT_CELLS - 1.
+	 */
+	private static int getSortCell(double latitude, double longitude) {
+		int latitudeCell = Math.max(0, Math.min(180, (int)Math.floor(latitude) + 90));
+		int longitudeCell = Math.max(0, Math.min(360, (int)Math.floor(longitude) + 180));
+		return latitudeCell * 361 + longitudeCell;
+	}
+
+	/**
+	 * Returns the ordinals of the candidates of all points in a box (the locations in the cells of the keys of any
+	 * of its points), for GeocodeRaster. An ordinal may appear more than once.
+	 */
+	protected int[] getCandidates(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude) {
+		int[] latitudeKeys = getKeyParts(minLatitude, maxLatitude);
+		int[] longitudeKeys = getKeyParts(minLongitude, maxLongitude);
+		int[] candidates = new int[16];
+		int numCandidates = 0;
+		for (int latitudeKey : latitudeKeys) {
+			for (int longitudeKey : longitudeKeys) {
+				long range = this.cells[findSlot((((long)latitudeKey) << 32) | (longitudeKey & 0xffffffffL)) * 2 + 1];
+				for (int point = (int)(range >>> 32); point < (int)range; point++) {
+					if (numCandidates == candidates.length)
+						candidates = Arrays.copyOf(candidates, candidates.length * 2);
+					candidates[numCandidates++] = this.pointOrdinals[point];
+				}
+			}
+		}
+		return Arrays.copyOf(candidates, numCandidates);
+	}
+
+	/**
+	 * The distinct parts of the keys (see getKeys()) of the coordinates from min to max. Each part only grows
+	 * with the coordinate, so these are the parts from those of min to those of max.
+	 */
+	private static int[] getKeyParts(double min, double max) {
+		double shift = (CELL_SIZE / (double)2) / CELL_SIZE;
+		int minCell = (int)(min * 100 / CELL_SIZE);
+		int maxCell = (int)(max * 100 / CELL_SIZE);
+		int minCellDown = (int)(min * 100 - shift);
+		int maxCellUp = (int)(max * 100 + shift);
+		int[] parts = new int[maxCellUp - minCellDown + 1 + maxCell - minCell + 1];
+		int numParts = 0;
+		for (int part = minCellDown; part <= maxCellUp; part++)
+			parts[numParts++] = part;
+		for (int part = minCell; part <= maxCell; part++) {
+			if (part < minCellDown || part > maxCellUp)
+				parts[numParts++] = part;
+		}
+		return Arrays.copyOf(parts, numParts);
+	}
+
+	/**
+	 * Returns true if two points have the same cells, and so the same candidates.
+	 */
+	protected static boolean haveSameCells(double latitude1, double longitude1, double latitude2, double longitude2) {
+		long[] keys1 = new long[NUM_KEYS];
+		long[] keys2 = new long[NUM_KEYS];
+		int numKeys = getKeys(latitude1, longitude1, keys1);
+		if (getKeys(latitude2, longitude2, keys2) != numKeys)
+			return false;
+		Arrays.sort(keys1, 0, numKeys);
+		Arrays.sort(keys2, 0, numKeys);
+		return sameKeys(keys1, keys2, numKeys);
+	}
+
+	protected double getLatitude(int ordinal) {
+		return this.latitudes[ordinal];
+	}
+
+	protected double getLongitude(int ordinal) {
+		return this.longitudes[ordinal];
+	}
+
+	public Location getLocation(int ordinal) {
+		return this.locations[ordinal];
+	}
+
+	/**
+	 * The locations, in the order they were added.
+	 * @return
+	 */
+	public List<Location> getLocations() {
+		return Collections.unmodifiableList(Arrays.asList(this.locations));
+	}
+
+	public int size() {
+		return this.locations.length;
+	}
+}
@@ -0,0 +1,44 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.types;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The names of countries, states, counties and cities of the locations in a LocationDatabase, each stored
+ * once. Thousands of locations share names like "United States" or "California", so the locations of a
+ * database keep the same String objects for them (see Location.shareNames()).
+ *
+ * A dictionary belongs to the database it was created for, and to the versions made from it with deltas,
+ * so it is garbage collected with them after a reload. Locations that are not in a database, such as those
+ * created for Twitter places at run time, are not added to it.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class NameDictionary {
+	private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Returns the copy of the name in the dictionary, adding the name if it is new.
+	 * @param name
+	 * @return The shared name, or null if the name is null.
+	 */
+	public String share(String name) {
+		// Location.equals() treats the literal "" as a missing name, so empty names keep their identity.
+		if (name == null || name.length() == 0)
+			return name;
+		String sharedName = this.names.putIfAbsent(name, name);
+		return sharedName == null ? name : sharedName;
+	}
+
+	/**
+	 * The number of names in the dictionary.
+	 * @return
+	 */
+	public int size() {
+		return this.names.size();
+	}
+}
@@ -0,0 +1,145 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.types;
+
+import java.util.Collection;
+
+/**
+ * A Bloom filter of names, used to reject strings that can not be the name of a location before
+ * they are looked up (see LocationResolver). mightContain() is never false for a name in the filter,
+ * and is true for a name that is not in the filter with about the rate given by getFalsePositiveRate().
+ *
+ * A name is added and tested by its hash code, which is String.hashCode(), so that it can be computed
+ * one char at a time with addToHashCode() while a string is being normalized, before a String is made.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class NameFilter {
+	private final long[] bits;
+	private final int mask;
+	private final int numHashes;
+	private final int size;
+
+	/**
+	 * @param names
+	 * @param bitsPerName The number of bits per name: with 10 bits, about 1 in 100 names that are not in
+	 * the filter pass it.
+	 */
+	public NameFilter(Collection<String> names, int bitsPerName) {
+		// The number of bits is a power of two, at least 64.
+		long wantedBits = Math.max(64L, (long)names.size() * bitsPerName);
+		int numBits = 64;
+		while (numBits < wantedBits && numBits < (1 << 30))
+			numBits *= 2;
+		this.bits = new long[numBits / 64];
+		this.mask = numBits - 1;
+		// The best number of hashes is ln(2) times the number of bits per name.
+		this.numHashes = Math.max(1, (int)Math.round(Math.log(2) * numBits / Math.max(1, names.size())));
+		this.size = names.size();
+		for (String name : names)
+			add(name.hashCode());
+	}
+
+	private NameFilter(NameFilter other, int size) {
+		this.bits = other.bits.clone();
+		this.mask = other.mask;
+		this.numHashes = other.numHashes;
+		this.size = size;
+	}
+
+	/**
+	 * Returns a copy of this filter with more names. The number of bits does not grow, so the false positive
+	 * rate rises with each name; this is meant for a few names (see LocationDatabase.applyDelta()).
+	 * Names can not be removed, but a filter that passes a name that is not in the database is still correct.
+	 * @param names
+	 * @return
+	 */
+	public NameFilter withNames(Collection<String> names) {
+		NameFilter filter = new NameFilter(this, this.size + names.size());
+		for (String name : names)
+			filter.add(name.hashCode());
+		return filter;
+	}
+
+	/**
+	 * Returns the hash code of a string one char longer: String.hashCode() is
+	 * addToHashCode(...addToHashCode(addToHashCode(0, c0), c1)..., cn).
+	 * @param hashCode
+	 * @param c
+	 * @return
+	 */
+	public static int addToHashCode(int hashCode, char c) {
+		return 31 * hashCode + c;
+	}
+
+	/**
+	 * Returns false if no name in the filter has this hash code.
+	 * @param hashCode String.hashCode() of a name.
+	 * @return
+	 */
+	public boolean mightContain(int hashCode) {
+		long hash = mix(hashCode);
+		int first = (int)hash;
+		int second = (int)(hash >>> 32) | 1;
+		for (int ii = 0; ii < this.numHashes; ii++) {
+			int bit = (first + ii * second) & this.mask;
+			if ((this.bits[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	public boolean mightContain(String name) {
+		return mightContain(name.hashCode());
+	}
+
+	private void add(int hashCode) {
+		long hash = mix(hashCode);
+		int first = (int)hash;
+		int second = (int)(hash >>> 32) | 1;
+		for (int ii = 0; ii < this.numHashes; ii++) {
+			int bit = (first + ii * second) & this.mask;
+			this.bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Spreads a 32 bit hash code over 64 bits (the finalizer of MurmurHash3), giving the two hashes
+	 * that pick the bits of a name.
+	 */
+	private static long mix(int hashCode) {
+		long hash = hashCode;
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * The number of names added to the filter.
+	 * @return
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	public int getNumBits() {
+		return this.mask + 1;
+	}
+
+	/**
+	 * The expected rate at which names that are not in the filter pass it, from the fraction of bits that are set.
+	 * @return
+	 */
+	public double getFalsePositiveRate() {
+		long set = 0;
+		for (long word : this.bits)
+			set += Long.bitCount(word);
+		return Math.pow((double)set / getNumBits(), this.numHashes);
+	}
+}
@@ -0,0 +1,103 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.types;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An AliasIndex that changes a few names of another index without copying it, used for the aliases of a
+ * LocationDatabase with a delta applied (see LocationDatabase.applyDelta()). Names that were added, pointed
+ * at another location or removed are kept in a map that is checked first. Locations of the other index that
+ * were replaced by copies (e.g. with another parent) are replaced when they are found.
+ *
+ * An overlay of an overlay is flattened, so lookups check at most one map before the packed index.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class OverlayAliasIndex implements AliasIndex {
+	private final AliasIndex base;
+	// The location of each changed name, or null if the name was removed.
+	private final Map<String, Location> changedNames;
+	// Copies of locations of the base index, by id.
+	private final Map<Integer, Location> replacedLocations;
+	private final int size;
+
+	/**
+	 * Returns an index with these changes to another index.
+	 * @param index
+	 * @param changedNames The new location of each changed name, or null if it is removed.
+	 * @param replacedLocations Locations that replace the locations with the same id.
+	 * @return
+	 */
+	public static AliasIndex create(AliasIndex index, Map<String, Location> changedNames, Map<Integer, Location> replacedLocations) {
+		if (changedNames.isEmpty() && replacedLocations.isEmpty())
+			return index;
+		if (!(index instanceof OverlayAliasIndex))
+			return new OverlayAliasIndex(index, new HashMap<String, Location>(changedNames), new HashMap<Integer, Location>(replacedLocations));
+
+		OverlayAliasIndex overlay = (OverlayAliasIndex)index;
+		HashMap<Integer, Location> allReplacedLocations = new HashMap<Integer, Location>(overlay.replacedLocations);
+		allReplacedLocations.putAll(replacedLocations);
+		HashMap<String, Location> allChangedNames = new HashMap<String, Location>();
+		for (Map.Entry<String, Location> entry : overlay.changedNames.entrySet())
+			allChangedNames.put(entry.getKey(), replace(entry.getValue(), replacedLocations));
+		allChangedNames.putAll(changedNames);
+		return new OverlayAliasIndex(overlay.base, allChangedNames, allReplacedLocations);
+	}
+
+	private OverlayAliasIndex(AliasIndex base, Map<String, Location> changedNames, Map<Integer, Location> replacedLocations) {
+		this.base = base;
+		this.changedNames = changedNames;
+		this.replacedLocations = replacedLocations;
+		int size = base.size();
+		for (Map.Entry<String, Location> entry : changedNames.entrySet()) {
+			boolean inBase = base.get(entry.getKey()) != null;
+			if (entry.getValue() != null && !inBase)
+				size++;
+			else if (entry.getValue() == null && inBase)
+				size--;
+		}
+		this.size = size;
+	}
+
+	private static Location replace(Location location, Map<Integer, Location> replacedLocations) {
+		if (location == null || replacedLocations.isEmpty())
+			return location;
+		Location replacement = replacedLocations.get(location.getId());
+		return replacement != null ? replacement : location;
+	}
+
+	public Location get(String name) {
+		Location location = this.changedNames.get(name);
+		if (location != null)
+			return location;
+		if (this.changedNames.containsKey(name))
+			return null;
+		return replace(this.base.get(name), this.replacedLocations);
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * The index the changes are applied to.
+	 * @return
+	 */
+	public AliasIndex getBase() {
+		return this.base;
+	}
+
+	/**
+	 * The changed names, with null for those that were removed.
+	 * @return
+	 */
+	public Map<String, Location> getChangedNames() {
+		return Collections.unmodifiableMap(this.changedNames);
+	}
+}
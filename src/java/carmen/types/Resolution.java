@@ -0,0 +1,55 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.types;
+
+/**
+ * The result of resolving the location of a tweet (see LocationResolver.resolve()): the location, the method
+ * used to find it, and whether it is only the known parent of the tweet's unknown place.
+ *
+ * Location objects are shared by all the tweets with that location, on all threads, so anything that
+ * belongs to one tweet is kept here instead. A Resolution does not change after it is created.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public final class Resolution {
+	private final Location location;
+	private final ResolutionMethod resolutionMethod;
+	private final boolean provisionalParent;
+
+	/**
+	 * @param location The location.
+	 * @param resolutionMethod How the location was found.
+	 * @param provisionalParent True if the location is the known parent of the tweet's place, which is not a
+	 * known location, used because no other method found a location.
+	 */
+	public Resolution(Location location, ResolutionMethod resolutionMethod, boolean provisionalParent) {
+		if (location == null)
+			throw new IllegalArgumentException("A resolution must have a location.");
+		this.location = location;
+		this.resolutionMethod = resolutionMethod;
+		this.provisionalParent = provisionalParent;
+	}
+
+	public Location getLocation() {
+		return this.location;
+	}
+
+	public int getLocationId() {
+		return this.location.getId();
+	}
+
+	public ResolutionMethod getResolutionMethod() {
+		return this.resolutionMethod;
+	}
+
+	public boolean isProvisionalParent() {
+		return this.provisionalParent;
+	}
+
+	public String toString() {
+		return this.location + " (" + this.resolutionMethod + (this.provisionalParent ? ", provisional parent)" : ")");
+	}
+}
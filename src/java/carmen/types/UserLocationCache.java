@@ -0,0 +1,170 @@
+// Copyright 2012-2013 Mark Dredze. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// Mark Dredze, mdredze@cs.jhu.edu
+
+package carmen.types;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the location that was resolved from a user's profile location string.
+ *
+ * Entries are keyed by the user id and a hash of the location string, so a user who edits
+ * their profile location gets a new entry and the old one ages out. Users whose location could not
+ * be resolved are remembered as well. The cache holds at most maxSize entries (least recently used
+ * entries are evicted first) and entries expire after ttlMillis.
+ *
+ * Each entry records the version of the location database it was resolved with (see LocationDatabaseProvider).
+ * When a new version is swapped in, older entries are misses and are replaced as their users are seen again,
+ * so the cache does not have to be cleared.
+ *
+ * All methods are synchronized so a cache can be shared between threads.
+ *
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
+public class UserLocationCache {
+	private final int maxSize;
+	private final long ttlMillis;
+	private final LinkedHashMap<Key, Entry> cache;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long expirations = 0;
+	private long staleEntries = 0;
+
+	public UserLocationCache(final int maxSize, long ttlMillis) {
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+		this.cache = new LinkedHashMap<Key, Entry>(Math.min(maxSize, 1 << 16), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Key, UserLocationCache.Entry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached entry for this user and location string, or null if there is none.
+	 * The location of the returned entry is null if the string did not resolve to a location.
+	 * @param userId
+	 * @param userLocation
+	 * @param databaseVersion The version of the database in use. An entry from another version is not returned.
+	 * @return
+	 */
+	public synchronized Entry get(String userId, String userLocation, long databaseVersion) {
+		Key key = new Key(userId, userLocation);
+		Entry entry = this.cache.get(key);
+		if (entry == null) {
+			this.misses++;
+			return null;
+		}
+		if (System.currentTimeMillis() - entry.timestamp > this.ttlMillis) {
+			this.cache.remove(key);
+			this.expirations++;
+			this.misses++;
+			return null;
+		}
+		if (entry.databaseVersion != databaseVersion) {
+			this.staleEntries++;
+			this.misses++;
+			return null;
+		}
+		this.hits++;
+		return entry;
+	}
+
+	/**
+	 * Remembers the location (which may be null) resolved for this user and location string.
+	 * @param userId
+	 * @param userLocation
+	 * @param location
+	 * @param databaseVersion The version of the database the location was resolved with.
+	 */
+	public synchronized void put(String userId, String userLocation, Location location, long databaseVersion) {
+		this.cache.put(new Key(userId, userLocation), new Entry(location, System.currentTimeMillis(), databaseVersion));
+	}
+
+	public synchronized void clear() {
+		this.cache.clear();
+	}
+
+	public synchronized int size() {
+		return this.cache.size();
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	public synchronized long getExpirations() {
+		return this.expirations;
+	}
+
+	/**
+	 * The number of entries that were misses because they were resolved with an older version of the database.
+	 * @return
+	 */
+	public synchronized long getStaleEntries() {
+		return this.staleEntries;
+	}
+
+	public static class Entry {
+		private final Location location;
+		private final long timestamp;
+		private final long databaseVersion;
+
+		protected Entry(Location location, long timestamp, long databaseVersion) {
+			this.location = location;
+			this.timestamp = timestamp;
+			this.databaseVersion = databaseVersion;
+		}
+
+		public Location getLocation() {
+			return this.location;
+		}
+	}
+
+	protected static class Key {
+		private final String userId;
+		private final long locationHash;
+
+		protected Key(String userId, String userLocation) {
+			this.userId = userId;
+			this.locationHash = hash(userLocation);
+		}
+
+		/**
+		 * A 64 bit FNV-1a hash, so two different strings for the same user will almost never collide.
+		 */
+		private static long hash(String string) {
+			long hash = 0xcbf29ce484222325L;
+			for (int ii = 0; ii < string.length(); ii++) {
+				hash ^= string.charAt(ii);
+				hash *= 0x100000001b3L;
+			}
+			return hash;
+		}
+
+		public boolean equals(Object object) {
+			if (!(object instanceof Key))
+				return false;
+			Key key = (Key)object;
+			return this.locationHash == key.locationHash && this.userId.equals(key.userId);
+		}
+
+		public int hashCode() {
+			return 31 * this.userId.hashCode() + (int)(this.locationHash ^ (this.locationHash >>> 32));
+		}
+	}
+}
@@ -3,22 +3,28 @@
 // Mark Dredze, mdredze@cs.jhu.edu
 package carmen.utils;
 
+/**
+ * Measures elapsed time in milliseconds. The time is measured with System.nanoTime(), so it is not
+ * affected by changes to the system clock.
+ * @author Mark Dredze mdredze@cs.jhu.edu
+ *
+ */
 public class Timer {
 	private long _end_time;
 	private long _start_time;
 	private long _total_elapsed = 0;
 	
 	public void start() {
-		this._start_time = System.currentTimeMillis();
+		this._start_time = System.nanoTime();
 	}
 	
 	public void restart() {
 		reset();
-		this._start_time = System.currentTimeMillis();
+		this._start_time = System.nanoTime();
 	}
 	
 	public void stop() {
-		this._end_time = System.currentTimeMillis();
+		this._end_time = System.nanoTime();
 		this._total_elapsed += this._end_time - this._start_time;
 	}
 	
@@ -27,7 +33,7 @@ public class Timer {
 	}
 
 	public String getFullTime() {
-		return formatFullTime(this._total_elapsed);
+		return formatFullTime(this._total_elapsed / 1000000);
 	}
 
 	private String formatFullTime(long elapsed) {
@@ -49,15 +55,19 @@ public class Timer {
 	}
 	
 	public String getMilliseconds() {
-		return String.valueOf(this._total_elapsed);
+		return String.valueOf(this._total_elapsed / 1000000);
 	}
 	
 	public long getMillisecondsLong() {
+		return this._total_elapsed / 1000000;
+	}
+	
+	public long getNanoseconds() {
 		return this._total_elapsed;
 	}
 	
 	public String getSeconds() {
-		return String.valueOf(this._total_elapsed / 1000);
+		return String.valueOf(this._total_elapsed / 1000000000);
 	}
 	
 	public void reset() {
@@ -65,6 +75,6 @@ public class Timer {
 	}
 
 	public String getFullTimeSoFar() {
-		return formatFullTime(System.currentTimeMillis() + this._total_elapsed - this._start_time);
+		return formatFullTime((System.nanoTime() + this._total_elapsed - this._start_time) / 1000000);
 	}
 }
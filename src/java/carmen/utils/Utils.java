@@ -5,25 +5,38 @@
 package carmen.utils;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Logger;
 
 import carmen.types.Constants;
 
@@ -58,6 +71,66 @@ public abstract class Utils {
 		return null;
 	}
 
+	/**
+	 * Returns the id of the user who posted the tweet as a string, or null if it is missing.
+	 * @param tweet
+	 * @return
+	 */
+	public static String getUserIdFromTweet(Map<String, Object> tweet) {
+		Map<String, Object> user = getUserFromTweet(tweet);
+		if (user == null)
+			return null;
+		Object id = user.get(Constants.TWEET_USER_ID_STR);
+		if (id == null)
+			id = user.get(Constants.TWEET_USER_ID);
+		if (id == null)
+			return null;
+		return id.toString();
+	}
+
+	/**
+	 * Returns the id of the tweet, or null if it is missing or not a number.
+	 * @param tweet
+	 * @return
+	 */
+	public static Long getTweetIdFromTweet(Map<String, Object> tweet) {
+		Object id = tweet.get(Constants.TWEET_ID);
+		if (id instanceof Integer || id instanceof Long)
+			return ((Number)id).longValue();
+		id = tweet.get(Constants.TWEET_ID_STR);
+		if (id instanceof String) {
+			try {
+				return Long.parseLong((String)id);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static final ThreadLocal<SimpleDateFormat> createdAtFormat = new ThreadLocal<SimpleDateFormat>() {
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat(Constants.TWEET_CREATED_AT_FORMAT, Locale.US);
+		}
+	};
+
+	/**
+	 * Returns the time the tweet was created (created_at) in milliseconds since the epoch, or null
+	 * if it is missing or cannot be parsed.
+	 * @param tweet
+	 * @return
+	 */
+	public static Long getCreatedAtFromTweet(Map<String, Object> tweet) {
+		Object createdAt = tweet.get(Constants.TWEET_CREATED_AT);
+		if (!(createdAt instanceof String))
+			return null;
+		try {
+			return createdAtFormat.get().parse((String)createdAt).getTime();
+		} catch (ParseException e) {
+			return null;
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	public static LatLng getLatLngFromTweet(Map<String, Object> tweet) {
 		Map<String, Object> coordinates = (Map<String, Object>) tweet.get(Constants.COORDINATES);
@@ -111,6 +184,81 @@ public abstract class Utils {
 		}
 	}
 
+	/**
+	 * The file name used to refer to standard input or standard output.
+	 */
+	public static final String STANDARD_STREAM = "-";
+	
+	/**
+	 * Opens the file for writing, or standard output if the name is "-". Files ending in .gz are compressed.
+	 * Standard output is written through its file descriptor rather than System.out so that
+	 * a closed pipe is reported as an IOException. The stream is not buffered.
+	 * @param outputFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static OutputStream createOutputStream(String outputFile) throws IOException {
+		if (outputFile.equals(STANDARD_STREAM))
+			return new FileOutputStream(FileDescriptor.out);
+		else if (outputFile.endsWith(".gz"))
+			return new GZIPOutputStream(new FileOutputStream(outputFile), 64 * 1024);
+		else
+			return new FileOutputStream(outputFile);
+	}
+
+	/**
+	 * Opens the file for reading, or standard input if the name is "-". Files ending in .gz are decompressed.
+	 * The stream is not buffered.
+	 * @param inputFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream createInputStream(String inputFile) throws IOException {
+		if (inputFile.equals(STANDARD_STREAM))
+			return new FileInputStream(FileDescriptor.in);
+		else if (new File(inputFile).getName().endsWith(".gz"))
+			return new GZIPInputStream(new FileInputStream(inputFile), 64 * 1024);
+		else
+			return new FileInputStream(inputFile);
+	}
+
+	/**
+	 * Creates a writer for the file, or for standard output if the name is "-".
+	 * @param outputFile
+	 * @param bufferSize The size of the output buffer in chars.
+	 * @return
+	 * @throws IOException
+	 */
+	public static Writer createWriter(String outputFile, int bufferSize) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(createOutputStream(outputFile), "UTF-8"), Math.max(1, bufferSize));
+	}
+
+	/**
+	 * Creates a reader for the file, or for standard input if the name is "-".
+	 * @param inputFile
+	 * @param bufferSize The size of the input buffer in chars.
+	 * @return
+	 * @throws IOException
+	 */
+	public static BufferedReader createReader(String inputFile, int bufferSize) throws IOException {
+		return new BufferedReader(new InputStreamReader(createInputStream(inputFile), "UTF-8"), bufferSize);
+	}
+	
+	/**
+	 * Sends console log messages to standard error. Used when standard output carries data.
+	 */
+	public static void redirectConsoleLoggingToStderr() {
+		Enumeration<?> appenders = Logger.getRootLogger().getAllAppenders();
+		while (appenders.hasMoreElements()) {
+			Object appender = appenders.nextElement();
+			if (appender instanceof ConsoleAppender) {
+				ConsoleAppender consoleAppender = (ConsoleAppender)appender;
+				consoleAppender.setTarget(ConsoleAppender.SYSTEM_ERR);
+				consoleAppender.activateOptions();
+			}
+		}
+	}
+
 	public static Scanner createScanner(String inputFile) throws IOException {
 		InputStream inputStream = null;
 		if (new File(inputFile).getName().endsWith(".gz")) {
@@ -120,4 +268,55 @@ public abstract class Utils {
 		}
 		return new Scanner(inputStream, "UTF-8");
 	}
+
+	/**
+	 * Returns an executor that starts a new virtual thread for each task, or null if the
+	 * running JVM does not support virtual threads. Looked up by reflection so that Carmen
+	 * still builds and runs on older JVMs.
+	 * @return
+	 */
+	public static ExecutorService createVirtualThreadExecutor() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Creates an executor for handling requests. If numThreads is positive, a fixed pool of that size is
+	 * used. Otherwise virtual threads are used when available, falling back to a fixed pool with two
+	 * threads per processor.
+	 * @param numThreads
+	 * @return
+	 */
+	public static ExecutorService createExecutor(int numThreads) {
+		return createExecutor(numThreads, false);
+	}
+	
+	/**
+	 * Creates an executor as createExecutor(int) does.
+	 * @param numThreads
+	 * @param daemon If true, the threads of a fixed pool are daemon threads, so they do not keep the JVM
+	 * running (virtual threads always are).
+	 * @return
+	 */
+	public static ExecutorService createExecutor(int numThreads, boolean daemon) {
+		if (numThreads <= 0) {
+			ExecutorService executor = createVirtualThreadExecutor();
+			if (executor != null)
+				return executor;
+			numThreads = 2 * Runtime.getRuntime().availableProcessors();
+		}
+		if (!daemon)
+			return Executors.newFixedThreadPool(numThreads);
+		final ThreadFactory threadFactory = Executors.defaultThreadFactory();
+		return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = threadFactory.newThread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
 }